@@ -21,40 +21,152 @@ import org.zakky.usbdevicelist.UsbDeviceListFragment.OnUsbInterfaceSelectionList
 import android.app.Activity;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
-import android.hardware.usb.UsbInterface;
 import android.os.Bundle;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class InfoActivity extends Activity implements OnUsbInterfaceSelectionListener {
 
+    /**
+     * ベンダ/プロダクト名のインデックスの読み込みをプロセス内で開始済みかどうか。
+     * メインスレッドからのみ参照します。
+     */
+    private static boolean sIdsIndexRequested;
+
+    /**
+     * 表示中のアクティビティ。 インデックスの読み込みが終わったときにリストへ反映するために
+     * 使います。 メインスレッドからのみ参照します。
+     */
+    private static InfoActivity sStarted;
+
+    /**
+     * {@code dumpsys} の引数。 計測値を書き出した後で 0 に戻します。
+     */
+    private static final String DUMP_ARG_RESET = "--perf-reset";
+
+    /**
+     * {@code dumpsys} の引数。 続けて {@code on} か {@code off} を指定し、計測区間を
+     * システムトレースに記録するかどうかを切り替えます。
+     */
+    private static final String DUMP_ARG_TRACE = "--perf-trace";
+
+    private static final UsbPerfStats.Timer SELECT_TIMER = UsbPerfStats
+            .newTimer("detail.select");
+
+    private static final UsbPerfStats.Counter RETARGET_COUNTER = UsbPerfStats
+            .newCounter("detail.retarget");
+
+    private static final UsbPerfStats.Counter TRANSACTION_COUNTER = UsbPerfStats
+            .newCounter("detail.transaction");
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (!sIdsIndexRequested) {
+            // APK のメモリマップや展開でメインスレッドを止めないよう、バックグラウンドで読む
+            UsbIdsAssets.loadInBackground(getApplicationContext().getAssets(),
+                    UsbIdsAssets.DEFAULT_ASSET_NAME, IDS_CALLBACK);
+            sIdsIndexRequested = true;
+        }
         setContentView(R.layout.info);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        sStarted = this;
+    }
+
+    @Override
+    protected void onStop() {
+        if (sStarted == this) {
+            sStarted = null;
+        }
+        super.onStop();
+    }
+
+    /**
+     * 読み込んだインデックスを行のキャッシュに設定し、表示中のリストに反映します。
+     * 停止中のアクティビティのリストには {@link UsbDeviceListFragment#onStart()} で反映されます。
+     */
+    private static final UsbIdsAssets.Callback IDS_CALLBACK = new UsbIdsAssets.Callback() {
+        @Override
+        public void onLoaded(UsbIdsIndex index) {
+            UsbRowCache.getDefault().setIdsIndex(index);
+            if (sStarted == null) {
+                return;
+            }
+            final UsbDeviceListFragment list = (UsbDeviceListFragment) sStarted
+                    .getFragmentManager().findFragmentById(R.id.device_list);
+            if (list != null) {
+                list.onIdsIndexChanged();
+            }
+        }
+    };
+
+    /**
+     * フラグメントの状態に続けて、 {@link UsbPerfStats} の計測値を書き出します。
+     * {@code adb shell dumpsys activity org.zakky.usbdevicelist} で表示できます。
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        boolean reset = false;
+        for (int i = 0; args != null && i < args.length; i++) {
+            if (DUMP_ARG_RESET.equals(args[i])) {
+                reset = true;
+            } else if (DUMP_ARG_TRACE.equals(args[i]) && i + 1 < args.length) {
+                UsbPerfStats.setTracer("on".equals(args[++i]) ? UsbSystemTracer.newInstance()
+                        : null);
+            }
+        }
+        writer.print(prefix);
+        writer.print("tracing=");
+        writer.println(UsbPerfStats.isTracing());
+        UsbPerfStats.dump(prefix, writer);
+        if (reset) {
+            UsbPerfStats.reset();
+        }
     }
 
     private static final String TAG_DETAIL = "detail";
 
     @Override
-    public void onUsbInterfaceSelected(UsbInterface iface) {
+    public void onUsbInterfaceSelected(String deviceName, int interfaceId) {
+        final long start = SELECT_TIMER.start();
+        try {
+            selectInterface(deviceName, interfaceId);
+        } finally {
+            SELECT_TIMER.stop(start);
+        }
+    }
+
+    private void selectInterface(String deviceName, int interfaceId) {
         final FragmentManager fm = getFragmentManager();
         final UsbDeviceDetailFragment prevDetail = (UsbDeviceDetailFragment) fm.findFragmentByTag(TAG_DETAIL);
 
+        if (deviceName != null && prevDetail != null) {
+            // 表示済みのフラグメントはそのまま使い、表示対象だけを差し替える
+            prevDetail.setTarget(deviceName, interfaceId);
+            RETARGET_COUNTER.increment();
+            return;
+        }
+        if (deviceName == null && prevDetail == null) {
+            return;
+        }
+
         final FragmentTransaction tr = fm.beginTransaction();
-        if (iface == null) {
-            if (prevDetail != null) {
-                tr.remove(prevDetail);
-            }
-        } else if (prevDetail == null || !iface.equals(prevDetail.getTarget())) {
-            final UsbDeviceDetailFragment newDetail = UsbDeviceDetailFragment.newInstance(iface);
+        if (deviceName == null) {
+            tr.remove(prevDetail);
+        } else {
+            final UsbDeviceDetailFragment newDetail = UsbDeviceDetailFragment.newInstance(deviceName,
+                    interfaceId);
             tr.replace(R.id.device_detail_container, newDetail, TAG_DETAIL);
             tr.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
         }
         tr.commit();
+        TRANSACTION_COUNTER.increment();
     }
 
 }
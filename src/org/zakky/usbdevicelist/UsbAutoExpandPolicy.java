@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * デバイス一覧のグループを自動的に展開するかどうかを決めるクラスです。
+ * <p>
+ * インタフェースの行はグループが展開されて画面に入ったときに初めて作られます。
+ * 多数のデバイスが接続されているときにすべてのグループを展開すると、最初の表示までの
+ * 処理量がデバイス数に比例して増えるので、デバイス数が上限以下の場合だけ展開します。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbAutoExpandPolicy {
+
+    private final int mLimit;
+
+    /**
+     * @param limit グループを自動的に展開するデバイス数の上限。 {@code 0} の場合は
+     * 自動的には展開しません。
+     */
+    public UsbAutoExpandPolicy(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("invalid limit: " + limit);
+        }
+        mLimit = limit;
+    }
+
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * 最初のスナップショットを表示するときに、すべてのグループを展開するかどうかを返します。
+     *
+     * @param groupCount 表示するグループの数。
+     */
+    public boolean shouldExpandAll(int groupCount) {
+        return groupCount <= mLimit;
+    }
+
+    /**
+     * 差分を適用した後に展開するデバイスを返します。 新たに接続されたデバイスだけを
+     * 展開し、他のグループの展開状態は変えません。
+     *
+     * @param diff 適用した差分。
+     * @return 展開するデバイス。 適用後のデバイス数が上限を超える場合は空のリスト。
+     */
+    public List<UsbDeviceSnapshot> getDevicesToExpand(UsbTopologyDiff diff) {
+        if (mLimit < diff.getResult().size()) {
+            return Collections.emptyList();
+        }
+        return diff.getAdded();
+    }
+}
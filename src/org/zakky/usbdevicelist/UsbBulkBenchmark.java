@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * バルク Endpoint のスループットとレイテンシを計測するクラスです。
+ * <p>
+ * 転送サイズごとに一定時間だけ転送を繰り返し、MB/s、転送回数/秒、1回ごとの
+ * レイテンシのパーセンタイルを求めます。 転送は {@link UsbBulkTransport} を通して行うので、
+ * このクラスは Android に依存しません。
+ * </p>
+ * <p>
+ * {@link #run(UsbBulkTransport, Listener)} は呼び出したスレッドで転送を行うので、
+ * メインスレッド以外から呼んでください。 {@link #cancel()} だけは任意のスレッドから呼べます。
+ * </p>
+ */
+public final class UsbBulkBenchmark {
+
+    /**
+     * ステップごとの結果を受け取るリスナです。
+     */
+    public interface Listener {
+        /**
+         * ひとつの転送サイズの計測が終わった場合に、
+         * {@link UsbBulkBenchmark#run(UsbBulkTransport, Listener)} を呼んだスレッドから呼ばれます。
+         */
+        public void onStepFinished(UsbBulkBenchmarkResult result);
+    }
+
+    /**
+     * 転送サイズの上限のデフォルト値。 Android 4.3 より前の
+     * {@code UsbDeviceConnection#bulkTransfer} は 16KB を超える転送を扱えません。
+     */
+    public static final int DEFAULT_MAX_TRANSFER_SIZE = 16 * 1024;
+
+    /**
+     * 1ステップあたりの計測時間のデフォルト値(ミリ秒)。
+     */
+    public static final long DEFAULT_STEP_MILLIS = 1000L;
+
+    /**
+     * 1回の転送のタイムアウトのデフォルト値(ミリ秒)。
+     */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 500;
+
+    /**
+     * 1ステップで記録するレイテンシの最大数。 これに達した時点でそのステップを終了します。
+     */
+    static final int MAX_SAMPLES_PER_STEP = 64 * 1024;
+
+    /**
+     * この回数だけ連続して失敗した場合は、そのステップを打ち切ります。
+     */
+    private static final int MAX_CONSECUTIVE_ERRORS = 3;
+
+    private final int[] mTransferSizes;
+
+    private final long mStepNanos;
+
+    private final int mTimeoutMillis;
+
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param transferSizes 計測する転送サイズ(バイト)の並び。
+     * @param stepMillis 転送サイズごとの計測時間(ミリ秒)。
+     * @param timeoutMillis 1回の転送のタイムアウト(ミリ秒)。
+     */
+    public UsbBulkBenchmark(int[] transferSizes, long stepMillis, int timeoutMillis) {
+        if (transferSizes.length == 0) {
+            throw new IllegalArgumentException("no transfer sizes.");
+        }
+        for (int size : transferSizes) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("invalid transfer size: " + size);
+            }
+        }
+        if (stepMillis <= 0) {
+            throw new IllegalArgumentException("invalid step: " + stepMillis);
+        }
+        mTransferSizes = transferSizes.clone();
+        mStepNanos = stepMillis * 1000L * 1000L;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * {@code minSize} から2倍ずつ {@code maxSize} までの転送サイズの並びを返します。
+     * {@code maxSize} が2のべき乗倍でない場合も、最後の要素は {@code maxSize} になります。
+     */
+    public static int[] doublingSizes(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("invalid range: " + minSize + ".." + maxSize);
+        }
+        int count = 1;
+        for (long size = minSize; size < maxSize; size *= 2) {
+            count++;
+        }
+        final int[] sizes = new int[count];
+        long size = minSize;
+        for (int i = 0; i < count - 1; i++) {
+            sizes[i] = (int) size;
+            size *= 2;
+        }
+        sizes[count - 1] = maxSize;
+        return sizes;
+    }
+
+    /**
+     * 計測を中止します。 実行中の転送が終わった時点で
+     * {@link #run(UsbBulkTransport, Listener)} から戻ります。
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * すべての転送サイズについて計測を行います。
+     *
+     * @param transport 転送経路。
+     * @param listener ステップごとに結果を受け取るリスナ。 {@code null} でもかまいません。
+     * @return 完了したステップの結果。中止された場合は途中までの結果。
+     */
+    public List<UsbBulkBenchmarkResult> run(UsbBulkTransport transport, Listener listener) {
+        int maxSize = 0;
+        for (int size : mTransferSizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        final byte[] buffer = new byte[maxSize];
+        final long[] latencies = new long[MAX_SAMPLES_PER_STEP];
+
+        final List<UsbBulkBenchmarkResult> results = Lists.newArrayList();
+        for (int size : mTransferSizes) {
+            if (mCancelled) {
+                break;
+            }
+            final UsbBulkBenchmarkResult result = runStep(transport, buffer, size, latencies);
+            results.add(result);
+            if (listener != null) {
+                listener.onStepFinished(result);
+            }
+        }
+        return results;
+    }
+
+    private UsbBulkBenchmarkResult runStep(UsbBulkTransport transport, byte[] buffer, int size,
+            long[] latencies) {
+        int count = 0;
+        int errors = 0;
+        int consecutiveErrors = 0;
+        long bytes = 0L;
+        final long start = System.nanoTime();
+        long now = start;
+        while (now - start < mStepNanos && count < latencies.length && !mCancelled) {
+            final long before = now;
+            final int transferred = transport.transfer(buffer, size, mTimeoutMillis);
+            now = System.nanoTime();
+            if (transferred < 0) {
+                errors++;
+                if (MAX_CONSECUTIVE_ERRORS <= ++consecutiveErrors) {
+                    break;
+                }
+                continue;
+            }
+            consecutiveErrors = 0;
+            bytes += transferred;
+            latencies[count++] = now - before;
+        }
+        final long elapsed = now - start;
+
+        Arrays.sort(latencies, 0, count);
+        return new UsbBulkBenchmarkResult(size, count, errors, bytes, elapsed,
+                percentile(latencies, count, 50), percentile(latencies, count, 90),
+                percentile(latencies, count, 99), (count == 0) ? 0L : latencies[count - 1]);
+    }
+
+    /**
+     * ソート済みの配列から nearest-rank 法でパーセンタイルを求めます。
+     */
+    static long percentile(long[] sorted, int count, int percent) {
+        if (count == 0) {
+            return 0L;
+        }
+        final int rank = (int) Math.ceil(percent / 100.0 * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+/**
+ * {@link UsbBulkBenchmark} の1ステップ(ひとつの転送サイズ)分の計測結果です。
+ * <p>
+ * このクラスはイミュータブルで、Android に依存しません。
+ * </p>
+ */
+public final class UsbBulkBenchmarkResult {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    private final int mTransferSize;
+
+    private final int mTransferCount;
+
+    private final int mErrorCount;
+
+    private final long mByteCount;
+
+    private final long mElapsedNanos;
+
+    private final long mLatencyP50Nanos;
+
+    private final long mLatencyP90Nanos;
+
+    private final long mLatencyP99Nanos;
+
+    private final long mLatencyMaxNanos;
+
+    public UsbBulkBenchmarkResult(int transferSize, int transferCount, int errorCount,
+            long byteCount, long elapsedNanos, long latencyP50Nanos, long latencyP90Nanos,
+            long latencyP99Nanos, long latencyMaxNanos) {
+        mTransferSize = transferSize;
+        mTransferCount = transferCount;
+        mErrorCount = errorCount;
+        mByteCount = byteCount;
+        mElapsedNanos = elapsedNanos;
+        mLatencyP50Nanos = latencyP50Nanos;
+        mLatencyP90Nanos = latencyP90Nanos;
+        mLatencyP99Nanos = latencyP99Nanos;
+        mLatencyMaxNanos = latencyMaxNanos;
+    }
+
+    /**
+     * @return 要求した1回あたりの転送サイズ(バイト)。
+     */
+    public int getTransferSize() {
+        return mTransferSize;
+    }
+
+    /**
+     * @return 成功した転送の回数。
+     */
+    public int getTransferCount() {
+        return mTransferCount;
+    }
+
+    /**
+     * @return 失敗した転送の回数。
+     */
+    public int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * @return 実際に転送したバイト数の合計。
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * @return スループット (10^6 バイト/秒)。
+     */
+    public double getMegabytesPerSecond() {
+        if (mElapsedNanos <= 0) {
+            return 0.0;
+        }
+        return (mByteCount * (double) NANOS_PER_SECOND) / mElapsedNanos / 1000000.0;
+    }
+
+    /**
+     * @return 1秒あたりの転送回数。
+     */
+    public double getTransfersPerSecond() {
+        if (mElapsedNanos <= 0) {
+            return 0.0;
+        }
+        return (mTransferCount * (double) NANOS_PER_SECOND) / mElapsedNanos;
+    }
+
+    public long getLatencyP50Nanos() {
+        return mLatencyP50Nanos;
+    }
+
+    public long getLatencyP90Nanos() {
+        return mLatencyP90Nanos;
+    }
+
+    public long getLatencyP99Nanos() {
+        return mLatencyP99Nanos;
+    }
+
+    public long getLatencyMaxNanos() {
+        return mLatencyMaxNanos;
+    }
+
+    /**
+     * 結果を1行のテキストとして追加します。
+     *
+     * @return {@code sb}
+     */
+    public StringBuilder appendSummary(StringBuilder sb) {
+        sb.append(mTransferSize).append(" B: ");
+        appendFixed(sb, getMegabytesPerSecond()).append(" MB/s, ");
+        appendFixed(sb, getTransfersPerSecond()).append(" xfer/s, p50 ");
+        appendMicros(sb, mLatencyP50Nanos).append(", p90 ");
+        appendMicros(sb, mLatencyP90Nanos).append(", p99 ");
+        appendMicros(sb, mLatencyP99Nanos).append(", max ");
+        appendMicros(sb, mLatencyMaxNanos);
+        if (mErrorCount != 0) {
+            sb.append(", errors ").append(mErrorCount);
+        }
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return appendSummary(new StringBuilder(128)).toString();
+    }
+
+    /**
+     * 小数点以下2桁の固定小数点表記で追加します。
+     */
+    private static StringBuilder appendFixed(StringBuilder sb, double value) {
+        final long hundredths = Math.round(value * 100.0);
+        sb.append(hundredths / 100).append('.');
+        final long fraction = hundredths % 100;
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    private static StringBuilder appendMicros(StringBuilder sb, long nanos) {
+        return sb.append(nanos / 1000L).append(" us");
+    }
+}
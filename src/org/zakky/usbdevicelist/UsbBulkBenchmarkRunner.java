@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 実機のバルク Endpoint に対する {@link UsbBulkBenchmark} をバックグラウンドスレッドで
+ * 実行するクラスです。
+ * <p>
+ * 同時に実行する計測はひとつだけです。 新しい計測を開始すると実行中の計測は中止され、
+ * その結果は通知されません。 {@link #start}, {@link #cancel()}, {@link #shutdown()} は
+ * メインスレッドから呼んでください。 {@link Callback} はメインスレッドから呼ばれます。
+ * </p>
+ */
+public class UsbBulkBenchmarkRunner {
+
+    /**
+     * 計測の経過と結果を受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * ひとつの転送サイズの計測が終わった場合にメインスレッドから呼ばれます。
+         */
+        public void onStepFinished(UsbBulkBenchmarkResult result);
+
+        /**
+         * 計測が終わった場合にメインスレッドから呼ばれます。
+         *
+         * @param success デバイスのオープンやインタフェースの claim に成功した場合は
+         * {@code true}。
+         */
+        public void onFinished(boolean success);
+    }
+
+    private static final UsbPerfStats.Timer RUN_TIMER = UsbPerfStats.newTimer("bulk.benchmark");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbBulkBenchmark #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final UsbConnectionPool<UsbDeviceConnection> mConnections;
+
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * 計測の世代番号。最新の世代の結果だけが通知されます。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private UsbBulkBenchmark mRunning;
+
+    /**
+     * @param connections デバイスへの接続を借りるプール。
+     * @param callback 経過と結果を受け取るコールバック。
+     */
+    public UsbBulkBenchmarkRunner(UsbConnectionPool<UsbDeviceConnection> connections,
+            Callback callback) {
+        mConnections = connections;
+        mCallback = callback;
+    }
+
+    /**
+     * 計測を開始します。 デバイスへのアクセス権限は呼び出し元で取得しておいてください。
+     *
+     * @param device 対象のデバイス。
+     * @param iface Endpoint を持つインタフェース。計測中は claim されます。
+     * @param endpoint 計測するバルク Endpoint。
+     * @param benchmark 計測の設定。
+     */
+    public void start(final UsbDevice device, final UsbInterface iface,
+            final UsbEndpoint endpoint, final UsbBulkBenchmark benchmark) {
+        cancel();
+        final int generation = mGeneration.get();
+        mRunning = benchmark;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean success = runBenchmark(generation, device, iface, endpoint,
+                        benchmark);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration.get()) {
+                            return;
+                        }
+                        mRunning = null;
+                        mCallback.onFinished(success);
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean runBenchmark(final int generation, UsbDevice device, UsbInterface iface,
+            UsbEndpoint endpoint, UsbBulkBenchmark benchmark) {
+        final UsbConnectionPool.Lease<UsbDeviceConnection> lease = mConnections.acquire(
+                device.getDeviceName(), iface.getId());
+        if (lease == null) {
+            return false;
+        }
+        final long start = RUN_TIMER.start();
+        try {
+            benchmark.run(new UsbConnectionBulkTransport(lease.getConnection(), endpoint),
+                    new UsbBulkBenchmark.Listener() {
+                        @Override
+                        public void onStepFinished(final UsbBulkBenchmarkResult result) {
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (generation == mGeneration.get()) {
+                                        mCallback.onStepFinished(result);
+                                    }
+                                }
+                            });
+                        }
+                    });
+        } finally {
+            RUN_TIMER.stop(start);
+            lease.close();
+        }
+        return true;
+    }
+
+    /**
+     * 計測中かどうかを返します。
+     */
+    public boolean isRunning() {
+        return mRunning != null;
+    }
+
+    /**
+     * 実行中の計測を中止します。 中止した計測の結果は通知されません。
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        if (mRunning != null) {
+            mRunning.cancel();
+            mRunning = null;
+        }
+    }
+
+    /**
+     * 実行中の計測を中止し、バックグラウンドスレッドを終了します。 以降このオブジェクトは
+     * 使用できません。
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+}
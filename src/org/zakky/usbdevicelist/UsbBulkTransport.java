@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+/**
+ * バルク転送を行う経路を抽象化したインタフェースです。
+ * <p>
+ * {@link UsbBulkBenchmark} はこのインタフェースだけを通して転送を行うので、実機の
+ * Endpoint の代わりにループバックなどのスタンドインを使って計測処理を動かすことができます。
+ * </p>
+ */
+public interface UsbBulkTransport {
+
+    /**
+     * 1回のバルク転送を行います。 IN の場合は {@code buffer} へ読み込み、OUT の場合は
+     * {@code buffer} の内容を書き込みます。
+     *
+     * @param buffer 転送に使用するバッファ。
+     * @param length 転送するバイト数。
+     * @param timeoutMillis タイムアウト(ミリ秒)。
+     * @return 実際に転送したバイト数。失敗した場合は負の値。
+     */
+    public int transfer(byte[] buffer, int length, int timeoutMillis);
+}
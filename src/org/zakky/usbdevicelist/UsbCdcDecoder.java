@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append2Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append8Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendDecimal;
+
+/**
+ * CDC (Communications Device Class) の機能ディスクリプタを解釈するデコーダです。
+ * <p>
+ * Header、 Call Management、 ACM、 Union、 Ethernet Networking、 NCM、 MBIM の
+ * 各機能ディスクリプタの主要なフィールドを整形します。 それ以外のサブタイプは解釈しません。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbCdcDecoder implements UsbClassDecoder {
+
+    /**
+     * CDC の通信インタフェースのクラスコード。
+     */
+    public static final int CLASS_CDC = 0x02;
+
+    /*
+     * 機能ディスクリプタのサブタイプ (bDescriptorSubtype)
+     */
+
+    public static final int SUBTYPE_HEADER = 0x00;
+
+    public static final int SUBTYPE_CALL_MANAGEMENT = 0x01;
+
+    public static final int SUBTYPE_ACM = 0x02;
+
+    public static final int SUBTYPE_UNION = 0x06;
+
+    public static final int SUBTYPE_ETHERNET = 0x0f;
+
+    public static final int SUBTYPE_NCM = 0x1a;
+
+    public static final int SUBTYPE_MBIM = 0x1b;
+
+    @Override
+    public boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p, int subclass,
+            int protocol) {
+        if (p.getType() != UsbDescriptorParser.TYPE_CS_INTERFACE || !p.hasField(2, 1)) {
+            return false;
+        }
+        switch (p.getU8(2)) {
+            case SUBTYPE_HEADER:
+                if (!p.hasField(3, 2)) {
+                    return false;
+                }
+                sb.append("CDC Header: CDC ");
+                UsbDescriptorFormatter.appendBcd(sb, p.getU16(3));
+                return true;
+            case SUBTYPE_CALL_MANAGEMENT:
+                if (!p.hasField(3, 2)) {
+                    return false;
+                }
+                sb.append("CDC Call Management: Capabilities: ");
+                append2Hex(sb, p.getU8(3)).append(", DataInterface: ");
+                appendDecimal(sb, p.getU8(4));
+                return true;
+            case SUBTYPE_ACM:
+                if (!p.hasField(3, 1)) {
+                    return false;
+                }
+                sb.append("CDC ACM: Capabilities: ");
+                append2Hex(sb, p.getU8(3));
+                return true;
+            case SUBTYPE_UNION:
+                if (!p.hasField(3, 2)) {
+                    return false;
+                }
+                sb.append("CDC Union: ControlInterface: ");
+                appendDecimal(sb, p.getU8(3)).append(", SubordinateInterfaces: ");
+                for (int i = 4; i < p.getLength(); i++) {
+                    if (4 < i) {
+                        sb.append(", ");
+                    }
+                    appendDecimal(sb, p.getU8(i));
+                }
+                return true;
+            case SUBTYPE_ETHERNET:
+                if (!p.hasField(3, 10)) {
+                    return false;
+                }
+                sb.append("CDC Ethernet: MACAddress: string ");
+                appendDecimal(sb, p.getU8(3)).append(", Statistics: ");
+                append8Hex(sb, p.getU32(4)).append(", MaxSegmentSize: ");
+                appendDecimal(sb, p.getU16(8)).append(", MCFilters: ");
+                appendDecimal(sb, p.getU16(10) & 0x7fff).append(", PowerFilters: ");
+                appendDecimal(sb, p.getU8(12));
+                return true;
+            case SUBTYPE_NCM:
+                if (!p.hasField(3, 3)) {
+                    return false;
+                }
+                sb.append("CDC NCM: NCM ");
+                UsbDescriptorFormatter.appendBcd(sb, p.getU16(3)).append(", Capabilities: ");
+                append2Hex(sb, p.getU8(5));
+                return true;
+            case SUBTYPE_MBIM:
+                if (!p.hasField(3, 9)) {
+                    return false;
+                }
+                sb.append("CDC MBIM: MBIM ");
+                UsbDescriptorFormatter.appendBcd(sb, p.getU16(3)).append(", MaxControlMessage: ");
+                appendDecimal(sb, p.getU16(5)).append(", Filters: ");
+                appendDecimal(sb, p.getU8(7)).append(", MaxFilterSize: ");
+                appendDecimal(sb, p.getU8(8)).append(", MaxSegmentSize: ");
+                appendDecimal(sb, p.getU16(9)).append(", Capabilities: ");
+                append2Hex(sb, p.getU8(11));
+                return true;
+        }
+        return false;
+    }
+}
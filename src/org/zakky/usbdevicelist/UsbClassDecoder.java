@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+/**
+ * インタフェースのクラスに固有のディスクリプタを解釈するデコーダのインタフェースです。
+ * <p>
+ * {@link UsbClassDecoders} にインタフェースのクラス、サブクラス、プロトコルと組にして
+ * 登録しておくと、 {@link UsbDescriptorFormatter} がそのインタフェースに続く
+ * ディスクリプタの整形に使います。
+ * </p>
+ */
+public interface UsbClassDecoder {
+
+    /**
+     * パーサの現在のディスクリプタを1行分追加します。 改行は含みません。
+     *
+     * @param sb 出力先。
+     * @param p パーサ。 ディスクリプタの範囲外のフィールドは読まないでください。
+     * @param subclass ディスクリプタが属するインタフェースのサブクラス。
+     * @param protocol ディスクリプタが属するインタフェースのプロトコル。
+     * @return 解釈して追加した場合は {@code true}。 解釈できない場合は何も追加せずに
+     * {@code false} を返してください。
+     */
+    public boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p, int subclass,
+            int protocol);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.util.List;
+
+/**
+ * {@link UsbClassDecoder} をインタフェースのクラス、サブクラス、プロトコルで引く登録表です。
+ * <p>
+ * 検索は (クラス, サブクラス, プロトコル)、(クラス, サブクラス, 任意)、(クラス, 任意, 任意)
+ * の順に表を引き、見つかったデコーダを登録順に試して、最初にディスクリプタを
+ * 解釈できたものを使います。 表は {@link UsbIntMultimap} で保持するので、
+ * 検索でキーをボクシングすることはありません。
+ * </p>
+ * <p>
+ * このクラスのメソッドはスレッドセーフです。 Android には依存しません。
+ * </p>
+ */
+public final class UsbClassDecoders {
+
+    /**
+     * サブクラスやプロトコルを問わないことを表す値。
+     */
+    public static final int ANY = -1;
+
+    private static final int WILDCARD = 0x1ff;
+
+    private static final UsbClassDecoders DEFAULT = new UsbClassDecoders() //
+            .register(UsbHidDecoder.CLASS_HID, ANY, ANY, new UsbHidDecoder()) //
+            .register(UsbCdcDecoder.CLASS_CDC, ANY, ANY, new UsbCdcDecoder()) //
+            .register(UsbUvcDecoder.CLASS_VIDEO, ANY, ANY, new UsbUvcDecoder());
+
+    private final UsbIntMultimap<UsbClassDecoder> mTable = new UsbIntMultimap<UsbClassDecoder>();
+
+    /**
+     * HID、 CDC、 UVC のデコーダを登録済みの、プロセスで共有する登録表を返します。
+     */
+    public static UsbClassDecoders getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * デコーダを登録します。
+     *
+     * @param clazz インタフェースのクラス。
+     * @param subclass インタフェースのサブクラス。 {@link #ANY} も指定できます。
+     * @param protocol インタフェースのプロトコル。 {@link #ANY} も指定できます。
+     * サブクラスが {@link #ANY} の場合は {@link #ANY} だけが指定できます。
+     * @return {@code this}
+     */
+    public synchronized UsbClassDecoders register(int clazz, int subclass, int protocol,
+            UsbClassDecoder decoder) {
+        if (clazz < 0 || 0xff < clazz) {
+            throw new IllegalArgumentException("invalid class: " + clazz);
+        }
+        if (subclass < ANY || 0xff < subclass) {
+            throw new IllegalArgumentException("invalid subclass: " + subclass);
+        }
+        if (protocol < ANY || 0xff < protocol || (subclass == ANY && protocol != ANY)) {
+            throw new IllegalArgumentException("invalid protocol: " + protocol);
+        }
+        if (decoder == null) {
+            throw new NullPointerException("decoder must not be null.");
+        }
+        mTable.put(toKey(clazz, subclass, protocol), decoder);
+        return this;
+    }
+
+    /**
+     * 登録済みのデコーダでパーサの現在のディスクリプタを1行分追加します。 改行は含みません。
+     *
+     * @param clazz ディスクリプタが属するインタフェースのクラス。
+     * @param subclass ディスクリプタが属するインタフェースのサブクラス。
+     * @param protocol ディスクリプタが属するインタフェースのプロトコル。
+     * @return いずれかのデコーダが解釈して追加した場合は {@code true}。
+     */
+    public synchronized boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p,
+            int clazz, int subclass, int protocol) {
+        return appendWithKey(sb, p, toKey(clazz, subclass, protocol), subclass, protocol)
+                || appendWithKey(sb, p, toKey(clazz, subclass, ANY), subclass, protocol)
+                || appendWithKey(sb, p, toKey(clazz, ANY, ANY), subclass, protocol);
+    }
+
+    private boolean appendWithKey(StringBuilder sb, UsbDescriptorParser p, int key,
+            int subclass, int protocol) {
+        final List<UsbClassDecoder> decoders = mTable.get(key);
+        for (int i = 0; i < decoders.size(); i++) {
+            if (decoders.get(i).appendDescriptor(sb, p, subclass, protocol)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 0 から 0xff の値はそのまま、 {@link #ANY} は範囲外の {@link #WILDCARD} として
+     * 9ビットずつ詰めます。
+     */
+    private static int toKey(int clazz, int subclass, int protocol) {
+        return ((clazz & WILDCARD) << 18) | ((subclass & WILDCARD) << 9)
+                | (protocol & WILDCARD);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+
+/**
+ * {@link UsbDeviceConnection#bulkTransfer(UsbEndpoint, byte[], int, int)} を使う
+ * {@link UsbBulkTransport} の実装です。
+ * <p>
+ * インタフェースの claim や接続のクローズは呼び出し元で行ってください。
+ * </p>
+ */
+public final class UsbConnectionBulkTransport implements UsbBulkTransport {
+
+    private final UsbDeviceConnection mConnection;
+
+    private final UsbEndpoint mEndpoint;
+
+    public UsbConnectionBulkTransport(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        mConnection = connection;
+        mEndpoint = endpoint;
+    }
+
+    @Override
+    public int transfer(byte[] buffer, int length, int timeoutMillis) {
+        return mConnection.bulkTransfer(mEndpoint, buffer, length, timeoutMillis);
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * デバイスへの接続を、デバイスとインタフェースごとにリースとして貸し出すプールです。
+ * <p>
+ * 接続はデバイスごとにひとつだけオープンし、同じデバイスのリースで共有します。
+ * インタフェースの claim はインタフェースごとに参照カウントし、最初のリースで claim して
+ * 最後のリースの返却で release します。 リースがすべて返却された接続は
+ * {@code idleTimeoutMillis} の間残しておき、その間に再びリースされなければ閉じます。
+ * {@link #invalidate(String)} で無効にしたデバイスの接続はすぐに閉じ、貸し出し中の
+ * リースは {@link Lease#isValid()} が {@code false} になります。
+ * </p>
+ * <p>
+ * 同じデバイスのリースは接続を共有するので、非同期の要求 (UsbRequest) を使う処理を
+ * 同じデバイスで同時に行わないでください。 接続のオープンやインタフェースの claim は
+ * {@link ConnectionFactory} に委譲するので、偽物を渡せば Android 無しでも動作します。
+ * オープンの回数や待ち時間などは {@link UsbPerfStats} に記録します。
+ * このクラスはスレッドセーフです。
+ * </p>
+ *
+ * @param <C> 接続の型。
+ */
+public final class UsbConnectionPool<C> {
+
+    /**
+     * 接続のオープンやインタフェースの claim を行うインタフェースです。 プールのロックを
+     * 保持しない状態で呼ばれるのは {@link #open(String)} だけで、他のメソッドはすぐに
+     * 戻ってください。
+     *
+     * @param <C> 接続の型。
+     */
+    public interface ConnectionFactory<C> {
+        /**
+         * @return 接続。 デバイスが無い場合やアクセス権限が無い場合は {@code null}。
+         */
+        public C open(String deviceName);
+
+        /**
+         * @return claim できた場合は {@code true}。
+         */
+        public boolean claimInterface(C connection, String deviceName, int interfaceId);
+
+        public void releaseInterface(C connection, String deviceName, int interfaceId);
+
+        public void close(C connection);
+    }
+
+    /**
+     * 貸し出した接続です。 使い終わったら {@link #close()} で返却してください。
+     *
+     * @param <C> 接続の型。
+     */
+    public static final class Lease<C> implements Closeable {
+        private final UsbConnectionPool<C> mPool;
+
+        private final Entry<C> mEntry;
+
+        private final int mInterfaceId;
+
+        /**
+         * 返却済みかどうか。 プールのロックで保護します。
+         */
+        private boolean mReleased = false;
+
+        Lease(UsbConnectionPool<C> pool, Entry<C> entry, int interfaceId) {
+            mPool = pool;
+            mEntry = entry;
+            mInterfaceId = interfaceId;
+        }
+
+        public C getConnection() {
+            return mEntry.mConnection;
+        }
+
+        public String getDeviceName() {
+            return mEntry.mDeviceName;
+        }
+
+        /**
+         * @return claim したインタフェースの Id。 claim していない場合は -1。
+         */
+        public int getInterfaceId() {
+            return mInterfaceId;
+        }
+
+        /**
+         * @return 接続がまだ使える場合は {@code true}。 デバイスが取り外されるなどして
+         * 無効になった場合は {@code false}。
+         */
+        public boolean isValid() {
+            return !mEntry.mInvalid;
+        }
+
+        /**
+         * リースを返却します。 複数回呼んでもかまいません。
+         */
+        @Override
+        public void close() {
+            mPool.release(this);
+        }
+    }
+
+    /**
+     * デバイスごとの接続の状態。 {@link #mConnection} 以外はプールのロックで保護します。
+     */
+    private static final class Entry<C> {
+        final String mDeviceName;
+
+        /**
+         * 接続。 オープン中は {@code null}。 オープン後は変わりません。
+         */
+        volatile C mConnection;
+
+        boolean mOpening = true;
+
+        volatile boolean mInvalid = false;
+
+        int mLeaseCount;
+
+        /**
+         * インタフェースの Id ごとの claim の参照カウント。
+         */
+        final Map<Integer, Integer> mClaims = Maps.newHashMap();
+
+        /**
+         * リースがすべて返却された時刻 ({@link System#nanoTime()})。
+         */
+        long mIdleSinceNanos;
+
+        Entry(String deviceName) {
+            mDeviceName = deviceName;
+        }
+    }
+
+    /**
+     * アイドルの接続を閉じるまでの時間(ミリ秒)のデフォルト値。
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000L;
+
+    private static final UsbPerfStats.Timer LEASE_WAIT_TIMER = UsbPerfStats
+            .newTimer("connections.leaseWait");
+
+    private static final UsbPerfStats.Timer OPEN_TIMER = UsbPerfStats
+            .newTimer("connections.open");
+
+    private static final UsbPerfStats.Counter LEASE_COUNTER = UsbPerfStats
+            .newCounter("connections.leases");
+
+    private static final UsbPerfStats.Counter REUSE_COUNTER = UsbPerfStats
+            .newCounter("connections.reuses");
+
+    private static final UsbPerfStats.Counter OPEN_FAILURE_COUNTER = UsbPerfStats
+            .newCounter("connections.openFailures");
+
+    private static final UsbPerfStats.Counter CLAIM_FAILURE_COUNTER = UsbPerfStats
+            .newCounter("connections.claimFailures");
+
+    private static final UsbPerfStats.Counter CLOSE_COUNTER = UsbPerfStats
+            .newCounter("connections.closes");
+
+    private static final UsbPerfStats.Counter EVICTION_COUNTER = UsbPerfStats
+            .newCounter("connections.evictions");
+
+    private static final UsbPerfStats.Counter INVALIDATION_COUNTER = UsbPerfStats
+            .newCounter("connections.invalidations");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbConnectionPool #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final ConnectionFactory<C> mFactory;
+
+    private final long mIdleTimeoutNanos;
+
+    private final ScheduledExecutorService mScheduler = Executors
+            .newSingleThreadScheduledExecutor(THREAD_FACTORY);
+
+    private final Map<String, Entry<C>> mEntries = Maps.newHashMap();
+
+    /**
+     * アイドルの接続を閉じる処理を予約済みかどうか。
+     */
+    private boolean mEvictionScheduled = false;
+
+    private boolean mShutdown = false;
+
+    /**
+     * @param factory 接続のオープンなどを行うオブジェクト。
+     * @param idleTimeoutMillis アイドルの接続を閉じるまでの時間(ミリ秒)。 0 の場合は
+     * リースがすべて返却された時点で閉じます。
+     */
+    public UsbConnectionPool(ConnectionFactory<C> factory, long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("invalid idleTimeoutMillis: "
+                    + idleTimeoutMillis);
+        }
+        mFactory = factory;
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * 接続を借ります。 接続が無ければオープンし、他のスレッドが同じデバイスをオープン中で
+     * あれば、その完了を待ちます。 バックグラウンドスレッドから呼んでください。
+     *
+     * @param deviceName デバイス名。
+     * @param interfaceId claim するインタフェースの Id。 claim しない場合は -1。
+     * @return リース。 オープンや claim に失敗した場合や、待っている間に割り込まれた
+     * 場合は {@code null}。
+     */
+    public Lease<C> acquire(String deviceName, int interfaceId) {
+        final long start = LEASE_WAIT_TIMER.start();
+        try {
+            final Entry<C> entry = reserve(deviceName);
+            if (entry == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (entry.mInvalid || !claim(entry, interfaceId)) {
+                    entry.mLeaseCount--;
+                    onReleased(entry);
+                    return null;
+                }
+                LEASE_COUNTER.increment();
+                return new Lease<C>(this, entry, interfaceId);
+            }
+        } finally {
+            LEASE_WAIT_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * デバイスの接続を用意し、リースの数を予約します。
+     *
+     * @return オープン済みの接続。 失敗した場合は {@code null}。
+     */
+    private Entry<C> reserve(String deviceName) {
+        final Entry<C> entry;
+        synchronized (this) {
+            Entry<C> e = mEntries.get(deviceName);
+            try {
+                while (e != null && e.mOpening) {
+                    wait();
+                    e = mEntries.get(deviceName);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (mShutdown) {
+                return null;
+            }
+            if (e != null) {
+                e.mLeaseCount++;
+                REUSE_COUNTER.increment();
+                return e;
+            }
+            entry = new Entry<C>(deviceName);
+            entry.mLeaseCount++;
+            mEntries.put(deviceName, entry);
+        }
+
+        // オープンには時間がかかることがあるので、ロックを保持せずに行う
+        final long start = OPEN_TIMER.start();
+        final C conn;
+        try {
+            conn = mFactory.open(deviceName);
+        } finally {
+            OPEN_TIMER.stop(start);
+        }
+        synchronized (this) {
+            entry.mOpening = false;
+            notifyAll();
+            if (conn != null && !entry.mInvalid) {
+                entry.mConnection = conn;
+                return entry;
+            }
+            if (mEntries.get(deviceName) == entry) {
+                mEntries.remove(deviceName);
+            }
+            entry.mInvalid = true;
+        }
+        if (conn == null) {
+            OPEN_FAILURE_COUNTER.increment();
+        } else {
+            // オープン中に無効にされた
+            closeConnection(conn);
+        }
+        return null;
+    }
+
+    private boolean claim(Entry<C> entry, int interfaceId) {
+        if (interfaceId < 0) {
+            return true;
+        }
+        final Integer key = Integer.valueOf(interfaceId);
+        final Integer count = entry.mClaims.get(key);
+        if (count == null) {
+            if (!mFactory.claimInterface(entry.mConnection, entry.mDeviceName, interfaceId)) {
+                CLAIM_FAILURE_COUNTER.increment();
+                return false;
+            }
+            entry.mClaims.put(key, Integer.valueOf(1));
+        } else {
+            entry.mClaims.put(key, Integer.valueOf(count.intValue() + 1));
+        }
+        return true;
+    }
+
+    synchronized void release(Lease<C> lease) {
+        if (lease.mReleased) {
+            return;
+        }
+        lease.mReleased = true;
+        final Entry<C> entry = lease.mEntry;
+        if (!entry.mInvalid && 0 <= lease.mInterfaceId) {
+            final Integer key = Integer.valueOf(lease.mInterfaceId);
+            final int count = entry.mClaims.get(key).intValue() - 1;
+            if (count == 0) {
+                entry.mClaims.remove(key);
+                mFactory.releaseInterface(entry.mConnection, entry.mDeviceName,
+                        lease.mInterfaceId);
+            } else {
+                entry.mClaims.put(key, Integer.valueOf(count));
+            }
+        }
+        entry.mLeaseCount--;
+        onReleased(entry);
+    }
+
+    /**
+     * リースの数が減った後に呼び、アイドルになった接続を閉じるか、閉じる処理を予約します。
+     */
+    private void onReleased(Entry<C> entry) {
+        if (entry.mInvalid || 0 < entry.mLeaseCount) {
+            return;
+        }
+        entry.mIdleSinceNanos = System.nanoTime();
+        if (mIdleTimeoutNanos == 0L || mShutdown) {
+            mEntries.remove(entry.mDeviceName);
+            entry.mInvalid = true;
+            closeConnection(entry.mConnection);
+            EVICTION_COUNTER.increment();
+            return;
+        }
+        scheduleEviction(mIdleTimeoutNanos);
+    }
+
+    private void scheduleEviction(long delayNanos) {
+        if (mEvictionScheduled) {
+            return;
+        }
+        mEvictionScheduled = true;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final long next;
+                synchronized (UsbConnectionPool.this) {
+                    mEvictionScheduled = false;
+                    next = evictIdle(System.nanoTime(), mIdleTimeoutNanos);
+                    if (0L < next && !mShutdown) {
+                        scheduleEviction(next);
+                    }
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * アイドルの時間が {@code timeoutNanos} を超えた接続を閉じます。
+     *
+     * @return 残っているアイドルの接続のうち、最も早く期限になるものまでの時間(ナノ秒)。
+     * 残っていない場合は 0。
+     */
+    private long evictIdle(long nowNanos, long timeoutNanos) {
+        long next = 0L;
+        final Iterator<Entry<C>> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry<C> entry = it.next();
+            if (entry.mOpening || 0 < entry.mLeaseCount) {
+                continue;
+            }
+            final long remaining = entry.mIdleSinceNanos + timeoutNanos - nowNanos;
+            if (remaining <= 0L) {
+                it.remove();
+                entry.mInvalid = true;
+                closeConnection(entry.mConnection);
+                EVICTION_COUNTER.increment();
+            } else if (next == 0L || remaining < next) {
+                next = remaining;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * アイドルの接続を、期限を待たずにすべて閉じます。 メモリ不足の通知を受けた場合などに
+     * 呼んでください。
+     */
+    public synchronized void evictAll() {
+        evictIdle(System.nanoTime(), 0L);
+    }
+
+    /**
+     * デバイスの接続をすぐに閉じ、貸し出し中のリースを無効にします。 デバイスが
+     * 取り外された場合に呼んでください。 取り外されたデバイスのインタフェースは
+     * release しません。
+     */
+    public synchronized void invalidate(String deviceName) {
+        final Entry<C> entry = mEntries.remove(deviceName);
+        if (entry == null) {
+            return;
+        }
+        entry.mInvalid = true;
+        INVALIDATION_COUNTER.increment();
+        if (!entry.mOpening) {
+            // オープン中の場合は、オープンしたスレッドが閉じる
+            closeConnection(entry.mConnection);
+        }
+    }
+
+    private void closeConnection(C conn) {
+        mFactory.close(conn);
+        CLOSE_COUNTER.increment();
+    }
+
+    /**
+     * @return オープン中またはオープン済みの接続の数。
+     */
+    public synchronized int getConnectionCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return 貸し出し中のリースの数。
+     */
+    public synchronized int getLeaseCount() {
+        int count = 0;
+        for (Entry<C> entry : mEntries.values()) {
+            count += entry.mLeaseCount;
+        }
+        return count;
+    }
+
+    /**
+     * アイドルの接続を閉じ、以降の貸し出しを止めます。 貸し出し中の接続は、返却された
+     * 時点で閉じます。
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        evictIdle(System.nanoTime(), 0L);
+        mScheduler.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UsbConnectionPool[connections=" + mEntries.size() + ", leases="
+                + getLeaseCount() + "]";
+    }
+}
@@ -16,199 +16,352 @@
 
 package org.zakky.usbdevicelist;
 
-import android.hardware.usb.UsbConstants;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
+import java.util.Arrays;
 
+/**
+ * USB の各種値を文字列化するためのユーティリティです。
+ * <p>
+ * 1 バイトの値の16進/10進表記とクラス名はあらかじめテーブルに用意してあるので、
+ * {@code getXxxString} は多くの場合新たな文字列を生成しません。 また、
+ * {@code appendXxx(StringBuilder, ...)} を使用すると、再利用している
+ * {@link StringBuilder} に中間の文字列を作らずに直接書き込めます。
+ * </p>
+ * <p>
+ * このクラスは Android に依存しません。
+ * </p>
+ */
 public final class UsbConstantsUtil {
 
-    public static String getIdString(UsbDevice dev) {
-        final int id = dev.getDeviceId();
-        return "" + id;
-    }
+    /*
+     * USB 仕様で定められた値。 android.hardware.usb.UsbConstants と同じ値ですが、
+     * このクラスを Android に依存させないよう、ここで定義します。
+     */
 
-    public static String getClassString(UsbDevice dev) {
-        // see http://www.usb.org/developers/defined_class
-        final String name;
-        switch (dev.getDeviceClass()) {
-            case UsbConstants.USB_CLASS_PER_INTERFACE:
-                name = "Periferal";
-                break;
-            case UsbConstants.USB_CLASS_AUDIO:
-                name = "Audio";
-                break;
-            case UsbConstants.USB_CLASS_COMM:
-                name = "Comm";
-                break;
-            case UsbConstants.USB_CLASS_HID:
-                name = "HID";
-                break;
-            case UsbConstants.USB_CLASS_PHYSICA:
-                name = "PID";
-                break;
-            case UsbConstants.USB_CLASS_STILL_IMAGE:
-                name = "Image";
-                break;
-            case UsbConstants.USB_CLASS_PRINTER:
-                name = "Printer";
-                break;
-            case UsbConstants.USB_CLASS_MASS_STORAGE:
-                name = "MassStorage";
-                break;
-            case UsbConstants.USB_CLASS_HUB:
-                name = "Hub";
-                break;
-            case UsbConstants.USB_CLASS_CDC_DATA:
-                name = "CDC-Data";
-                break;
-            case UsbConstants.USB_CLASS_CSCID:
-                name = "SmartCard";
-                break;
-            case UsbConstants.USB_CLASS_CONTENT_SEC:
-                name = "ContentSec";
-                break;
-            case UsbConstants.USB_CLASS_VIDEO:
-                name = "VideoCamera";
-                break;
-            case 0x0F:
-                name = "PersonalHealthcare";
-                break;
-            case 0xDC:
-                name = "DiagnosticDevice";
-                break;
-            case UsbConstants.USB_CLASS_WIRELESS_CONTROLLER:
-                name = "Wireless";
-                break;
-            case UsbConstants.USB_CLASS_MISC:
-                name = "Misc";
-                break;
-            case UsbConstants.USB_CLASS_APP_SPEC:
-                name = "AppSpec";
-                break;
-            case UsbConstants.USB_CLASS_VENDOR_SPEC:
-                name = "VendorSpec";
-                break;
-            default:
-                name = "Unknown";
-                break;
+    public static final int USB_DIR_IN = 0x80;
+
+    public static final int USB_DIR_OUT = 0x00;
+
+    public static final int USB_ENDPOINT_XFER_CONTROL = 0;
+
+    public static final int USB_ENDPOINT_XFER_ISOC = 1;
+
+    public static final int USB_ENDPOINT_XFER_BULK = 2;
+
+    public static final int USB_ENDPOINT_XFER_INT = 3;
+
+    private static final String INVALID = "invalid";
+
+    private static final String UNKNOWN = "Unknown";
+
+    private static final char[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    /**
+     * 0x00 から 0xff までの {@code "0x%02x"} 形式の文字列。
+     */
+    private static final String[] BYTE_HEX_STRINGS = new String[256];
+
+    /**
+     * 0 から 255 までの10進表記の文字列。
+     */
+    private static final String[] BYTE_DECIMAL_STRINGS = new String[256];
+
+    /**
+     * クラスコードをインデックスとするクラス名のテーブル。
+     */
+    private static final String[] CLASS_NAMES = new String[256];
+
+    /**
+     * 転送タイプをインデックスとする転送タイプ名のテーブル。
+     */
+    private static final String[] TYPE_NAMES = new String[4];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            BYTE_HEX_STRINGS[i] = new String(new char[] {
+                    '0', 'x', HEX_DIGITS[i >>> 4], HEX_DIGITS[i & 0xf]
+            });
+            BYTE_DECIMAL_STRINGS[i] = Integer.toString(i);
         }
-        return name + "(" + to2HexString(dev.getDeviceClass()) + ", "
-                + to2HexString(dev.getDeviceSubclass()) + ", "
-                + to2HexString(dev.getDeviceProtocol()) + ")";
+
+        // see http://www.usb.org/developers/defined_class
+        Arrays.fill(CLASS_NAMES, UNKNOWN);
+        CLASS_NAMES[0x00] = "Periferal";
+        CLASS_NAMES[0x01] = "Audio";
+        CLASS_NAMES[0x02] = "Comm";
+        CLASS_NAMES[0x03] = "HID";
+        CLASS_NAMES[0x05] = "PID";
+        CLASS_NAMES[0x06] = "Image";
+        CLASS_NAMES[0x07] = "Printer";
+        CLASS_NAMES[0x08] = "MassStorage";
+        CLASS_NAMES[0x09] = "Hub";
+        CLASS_NAMES[0x0A] = "CDC-Data";
+        CLASS_NAMES[0x0B] = "SmartCard";
+        CLASS_NAMES[0x0D] = "ContentSec";
+        CLASS_NAMES[0x0E] = "VideoCamera";
+        CLASS_NAMES[0x0F] = "PersonalHealthcare";
+        CLASS_NAMES[0xDC] = "DiagnosticDevice";
+        CLASS_NAMES[0xE0] = "Wireless";
+        CLASS_NAMES[0xEF] = "Misc";
+        CLASS_NAMES[0xFE] = "AppSpec";
+        CLASS_NAMES[0xFF] = "VendorSpec";
+
+        TYPE_NAMES[USB_ENDPOINT_XFER_CONTROL] = "Control";
+        TYPE_NAMES[USB_ENDPOINT_XFER_INT] = "Interrupt";
+        TYPE_NAMES[USB_ENDPOINT_XFER_BULK] = "Bulk";
+        TYPE_NAMES[USB_ENDPOINT_XFER_ISOC] = "Isochronous";
+    }
+
+    private UsbConstantsUtil() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /*
+     * UsbDeviceSnapshot の値を文字列化するためのメソッド群
+     */
+
+    public static String getIdString(UsbDeviceSnapshot dev) {
+        return toDecimalString(dev.getDeviceId());
+    }
+
+    public static String getClassString(UsbDeviceSnapshot dev) {
+        return toClassString(dev.getDeviceClass(), dev.getDeviceSubclass(),
+                dev.getDeviceProtocol());
+    }
+
+    public static String getVidString(UsbDeviceSnapshot dev) {
+        return to4HexString(dev.getVendorId());
+    }
+
+    public static String getPidString(UsbDeviceSnapshot dev) {
+        return to4HexString(dev.getProductId());
+    }
+
+    public static StringBuilder appendIdString(StringBuilder sb, UsbDeviceSnapshot dev) {
+        return appendDecimal(sb, dev.getDeviceId());
+    }
+
+    public static StringBuilder appendClassString(StringBuilder sb, UsbDeviceSnapshot dev) {
+        return appendClass(sb, dev.getDeviceClass(), dev.getDeviceSubclass(),
+                dev.getDeviceProtocol());
+    }
+
+    public static StringBuilder appendVidString(StringBuilder sb, UsbDeviceSnapshot dev) {
+        return append4Hex(sb, dev.getVendorId());
+    }
+
+    public static StringBuilder appendPidString(StringBuilder sb, UsbDeviceSnapshot dev) {
+        return append4Hex(sb, dev.getProductId());
+    }
+
+    /*
+     * UsbInterfaceSnapshot の値を文字列化するためのメソッド群
+     */
+
+    public static String getIdString(UsbInterfaceSnapshot iface) {
+        return toDecimalString(iface.getId());
     }
 
-    public static String getVidString(UsbDevice dev) {
-        final int vid = dev.getVendorId();
-        return to4HexString(vid);
+    public static String getClassString(UsbInterfaceSnapshot iface) {
+        return toDecimalString(iface.getInterfaceClass());
     }
 
-    public static String getPidString(UsbDevice dev) {
-        final int pid = dev.getProductId();
-        return to4HexString(pid);
+    public static String getSubclassString(UsbInterfaceSnapshot iface) {
+        return toDecimalString(iface.getInterfaceSubclass());
+    }
+
+    public static String getProtocolString(UsbInterfaceSnapshot iface) {
+        return toDecimalString(iface.getInterfaceProtocol());
+    }
+
+    public static StringBuilder appendIdString(StringBuilder sb, UsbInterfaceSnapshot iface) {
+        return appendDecimal(sb, iface.getId());
+    }
+
+    public static StringBuilder appendClassString(StringBuilder sb, UsbInterfaceSnapshot iface) {
+        return appendDecimal(sb, iface.getInterfaceClass());
+    }
+
+    public static StringBuilder appendSubclassString(StringBuilder sb, UsbInterfaceSnapshot iface) {
+        return appendDecimal(sb, iface.getInterfaceSubclass());
+    }
+
+    public static StringBuilder appendProtocolString(StringBuilder sb, UsbInterfaceSnapshot iface) {
+        return appendDecimal(sb, iface.getInterfaceProtocol());
     }
 
     /*
-     * UsbInterface の値を文字列化するためのメソッド群
+     * UsbEndpointSnapshot の値を文字列化するためのメソッド群
      */
-    
-    
-    public static String getIdString(UsbInterface iface) {
-        final int id = iface.getId();
-        return "" + id;
+
+    public static String getAddressString(UsbEndpointSnapshot ep) {
+        return toDecimalString(ep.getAddress());
+    }
+
+    public static String getNumberString(UsbEndpointSnapshot ep) {
+        return toDecimalString(ep.getEndpointNumber());
     }
 
-    public static String getClassString(UsbInterface iface) {
-        final int clazz = iface.getInterfaceClass();
-        return "" + clazz;
+    public static String getAttributesString(UsbEndpointSnapshot ep) {
+        return toDecimalString(ep.getAttributes());
     }
 
-    public static String getSubclassString(UsbInterface iface) {
-        final int subclass = iface.getInterfaceSubclass();
-        return "" + subclass;
+    public static String getDirectionString(UsbEndpointSnapshot ep) {
+        return toDirectionString(ep.getDirection());
     }
 
-    public static String getProtocolString(UsbInterface iface) {
-        final int protocol = iface.getInterfaceProtocol();
-        return "" + protocol;
+    public static String getIntervalString(UsbEndpointSnapshot ep) {
+        return toDecimalString(ep.getInterval());
     }
 
-    public static String getAddressString(UsbEndpoint ep) {
-        final int address = ep.getAddress();
-        return "" + address;
+    public static String getMaxPacketSizeString(UsbEndpointSnapshot ep) {
+        return toDecimalString(ep.getMaxPacketSize());
     }
 
-    public static String getNumberString(UsbEndpoint ep) {
-        final int number = ep.getEndpointNumber();
-        return "" + number;
+    public static String getTypeString(UsbEndpointSnapshot ep) {
+        return toTypeString(ep.getType());
     }
 
-    public static String getAttributesString(UsbEndpoint ep) {
-        final int attrs = ep.getAttributes();
-        return "" + attrs;
+    public static StringBuilder appendAddressString(StringBuilder sb, UsbEndpointSnapshot ep) {
+        return appendDecimal(sb, ep.getAddress());
     }
 
-    public static String getDirectionString(UsbEndpoint ep) {
-        final int d = ep.getDirection();
-        return (d == UsbConstants.USB_DIR_IN) ? "IN" : "OUT";
+    public static StringBuilder appendNumberString(StringBuilder sb, UsbEndpointSnapshot ep) {
+        return appendDecimal(sb, ep.getEndpointNumber());
     }
 
-    public static String getIntervalString(UsbEndpoint ep) {
-        final int interval = ep.getInterval();
-        return "" + interval;
+    public static StringBuilder appendAttributesString(StringBuilder sb, UsbEndpointSnapshot ep) {
+        return appendDecimal(sb, ep.getAttributes());
     }
 
-    public static String getMaxPacketSizeString(UsbEndpoint ep) {
-        final int size = ep.getMaxPacketSize();
-        return "" + size;
+    public static StringBuilder appendDirectionString(StringBuilder sb, UsbEndpointSnapshot ep) {
+        return sb.append(toDirectionString(ep.getDirection()));
     }
 
-    public static String getTypeString(UsbEndpoint ep) {
-        switch (ep.getType()) {
-            case UsbConstants.USB_ENDPOINT_XFER_CONTROL:
-                return "Control";
-            case UsbConstants.USB_ENDPOINT_XFER_INT:
-                return "Interrupt";
-            case UsbConstants.USB_ENDPOINT_XFER_BULK:
-                return "Bulk";
-            case UsbConstants.USB_ENDPOINT_XFER_ISOC:
-                return "Isochronous";
-            default:
-                return "Unknown";
+    public static StringBuilder appendIntervalString(StringBuilder sb, UsbEndpointSnapshot ep) {
+        return appendDecimal(sb, ep.getInterval());
+    }
+
+    public static StringBuilder appendMaxPacketSizeString(StringBuilder sb,
+            UsbEndpointSnapshot ep) {
+        return appendDecimal(sb, ep.getMaxPacketSize());
+    }
+
+    public static StringBuilder appendTypeString(StringBuilder sb, UsbEndpointSnapshot ep) {
+        return sb.append(toTypeString(ep.getType()));
+    }
+
+    /*
+     * 値そのものを文字列化するためのメソッド群
+     */
+
+    /**
+     * クラスコードに対応するクラス名を返します。
+     *
+     * @param clazz クラスコード。
+     * @return クラス名。未知のクラスコードの場合は {@code "Unknown"}。
+     */
+    public static String getClassName(int clazz) {
+        if (clazz < 0 || 0xff < clazz) {
+            return UNKNOWN;
         }
+        return CLASS_NAMES[clazz];
+    }
+
+    /**
+     * {@code "ClassName(0xcc, 0xss, 0xpp)"} 形式でクラス、サブクラス、プロトコルを追加します。
+     */
+    public static StringBuilder appendClass(StringBuilder sb, int clazz, int subclass,
+            int protocol) {
+        sb.append(getClassName(clazz)).append('(');
+        append2Hex(sb, clazz).append(", ");
+        append2Hex(sb, subclass).append(", ");
+        return append2Hex(sb, protocol).append(')');
     }
 
-    private static final String to2HexString(int value) {
+    /**
+     * 値を10進表記で追加します。
+     */
+    public static StringBuilder appendDecimal(StringBuilder sb, int value) {
+        if (0 <= value && value <= 0xff) {
+            return sb.append(BYTE_DECIMAL_STRINGS[value]);
+        }
+        return sb.append(value);
+    }
+
+    /**
+     * 0x00 から 0xff の値を {@code "0x%02x"} 形式で追加します。範囲外の場合は
+     * {@code "invalid"} を追加します。
+     */
+    public static StringBuilder append2Hex(StringBuilder sb, int value) {
         if (value < 0 || 0xff < value) {
-            return "invalid";
+            return sb.append(INVALID);
         }
-        final String hex = Integer.toHexString(value);
-        switch (hex.length()) {
-            case 2:
-                return "0x" + hex;
-            case 1:
-                return "0x0" + hex;
-            default:
-                return "invalid";
+        return sb.append(BYTE_HEX_STRINGS[value]);
+    }
+
+    /**
+     * 0x0000 から 0xffff の値を {@code "0x%04x"} 形式で追加します。範囲外の場合は
+     * {@code "invalid"} を追加します。
+     */
+    public static StringBuilder append4Hex(StringBuilder sb, int value) {
+        if (value < 0 || 0xffff < value) {
+            return sb.append(INVALID);
         }
+        return sb.append('0').append('x') //
+                .append(HEX_DIGITS[(value >>> 12) & 0xf]) //
+                .append(HEX_DIGITS[(value >>> 8) & 0xf]) //
+                .append(HEX_DIGITS[(value >>> 4) & 0xf]) //
+                .append(HEX_DIGITS[value & 0xf]);
+    }
+
+    /**
+     * 0x00000000 から 0xffffffff の値を {@code "0x%08x"} 形式で追加します。範囲外の場合は
+     * {@code "invalid"} を追加します。
+     */
+    public static StringBuilder append8Hex(StringBuilder sb, long value) {
+        if (value < 0L || 0xffffffffL < value) {
+            return sb.append(INVALID);
+        }
+        sb.append('0').append('x');
+        for (int shift = 28; 0 <= shift; shift -= 4) {
+            sb.append(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+        }
+        return sb;
+    }
+
+    private static String toClassString(int clazz, int subclass, int protocol) {
+        final StringBuilder sb = new StringBuilder(40);
+        return appendClass(sb, clazz, subclass, protocol).toString();
+    }
+
+    private static String toDecimalString(int value) {
+        if (0 <= value && value <= 0xff) {
+            return BYTE_DECIMAL_STRINGS[value];
+        }
+        return Integer.toString(value);
+    }
+
+    private static String toDirectionString(int direction) {
+        return (direction == USB_DIR_IN) ? "IN" : "OUT";
+    }
+
+    private static String toTypeString(int type) {
+        if (type < 0 || TYPE_NAMES.length <= type) {
+            return UNKNOWN;
+        }
+        return TYPE_NAMES[type];
     }
 
     private static final String to4HexString(int value) {
         if (value < 0 || 0xffff < value) {
-            return "invalid";
-        }
-        final String hex = Integer.toHexString(value);
-        switch (hex.length()) {
-            case 4:
-                return "0x" + hex;
-            case 3:
-                return "0x0" + hex;
-            case 2:
-                return "0x00" + hex;
-            case 1:
-                return "0x000" + hex;
-            default:
-                return "invalid";
+            return INVALID;
         }
+        final char[] chars = {
+                '0', 'x', HEX_DIGITS[(value >>> 12) & 0xf], HEX_DIGITS[(value >>> 8) & 0xf],
+                HEX_DIGITS[(value >>> 4) & 0xf], HEX_DIGITS[value & 0xf]
+        };
+        return new String(chars);
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append2Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append4Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendClass;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendDecimal;
+
+/**
+ * {@link UsbDescriptorParser} でたどったディスクリプタ列を、1ディスクリプタ1行の
+ * テキストに整形するユーティリティです。
+ * <p>
+ * 既知のディスクリプタは主要なフィールドを、未知のディスクリプタや規定より短い
+ * ディスクリプタは16進ダンプを出力します。 インタフェース以下のディスクリプタは
+ * 字下げして出力します。 クラス固有のディスクリプタは {@link UsbClassDecoders} に
+ * 登録されたデコーダで解釈します。
+ * </p>
+ */
+public final class UsbDescriptorFormatter {
+
+    /**
+     * 16進ダンプするバイト数の上限。
+     */
+    private static final int MAX_DUMP_BYTES = 32;
+
+    private static final String INDENT = "  ";
+
+    private UsbDescriptorFormatter() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * パーサを先頭から走査し、すべてのディスクリプタを追加します。 クラス固有の
+     * ディスクリプタは {@link UsbClassDecoders#getDefault()} のデコーダで解釈します。
+     *
+     * @param sb 出力先。
+     * @param parser パーサ。 先頭にリセットされます。
+     * @return {@code sb}
+     * @see #appendDescriptors(StringBuilder, UsbDescriptorParser, UsbClassDecoders)
+     */
+    public static StringBuilder appendDescriptors(StringBuilder sb, UsbDescriptorParser parser) {
+        return appendDescriptors(sb, parser, UsbClassDecoders.getDefault());
+    }
+
+    /**
+     * パーサを先頭から走査し、すべてのディスクリプタを追加します。
+     * 走査が途中で打ち切られた場合は、その理由を最後の行に追加します。
+     * <p>
+     * インタフェースに続く標準以外のディスクリプタは、そのインタフェースのクラス、
+     * サブクラス、プロトコルで {@code decoders} を引いて解釈します。 解釈できなかった
+     * ディスクリプタは16進ダンプを出力します。
+     * </p>
+     *
+     * @param sb 出力先。
+     * @param parser パーサ。 先頭にリセットされます。
+     * @param decoders クラス固有のディスクリプタを解釈するデコーダの登録表。
+     * @return {@code sb}
+     */
+    public static StringBuilder appendDescriptors(StringBuilder sb, UsbDescriptorParser parser,
+            UsbClassDecoders decoders) {
+        parser.reset();
+        int depth = 0;
+        // 現在のインタフェースのクラス、サブクラス、プロトコル。 インタフェースの外では -1
+        int clazz = -1;
+        int subclass = -1;
+        int protocol = -1;
+        while (parser.next()) {
+            final int type = parser.getType();
+            boolean standard = true;
+            if (type == UsbDescriptorParser.TYPE_DEVICE
+                    || type == UsbDescriptorParser.TYPE_CONFIGURATION
+                    || type == UsbDescriptorParser.TYPE_OTHER_SPEED_CONFIGURATION) {
+                depth = 0;
+                clazz = -1;
+            } else if (type == UsbDescriptorParser.TYPE_INTERFACE_ASSOCIATION) {
+                depth = 1;
+                clazz = -1;
+            } else if (type == UsbDescriptorParser.TYPE_INTERFACE) {
+                depth = 1;
+                if (parser.hasField(0, 9)) {
+                    clazz = parser.getU8(5);
+                    subclass = parser.getU8(6);
+                    protocol = parser.getU8(7);
+                } else {
+                    clazz = -1;
+                }
+            } else {
+                if (depth == 1) {
+                    // インタフェースに続くディスクリプタはインタフェースに属する
+                    depth = 2;
+                }
+                standard = (type == UsbDescriptorParser.TYPE_ENDPOINT);
+            }
+            for (int i = 0; i < depth; i++) {
+                sb.append(INDENT);
+            }
+            if (standard || clazz < 0
+                    || !decoders.appendDescriptor(sb, parser, clazz, subclass, protocol)) {
+                appendDescriptor(sb, parser);
+            }
+            sb.append('\n');
+        }
+        switch (parser.getError()) {
+            case UsbDescriptorParser.ERROR_TRUNCATED:
+                sb.append("(truncated descriptor at offset ");
+                appendDecimal(sb, parser.getErrorOffset()).append(")\n");
+                break;
+            case UsbDescriptorParser.ERROR_BAD_LENGTH:
+                sb.append("(invalid bLength at offset ");
+                appendDecimal(sb, parser.getErrorOffset()).append(")\n");
+                break;
+        }
+        return sb;
+    }
+
+    /**
+     * パーサの現在のディスクリプタを1行分追加します。 改行は含みません。
+     */
+    public static StringBuilder appendDescriptor(StringBuilder sb, UsbDescriptorParser p) {
+        switch (p.getType()) {
+            case UsbDescriptorParser.TYPE_DEVICE:
+                if (p.hasField(0, 18)) {
+                    return appendDevice(sb, p);
+                }
+                break;
+            case UsbDescriptorParser.TYPE_CONFIGURATION:
+            case UsbDescriptorParser.TYPE_OTHER_SPEED_CONFIGURATION:
+                if (p.hasField(0, 9)) {
+                    return appendConfiguration(sb, p);
+                }
+                break;
+            case UsbDescriptorParser.TYPE_INTERFACE_ASSOCIATION:
+                if (p.hasField(0, 8)) {
+                    return appendInterfaceAssociation(sb, p);
+                }
+                break;
+            case UsbDescriptorParser.TYPE_INTERFACE:
+                if (p.hasField(0, 9)) {
+                    return appendInterface(sb, p);
+                }
+                break;
+            case UsbDescriptorParser.TYPE_ENDPOINT:
+                if (p.hasField(0, 7)) {
+                    return appendEndpoint(sb, p);
+                }
+                break;
+            case UsbDescriptorParser.TYPE_CS_INTERFACE:
+                sb.append("Class-specific Interface ");
+                return appendDump(sb, p);
+            case UsbDescriptorParser.TYPE_CS_ENDPOINT:
+                sb.append("Class-specific Endpoint ");
+                return appendDump(sb, p);
+            case UsbDescriptorParser.TYPE_HID:
+                sb.append("HID ");
+                return appendDump(sb, p);
+        }
+        sb.append("Descriptor ");
+        append2Hex(sb, p.getType()).append(' ');
+        return appendDump(sb, p);
+    }
+
+    private static StringBuilder appendDevice(StringBuilder sb, UsbDescriptorParser p) {
+        sb.append("Device: USB ");
+        appendBcd(sb, p.getU16(2)).append(", Class: ");
+        appendClass(sb, p.getU8(4), p.getU8(5), p.getU8(6)).append(", MaxPacketSize0: ");
+        appendDecimal(sb, p.getU8(7)).append(", VendorId: ");
+        append4Hex(sb, p.getU16(8)).append(", ProductId: ");
+        append4Hex(sb, p.getU16(10)).append(", Release: ");
+        appendBcd(sb, p.getU16(12)).append(", Configurations: ");
+        return appendDecimal(sb, p.getU8(17));
+    }
+
+    private static StringBuilder appendConfiguration(StringBuilder sb, UsbDescriptorParser p) {
+        sb.append(p.getType() == UsbDescriptorParser.TYPE_CONFIGURATION ? "Configuration "
+                : "Other Speed Configuration ");
+        appendDecimal(sb, p.getU8(5)).append(": TotalLength: ");
+        appendDecimal(sb, p.getU16(2)).append(", Interfaces: ");
+        appendDecimal(sb, p.getU8(4)).append(", Attributes: ");
+        append2Hex(sb, p.getU8(7)).append(", MaxPower: ");
+        return appendDecimal(sb, p.getU8(8) * 2).append("mA");
+    }
+
+    private static StringBuilder appendInterfaceAssociation(StringBuilder sb,
+            UsbDescriptorParser p) {
+        sb.append("Interface Association: FirstInterface: ");
+        appendDecimal(sb, p.getU8(2)).append(", Count: ");
+        appendDecimal(sb, p.getU8(3)).append(", Class: ");
+        return appendClass(sb, p.getU8(4), p.getU8(5), p.getU8(6));
+    }
+
+    private static StringBuilder appendInterface(StringBuilder sb, UsbDescriptorParser p) {
+        sb.append("Interface ");
+        appendDecimal(sb, p.getU8(2)).append(" Alt ");
+        appendDecimal(sb, p.getU8(3)).append(": Endpoints: ");
+        appendDecimal(sb, p.getU8(4)).append(", Class: ");
+        return appendClass(sb, p.getU8(5), p.getU8(6), p.getU8(7));
+    }
+
+    private static StringBuilder appendEndpoint(StringBuilder sb, UsbDescriptorParser p) {
+        sb.append("Endpoint ");
+        append2Hex(sb, p.getU8(2)).append(": Attributes: ");
+        append2Hex(sb, p.getU8(3)).append(", MaxPacketSize: ");
+        appendDecimal(sb, p.getU16(4)).append(", Interval: ");
+        return appendDecimal(sb, p.getU8(6));
+    }
+
+    /**
+     * BCD 表記のバージョン番号を {@code "2.00"} 形式で追加します。
+     */
+    static StringBuilder appendBcd(StringBuilder sb, int bcd) {
+        appendDecimal(sb, ((bcd >>> 12) & 0xf) * 10 + ((bcd >>> 8) & 0xf)).append('.');
+        return appendDecimal(sb, (bcd >>> 4) & 0xf).append(bcd & 0xf);
+    }
+
+    private static StringBuilder appendDump(StringBuilder sb, UsbDescriptorParser p) {
+        final int length = p.getLength();
+        appendDecimal(sb, length).append(" bytes:");
+        final int dumpLength = Math.min(length, MAX_DUMP_BYTES);
+        for (int i = 0; i < dumpLength; i++) {
+            sb.append(' ');
+            append2Hex(sb, p.getU8(i));
+        }
+        if (dumpLength < length) {
+            sb.append(" ...");
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * デバイスの生のディスクリプタの読み出しと整形をバックグラウンドスレッドで行うクラスです。
+ * <p>
+ * 最後に読み出したデバイスのディスクリプタは覚えておき、同じデバイスの別のインタフェースを
+ * 表示する場合はデバイスを開かずに整形し直します。 HID インタフェースの場合は、
+ * レポートディスクリプタを sysfs かコントロール転送で読み出して追加します。
+ * </p>
+ * <p>
+ * 読み出し要求は後勝ちです。 前の要求の結果が届く前に新しい要求があった場合、
+ * 前の要求の結果は通知されません。 {@link #load(String, int, int, boolean)},
+ * {@link #cancel()}, {@link #shutdown()} はメインスレッドから呼んでください。
+ * {@link Callback} はメインスレッドから呼ばれます。
+ * </p>
+ */
+public class UsbDescriptorLoader {
+
+    /**
+     * 読み出しの結果を受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * ディスクリプタを読み出せた場合にメインスレッドから呼ばれます。
+         *
+         * @param deviceName デバイス名。
+         * @param interfaceId 要求したインタフェースの Id。
+         * @param text {@link UsbDescriptorFormatter} で整形したディスクリプタ。 HID
+         * インタフェースの場合はレポートディスクリプタを含みます。
+         */
+        public void onLoaded(String deviceName, int interfaceId, CharSequence text);
+
+        /**
+         * デバイスへのアクセス権限が無い場合にメインスレッドから呼ばれます。
+         *
+         * @param device 権限を要求するデバイス。
+         */
+        public void onPermissionRequired(UsbDevice device);
+
+        /**
+         * デバイスが見つからないか、オープンに失敗した場合にメインスレッドから呼ばれます。
+         *
+         * @param deviceName デバイス名。
+         */
+        public void onFailed(String deviceName);
+    }
+
+    private static final UsbPerfStats.Timer LOAD_TIMER = UsbPerfStats
+            .newTimer("descriptors.load");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbDescriptorLoader #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final Context mContext;
+
+    private final UsbManager mUsbManager;
+
+    private final UsbConnectionPool<UsbDeviceConnection> mConnections;
+
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * 要求の世代番号。最新の世代の結果だけが通知されます。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /*
+     * 最後に読み出したデバイスのディスクリプタ。 バックグラウンドスレッドだけが触ります。
+     */
+
+    private String mCachedDeviceName;
+
+    private byte[] mCachedRaw;
+
+    private String mCachedText;
+
+    /**
+     * {@link #mCachedDeviceName} のポートパス。 まだ調べていない場合は {@code null}。
+     */
+    private String mCachedPortPath;
+
+    /**
+     * @param context コンテキスト。 {@link UsbManager} と接続のプール、文字列リソースを
+     * 得るために使います。
+     * @param callback 結果を受け取るコールバック。
+     */
+    public UsbDescriptorLoader(Context context, Callback callback) {
+        mContext = context;
+        mUsbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        mConnections = UsbDeviceConnections.getDefault(context);
+        mCallback = callback;
+    }
+
+    /**
+     * デバイスのディスクリプタの読み出しを要求します。 未完了の要求の結果は通知されなく
+     * なります。
+     *
+     * @param deviceName デバイス名。
+     * @param interfaceId 表示するインタフェースの Id。 インタフェースが無い場合は -1。
+     * @param interfaceClass インタフェースのクラス。 インタフェースが無い場合は -1。
+     * @param reload 覚えているディスクリプタを使わずに読み出し直す場合は {@code true}。
+     */
+    public void load(final String deviceName, final int interfaceId, final int interfaceClass,
+            final boolean reload) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                if (reload || !deviceName.equals(mCachedDeviceName)) {
+                    mCachedDeviceName = null;
+                    if (!readDescriptors(generation, deviceName)) {
+                        return;
+                    }
+                }
+                final StringBuilder sb = new StringBuilder(mCachedText);
+                if (interfaceClass == UsbHidDecoder.CLASS_HID) {
+                    appendHidReport(sb, interfaceId);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            mCallback.onLoaded(deviceName, interfaceId, sb);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * デバイスを開いてディスクリプタを読み出し、整形して覚えておきます。
+     * バックグラウンドスレッドから呼ばれます。
+     *
+     * @return 読み出せた場合は {@code true}。 失敗した場合は結果を通知して {@code false}。
+     */
+    private boolean readDescriptors(final int generation, String deviceName) {
+        final UsbDevice device = mUsbManager.getDeviceList().get(deviceName);
+        if (device == null) {
+            postFailed(generation, deviceName);
+            return false;
+        }
+        if (!mUsbManager.hasPermission(device)) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mGeneration.get()) {
+                        mCallback.onPermissionRequired(device);
+                    }
+                }
+            });
+            return false;
+        }
+        final long start = LOAD_TIMER.start();
+        try {
+            final byte[] raw = UsbRawDescriptors.read(mConnections, deviceName);
+            if (raw == null) {
+                postFailed(generation, deviceName);
+                return false;
+            }
+            final StringBuilder sb = new StringBuilder(raw.length * 4);
+            UsbDescriptorFormatter.appendDescriptors(sb, new UsbDescriptorParser(raw));
+            mCachedDeviceName = deviceName;
+            mCachedRaw = raw;
+            mCachedText = sb.toString();
+            mCachedPortPath = null;
+            return true;
+        } finally {
+            LOAD_TIMER.stop(start);
+        }
+    }
+
+    /**
+     * 覚えているデバイスの HID インタフェースのレポートディスクリプタを読み出し、整形して
+     * 追加します。 ドライバを切り離さずに済むよう sysfs から読み、読めない場合だけ
+     * コントロール転送を試みます。 バックグラウンドスレッドから呼ばれます。
+     */
+    private void appendHidReport(StringBuilder sb, int interfaceId) {
+        final File root = new File(UsbSysfsDeviceSource.DEFAULT_ROOT);
+        if (mCachedPortPath == null) {
+            mCachedPortPath = UsbSysfsDeviceSource.readPortPaths(root).get(mCachedDeviceName);
+        }
+        byte[] report = null;
+        if (mCachedPortPath != null) {
+            report = UsbSysfsDeviceSource.readHidReportDescriptor(root, mCachedPortPath,
+                    interfaceId);
+        }
+        if (report == null) {
+            final int length = UsbHidDecoder.findReportDescriptorLength(new UsbDescriptorParser(
+                    mCachedRaw), interfaceId);
+            if (0 < length) {
+                report = UsbRawDescriptors.readHidReportDescriptor(mConnections,
+                        mCachedDeviceName, interfaceId, length);
+            }
+        }
+        sb.append('\n');
+        if (report == null) {
+            sb.append(mContext.getString(R.string.hid_report_unavailable)).append('\n');
+            return;
+        }
+        sb.append(mContext.getString(R.string.hid_report_title)).append('\n');
+        UsbHidDecoder.appendReportDescriptor(sb, new UsbHidReportParser(report));
+    }
+
+    private void postFailed(final int generation, final String deviceName) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    mCallback.onFailed(deviceName);
+                }
+            }
+        });
+    }
+
+    /**
+     * 未完了の要求を取り消します。 取り消した要求の結果は通知されません。
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * 未完了の要求を取り消し、バックグラウンドスレッドを終了します。 以降このオブジェクトは
+     * 使用できません。
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 生のディスクリプタ列 ({@code UsbDeviceConnection#getRawDescriptors()} の戻り値など) を
+ * 先頭から順にたどるパーサです。
+ * <p>
+ * このクラス自身が「現在のディスクリプタ」を表すフライウェイトになっていて、
+ * {@link #next()} で次のディスクリプタへ進みます。 ディスクリプタごとのオブジェクトは生成せず、
+ * フィールドは {@link #getU8(int)} などでバッファから直接読み出します。
+ * 内容を保持したい場合だけ {@link #copyDescriptor()} でコピーを取得してください。
+ * </p>
+ * <p>
+ * 入力は信頼できないものとして扱います。 {@code bLength} が 2 未満のディスクリプタや、
+ * バッファの終端を越えるディスクリプタを検出した時点で走査を打ち切り、
+ * {@link #getError()} と {@link #getErrorOffset()} でその内容を返します。
+ * 現在のディスクリプタの範囲外のフィールドを読もうとした場合は
+ * {@link IndexOutOfBoundsException} をスローします。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbDescriptorParser {
+
+    /*
+     * ディスクリプタタイプ (bDescriptorType)
+     */
+
+    public static final int TYPE_DEVICE = 0x01;
+
+    public static final int TYPE_CONFIGURATION = 0x02;
+
+    public static final int TYPE_STRING = 0x03;
+
+    public static final int TYPE_INTERFACE = 0x04;
+
+    public static final int TYPE_ENDPOINT = 0x05;
+
+    public static final int TYPE_DEVICE_QUALIFIER = 0x06;
+
+    public static final int TYPE_OTHER_SPEED_CONFIGURATION = 0x07;
+
+    public static final int TYPE_INTERFACE_POWER = 0x08;
+
+    public static final int TYPE_OTG = 0x09;
+
+    public static final int TYPE_DEBUG = 0x0a;
+
+    public static final int TYPE_INTERFACE_ASSOCIATION = 0x0b;
+
+    public static final int TYPE_BOS = 0x0f;
+
+    public static final int TYPE_HID = 0x21;
+
+    public static final int TYPE_CS_INTERFACE = 0x24;
+
+    public static final int TYPE_CS_ENDPOINT = 0x25;
+
+    /*
+     * エラーの種別
+     */
+
+    /**
+     * エラーはありません。
+     */
+    public static final int ERROR_NONE = 0;
+
+    /**
+     * ディスクリプタがバッファの終端で途切れています。
+     */
+    public static final int ERROR_TRUNCATED = 1;
+
+    /**
+     * {@code bLength} が 2 未満です。
+     */
+    public static final int ERROR_BAD_LENGTH = 2;
+
+    private final ByteBuffer mBuffer;
+
+    private final int mLimit;
+
+    private int mOffset;
+
+    private int mLength;
+
+    private int mNextOffset;
+
+    private int mError;
+
+    private int mErrorOffset;
+
+    public UsbDescriptorParser(byte[] raw) {
+        this(ByteBuffer.wrap(raw));
+    }
+
+    /**
+     * バッファの position から limit までをディスクリプタ列として扱います。
+     * バッファの内容はコピーされず、 position も変更されません。
+     */
+    public UsbDescriptorParser(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+        mLimit = mBuffer.limit();
+        reset();
+    }
+
+    /**
+     * 走査を先頭からやり直します。
+     */
+    public void reset() {
+        mOffset = -1;
+        mLength = 0;
+        mNextOffset = 0;
+        mError = ERROR_NONE;
+        mErrorOffset = -1;
+    }
+
+    /**
+     * 次のディスクリプタへ進みます。
+     *
+     * @return 次のディスクリプタがある場合は {@code true}。 終端に達したか、不正な
+     * ディスクリプタを検出した場合は {@code false}。
+     */
+    public boolean next() {
+        mOffset = -1;
+        mLength = 0;
+        if (mError != ERROR_NONE || mLimit <= mNextOffset) {
+            return false;
+        }
+        final int remaining = mLimit - mNextOffset;
+        if (remaining < 2) {
+            return fail(ERROR_TRUNCATED);
+        }
+        final int length = mBuffer.get(mNextOffset) & 0xff;
+        if (length < 2) {
+            return fail(ERROR_BAD_LENGTH);
+        }
+        if (remaining < length) {
+            return fail(ERROR_TRUNCATED);
+        }
+        mOffset = mNextOffset;
+        mLength = length;
+        mNextOffset += length;
+        return true;
+    }
+
+    private boolean fail(int error) {
+        mError = error;
+        mErrorOffset = mNextOffset;
+        return false;
+    }
+
+    /**
+     * @return 走査を打ち切った理由。 {@code ERROR_XXX} のいずれか。
+     */
+    public int getError() {
+        return mError;
+    }
+
+    /**
+     * @return 不正なディスクリプタの先頭のオフセット。 エラーが無い場合は -1。
+     */
+    public int getErrorOffset() {
+        return mErrorOffset;
+    }
+
+    /**
+     * @return 入力全体のバイト数。
+     */
+    public int getTotalLength() {
+        return mLimit;
+    }
+
+    /**
+     * @return 現在のディスクリプタの、入力の先頭からのオフセット。
+     */
+    public int getOffset() {
+        checkCurrent();
+        return mOffset;
+    }
+
+    /**
+     * @return 現在のディスクリプタの {@code bLength}。
+     */
+    public int getLength() {
+        checkCurrent();
+        return mLength;
+    }
+
+    /**
+     * @return 現在のディスクリプタの {@code bDescriptorType}。
+     */
+    public int getType() {
+        return getU8(1);
+    }
+
+    /**
+     * 現在のディスクリプタが、指定したフィールドを含む長さを持っているかどうかを返します。
+     *
+     * @param fieldOffset ディスクリプタ先頭からのフィールドのオフセット。
+     * @param size フィールドのバイト数。
+     */
+    public boolean hasField(int fieldOffset, int size) {
+        checkCurrent();
+        return 0 <= fieldOffset && 0 <= size && fieldOffset + size <= mLength;
+    }
+
+    /**
+     * 現在のディスクリプタから符号なし 1 バイトの値を読みます。
+     *
+     * @param fieldOffset ディスクリプタ先頭からのオフセット。
+     */
+    public int getU8(int fieldOffset) {
+        checkField(fieldOffset, 1);
+        return mBuffer.get(mOffset + fieldOffset) & 0xff;
+    }
+
+    /**
+     * 現在のディスクリプタから符号なし 2 バイト(リトルエンディアン)の値を読みます。
+     *
+     * @param fieldOffset ディスクリプタ先頭からのオフセット。
+     */
+    public int getU16(int fieldOffset) {
+        checkField(fieldOffset, 2);
+        final int index = mOffset + fieldOffset;
+        return (mBuffer.get(index) & 0xff) | ((mBuffer.get(index + 1) & 0xff) << 8);
+    }
+
+    /**
+     * 現在のディスクリプタから符号なし 4 バイト(リトルエンディアン)の値を読みます。
+     *
+     * @param fieldOffset ディスクリプタ先頭からのオフセット。
+     */
+    public long getU32(int fieldOffset) {
+        checkField(fieldOffset, 4);
+        return (getU16(fieldOffset) & 0xffffL) | ((long) getU16(fieldOffset + 2) << 16);
+    }
+
+    /**
+     * 現在のディスクリプタの内容をコピーして返します。
+     */
+    public byte[] copyDescriptor() {
+        checkCurrent();
+        final byte[] copy = new byte[mLength];
+        for (int i = 0; i < mLength; i++) {
+            copy[i] = mBuffer.get(mOffset + i);
+        }
+        return copy;
+    }
+
+    private void checkCurrent() {
+        if (mOffset < 0) {
+            throw new IllegalStateException("no current descriptor.");
+        }
+    }
+
+    private void checkField(int fieldOffset, int size) {
+        if (!hasField(fieldOffset, size)) {
+            throw new IndexOutOfBoundsException("offset " + fieldOffset + " size " + size
+                    + " exceeds bLength " + mLength);
+        }
+    }
+}
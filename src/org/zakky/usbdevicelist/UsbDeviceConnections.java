@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Maps;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+
+import java.util.Map;
+
+/**
+ * {@link UsbManager} で {@link UsbDeviceConnection} をオープンする
+ * {@link UsbConnectionPool.ConnectionFactory} と、アプリ全体で共有するプールです。
+ * <p>
+ * {@link UsbManager#getDeviceList()} はシステムサービスへのプロセス間呼び出しなので、
+ * プールのロックを保持せずに呼ばれる {@link #open(String)} でだけ呼びます。 オープンした
+ * 接続ごとにその時点の {@link UsbDevice} を覚えておき、 claim と release では
+ * そこからインタフェースを引きます。
+ * </p>
+ */
+public final class UsbDeviceConnections implements
+        UsbConnectionPool.ConnectionFactory<UsbDeviceConnection> {
+
+    private static UsbConnectionPool<UsbDeviceConnection> sDefault;
+
+    /**
+     * アプリ全体で共有するプールを返します。 最初の呼び出しで生成します。
+     */
+    public static synchronized UsbConnectionPool<UsbDeviceConnection> getDefault(
+            Context context) {
+        if (sDefault == null) {
+            final UsbManager manager = (UsbManager) context.getApplicationContext()
+                    .getSystemService(Context.USB_SERVICE);
+            sDefault = new UsbConnectionPool<UsbDeviceConnection>(new UsbDeviceConnections(
+                    manager), UsbConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS);
+        }
+        return sDefault;
+    }
+
+    private final UsbManager mUsbManager;
+
+    /**
+     * オープン中の接続と、オープンした時点のデバイス。
+     */
+    private final Map<UsbDeviceConnection, UsbDevice> mDevices = Maps.newConcurrentMap();
+
+    public UsbDeviceConnections(UsbManager usbManager) {
+        mUsbManager = usbManager;
+    }
+
+    @Override
+    public UsbDeviceConnection open(String deviceName) {
+        final UsbDevice device = mUsbManager.getDeviceList().get(deviceName);
+        if (device == null || !mUsbManager.hasPermission(device)) {
+            return null;
+        }
+        final UsbDeviceConnection connection = mUsbManager.openDevice(device);
+        if (connection != null) {
+            mDevices.put(connection, device);
+        }
+        return connection;
+    }
+
+    @Override
+    public boolean claimInterface(UsbDeviceConnection connection, String deviceName,
+            int interfaceId) {
+        final UsbInterface iface = findInterface(connection, interfaceId);
+        return iface != null && connection.claimInterface(iface, true);
+    }
+
+    @Override
+    public void releaseInterface(UsbDeviceConnection connection, String deviceName,
+            int interfaceId) {
+        final UsbInterface iface = findInterface(connection, interfaceId);
+        if (iface != null) {
+            connection.releaseInterface(iface);
+        }
+    }
+
+    @Override
+    public void close(UsbDeviceConnection connection) {
+        mDevices.remove(connection);
+        connection.close();
+    }
+
+    private UsbInterface findInterface(UsbDeviceConnection connection, int interfaceId) {
+        final UsbDevice device = mDevices.get(connection);
+        if (device == null) {
+            return null;
+        }
+        for (int i = 0; i < device.getInterfaceCount(); i++) {
+            final UsbInterface iface = device.getInterface(i);
+            if (iface.getId() == interfaceId) {
+                return iface;
+            }
+        }
+        return null;
+    }
+}
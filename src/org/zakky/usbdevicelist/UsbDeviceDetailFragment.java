@@ -16,46 +16,192 @@
 
 package org.zakky.usbdevicelist;
 
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getAddressString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getAttributesString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getDirectionString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getIntervalString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getMaxPacketSizeString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getNumberString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getTypeString;
-
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.base.Objects;
 
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.ListFragment;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
 import android.os.Bundle;
-import android.os.Parcelable;
+import android.view.ContextMenu;
+import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.SimpleAdapter;
+import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.TextView;
+import android.widget.Toast;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
+import java.io.File;
+import java.util.Locale;
 
 /**
  * デバイスの詳細を表示する {@link Fragment} です。
+ * <p>
+ * 表示対象は {@link #setTarget(String, int)} で差し替えられるので、
+ * インタフェースの選択が変わるたびにフラグメントを作り直す必要はありません。
+ * 表示対象はデバイス名とインタフェース Id の組で受け取り、内容は
+ * {@link UsbSnapshotHolder} のスナップショットから引きます。 転送に必要な
+ * {@link UsbInterface} は、転送を開始する時点で {@link UsbManager} から引きます。
+ * </p>
  */
 public class UsbDeviceDetailFragment extends ListFragment {
 
-    private static final String ARG_TARGET_INTERFACE = "interface";
+    private static final String ARG_TARGET_DEVICE_NAME = "device_name";
+
+    private static final String ARG_TARGET_INTERFACE_ID = "interface_id";
+
+    /**
+     * ディスクリプタ読み出しのためのアクセス権限要求の結果を受け取るアクション。
+     */
+    private static final String ACTION_USB_PERMISSION = "org.zakky.usbdevicelist.USB_PERMISSION";
+
+    /**
+     * Endpoint リストのフッタとして生のディスクリプタを表示するビュー。
+     */
+    private TextView mDescriptorView;
+
+    private boolean mPermissionReceiverRegistered = false;
+
+    private UsbDescriptorLoader mDescriptorLoader;
+
+    /**
+     * 表示中のインタフェースを持つデバイスのデバイス名。
+     */
+    private String mTargetDeviceName;
+
+    /**
+     * 表示中のインタフェースの Id。
+     */
+    private int mTargetInterfaceId = -1;
+
+    /**
+     * 表示中のインタフェース。 スナップショットに見つからない場合は {@code null}。
+     */
+    private UsbInterfaceSnapshot mTarget;
+
+    /**
+     * 表示中の Endpoint 一覧のアダプタ。 フッタを追加しているので
+     * {@link #getListAdapter()} はこれをラップしたものを返します。
+     */
+    private UsbEndpointListAdapter mEndpointAdapter;
+
+    /*
+     * コンテキストメニュー識別用の定数群
+     */
+
+    /**
+     * このフラグメントのコンテキストメニュー項目のグループ。
+     */
+    private static final int CONTEXT_MENU_GROUP = 1;
+
+    /**
+     * バルク Endpoint のベンチマークのための定数
+     */
+    private static final int CONTEXT_MENU_BENCHMARK_ID = 1;
+
+    /**
+     * IN Endpoint の連続読み込みのための定数
+     */
+    private static final int CONTEXT_MENU_STREAM_ID = 2;
+
+    /**
+     * インタラプト IN Endpoint の到着間隔の計測のための定数
+     */
+    private static final int CONTEXT_MENU_LATENCY_ID = 3;
+
+    /**
+     * IN Endpoint の転送の pcapng ファイルへの記録のための定数
+     */
+    private static final int CONTEXT_MENU_CAPTURE_ID = 4;
+
+    /**
+     * 連続読み込みを続ける時間(ミリ秒)。
+     */
+    private static final long STREAM_DURATION_MILLIS = 10 * 1000L;
+
+    /**
+     * 到着間隔を計測し続ける時間(ミリ秒)。
+     */
+    private static final long LATENCY_DURATION_MILLIS = 30 * 1000L;
+
+    /**
+     * 転送を記録し続ける時間(ミリ秒)。
+     */
+    private static final long CAPTURE_DURATION_MILLIS = 60 * 1000L;
+
+    /**
+     * 記録ファイルを作成するディレクトリの名前。
+     */
+    private static final String CAPTURE_DIRECTORY_NAME = "captures";
+
+    /**
+     * 記録ファイル1つの最大バイト数。
+     */
+    private static final long CAPTURE_MAX_FILE_BYTES = 32L * 1024L * 1024L;
+
+    /**
+     * 残しておく記録ファイルの最大数。
+     */
+    private static final int CAPTURE_MAX_FILE_COUNT = 4;
 
-    public static UsbDeviceDetailFragment newInstance(UsbInterface targetInterface) {
+    /**
+     * フルスピードのインタラプト Endpoint の MaxPacketSize の上限。 これを超える場合は
+     * ハイスピードのデバイスとみなします。
+     */
+    private static final int FULL_SPEED_MAX_INTERRUPT_PACKET_SIZE = 64;
+
+    /**
+     * Endpoint リストのフッタとしてベンチマークや連続読み込みの結果を表示するビュー。
+     */
+    private TextView mBenchmarkView;
+
+    /**
+     * 表示中のベンチマークや連続読み込みの結果。
+     */
+    private final StringBuilder mBenchmarkLog = new StringBuilder();
+
+    /**
+     * {@link #mBenchmarkLog} のうち、連続読み込みの経過で書き換えない見出し部分の長さ。
+     */
+    private int mBenchmarkHeaderLength;
+
+    private UsbBulkBenchmarkRunner mBenchmarkRunner;
+
+    private UsbStreamMonitor mStreamMonitor;
+
+    /**
+     * 到着間隔の計測中はその記録先。 それ以外の場合は {@code null}。
+     */
+    private UsbInterruptLatencyRecorder mLatencyRecorder;
+
+    /**
+     * 表示のために到着間隔の分布をコピーする先。
+     */
+    private final UsbLatencyHistogram mLatencySnapshot = new UsbLatencyHistogram();
+
+    /**
+     * 転送の記録中はその書き出し先。 それ以外の場合は {@code null}。
+     */
+    private UsbPcapngCapture mCapture;
+
+    public static UsbDeviceDetailFragment newInstance(String deviceName, int interfaceId) {
         final UsbDeviceDetailFragment f = new UsbDeviceDetailFragment();
 
         final Bundle args = new Bundle();
-        args.putParcelable(ARG_TARGET_INTERFACE, targetInterface);
+        args.putString(ARG_TARGET_DEVICE_NAME, deviceName);
+        args.putInt(ARG_TARGET_INTERFACE_ID, interfaceId);
         f.setArguments(args);
 
         return f;
@@ -66,24 +212,211 @@ public class UsbDeviceDetailFragment extends ListFragment {
         assert true;
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // 差し替え後の表示対象は引数ではなく状態として保存されている
+        final Bundle target = (savedInstanceState != null) ? savedInstanceState
+                : getArguments();
+        mTargetDeviceName = target.getString(ARG_TARGET_DEVICE_NAME);
+        mTargetInterfaceId = target.getInt(ARG_TARGET_INTERFACE_ID, -1);
+        mTarget = UsbSnapshotHolder.getDefault().findInterface(mTargetDeviceName,
+                mTargetInterfaceId);
+
+        final UsbConnectionPool<UsbDeviceConnection> connections = UsbDeviceConnections
+                .getDefault(getActivity());
+        mBenchmarkRunner = new UsbBulkBenchmarkRunner(connections, mBenchmarkCallback);
+        mStreamMonitor = new UsbStreamMonitor(connections, mStreamCallback);
+        mDescriptorLoader = new UsbDescriptorLoader(getActivity().getApplicationContext(),
+                mDescriptorCallback);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(ARG_TARGET_DEVICE_NAME, mTargetDeviceName);
+        outState.putInt(ARG_TARGET_INTERFACE_ID, mTargetInterfaceId);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        mBenchmarkRunner.shutdown();
+        mStreamMonitor.shutdown();
+        mDescriptorLoader.shutdown();
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
-        final UsbInterface target = getTarget();
+        // フッタは setListAdapter() より前に追加する必要がある
+        final LayoutInflater inflater = LayoutInflater.from(getActivity());
+        mBenchmarkView = (TextView) inflater.inflate(R.layout.device_detail_benchmark,
+                getListView(), false);
+        getListView().addFooterView(mBenchmarkView);
+        mDescriptorView = (TextView) inflater.inflate(R.layout.device_detail_descriptors,
+                getListView(), false);
+        getListView().addFooterView(mDescriptorView);
+        registerForContextMenu(getListView());
+
+        final UsbInterfaceSnapshot target = getTarget();
         if (target == null) {
             clearEndpoints();
         } else {
             showEndpoints(target);
         }
+        showDescriptors(false);
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        getActivity().registerReceiver(mPermissionReceiver,
+                new IntentFilter(ACTION_USB_PERMISSION));
+        mPermissionReceiverRegistered = true;
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mBenchmarkRunner.cancel();
+        mStreamMonitor.cancel();
+        mLatencyRecorder = null;
+        mCapture = null;
+        if (mPermissionReceiverRegistered) {
+            getActivity().unregisterReceiver(mPermissionReceiver);
+            mPermissionReceiverRegistered = false;
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mDescriptorLoader.cancel();
+        mDescriptorView = null;
+        mBenchmarkView = null;
+        mEndpointAdapter = null;
+    }
+
+    @Override
+    public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
+        super.onCreateContextMenu(menu, v, menuInfo);
+
+        final UsbEndpointSnapshot ep = getEndpoint(menuInfo);
+        if (ep == null) {
+            return;
+        }
+        final int type = ep.getType();
+        if (type == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+            menu.add(CONTEXT_MENU_GROUP, CONTEXT_MENU_BENCHMARK_ID, 0, R.string.menu_benchmark);
+        }
+        if (ep.getDirection() == UsbConstants.USB_DIR_IN
+                && (type == UsbConstants.USB_ENDPOINT_XFER_BULK
+                        || type == UsbConstants.USB_ENDPOINT_XFER_INT)) {
+            menu.add(CONTEXT_MENU_GROUP, CONTEXT_MENU_STREAM_ID, 0, R.string.menu_stream);
+            menu.add(CONTEXT_MENU_GROUP, CONTEXT_MENU_CAPTURE_ID, 0, R.string.menu_capture);
+        }
+        if (ep.getDirection() == UsbConstants.USB_DIR_IN
+                && type == UsbConstants.USB_ENDPOINT_XFER_INT) {
+            menu.add(CONTEXT_MENU_GROUP, CONTEXT_MENU_LATENCY_ID, 0, R.string.menu_latency);
+        }
+    }
+
+    @Override
+    public boolean onContextItemSelected(MenuItem item) {
+        final UsbEndpointSnapshot ep = getEndpoint(item.getMenuInfo());
+        if (ep != null) {
+            switch (item.getItemId()) {
+                case CONTEXT_MENU_BENCHMARK_ID:
+                    startBenchmark(ep);
+                    return true;
+                case CONTEXT_MENU_STREAM_ID:
+                    startStream(ep, false);
+                    return true;
+                case CONTEXT_MENU_LATENCY_ID:
+                    startStream(ep, true);
+                    return true;
+                case CONTEXT_MENU_CAPTURE_ID:
+                    startCapture(ep);
+                    return true;
+            }
+        }
+        return super.onContextItemSelected(item);
     }
 
-    public UsbInterface getTarget() {
-        final Parcelable p = getArguments().getParcelable(ARG_TARGET_INTERFACE);
-        if (!(p instanceof UsbInterface)) {
+    /**
+     * コンテキストメニューの対象の Endpoint を返します。 フッタなど Endpoint 以外の行の
+     * 場合は {@code null} を返します。
+     */
+    private UsbEndpointSnapshot getEndpoint(ContextMenuInfo menuInfo) {
+        if (!(menuInfo instanceof AdapterContextMenuInfo) || getView() == null) {
+            return null;
+        }
+        final Object item = getListView().getItemAtPosition(
+                ((AdapterContextMenuInfo) menuInfo).position);
+        if (!(item instanceof UsbEndpointSnapshot)) {
             return null;
         }
-        return (UsbInterface) p;
+        return (UsbEndpointSnapshot) item;
+    }
+
+    public String getTargetDeviceName() {
+        return mTargetDeviceName;
+    }
+
+    public int getTargetInterfaceId() {
+        return mTargetInterfaceId;
+    }
+
+    /**
+     * @return 表示中のインタフェース。 スナップショットに見つからない場合は {@code null}。
+     */
+    public UsbInterfaceSnapshot getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * 表示対象を差し替えます。 実行中のベンチマークなどは中止され、 Endpoint の一覧は
+     * 既存のアダプタのまま内容だけが更新されます。 ディスクリプタはデバイスが変わった
+     * 場合と同じインタフェースのスナップショットが変わった場合に読み直し、それ以外は
+     * 読み出し済みのものを整形し直します。
+     *
+     * @param deviceName インタフェースを持つデバイスのデバイス名。
+     * @param interfaceId 表示するインタフェースの Id。
+     */
+    public void setTarget(String deviceName, int interfaceId) {
+        final UsbInterfaceSnapshot target = UsbSnapshotHolder.getDefault().findInterface(
+                deviceName, interfaceId);
+        if (deviceName.equals(mTargetDeviceName) && interfaceId == mTargetInterfaceId
+                && Objects.equal(target, mTarget)) {
+            return;
+        }
+        // 同じインタフェースのまま内容が変わった場合は、デバイスが付け直された可能性がある
+        final boolean reload = !deviceName.equals(mTargetDeviceName)
+                || interfaceId == mTargetInterfaceId;
+        mTargetDeviceName = deviceName;
+        mTargetInterfaceId = interfaceId;
+        mTarget = target;
+        if (getView() == null) {
+            // onActivityCreated() で表示される
+            return;
+        }
+
+        mBenchmarkRunner.cancel();
+        mStreamMonitor.cancel();
+        mLatencyRecorder = null;
+        mCapture = null;
+        mBenchmarkView.setVisibility(View.GONE);
+
+        if (target == null) {
+            clearEndpoints();
+        } else {
+            showEndpoints(target);
+        }
+        showDescriptors(reload);
     }
 
     @Override
@@ -92,93 +425,320 @@ public class UsbDeviceDetailFragment extends ListFragment {
         return v;
     }
 
+    private void showEndpoints(UsbInterfaceSnapshot snapshot) {
+        if (!isAdded()) {
+            return;
+        }
+
+        if (mEndpointAdapter != null) {
+            mEndpointAdapter.setInterface(getTargetDeviceName(), snapshot);
+            getListView().setSelection(0);
+            return;
+        }
+        final Activity act = getActivity();
+        mEndpointAdapter = new UsbEndpointListAdapter(act, UsbRowCache.getDefault(),
+                getTargetDeviceName(), snapshot);
+        setListAdapter(mEndpointAdapter);
+    }
+
+    private void clearEndpoints() {
+        setListAdapter(null);
+        mEndpointAdapter = null;
+    }
+
     /**
-     * Endpoint 用のマップのキーに使用する文字列です。
+     * 表示中のインタフェースに対応する、現在接続されている {@link UsbInterface} を探します。
+     * 選択の受け渡しや状態の保存では {@link UsbInterface} を扱わず、転送に必要になった
+     * 時点で引きます。
+     *
+     * @return 見つかった {@link UsbInterface}。デバイスが取り外されているなどで見つからない
+     * 場合は {@code null}。
      */
-    private static final class EndpointMapKeys {
+    private UsbInterface findTargetInterface() {
+        final UsbManager manager = (UsbManager) getActivity().getSystemService(
+                Context.USB_SERVICE);
+        final UsbDevice dev = manager.getDeviceList().get(getTargetDeviceName());
+        if (dev == null) {
+            return null;
+        }
+        final int ifaceCount = dev.getInterfaceCount();
+        for (int i = 0; i < ifaceCount; i++) {
+            final UsbInterface iface = dev.getInterface(i);
+            if (iface.getId() == mTargetInterfaceId) {
+                return iface;
+            }
+        }
+        return null;
+    }
 
-        private static final String ADDRESS = "address";
+    /**
+     * 対象デバイスの生のディスクリプタの読み出しを要求します。 結果は
+     * {@link #mDescriptorCallback} でフッタに表示します。 アクセス権限が無い場合は
+     * 権限を要求し、許可された時点で改めて読み出します。
+     *
+     * @param reload 読み出し済みのディスクリプタを使わずに読み出し直す場合は
+     * {@code true}。
+     */
+    private void showDescriptors(boolean reload) {
+        if (!isAdded() || mDescriptorView == null) {
+            return;
+        }
+        if (!UsbRawDescriptors.isSupported()) {
+            mDescriptorView.setText(R.string.descriptors_unsupported);
+            return;
+        }
+        if (reload) {
+            mDescriptorView.setText(null);
+        }
+        final UsbInterfaceSnapshot target = getTarget();
+        mDescriptorLoader.load(getTargetDeviceName(), mTargetInterfaceId,
+                (target == null) ? -1 : target.getInterfaceClass(), reload);
+    }
 
-        private static final String NUMBER = "number";
+    /**
+     * バルク Endpoint のベンチマークを開始します。 結果はフッタに順次表示されます。
+     */
+    private void startBenchmark(UsbEndpointSnapshot ep) {
+        final UsbInterface iface = findTargetInterface();
+        final UsbEndpoint endpoint = findEndpoint(iface, ep.getAddress());
+        final UsbDevice device = getAccessibleDevice(endpoint);
+        if (device == null) {
+            return;
+        }
+        mStreamMonitor.cancel();
+        mLatencyRecorder = null;
+        mCapture = null;
 
-        private static final String ATTRS = "attributes";
+        final int minSize = Math.max(1, ep.getMaxPacketSize());
+        final int maxSize = Math.max(minSize, UsbBulkBenchmark.DEFAULT_MAX_TRANSFER_SIZE);
+        final UsbBulkBenchmark benchmark = new UsbBulkBenchmark(UsbBulkBenchmark.doublingSizes(
+                minSize, maxSize), UsbBulkBenchmark.DEFAULT_STEP_MILLIS,
+                UsbBulkBenchmark.DEFAULT_TIMEOUT_MILLIS);
+
+        beginBenchmarkLog("Benchmark ", ep);
+        mBenchmarkRunner.start(device, iface, endpoint, benchmark);
+    }
 
-        private static final String DIR = "direction";
+    /**
+     * IN Endpoint からの連続読み込みを開始します。 経過はフッタに表示されます。
+     *
+     * @param ep 対象の Endpoint。
+     * @param measureLatency 到着間隔を計測してポーリング間隔と比較する場合は {@code true}。
+     */
+    private void startStream(UsbEndpointSnapshot ep, boolean measureLatency) {
+        final UsbInterface iface = findTargetInterface();
+        final UsbEndpoint endpoint = findEndpoint(iface, ep.getAddress());
+        final UsbDevice device = getAccessibleDevice(endpoint);
+        if (device == null) {
+            return;
+        }
+        mBenchmarkRunner.cancel();
+        mCapture = null;
 
-        private static final String INTERVAL = "interval";
+        if (measureLatency) {
+            final boolean highSpeed = FULL_SPEED_MAX_INTERRUPT_PACKET_SIZE < ep
+                    .getMaxPacketSize();
+            mLatencyRecorder = new UsbInterruptLatencyRecorder(
+                    UsbInterruptLatencyRecorder.toIntervalNanos(ep.getInterval(), highSpeed));
+            beginBenchmarkLog(highSpeed ? "Latency (high-speed) " : "Latency (full-speed) ", ep);
+            mStreamMonitor.start(device, iface, endpoint, LATENCY_DURATION_MILLIS, null,
+                    mLatencyRecorder);
+        } else {
+            mLatencyRecorder = null;
+            beginBenchmarkLog("Stream ", ep);
+            mStreamMonitor.start(device, iface, endpoint, STREAM_DURATION_MILLIS, null, null);
+        }
+    }
 
-        private static final String MAX_PACKET_SIZE = "max_pkt";
+    /**
+     * IN Endpoint の転送を pcapng ファイルに記録します。 ファイルは外部ストレージの
+     * アプリケーション用ディレクトリ(使えない場合は内部ストレージ)に作成され、
+     * 記録先と経過はフッタに表示されます。
+     */
+    private void startCapture(UsbEndpointSnapshot ep) {
+        final UsbInterface iface = findTargetInterface();
+        final UsbEndpoint endpoint = findEndpoint(iface, ep.getAddress());
+        final UsbDevice device = getAccessibleDevice(endpoint);
+        if (device == null) {
+            return;
+        }
+        mBenchmarkRunner.cancel();
+        mLatencyRecorder = null;
 
-        private static final String TYPE = "type";
+        final Activity act = getActivity();
+        File root = act.getExternalFilesDir(null);
+        if (root == null) {
+            root = act.getFilesDir();
+        }
+        final String deviceName = device.getDeviceName();
+        final String baseName = String.format(Locale.US, "usb%03d-%03d-ep%02x-%d",
+                Integer.valueOf(UsbDeviceNames.getBusNumber(deviceName)),
+                Integer.valueOf(UsbDeviceNames.getDeviceNumber(deviceName)),
+                Integer.valueOf(ep.getAddress()), Long.valueOf(System.currentTimeMillis()));
+        final UsbPcapngWriter writer = new UsbPcapngWriter(new File(root,
+                CAPTURE_DIRECTORY_NAME), baseName, CAPTURE_MAX_FILE_BYTES,
+                CAPTURE_MAX_FILE_COUNT, UsbPcapngWriter.DEFAULT_SNAP_LENGTH);
+        mCapture = new UsbPcapngCapture(writer, deviceName, ep.getAddress(), ep.getType(),
+                ep.getInterval());
 
-        /**
-         * {@link UsbEndpoint}
-         */
-        private static final String ENDPOINT = "endpoint";
+        beginBenchmarkLog("Capture ", ep);
+        mStreamMonitor.start(device, iface, endpoint, CAPTURE_DURATION_MILLIS, mCapture,
+                mCapture);
     }
 
     /**
-     * Endpoint 一覧をソートするための {@link Comparator} です。 Endpoint Number の
-     * 昇順でソートします。
+     * Endpoint を持つデバイスを返します。 アクセス権限が無い場合は権限を要求して
+     * {@code null} を返します。
      */
-    private static final Comparator<Map<String, Object>> EP_COMPARATOR = new Comparator<Map<String, Object>>() {
+    private UsbDevice getAccessibleDevice(UsbEndpoint endpoint) {
+        final Activity act = getActivity();
+        final UsbManager manager = (UsbManager) act.getSystemService(Context.USB_SERVICE);
+        final UsbDevice device = manager.getDeviceList().get(getTargetDeviceName());
+        if (endpoint == null || device == null) {
+            Toast.makeText(act, R.string.benchmark_failed, Toast.LENGTH_SHORT).show();
+            return null;
+        }
+        if (!manager.hasPermission(device)) {
+            Toast.makeText(act, R.string.benchmark_no_permission, Toast.LENGTH_SHORT).show();
+            manager.requestPermission(device,
+                    PendingIntent.getBroadcast(act, 0, new Intent(ACTION_USB_PERMISSION), 0));
+            return null;
+        }
+        return device;
+    }
+
+    private void beginBenchmarkLog(String title, UsbEndpointSnapshot ep) {
+        mBenchmarkLog.setLength(0);
+        mBenchmarkLog.append(title);
+        UsbConstantsUtil.appendAddressString(mBenchmarkLog, ep).append(" (");
+        UsbConstantsUtil.appendDirectionString(mBenchmarkLog, ep).append(")\n");
+        mBenchmarkHeaderLength = mBenchmarkLog.length();
+        mBenchmarkView.setText(mBenchmarkLog);
+        mBenchmarkView.setVisibility(View.VISIBLE);
+    }
+
+    private static UsbEndpoint findEndpoint(UsbInterface iface, int address) {
+        if (iface == null) {
+            return null;
+        }
+        final int count = iface.getEndpointCount();
+        for (int i = 0; i < count; i++) {
+            final UsbEndpoint ep = iface.getEndpoint(i);
+            if (ep.getAddress() == address) {
+                return ep;
+            }
+        }
+        return null;
+    }
+
+    private final UsbBulkBenchmarkRunner.Callback mBenchmarkCallback = new UsbBulkBenchmarkRunner.Callback() {
         @Override
-        public int compare(Map<String, Object> object1, Map<String, Object> object2) {
-            final UsbEndpoint ep1 = (UsbEndpoint) object1.get(EndpointMapKeys.ENDPOINT);
-            final UsbEndpoint ep2 = (UsbEndpoint) object2.get(EndpointMapKeys.ENDPOINT);
-            return Integer.valueOf(ep1.getEndpointNumber()).compareTo(
-                    Integer.valueOf(ep2.getEndpointNumber()));
+        public void onStepFinished(UsbBulkBenchmarkResult result) {
+            result.appendSummary(mBenchmarkLog).append('\n');
+            if (mBenchmarkView != null) {
+                mBenchmarkView.setText(mBenchmarkLog);
+            }
+        }
+
+        @Override
+        public void onFinished(boolean success) {
+            if (!success) {
+                mBenchmarkLog.append(getString(R.string.benchmark_failed)).append('\n');
+            }
+            if (mBenchmarkView != null) {
+                mBenchmarkView.setText(mBenchmarkLog);
+            }
         }
     };
 
-    private void showEndpoints(UsbInterface iface) {
-        if (!isAdded()) {
-            return;
+    private final UsbStreamMonitor.Callback mStreamCallback = new UsbStreamMonitor.Callback() {
+        @Override
+        public void onProgress(long elapsedNanos, long transferCount, long byteCount,
+                long stallCount) {
+            mBenchmarkLog.setLength(mBenchmarkHeaderLength);
+            final long elapsedMillis = Math.max(1L, elapsedNanos / (1000L * 1000L));
+            mBenchmarkLog.append(elapsedMillis).append(" ms: ").append(byteCount)
+                    .append(" B, ").append(transferCount).append(" xfer, ")
+                    .append(byteCount / elapsedMillis).append(" KB/s, stalls ")
+                    .append(stallCount).append('\n');
+            if (mLatencyRecorder != null) {
+                mLatencyRecorder.copyTo(mLatencySnapshot);
+                UsbInterruptLatencyRecorder.appendReport(mBenchmarkLog, mLatencySnapshot,
+                        mLatencyRecorder.getExpectedIntervalNanos()).append('\n');
+            }
+            if (mCapture != null) {
+                appendCaptureStatus(mBenchmarkLog, mCapture);
+            }
+            if (mBenchmarkView != null) {
+                mBenchmarkView.setText(mBenchmarkLog);
+            }
         }
 
-        final int endpointCount = iface.getEndpointCount();
-        final List<Map<String, Object>> epEntries = Lists.newArrayListWithCapacity(endpointCount);
-        for (int i = 0; i < endpointCount; i++) {
-            final Map<String, Object> epEntry = Maps.newHashMap();
-            final UsbEndpoint endpoint = iface.getEndpoint(i);
-            epEntry.put(EndpointMapKeys.ADDRESS, "Address: " + getAddressString(endpoint));
-            epEntry.put(EndpointMapKeys.NUMBER, "Endpoint Number: " + getNumberString(endpoint));
-            epEntry.put(EndpointMapKeys.ATTRS, "Attributes: " + getAttributesString(endpoint));
-            epEntry.put(EndpointMapKeys.DIR, "Direction: " + getDirectionString(endpoint));
-            epEntry.put(EndpointMapKeys.INTERVAL, "Interval: " + getIntervalString(endpoint));
-            epEntry.put(EndpointMapKeys.MAX_PACKET_SIZE, "MaxPacketSize: "
-                    + getMaxPacketSizeString(endpoint));
-            epEntry.put(EndpointMapKeys.TYPE, "Type: " + getTypeString(endpoint));
-            epEntry.put(EndpointMapKeys.ENDPOINT, endpoint);
+        @Override
+        public void onFinished(boolean success) {
+            if (!success) {
+                mBenchmarkLog.append(getString(R.string.benchmark_failed)).append('\n');
+            }
+            if (mCapture != null && mCapture.isFailed()) {
+                mBenchmarkLog.append(getString(R.string.capture_failed)).append('\n');
+            }
+            if (mBenchmarkView != null) {
+                mBenchmarkView.setText(mBenchmarkLog);
+            }
+        }
+    };
 
-            epEntries.add(epEntry);
+    private final UsbDescriptorLoader.Callback mDescriptorCallback = new UsbDescriptorLoader.Callback() {
+        @Override
+        public void onLoaded(String deviceName, int interfaceId, CharSequence text) {
+            if (mDescriptorView == null || !deviceName.equals(getTargetDeviceName())
+                    || interfaceId != mTargetInterfaceId) {
+                return;
+            }
+            mDescriptorView.setText(text);
         }
-        Collections.sort(epEntries, EP_COMPARATOR);
 
-        final Activity act = getActivity();
-        final SimpleAdapter adapter = new SimpleAdapter(act, epEntries, R.layout.device_detail_row,
-                new String[] {
-                        EndpointMapKeys.ADDRESS, //
-                        EndpointMapKeys.NUMBER, //
-                        EndpointMapKeys.ATTRS, //
-                        EndpointMapKeys.DIR, //
-                        EndpointMapKeys.INTERVAL, //
-                        EndpointMapKeys.MAX_PACKET_SIZE, //
-                        EndpointMapKeys.TYPE
-                }, //
-                new int[] {
-                        R.id.ep_address, //
-                        R.id.ep_number, //
-                        R.id.ep_attrs, //
-                        R.id.ep_dir, //
-                        R.id.ep_interval, //
-                        R.id.ep_max_packet_size, //
-                        R.id.ep_type
-                });
-        setListAdapter(adapter);
-    }
+        @Override
+        public void onPermissionRequired(UsbDevice device) {
+            if (mDescriptorView == null || !isAdded()) {
+                return;
+            }
+            mDescriptorView.setText(R.string.descriptors_no_permission);
+            final Activity act = getActivity();
+            final UsbManager manager = (UsbManager) act.getSystemService(Context.USB_SERVICE);
+            manager.requestPermission(device,
+                    PendingIntent.getBroadcast(act, 0, new Intent(ACTION_USB_PERMISSION), 0));
+        }
 
-    private void clearEndpoints() {
-        setListAdapter(null);
+        @Override
+        public void onFailed(String deviceName) {
+            if (mDescriptorView != null) {
+                mDescriptorView.setText(R.string.descriptors_open_failed);
+            }
+        }
+    };
+
+    private static void appendCaptureStatus(StringBuilder sb, UsbPcapngCapture capture) {
+        final File file = capture.getCurrentFile();
+        sb.append(capture.getPacketCount()).append(" packets");
+        if (file != null) {
+            sb.append(" -> ").append(file.getPath());
+        }
+        sb.append('\n');
     }
+
+    private final BroadcastReceiver mPermissionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null || !device.getDeviceName().equals(getTargetDeviceName())) {
+                return;
+            }
+            if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                showDescriptors(true);
+            } else if (mDescriptorView != null) {
+                mDescriptorView.setText(R.string.descriptors_open_failed);
+            }
+        }
+    };
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * デバイスの列挙とスナップショットの生成をバックグラウンドスレッドで行うクラスです。
+ * <p>
+ * 列挙要求は後勝ちです。 前の要求が終わる前に新しい要求があった場合、前の要求は
+ * 取り消され(実行中であれば結果が破棄され)、最後の要求の結果だけが通知されます。
+ * </p>
+ * <p>
+ * スレッドに関する約束事:
+ * <ul>
+ * <li>{@link #requestEnumeration()}, {@link #cancel()}, {@link #shutdown()} は
+ * メインスレッドから呼んでください。</li>
+ * <li>{@link Callback#onEnumerated(UsbTopologySnapshot)} は必ずメインスレッドから呼ばれ、
+ * 渡されるのは完成したイミュータブルなスナップショットだけです。</li>
+ * <li>列挙が例外で失敗した場合は、要求は完了したものとして扱い、
+ * {@link Callback#onEnumerationFailed(RuntimeException)} をメインスレッドから呼びます。</li>
+ * <li>{@link #resolveHotplugBatch(UsbHotplugBatch)} に渡したバッチは、列挙と同じ
+ * バックグラウンドスレッドでポートパスを補ってから、渡した順に
+ * {@link Callback#onHotplugBatchResolved(UsbHotplugBatch)} でメインスレッドに
+ * 通知されます。 列挙と同じスレッドを使うので、列挙の後に渡したバッチは
+ * その列挙結果の後に通知されます。</li>
+ * </ul>
+ * </p>
+ */
+public class UsbDeviceEnumerator {
+
+    /**
+     * 列挙結果を受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * 列挙が完了した場合にメインスレッドから呼ばれます。
+         *
+         * @param snapshot 列挙結果。
+         */
+        public void onEnumerated(UsbTopologySnapshot snapshot);
+
+        /**
+         * 列挙が例外で失敗した場合にメインスレッドから呼ばれます。
+         *
+         * @param e 列挙中にスローされた例外。
+         */
+        public void onEnumerationFailed(RuntimeException e);
+
+        /**
+         * {@link UsbDeviceEnumerator#resolveHotplugBatch(UsbHotplugBatch)} に渡した
+         * バッチのポートパスを補い終えた場合にメインスレッドから呼ばれます。
+         *
+         * @param batch ポートパスを補ったバッチ。
+         */
+        public void onHotplugBatchResolved(UsbHotplugBatch batch);
+    }
+
+    private static final UsbPerfStats.Counter FAILURE_COUNTER = UsbPerfStats
+            .newCounter("enumeration.failures");
+
+    private static final UsbPerfStats.Timer PORT_PATH_TIMER = UsbPerfStats
+            .newTimer("sysfs.readPortPath");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbDeviceEnumerator #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final UsbDeviceSource mSource;
+
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final File mSysfsRoot = new File(UsbSysfsDeviceSource.DEFAULT_ROOT);
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * 要求の世代番号。最新の世代の結果だけが通知されます。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * 接続/切断イベントのバッチの世代番号。 {@link #cancel()} より前に渡されたバッチは
+     * 通知されません。 列挙の要求では変わりません。
+     */
+    private final AtomicInteger mHotplugGeneration = new AtomicInteger();
+
+    private Future<?> mPendingTask;
+
+    private boolean mPending = false;
+
+    /**
+     * @param source 列挙に使うデバイスソース。 バックグラウンドスレッドから呼ばれます。
+     * @param callback 列挙結果を受け取るコールバック。
+     */
+    public UsbDeviceEnumerator(UsbDeviceSource source, Callback callback) {
+        mSource = source;
+        mCallback = callback;
+    }
+
+    /**
+     * 列挙を要求します。 未完了の要求があれば取り消します。
+     */
+    public void requestEnumeration() {
+        final int generation = mGeneration.incrementAndGet();
+        if (mPendingTask != null) {
+            mPendingTask.cancel(false);
+        }
+        mPending = true;
+        mPendingTask = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                final UsbTopologySnapshot snapshot;
+                try {
+                    snapshot = mSource.enumerate();
+                } catch (final RuntimeException e) {
+                    FAILURE_COUNTER.increment();
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation != mGeneration.get()) {
+                                return;
+                            }
+                            mPending = false;
+                            mPendingTask = null;
+                            mCallback.onEnumerationFailed(e);
+                        }
+                    });
+                    return;
+                }
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration.get()) {
+                            return;
+                        }
+                        mPending = false;
+                        mPendingTask = null;
+                        mCallback.onEnumerated(snapshot);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 接続/切断イベントのバッチについて、接続されたデバイスのポートパスを
+     * バックグラウンドスレッドで sysfs から補い、
+     * {@link Callback#onHotplugBatchResolved(UsbHotplugBatch)} で通知します。
+     * 列挙の要求とは独立しているので、新しい列挙を要求しても取り消されません。
+     *
+     * @param batch {@link UsbHotplugReceiver} から通知されたバッチ。
+     */
+    public void resolveHotplugBatch(final UsbHotplugBatch batch) {
+        final int generation = mHotplugGeneration.get();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mHotplugGeneration.get()) {
+                    return;
+                }
+                final UsbHotplugBatch resolved;
+                final long start = PORT_PATH_TIMER.start();
+                try {
+                    resolved = batch.resolvePortPaths(mSysfsRoot);
+                } finally {
+                    PORT_PATH_TIMER.stop(start);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mHotplugGeneration.get()) {
+                            return;
+                        }
+                        mCallback.onHotplugBatchResolved(resolved);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 結果を待っている要求があるかどうかを返します。
+     */
+    public boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * 未完了の要求と、ポートパスを補っている途中のバッチを取り消します。 取り消した要求や
+     * バッチは通知されません。
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        mHotplugGeneration.incrementAndGet();
+        if (mPendingTask != null) {
+            mPendingTask.cancel(false);
+            mPendingTask = null;
+        }
+        mPending = false;
+    }
+
+    /**
+     * 未完了の要求を取り消し、バックグラウンドスレッドを終了します。 以降このオブジェクトは
+     * 使用できません。
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * デバイスをグループ、インタフェースを子要素として表示する
+ * {@link android.widget.ExpandableListAdapter} です。
+ * <p>
+ * グループはバスとハブのポートの木 ({@link UsbTopologyTree}) の行きがけ順に並び、
+ * デバイス行は木の深さに応じてインデントされます。
+ * </p>
+ * <p>
+ * {@link #setFilter(String)} で絞り込むと、 {@link UsbDeviceSearchIndex} にマッチした
+ * デバイスだけを同じ順序で表示します。 アダプタは作り直さないので、展開状態は維持されます。
+ * </p>
+ * <p>
+ * 各行の文字列は、バインド時に {@link UsbRowCache} から取得します。
+ * {@link #applyDiff(UsbTopologyDiff)} で差分を適用した場合、変化のなかったデバイスの行は再バインドされません。 グループの Id は
+ * デバイス名ごとに固定なので、差分適用後も展開状態や選択状態は維持されます。
+ * </p>
+ */
+public class UsbDeviceListAdapter extends BaseExpandableListAdapter {
+
+    private final LayoutInflater mInflater;
+
+    private UsbTopologySnapshot mDevices;
+
+    /**
+     * グループの並びを決める木。 差分の適用時に差分の分だけ更新します。
+     */
+    private final UsbTopologyTree mTree;
+
+    /**
+     * 絞り込み用の索引。 差分の適用時に差分の分だけ更新します。
+     */
+    private UsbDeviceSearchIndex mSearchIndex;
+
+    /**
+     * 絞り込みの検索語。
+     */
+    private String mFilter = "";
+
+    /**
+     * 絞り込んだ結果の、表示順のノード。 絞り込んでいない場合は {@code null}。
+     */
+    private List<UsbTopologyTree.Node> mVisible;
+
+    /**
+     * デバイス名から {@link #mVisible} でのインデックスを引くマップ。
+     */
+    private final Map<String, Integer> mVisibleIndexes = Maps.newHashMap();
+
+    /**
+     * 木の深さ1段あたりのインデント(ピクセル)。
+     */
+    private final int mIndentPixels;
+
+    /**
+     * デバイス名から、そのデバイスのグループ Id を引くためのマップ。
+     */
+    private final Map<String, Long> mGroupIds = Maps.newHashMap();
+
+    private long mNextGroupId = 0L;
+
+    /**
+     * デバイス名から、そのデバイスのストリングディスクリプタを引くマップ。
+     */
+    private final Map<String, UsbStringDescriptors> mStrings = Maps.newHashMap();
+
+    /**
+     * 文字列化済みの行を保持するキャッシュ。
+     */
+    private final UsbRowCache mRowCache;
+
+    /**
+     * @param context コンテキスト。
+     * @param rowCache 文字列化済みの行を保持するキャッシュ。
+     * @param devices 表示するデバイス。
+     */
+    public UsbDeviceListAdapter(Context context, UsbRowCache rowCache,
+            UsbTopologySnapshot devices) {
+        mInflater = LayoutInflater.from(context);
+        mRowCache = rowCache;
+        mDevices = devices;
+        mTree = new UsbTopologyTree(devices);
+        mSearchIndex = new UsbDeviceSearchIndex(devices, rowCache.getIdsIndex());
+        mIndentPixels = context.getResources().getDimensionPixelSize(
+                R.dimen.device_tree_indent);
+        for (UsbDeviceSnapshot dev : devices.getDevices()) {
+            assignGroupId(dev);
+        }
+    }
+
+    /**
+     * 現在表示しているデバイスを返します。
+     */
+    public UsbTopologySnapshot getDevices() {
+        return mDevices;
+    }
+
+    /**
+     * 現在表示しているデバイスの木を返します。 返された木を変更しないでください。
+     */
+    public UsbTopologyTree getTree() {
+        return mTree;
+    }
+
+    /**
+     * @return デバイスのグループの位置。 見つからない場合は -1。
+     */
+    public int getGroupPosition(String deviceName) {
+        if (mVisible == null) {
+            return mTree.getTreeIndex(deviceName);
+        }
+        final Integer index = mVisibleIndexes.get(deviceName);
+        return (index == null) ? -1 : index.intValue();
+    }
+
+    /**
+     * デバイスの行に、製造者や製品名を表示します。
+     *
+     * @param deviceName 表示中のデバイスのデバイス名。 表示していない場合は何もしません。
+     */
+    public void setStringDescriptors(String deviceName, UsbStringDescriptors strings) {
+        if (mDevices.getDevice(deviceName) == null
+                || strings.equals(mStrings.put(deviceName, strings))) {
+            return;
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * {@link UsbRowCache} に設定されたベンダ/プロダクト名のインデックスを表示と検索に
+     * 反映します。 インデックスが変わっていない場合は何もしません。
+     */
+    public void updateIdsIndex() {
+        final UsbIdsIndex ids = mRowCache.getIdsIndex();
+        if (ids == mSearchIndex.getIdsIndex()) {
+            return;
+        }
+        mSearchIndex = new UsbDeviceSearchIndex(mDevices, ids);
+        updateVisible();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 表示するデバイスを絞り込みます。
+     *
+     * @param query 空白で区切った検索語。 空の場合はすべてのデバイスを表示します。
+     */
+    public void setFilter(String query) {
+        final String filter = (query == null) ? "" : query.trim();
+        if (filter.equals(mFilter)) {
+            return;
+        }
+        mFilter = filter;
+        updateVisible();
+        notifyDataSetChanged();
+    }
+
+    private void updateVisible() {
+        mVisibleIndexes.clear();
+        if (mFilter.length() == 0) {
+            mVisible = null;
+            return;
+        }
+        final List<UsbDeviceSnapshot> matched = mSearchIndex.search(mFilter);
+        final List<UsbTopologyTree.Node> visible = Lists.newArrayListWithCapacity(matched
+                .size());
+        for (UsbDeviceSnapshot dev : matched) {
+            visible.add(mTree.getNode(dev.getDeviceName()));
+        }
+        Collections.sort(visible, mTreeOrder);
+        for (int i = 0; i < visible.size(); i++) {
+            mVisibleIndexes.put(visible.get(i).getDevice().getDeviceName(), Integer.valueOf(i));
+        }
+        mVisible = visible;
+    }
+
+    /**
+     * ノードを木の行きがけ順に並べるコンパレータ。
+     */
+    private final Comparator<UsbTopologyTree.Node> mTreeOrder = new Comparator<UsbTopologyTree.Node>() {
+        @Override
+        public int compare(UsbTopologyTree.Node n1, UsbTopologyTree.Node n2) {
+            final int i1 = mTree.getTreeIndex(n1.getDevice().getDeviceName());
+            final int i2 = mTree.getTreeIndex(n2.getDevice().getDeviceName());
+            return (i1 < i2) ? -1 : ((i1 == i2) ? 0 : 1);
+        }
+    };
+
+    private UsbTopologyTree.Node getNode(int groupPosition) {
+        if (mVisible == null) {
+            return mTree.getDevicesInTreeOrder().get(groupPosition);
+        }
+        return mVisible.get(groupPosition);
+    }
+
+    /**
+     * 差分を適用します。差分が空の場合は何もしません。
+     *
+     * @param diff 現在表示しているスナップショットを基準として計算した差分。
+     */
+    public void applyDiff(UsbTopologyDiff diff) {
+        if (diff.isEmpty()) {
+            return;
+        }
+        for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+            mGroupIds.remove(dev.getDeviceName());
+            mStrings.remove(dev.getDeviceName());
+        }
+        for (UsbDeviceSnapshot dev : diff.getAdded()) {
+            assignGroupId(dev);
+        }
+        mDevices = diff.getResult();
+        mTree.apply(diff);
+        mSearchIndex.apply(diff);
+        updateVisible();
+        notifyDataSetChanged();
+    }
+
+    private void assignGroupId(UsbDeviceSnapshot dev) {
+        mGroupIds.put(dev.getDeviceName(), Long.valueOf(mNextGroupId++));
+    }
+
+    @Override
+    public int getGroupCount() {
+        return (mVisible == null) ? mDevices.size() : mVisible.size();
+    }
+
+    @Override
+    public int getChildrenCount(int groupPosition) {
+        return getGroup(groupPosition).getInterfaceCount();
+    }
+
+    @Override
+    public UsbDeviceSnapshot getGroup(int groupPosition) {
+        return getNode(groupPosition).getDevice();
+    }
+
+    @Override
+    public UsbInterfaceSnapshot getChild(int groupPosition, int childPosition) {
+        return getGroup(groupPosition).getInterface(childPosition);
+    }
+
+    @Override
+    public long getGroupId(int groupPosition) {
+        return mGroupIds.get(getGroup(groupPosition).getDeviceName()).longValue();
+    }
+
+    @Override
+    public long getChildId(int groupPosition, int childPosition) {
+        return getChild(groupPosition, childPosition).getId();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public boolean isChildSelectable(int groupPosition, int childPosition) {
+        return true;
+    }
+
+    @Override
+    public View getGroupView(int groupPosition, boolean isExpanded, View convertView,
+            ViewGroup parent) {
+        final View v;
+        final DeviceViewHolder holder;
+        if (convertView == null) {
+            v = mInflater.inflate(R.layout.device_list_device_row, parent, false);
+            holder = new DeviceViewHolder(v);
+            v.setTag(holder);
+        } else {
+            v = convertView;
+            holder = (DeviceViewHolder) v.getTag();
+        }
+        final UsbTopologyTree.Node node = getNode(groupPosition);
+        // バスのノードは表示しないので、バスの直下を深さ 0 とする
+        final UsbDeviceSnapshot dev = node.getDevice();
+        holder.bind(dev, mStrings.get(dev.getDeviceName()), (node.getDepth() - 1)
+                * mIndentPixels, mRowCache);
+        return v;
+    }
+
+    @Override
+    public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
+            View convertView, ViewGroup parent) {
+        final View v;
+        final InterfaceViewHolder holder;
+        if (convertView == null) {
+            v = mInflater.inflate(R.layout.device_list_interface_row, parent, false);
+            holder = new InterfaceViewHolder(v);
+            v.setTag(holder);
+        } else {
+            v = convertView;
+            holder = (InterfaceViewHolder) v.getTag();
+        }
+        holder.bind(getGroup(groupPosition).getDeviceName(),
+                getChild(groupPosition, childPosition), mRowCache);
+        return v;
+    }
+
+    /**
+     * デバイス行の {@link TextView} を保持するクラスです。
+     */
+    private static final class DeviceViewHolder {
+        private final TextView mLabel;
+
+        private final TextView mName;
+
+        private final TextView mId;
+
+        private final TextView mClass;
+
+        private final TextView mVendorId;
+
+        private final TextView mProductId;
+
+        private final View mView;
+
+        /**
+         * レイアウトで指定された左のパディング。 インデントはこれに加えます。
+         */
+        private final int mBasePaddingLeft;
+
+        /**
+         * 最後にバインドしたスナップショット。同一インスタンスであれば再バインドを省略します。
+         */
+        private UsbDeviceSnapshot mBound;
+
+        private UsbStringDescriptors mBoundStrings;
+
+        private int mBoundIndent;
+
+        DeviceViewHolder(View v) {
+            mView = v;
+            mBasePaddingLeft = v.getPaddingLeft();
+            mLabel = (TextView) v.findViewById(R.id.dev_label);
+            mName = (TextView) v.findViewById(R.id.dev_name);
+            mId = (TextView) v.findViewById(R.id.dev_id);
+            mClass = (TextView) v.findViewById(R.id.dev_class);
+            mVendorId = (TextView) v.findViewById(R.id.dev_vendor_id);
+            mProductId = (TextView) v.findViewById(R.id.dev_product_id);
+        }
+
+        void bind(UsbDeviceSnapshot dev, UsbStringDescriptors strings, int indent,
+                UsbRowCache cache) {
+            if (mBoundIndent != indent) {
+                mView.setPadding(mBasePaddingLeft + indent, mView.getPaddingTop(),
+                        mView.getPaddingRight(), mView.getPaddingBottom());
+                mBoundIndent = indent;
+            }
+            if (mBoundStrings != strings || mBound != dev) {
+                mBoundStrings = strings;
+                final String label = (strings == null) ? null : strings.getLabel();
+                mLabel.setText(label);
+                mLabel.setVisibility((label == null) ? View.GONE : View.VISIBLE);
+            }
+            if (mBound == dev) {
+                return;
+            }
+            mBound = dev;
+            final UsbRenderedRow row = cache.getDeviceRow(dev);
+            mName.setText(row.getLine(UsbRowRenderer.DEVICE_NAME));
+            mId.setText(row.getLine(UsbRowRenderer.DEVICE_ID));
+            mClass.setText(row.getLine(UsbRowRenderer.DEVICE_CLASS));
+            mVendorId.setText(row.getLine(UsbRowRenderer.DEVICE_VENDOR_ID));
+            mProductId.setText(row.getLine(UsbRowRenderer.DEVICE_PRODUCT_ID));
+        }
+    }
+
+    /**
+     * インタフェース行の {@link TextView} を保持するクラスです。
+     */
+    private static final class InterfaceViewHolder {
+        private final TextView mId;
+
+        private final TextView mClass;
+
+        private final TextView mSubclass;
+
+        private final TextView mProtocol;
+
+        /**
+         * 最後にバインドしたスナップショット。同一インスタンスであれば再バインドを省略します。
+         */
+        private UsbInterfaceSnapshot mBound;
+
+        InterfaceViewHolder(View v) {
+            mId = (TextView) v.findViewById(R.id.iface_id);
+            mClass = (TextView) v.findViewById(R.id.iface_class);
+            mSubclass = (TextView) v.findViewById(R.id.iface_subclass);
+            mProtocol = (TextView) v.findViewById(R.id.iface_protocol);
+        }
+
+        void bind(String deviceName, UsbInterfaceSnapshot iface, UsbRowCache cache) {
+            if (mBound == iface) {
+                return;
+            }
+            mBound = iface;
+            final UsbRenderedRow row = cache.getInterfaceRow(deviceName, iface);
+            mId.setText(row.getLine(UsbRowRenderer.INTERFACE_ID));
+            mClass.setText(row.getLine(UsbRowRenderer.INTERFACE_CLASS));
+            mSubclass.setText(row.getLine(UsbRowRenderer.INTERFACE_SUBCLASS));
+            mProtocol.setText(row.getLine(UsbRowRenderer.INTERFACE_PROTOCOL));
+        }
+    }
+}
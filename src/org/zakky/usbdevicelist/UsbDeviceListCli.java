@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Linux ホスト上で sysfs からデバイスを列挙し、 {@link UsbTopologyExporter} の形式で
+ * 標準出力に書き出すコマンドラインツールです。
+ * <p>
+ * 次のように実行します。
+ * <pre>
+ * java -cp bin/classes:libs/guava-r09.jar org.zakky.usbdevicelist.UsbDeviceListCli \
+ *     [--json | --tree] [--ids assets/usb_ids.bin] [/sys/bus/usb/devices]
+ * </pre>
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbDeviceListCli {
+
+    private UsbDeviceListCli() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int format = UsbTopologyExporter.FORMAT_TEXT;
+        String idsPath = null;
+        String root = UsbSysfsDeviceSource.DEFAULT_ROOT;
+        for (int i = 0; i < args.length; i++) {
+            if ("--json".equals(args[i])) {
+                format = UsbTopologyExporter.FORMAT_JSON;
+            } else if ("--tree".equals(args[i])) {
+                format = UsbTopologyExporter.FORMAT_TREE;
+            } else if ("--ids".equals(args[i]) && i + 1 < args.length) {
+                idsPath = args[++i];
+            } else if (!args[i].startsWith("-")) {
+                root = args[i];
+            } else {
+                System.err.println("usage: UsbDeviceListCli [--json | --tree] [--ids <usb_ids.bin>]"
+                        + " [<sysfs devices dir>]");
+                System.exit(2);
+            }
+        }
+
+        final UsbIdsIndex ids = (idsPath == null) ? UsbIdsIndex.EMPTY : loadIds(idsPath);
+        final UsbTopologySnapshot snapshot = new UsbSysfsDeviceSource(new File(root))
+                .enumerate();
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        UsbTopologyExporter.write(out, format, snapshot, ids);
+        out.flush();
+    }
+
+    private static UsbIdsIndex loadIds(String path) throws IOException {
+        final FileInputStream in = new FileInputStream(path);
+        try {
+            final FileChannel channel = in.getChannel();
+            return UsbIdsIndex.wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+                    channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+}
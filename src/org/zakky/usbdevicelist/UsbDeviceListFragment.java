@@ -16,39 +16,34 @@
 
 package org.zakky.usbdevicelist;
 
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getClassString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getIdString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getPidString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getProtocolString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getSubclassString;
-import static org.zakky.usbdevicelist.UsbConstantsUtil.getVidString;
-
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import android.app.Activity;
 import android.app.Fragment;
 import android.content.Context;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbInterface;
+import android.content.Intent;
+import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
+import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.ExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.OnChildClickListener;
-import android.widget.SimpleExpandableListAdapter;
+import android.widget.Toast;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * USB のデバイスリスト(とそのデバイスが持っているインタフェースのリスト)を表示する
@@ -58,49 +53,100 @@ public class UsbDeviceListFragment extends Fragment {
 
     /**
      * リスト上の interface が選択された際に呼ばれるコールバックのためのインタフェースです。
+     * <p>
+     * コールバックは必ずメインスレッドから呼ばれます。 デバイスの列挙はバックグラウンドで
+     * 行われますが、その結果はメインスレッドでリストに反映された後で通知されるので、
+     * 実装側で同期をとる必要はありません。
+     * </p>
      */
     public interface OnUsbInterfaceSelectionListener {
         /**
          * インタフェースが選択された/選択解除された場合に呼ばれるインタフェース。
+         * メインスレッドから呼ばれます。
          * 
-         * @param iface 選択された場合は、対応する {@link UsbInterface} オブジェクト、
+         * @param deviceName 選択された場合は、インタフェースを持つデバイスのデバイス名、
          * 選択解除された場合は {@code null} が渡されます。
+         * @param interfaceId 選択された場合は、インタフェースの Id、
+         * 選択解除された場合は -1 が渡されます。 インタフェースの内容は
+         * {@link UsbSnapshotHolder#findInterface(String, int)} で引けます。
          */
-        public void onUsbInterfaceSelected(UsbInterface iface);
+        public void onUsbInterfaceSelected(String deviceName, int interfaceId);
     }
 
-    private static final class DeviceMapKeys {
-        private static final String NAME = "name";
+    /*
+     * メニュー識別用の定数群
+     */
 
-        private static final String ID = "id";
+    /**
+     * デバイスリストの更新メニューのための定数
+     */
+    private static final int MENU_REFRESH_ID = Menu.FIRST;
 
-        private static final String CLASS = "class";
+    /**
+     * デバイスツリーのテキスト形式での書き出しメニューのための定数
+     */
+    private static final int MENU_EXPORT_TEXT_ID = Menu.FIRST + 1;
 
-        private static final String VENDOR_ID = "vid";
+    /**
+     * デバイスツリーの JSON 形式での書き出しメニューのための定数
+     */
+    private static final int MENU_EXPORT_JSON_ID = Menu.FIRST + 2;
 
-        private static final String PRODUCT_ID = "pid";
-    }
+    /**
+     * 書き出したファイルを作成するディレクトリの名前。
+     */
+    private static final String EXPORT_DIRECTORY_NAME = "exports";
 
-    private static final class InterfaceMapKeys {
-        private static final String ID = "id";
+    /**
+     * 列挙結果の履歴を記録するディレクトリの名前。
+     */
+    private static final String HISTORY_DIRECTORY_NAME = "history";
 
-        private static final String CLASS = "class";
+    /**
+     * 履歴ファイル名の先頭部分。
+     */
+    private static final String HISTORY_BASE_NAME = "snapshots";
 
-        private static final String SUBCLASS = "subclass";
+    /**
+     * 履歴ファイル1つの最大バイト数。
+     */
+    private static final long HISTORY_MAX_FILE_BYTES = 1024L * 1024L;
 
-        private static final String PROTOCOL = "protocol";
+    /**
+     * 残しておく履歴ファイルの最大数。
+     */
+    private static final int HISTORY_MAX_FILE_COUNT = 32;
 
-        private static final String INTERFACE = "interface";
-    }
+    /**
+     * ストリングディスクリプタのキャッシュのファイル名。
+     */
+    private static final String STRING_CACHE_FILE_NAME = "string_descriptors.cache";
 
-    /*
-     * メニュー識別用の定数群
+    private static final UsbPerfStats.Timer ADAPTER_CREATE_TIMER = UsbPerfStats
+            .newTimer("list.adapter.create");
+
+    private static final UsbPerfStats.Timer APPLY_DIFF_TIMER = UsbPerfStats
+            .newTimer("list.adapter.applyDiff");
+
+    private static final UsbPerfStats.Timer FILTER_TIMER = UsbPerfStats.newTimer("list.filter");
+
+    private static final UsbPerfStats.Counter RESTORE_COUNTER = UsbPerfStats
+            .newCounter("list.restore");
+
+    private static final UsbPerfStats.Counter HOTPLUG_BATCH_COUNTER = UsbPerfStats
+            .newCounter("list.hotplugBatches");
+
+    /**
+     * 列挙結果の履歴を記録するオブジェクト。 フラグメントが作り直されても同じファイルに
+     * 記録を続けるよう、プロセスでひとつだけ生成し、メインスレッドからだけ参照します。
      */
+    private static UsbSnapshotRecorder sHistoryRecorder;
 
     /**
-     * デバイスリストの更新メニューのための定数
+     * ストリングディスクリプタのキャッシュ。 フラグメントが作り直されるたびにファイルを
+     * 読み直さないよう、プロセスでひとつだけ生成します。
      */
-    private static final int MENU_REFRESH_ID = Menu.FIRST;
+    private static UsbStringDescriptorCache sStringCache;
 
     private UsbManager mUsbManager;
 
@@ -111,6 +157,59 @@ public class UsbDeviceListFragment extends Fragment {
 
     private ExpandableListView mExpList;
 
+    /**
+     * デバイスを絞り込む検索語の入力欄。
+     */
+    private EditText mFilter;
+
+    /**
+     * 表示中のアダプタ。 一度生成した後は、リスト更新の際には差分だけを適用します。
+     */
+    private UsbDeviceListAdapter mAdapter;
+
+    /**
+     * 最新のスナップショットと選択中のインタフェース。 フラグメントが作り直されても
+     * 再列挙せずに表示し直せるよう、プロセスで共有するものを使います。
+     */
+    private final UsbSnapshotHolder mHolder = UsbSnapshotHolder.getDefault();
+
+    /**
+     * デバイスの接続/切断を監視するレシーバ。 {@link #onStart()} から {@link #onStop()} の
+     * 間だけ登録します。
+     */
+    private UsbHotplugReceiver mHotplugReceiver;
+
+    /**
+     * デバイスの列挙をバックグラウンドで行うオブジェクト。
+     */
+    private UsbDeviceEnumerator mEnumerator;
+
+    /**
+     * 列挙の完了待ちの間に届いた接続/切断イベント。 列挙結果に重ねて適用します。
+     */
+    private final List<UsbHotplugBatch> mBatchesDuringEnumeration = Lists.newArrayList();
+
+    /**
+     * デバイスツリーのファイルへの書き出しをバックグラウンドで行うオブジェクト。
+     */
+    private UsbTopologyExportRunner mExportRunner;
+
+    /**
+     * 選択されたインタフェースの前後のインタフェースの Endpoint 行を先読みするオブジェクト。
+     */
+    private UsbRowPrefetcher mRowPrefetcher;
+
+    /**
+     * デバイスの製造者や製品名をバックグラウンドで取得するオブジェクト。
+     */
+    private UsbStringDescriptorFetcher mStringFetcher;
+
+    /**
+     * グループを自動的に展開するかどうかを決めるオブジェクト。 上限より多くのデバイスが
+     * 接続されている場合は、ユーザが展開するまでインタフェースの行を作りません。
+     */
+    private UsbAutoExpandPolicy mAutoExpandPolicy;
+
     public UsbDeviceListFragment() {
         // nothing to do
         assert true;
@@ -120,6 +219,48 @@ public class UsbDeviceListFragment extends Fragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+
+        mHotplugReceiver = new UsbHotplugReceiver(UsbHotplugReceiver.DEFAULT_WINDOW_MILLIS,
+                mHotplugCallback);
+        mEnumerator = new UsbDeviceEnumerator(new UsbManagerDeviceSource(mUsbManager),
+                mEnumerationCallback);
+        mExportRunner = new UsbTopologyExportRunner(mExportCallback);
+        mRowPrefetcher = new UsbRowPrefetcher(UsbRowCache.getDefault());
+        mAutoExpandPolicy = new UsbAutoExpandPolicy(getResources().getInteger(
+                R.integer.device_list_auto_expand_limit));
+        if (sHistoryRecorder == null) {
+            final Activity act = getActivity();
+            File root = act.getExternalFilesDir(null);
+            if (root == null) {
+                root = act.getFilesDir();
+            }
+            sHistoryRecorder = new UsbSnapshotRecorder(new UsbSnapshotLogWriter(new File(root,
+                    HISTORY_DIRECTORY_NAME), HISTORY_BASE_NAME, HISTORY_MAX_FILE_BYTES,
+                    HISTORY_MAX_FILE_COUNT, UsbSnapshotLogWriter.DEFAULT_KEYFRAME_INTERVAL));
+        }
+        if (sStringCache == null) {
+            sStringCache = new UsbStringDescriptorCache(new File(getActivity().getFilesDir(),
+                    STRING_CACHE_FILE_NAME), UsbStringDescriptorCache.DEFAULT_MAX_ENTRIES);
+        }
+        mStringFetcher = new UsbStringDescriptorFetcher(mUsbManager,
+                UsbDeviceConnections.getDefault(getActivity()), sStringCache,
+                new File(UsbSysfsDeviceSource.DEFAULT_ROOT),
+                UsbStringDescriptorFetcher.DEFAULT_THREAD_COUNT,
+                UsbStringDescriptorFetcher.DEFAULT_TIMEOUT_MILLIS, mStringCallback);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (getActivity().isFinishing()) {
+            // 次に起動された際に前回の選択を復元しない
+            mHolder.clearSelection();
+        }
+        mEnumerator.shutdown();
+        mExportRunner.shutdown();
+        mRowPrefetcher.shutdown();
+        mStringFetcher.shutdown();
     }
 
     @Override
@@ -137,6 +278,8 @@ public class UsbDeviceListFragment extends Fragment {
 
         mExpList = (ExpandableListView) v.findViewById(R.id.exp_list);
         mExpList.setChoiceMode(ExpandableListView.CHOICE_MODE_SINGLE);
+        mFilter = (EditText) v.findViewById(R.id.device_filter);
+        mFilter.addTextChangedListener(mFilterWatcher);
         return v;
     }
 
@@ -146,15 +289,51 @@ public class UsbDeviceListFragment extends Fragment {
 
         mUsbManager = null;
         mInterfaceSelectionCallback = null;
+        mExpList = null;
+        mFilter = null;
+        mAdapter = null;
+        mStringFetcher.clear();
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.print("devices=");
+        writer.print((mAdapter == null) ? 0 : mAdapter.getDevices().size());
+        writer.print(" visibleGroups=");
+        writer.print((mAdapter == null) ? 0 : mAdapter.getGroupCount());
+        writer.print(" enumerationPending=");
+        writer.println(mEnumerator.isPending());
+        writer.print(prefix);
+        writer.println(mHolder);
+        writer.print(prefix);
+        writer.println(UsbRowCache.getDefault());
+        writer.print(prefix);
+        writer.println(UsbDeviceConnections.getDefault(getActivity()));
     }
 
     @Override
     public void onStart() {
         super.onStart();
 
-        updateDeviceList();
-        mInterfaceSelectionCallback.onUsbInterfaceSelected(null);
+        if (mAdapter == null) {
+            final UsbTopologySnapshot retained = mHolder.getSnapshot();
+            if (retained != null) {
+                // 作り直された場合は、保持しているスナップショットからすぐに表示し直す
+                RESTORE_COUNTER.increment();
+                applySnapshot(retained);
+            }
+            restoreSelection();
+        } else {
+            // 停止中にベンダ/プロダクト名のインデックスが読み込まれていれば反映する
+            mAdapter.updateIdsIndex();
+        }
+        if (!mHolder.isCurrent()) {
+            updateDeviceList();
+        }
         mExpList.setOnChildClickListener(mInterfaceClickListener);
+        mHotplugReceiver.register(getActivity());
     }
 
     @Override
@@ -164,6 +343,9 @@ public class UsbDeviceListFragment extends Fragment {
         MenuItem add = menu.add(0, MENU_REFRESH_ID, 0, R.string.menu_refresh);
         add.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
         add.setIcon(R.drawable.ic_menu_refresh);
+
+        menu.add(0, MENU_EXPORT_TEXT_ID, 0, R.string.menu_export_text);
+        menu.add(0, MENU_EXPORT_JSON_ID, 0, R.string.menu_export_json);
     }
 
     @Override
@@ -171,144 +353,339 @@ public class UsbDeviceListFragment extends Fragment {
         switch (item.getItemId()) {
             case MENU_REFRESH_ID:
                 updateDeviceList();
-                mInterfaceSelectionCallback.onUsbInterfaceSelected(null);
+                return true;
+            case MENU_EXPORT_TEXT_ID:
+                exportDeviceList(UsbTopologyExporter.FORMAT_TEXT);
+                return true;
+            case MENU_EXPORT_JSON_ID:
+                exportDeviceList(UsbTopologyExporter.FORMAT_JSON);
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * {@link UsbRowCache} に設定されたベンダ/プロダクト名のインデックスをリストに反映します。
+     * メインスレッドから呼んでください。
+     */
+    public void onIdsIndexChanged() {
+        if (mAdapter != null) {
+            mAdapter.updateIdsIndex();
+        }
+    }
+
+    /**
+     * デバイスの列挙を要求します。 列挙はバックグラウンドで行われ、完了するとメインスレッドで
+     * リストに反映されます。 未完了の要求があれば取り消します。
+     */
     private void updateDeviceList() {
-        final Map<String, UsbDevice> devices = mUsbManager.getDeviceList();
+        mBatchesDuringEnumeration.clear();
+        mEnumerator.requestEnumeration();
+    }
+
+    /**
+     * 表示中のデバイスツリーをファイルに書き出します。 ファイルは外部ストレージの
+     * アプリケーション用ディレクトリ(使えない場合は内部ストレージ)に作成され、
+     * 完了すると共有用のチューザを表示します。
+     *
+     * @param format {@link UsbTopologyExporter#FORMAT_TEXT} か
+     * {@link UsbTopologyExporter#FORMAT_JSON}。
+     */
+    private void exportDeviceList(int format) {
+        final UsbTopologySnapshot snapshot = (mAdapter == null) ? UsbTopologySnapshot.EMPTY
+                : mAdapter.getDevices();
+        final Activity act = getActivity();
+        File root = act.getExternalFilesDir(null);
+        if (root == null) {
+            root = act.getFilesDir();
+        }
+        mExportRunner.start(snapshot, UsbRowCache.getDefault().getIdsIndex(), format,
+                new File(root, EXPORT_DIRECTORY_NAME));
+    }
 
-        final SimpleExpandableListAdapter adapter = createAdapter(devices);
-        mExpList.setAdapter(adapter);
+    /**
+     * 新しいスナップショットをリストに反映します。
+     * <p>
+     * 初回はアダプタを生成して全グループを展開します。 2回目以降は前回のスナップショットとの
+     * 差分だけをアダプタに適用し、新たに接続されたデバイスのグループだけを展開します。
+     * スクロール位置や他のグループの展開状態はそのまま維持されます。
+     * </p>
+     * <p>
+     * インタフェースの行は展開されて画面に入ったときに初めて作られるので、デバイス数が
+     * {@link #mAutoExpandPolicy} の上限を超える場合は自動的な展開を行わず、最初の表示までの
+     * 処理量がデバイス数に比例して増えないようにします。
+     * </p>
+     * <p>
+     * スナップショットは {@link #mHolder} に保持し、 {@link #sHistoryRecorder} で履歴にも
+     * 記録して、新たに現れたデバイスの製造者や製品名の取得を {@link #mStringFetcher} に
+     * 依頼します。
+     * </p>
+     */
+    private void applySnapshot(UsbTopologySnapshot snapshot) {
+        mHolder.setSnapshot(snapshot);
+        sHistoryRecorder.record(snapshot);
+        mStringFetcher.update(snapshot);
+        if (mAdapter == null) {
+            final long start = ADAPTER_CREATE_TIMER.start();
+            try {
+                mAdapter = new UsbDeviceListAdapter(getActivity(), UsbRowCache.getDefault(),
+                        snapshot);
+                mAdapter.setFilter(mFilter.getText().toString());
+                mExpList.setAdapter(mAdapter);
+            } finally {
+                ADAPTER_CREATE_TIMER.stop(start);
+            }
 
-        final int groupCount = adapter.getGroupCount();
-        for (int i = 0; i < groupCount; i++) {
-            mExpList.expandGroup(i);
+            final int groupCount = mAdapter.getGroupCount();
+            if (!mAutoExpandPolicy.shouldExpandAll(groupCount)) {
+                return;
+            }
+            for (int i = 0; i < groupCount; i++) {
+                mExpList.expandGroup(i);
+            }
+            return;
         }
+
+        final UsbTopologyDiff diff;
+        final long start = APPLY_DIFF_TIMER.start();
+        try {
+            diff = UsbTopologyDiff.compute(mAdapter.getDevices(), snapshot);
+            if (diff.isEmpty()) {
+                return;
+            }
+            final UsbRowCache rowCache = UsbRowCache.getDefault();
+            for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+                rowCache.evictDevice(dev.getDeviceName());
+            }
+            for (UsbDeviceSnapshot dev : diff.getChanged()) {
+                rowCache.evictDevice(dev.getDeviceName());
+            }
+            mAdapter.applyDiff(diff);
+        } finally {
+            APPLY_DIFF_TIMER.stop(start);
+        }
+
+        for (UsbDeviceSnapshot dev : mAutoExpandPolicy.getDevicesToExpand(diff)) {
+            final int position = mAdapter.getGroupPosition(dev.getDeviceName());
+            // 絞り込みで表示されていないデバイスは展開しない
+            if (0 <= position) {
+                mExpList.expandGroup(position);
+            }
+        }
+        revalidateSelection(diff);
+    }
+
+    /**
+     * 差分によって選択中のインタフェースが無くなったり変化したりした場合に、
+     * コールバックで通知します。
+     */
+    private void revalidateSelection(UsbTopologyDiff diff) {
+        final String deviceName = mHolder.getSelectedDeviceName();
+        if (deviceName == null) {
+            return;
+        }
+        final UsbDeviceSnapshot dev = mAdapter.getDevices().getDevice(deviceName);
+        if (dev == null) {
+            clearSelection();
+            return;
+        }
+        if (!diff.getChanged().contains(dev)) {
+            return;
+        }
+        final int interfaceId = mHolder.getSelectedInterfaceId();
+        if (mHolder.findInterface(deviceName, interfaceId) == null) {
+            clearSelection();
+            return;
+        }
+        mInterfaceSelectionCallback.onUsbInterfaceSelected(deviceName, interfaceId);
+    }
+
+    /**
+     * フラグメントが作り直された際に、保持している選択を通知し直します。 保持している
+     * スナップショットに選択中のインタフェースが無い場合は、選択解除を通知します。
+     */
+    private void restoreSelection() {
+        final String deviceName = mHolder.getSelectedDeviceName();
+        final int interfaceId = mHolder.getSelectedInterfaceId();
+        if (mHolder.findInterface(deviceName, interfaceId) == null) {
+            mHolder.clearSelection();
+            mInterfaceSelectionCallback.onUsbInterfaceSelected(null, -1);
+            return;
+        }
+        mInterfaceSelectionCallback.onUsbInterfaceSelected(deviceName, interfaceId);
+    }
+
+    private void clearSelection() {
+        mHolder.clearSelection();
+        mExpList.clearChoices();
+        mInterfaceSelectionCallback.onUsbInterfaceSelected(null, -1);
     }
 
     @Override
     public void onStop() {
         super.onStop();
-        mExpList.setAdapter((ExpandableListAdapter) null);
+        if (!getActivity().isChangingConfigurations()) {
+            // 停止中の接続/切断イベントは受け取れないので、次の表示では再列挙する
+            mHolder.invalidate();
+        }
+        mHotplugReceiver.unregister(getActivity());
+        mEnumerator.cancel();
+        mBatchesDuringEnumeration.clear();
         mExpList.setOnChildClickListener(null);
     }
 
-    private final OnChildClickListener mInterfaceClickListener = new OnChildClickListener() {
+    /**
+     * まとめられた接続/切断イベントを受け取り、ポートパスを補うよう列挙スレッドに渡します。
+     * 補った結果は {@link UsbDeviceEnumerator.Callback#onHotplugBatchResolved(UsbHotplugBatch)}
+     * で、再列挙せずに現在のスナップショットへ適用します。
+     */
+    private final UsbHotplugBatcher.Callback mHotplugCallback = new UsbHotplugBatcher.Callback() {
         @Override
-        public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
-                int childPosition, long id) {
-            final ExpandableListAdapter adapter = parent.getExpandableListAdapter();
+        public void onHotplugBatch(UsbHotplugBatch batch) {
+            HOTPLUG_BATCH_COUNTER.increment();
+            final UsbConnectionPool<UsbDeviceConnection> connections = UsbDeviceConnections
+                    .getDefault(getActivity());
+            // 切断の後で再接続されたデバイスも、接続は古いものなので破棄する
+            for (String deviceName : batch.getDetachedAtLeastOnce()) {
+                connections.invalidate(deviceName);
+            }
+            mEnumerator.resolveHotplugBatch(batch);
+        }
+    };
 
-            @SuppressWarnings("unchecked")
-            final Map<String, Object> m = (Map<String, Object>) adapter.getChild(groupPosition,
-                    childPosition);
-            if (m == null) {
-                return false;
+    private final UsbDeviceEnumerator.Callback mEnumerationCallback = new UsbDeviceEnumerator.Callback() {
+        @Override
+        public void onEnumerated(UsbTopologySnapshot snapshot) {
+            if (mExpList == null) {
+                return;
+            }
+            UsbTopologySnapshot result = snapshot;
+            for (UsbHotplugBatch batch : mBatchesDuringEnumeration) {
+                result = batch.applyTo(result);
             }
+            mBatchesDuringEnumeration.clear();
+            applySnapshot(result);
+            mHolder.markCurrent();
+        }
 
-            final UsbInterface iface = (UsbInterface) m.get(InterfaceMapKeys.INTERFACE);
-            if (iface == null) {
-                return false;
+        @Override
+        public void onEnumerationFailed(RuntimeException e) {
+            // 保留していたイベントは表示中のリストに適用済み
+            mBatchesDuringEnumeration.clear();
+            final Activity act = getActivity();
+            if (act != null) {
+                Toast.makeText(act, R.string.enumeration_failed, Toast.LENGTH_SHORT).show();
             }
+        }
 
-            mInterfaceSelectionCallback.onUsbInterfaceSelected(iface);
-            return true;
+        @Override
+        public void onHotplugBatchResolved(UsbHotplugBatch batch) {
+            if (mEnumerator.isPending()) {
+                // 列挙結果がこのイベントより古い可能性があるので、結果に重ねて適用する
+                mBatchesDuringEnumeration.add(batch);
+            }
+            if (mAdapter == null) {
+                return;
+            }
+            applySnapshot(batch.applyTo(mAdapter.getDevices()));
         }
     };
 
-    /**
-     * {@link UsbDevice} を、名前でソートするためのコンパレータ。
-     */
-    private static final Comparator<Map<String, ?>> DEV_COMPARATOR = new Comparator<Map<String, ?>>() {
+    private final UsbStringDescriptorFetcher.Callback mStringCallback = new UsbStringDescriptorFetcher.Callback() {
         @Override
-        public int compare(Map<String, ?> object1, Map<String, ?> object2) {
-            final String name1 = (String) object1.get(DeviceMapKeys.NAME);
-            final String name2 = (String) object2.get(DeviceMapKeys.NAME);
-            return name1.compareTo(name2);
+        public void onResolved(String deviceName, UsbStringDescriptors strings) {
+            if (mAdapter == null) {
+                return;
+            }
+            mAdapter.setStringDescriptors(deviceName, strings);
+        }
+    };
+
+    private final UsbTopologyExportRunner.Callback mExportCallback = new UsbTopologyExportRunner.Callback() {
+        @Override
+        public void onExported(int format, File file) {
+            final Activity act = getActivity();
+            if (act == null) {
+                return;
+            }
+            if (file == null) {
+                Toast.makeText(act, R.string.export_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Toast.makeText(act, file.getPath(), Toast.LENGTH_SHORT).show();
+
+            final Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType(UsbTopologyExporter.getMimeType(format));
+            intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+            startActivity(Intent.createChooser(intent, getString(R.string.export_share)));
         }
     };
 
     /**
-     * {@link UsbInterface} を Id でソートするためのコンパレータ。
+     * 入力のたびに、アダプタの絞り込みを更新します。
      */
-    private static final Comparator<Map<String, ?>> INTERFACE_COMPARATOR = new Comparator<Map<String, ?>>() {
+    private final TextWatcher mFilterWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            // nothing to do
+            assert true;
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            // nothing to do
+            assert true;
+        }
+
         @Override
-        public int compare(Map<String, ?> object1, Map<String, ?> object2) {
-            final UsbInterface iface1 = (UsbInterface) object1.get(InterfaceMapKeys.INTERFACE);
-            final UsbInterface iface2 = (UsbInterface) object2.get(InterfaceMapKeys.INTERFACE);
-            return Integer.valueOf(iface1.getId()).compareTo(Integer.valueOf(iface2.getId()));
+        public void afterTextChanged(Editable s) {
+            if (mAdapter != null) {
+                final long start = FILTER_TIMER.start();
+                try {
+                    mAdapter.setFilter(s.toString());
+                } finally {
+                    FILTER_TIMER.stop(start);
+                }
+            }
         }
     };
 
-    private SimpleExpandableListAdapter createAdapter(final Map<String, UsbDevice> devices) {
-        final List<Map<String, ?>> deviceEntries = Lists.newArrayList();
-        final List<List<Map<String, ?>>> ifaceEntriesList = Lists.newArrayList();
-
-        for (Entry<String, UsbDevice> entry : devices.entrySet()) {
-            final UsbDevice dev = entry.getValue();
-
-            final Map<String, String> deviceEntry = Maps.newHashMap();
-            deviceEntries.add(deviceEntry);
-            deviceEntry.put(DeviceMapKeys.NAME, dev.getDeviceName());
-            deviceEntry.put(DeviceMapKeys.ID, "Id: " + getIdString(dev));
-            deviceEntry.put(DeviceMapKeys.CLASS, "Class: " + getClassString(dev));
-            deviceEntry.put(DeviceMapKeys.VENDOR_ID, "VendorId: " + getVidString(dev));
-            deviceEntry.put(DeviceMapKeys.PRODUCT_ID, "ProductId: " + getPidString(dev));
-
-            // build list for interfaces
-            final int ifaceCount = dev.getInterfaceCount();
-            final List<Map<String, ?>> ifaceEntries = Lists.newArrayListWithCapacity(ifaceCount);
-            ifaceEntriesList.add(ifaceEntries);
-            for (int i = 0; i < ifaceCount; i++) {
-                final UsbInterface iface = dev.getInterface(i);
-
-                final Map<String, Object> ifaceEntry = Maps.newHashMap();
-                ifaceEntries.add(ifaceEntry);
-
-                ifaceEntry.put(InterfaceMapKeys.ID, "Id: " + getIdString(iface));
-                ifaceEntry.put(InterfaceMapKeys.CLASS, "Class: " + getClassString(iface));
-                ifaceEntry.put(InterfaceMapKeys.SUBCLASS, "Subclass: " + getSubclassString(iface));
-                ifaceEntry.put(InterfaceMapKeys.PROTOCOL, "Protocol: " + getProtocolString(iface));
-
-                // ソートや詳細画面呼び出しに UsbInterface が必要なのでMapにいれておく
-                ifaceEntry.put(InterfaceMapKeys.INTERFACE, iface);
+    private final OnChildClickListener mInterfaceClickListener = new OnChildClickListener() {
+        @Override
+        public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
+                int childPosition, long id) {
+            final ExpandableListAdapter adapter = parent.getExpandableListAdapter();
+
+            final UsbDeviceSnapshot dev = (UsbDeviceSnapshot) adapter.getGroup(groupPosition);
+            final UsbInterfaceSnapshot ifaceSnapshot = (UsbInterfaceSnapshot) adapter.getChild(
+                    groupPosition, childPosition);
+            if (dev == null || ifaceSnapshot == null) {
+                return false;
             }
-            Collections.sort(ifaceEntries, INTERFACE_COMPARATOR);
+
+            mHolder.setSelection(dev.getDeviceName(), ifaceSnapshot.getId());
+            mInterfaceSelectionCallback.onUsbInterfaceSelected(dev.getDeviceName(),
+                    ifaceSnapshot.getId());
+            prefetchNeighbors(dev, childPosition);
+            return true;
+        }
+    };
+
+    /**
+     * 次に選択されそうな、前後のインタフェースの Endpoint 行を先読みします。
+     */
+    private void prefetchNeighbors(UsbDeviceSnapshot dev, int position) {
+        final List<UsbInterfaceSnapshot> interfaces = dev.getInterfaces();
+        final List<UsbInterfaceSnapshot> neighbors = Lists.newArrayListWithCapacity(2);
+        if (position + 1 < interfaces.size()) {
+            neighbors.add(interfaces.get(position + 1));
+        }
+        if (0 < position && position - 1 < interfaces.size()) {
+            neighbors.add(interfaces.get(position - 1));
+        }
+        if (!neighbors.isEmpty()) {
+            mRowPrefetcher.prefetchEndpointRows(dev.getDeviceName(), neighbors);
         }
-        Collections.sort(deviceEntries, DEV_COMPARATOR);
-
-        final SimpleExpandableListAdapter adapter;
-        adapter = new SimpleExpandableListAdapter(getActivity(), deviceEntries,
-                R.layout.device_list_device_row, new String[] {
-                        DeviceMapKeys.NAME, //
-                        DeviceMapKeys.ID, //
-                        DeviceMapKeys.CLASS, //
-                        DeviceMapKeys.VENDOR_ID, //
-                        DeviceMapKeys.PRODUCT_ID
-                }, //
-                new int[] {
-                        R.id.dev_name, //
-                        R.id.dev_id, //
-                        R.id.dev_class, //
-                        R.id.dev_vendor_id, //
-                        R.id.dev_product_id
-                }, //
-                ifaceEntriesList, R.layout.device_list_interface_row, new String[] {
-                        InterfaceMapKeys.ID, //
-                        InterfaceMapKeys.CLASS, //
-                        InterfaceMapKeys.SUBCLASS, //
-                        InterfaceMapKeys.PROTOCOL
-                }, //
-                new int[] {
-                        R.id.iface_id, //
-                        R.id.iface_class, //
-                        R.id.iface_subclass, //
-                        R.id.iface_protocol
-                });
-        return adapter;
     }
 
 }
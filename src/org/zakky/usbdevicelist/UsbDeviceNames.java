@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+/**
+ * {@code /dev/bus/usb/BBB/DDD} 形式のデバイス名を扱うユーティリティです。
+ */
+public final class UsbDeviceNames {
+
+    private UsbDeviceNames() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * @return デバイス名に含まれるバス番号。 形式が異なる場合は -1。
+     */
+    public static int getBusNumber(String deviceName) {
+        final int slash = lastSlash(deviceName);
+        if (slash <= 0) {
+            return -1;
+        }
+        return parseNumber(deviceName, lastSlash(deviceName.substring(0, slash)) + 1, slash);
+    }
+
+    /**
+     * @return デバイス名に含まれるバス上のデバイス番号。 形式が異なる場合は -1。
+     */
+    public static int getDeviceNumber(String deviceName) {
+        final int slash = lastSlash(deviceName);
+        if (slash < 0) {
+            return -1;
+        }
+        return parseNumber(deviceName, slash + 1, deviceName.length());
+    }
+
+    private static int lastSlash(String s) {
+        return (s == null) ? -1 : s.lastIndexOf('/');
+    }
+
+    /**
+     * {@code s} の {@code start} から {@code end} までを10進数として解釈します。
+     *
+     * @return 値。 数字以外を含む場合や空の場合は -1。
+     */
+    private static int parseNumber(String s, int start, int end) {
+        if (end <= start || 9 < end - start) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || '9' < c) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
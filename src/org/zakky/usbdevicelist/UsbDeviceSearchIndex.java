@@ -0,0 +1,296 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * デバイスを文字列で絞り込むための、3文字単位 (trigram) の索引です。
+ * <p>
+ * デバイスごとに、デバイス名、 VID/PID (16進と10進)、ベンダ/プロダクト名、
+ * {@link UsbConstantsUtil#getClassString(UsbDeviceSnapshot)} のクラス、
+ * インタフェースのクラス、 Endpoint の転送タイプを小文字にして連結した検索用の
+ * テキストを作り、その3文字の並びから {@link UsbIntMultimap} でデバイスを引きます。
+ * 索引から得た候補は、テキストが検索語を実際に含むかどうかを確かめてから返します。
+ * </p>
+ * <p>
+ * 検索語は空白で区切られた語の AND です。 前回の検索語に文字を追加しただけの
+ * 検索では、前回の結果だけを候補にするので、入力のたびに全体を走査し直すことは
+ * ありません。 {@link #apply(UsbTopologyDiff)} は差分のデバイスだけを索引に反映します。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbDeviceSearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * テキストの中の語の区切り。 検索語には現れないので、語をまたいで一致しません。
+     */
+    private static final char TERM_SEPARATOR = '\n';
+
+    /**
+     * 索引に登録したデバイス。
+     */
+    private static final class Entry {
+        final UsbDeviceSnapshot mDevice;
+
+        final String mText;
+
+        final int[] mGrams;
+
+        Entry(UsbDeviceSnapshot device, String text) {
+            mDevice = device;
+            mText = text;
+            mGrams = getGrams(text);
+        }
+
+        boolean matches(String[] terms) {
+            for (String term : terms) {
+                if (mText.indexOf(term) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final UsbIdsIndex mIds;
+
+    private final Map<String, Entry> mEntries = Maps.newHashMap();
+
+    private final UsbIntMultimap<Entry> mGrams = new UsbIntMultimap<Entry>();
+
+    /**
+     * 前回の検索語。 索引が変更されると {@code null} に戻ります。
+     */
+    private String mLastQuery;
+
+    private List<Entry> mLastResult;
+
+    /**
+     * @param snapshot 索引に登録するデバイス。
+     * @param ids ベンダ/プロダクト名のインデックス。 名前で検索しない場合は
+     * {@link UsbIdsIndex#EMPTY}。
+     */
+    public UsbDeviceSearchIndex(UsbTopologySnapshot snapshot, UsbIdsIndex ids) {
+        mIds = ids;
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            add(dev);
+        }
+    }
+
+    /**
+     * @return 名前の検索に使うベンダ/プロダクト名のインデックス。
+     */
+    public UsbIdsIndex getIdsIndex() {
+        return mIds;
+    }
+
+    /**
+     * 差分を反映します。
+     *
+     * @param diff この索引の元になったスナップショットを基準として計算した差分。
+     */
+    public void apply(UsbTopologyDiff diff) {
+        for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+            remove(dev.getDeviceName());
+        }
+        for (UsbDeviceSnapshot dev : diff.getChanged()) {
+            remove(dev.getDeviceName());
+            add(dev);
+        }
+        for (UsbDeviceSnapshot dev : diff.getAdded()) {
+            add(dev);
+        }
+    }
+
+    /**
+     * 検索語にマッチするデバイスを返します。 大文字と小文字は区別しません。
+     *
+     * @param query 空白で区切った検索語。
+     * @return マッチしたデバイス。 順序は不定です。 検索語が空の場合はすべてのデバイス。
+     */
+    public List<UsbDeviceSnapshot> search(String query) {
+        final String normalized = normalize(query);
+        final String[] terms = splitTerms(normalized);
+
+        Collection<Entry> candidates = findCandidates(terms);
+        if (mLastQuery != null && normalized.startsWith(mLastQuery)
+                && mLastResult.size() < candidates.size()) {
+            // 前回の検索語を延ばしただけなら、結果は前回の結果に含まれる
+            candidates = mLastResult;
+        }
+        final List<Entry> result = Lists.newArrayListWithCapacity(candidates.size());
+        for (Entry entry : candidates) {
+            if (entry.matches(terms)) {
+                result.add(entry);
+            }
+        }
+        mLastQuery = normalized;
+        mLastResult = result;
+
+        final List<UsbDeviceSnapshot> devices = Lists.newArrayListWithCapacity(result.size());
+        for (Entry entry : result) {
+            devices.add(entry.mDevice);
+        }
+        return devices;
+    }
+
+    /**
+     * 検索語について、索引で絞り込んだ候補の数を返します。 前回の結果による絞り込みは
+     * 含みません。
+     */
+    int countCandidates(String query) {
+        return findCandidates(splitTerms(normalize(query))).size();
+    }
+
+    /**
+     * 索引から候補を絞ります。 3文字以上の語があれば、その3文字の並びのうち
+     * もっとも候補の少ないものを使います。
+     */
+    private Collection<Entry> findCandidates(String[] terms) {
+        Collection<Entry> best = mEntries.values();
+        for (String term : terms) {
+            for (int i = 0; i + GRAM_LENGTH <= term.length(); i++) {
+                final List<Entry> posting = mGrams.get(gramKey(term, i));
+                if (posting.size() < best.size()) {
+                    best = posting;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void add(UsbDeviceSnapshot dev) {
+        final Entry entry = new Entry(dev, buildText(dev, mIds));
+        mEntries.put(dev.getDeviceName(), entry);
+        for (int gram : entry.mGrams) {
+            mGrams.put(gram, entry);
+        }
+        invalidate();
+    }
+
+    private void remove(String deviceName) {
+        final Entry entry = mEntries.remove(deviceName);
+        if (entry == null) {
+            return;
+        }
+        for (int gram : entry.mGrams) {
+            mGrams.remove(gram, entry);
+        }
+        invalidate();
+    }
+
+    private void invalidate() {
+        mLastQuery = null;
+        mLastResult = null;
+    }
+
+    /**
+     * 検索用のテキストを作ります。
+     */
+    static String buildText(UsbDeviceSnapshot dev, UsbIdsIndex ids) {
+        final StringBuilder sb = new StringBuilder(128);
+        appendTerm(sb, dev.getDeviceName());
+        appendIdTerms(sb, dev.getVendorId());
+        appendIdTerms(sb, dev.getProductId());
+        appendTerm(sb, String.format(Locale.US, "%04x:%04x", Integer.valueOf(dev.getVendorId()),
+                Integer.valueOf(dev.getProductId())));
+        appendTerm(sb, ids.getVendorName(dev.getVendorId()));
+        appendTerm(sb, ids.getProductName(dev.getVendorId(), dev.getProductId()));
+        appendTerm(sb, UsbConstantsUtil.getClassString(dev));
+        for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+            appendTerm(sb, UsbConstantsUtil.getClassName(iface.getInterfaceClass()));
+            appendTerm(sb, UsbConstantsUtil.getClassString(iface));
+            for (UsbEndpointSnapshot ep : iface.getEndpoints()) {
+                appendTerm(sb, UsbConstantsUtil.getTypeString(ep));
+            }
+        }
+        return normalize(sb.toString());
+    }
+
+    /**
+     * Id を {@code 0x0403} と {@code 1027} の形で追加します。 {@code 0403} でも
+     * 16進の形の部分文字列として一致します。
+     */
+    private static void appendIdTerms(StringBuilder sb, int id) {
+        UsbConstantsUtil.append4Hex(sb, id).append(TERM_SEPARATOR);
+        UsbConstantsUtil.appendDecimal(sb, id).append(TERM_SEPARATOR);
+    }
+
+    private static void appendTerm(StringBuilder sb, String term) {
+        if (term != null) {
+            sb.append(term).append(TERM_SEPARATOR);
+        }
+    }
+
+    private static String normalize(String s) {
+        return (s == null) ? "" : s.trim().toLowerCase(Locale.US);
+    }
+
+    private static String[] splitTerms(String normalized) {
+        if (normalized.length() == 0) {
+            return new String[0];
+        }
+        return normalized.split("\\s+");
+    }
+
+    /**
+     * テキストに現れる3文字の並びのキーを、重複を除いて返します。
+     */
+    private static int[] getGrams(String text) {
+        final int[] grams = new int[Math.max(0, text.length() - GRAM_LENGTH + 1)];
+        int count = 0;
+        int termStart = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == TERM_SEPARATOR) {
+                termStart = i + 1;
+            } else if (termStart <= i - GRAM_LENGTH + 1) {
+                grams[count++] = gramKey(text, i - GRAM_LENGTH + 1);
+            }
+        }
+        Arrays.sort(grams, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || grams[unique - 1] != grams[i]) {
+                grams[unique++] = grams[i];
+            }
+        }
+        final int[] result = new int[unique];
+        System.arraycopy(grams, 0, result, 0, unique);
+        return result;
+    }
+
+    /**
+     * 3文字の並びをキーにします。 衝突しても検索結果は {@link Entry#matches(String[])}
+     * で確かめるので、候補が増えるだけです。
+     */
+    private static int gramKey(String s, int start) {
+        return (s.charAt(start) << 20) ^ (s.charAt(start + 1) << 10) ^ s.charAt(start + 2);
+    }
+}
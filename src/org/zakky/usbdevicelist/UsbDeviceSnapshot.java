@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ある時点での USB デバイスの情報を保持するイミュータブルなクラスです。 Interface の
+ * リストは Id の昇順で保持します。
+ */
+public final class UsbDeviceSnapshot {
+
+    /**
+     * デバイスを、名前でソートするためのコンパレータ。
+     */
+    public static final Comparator<UsbDeviceSnapshot> DEV_COMPARATOR = new Comparator<UsbDeviceSnapshot>() {
+        @Override
+        public int compare(UsbDeviceSnapshot dev1, UsbDeviceSnapshot dev2) {
+            return dev1.getDeviceName().compareTo(dev2.getDeviceName());
+        }
+    };
+
+    private static final UsbPerfStats.Timer SORT_TIMER = UsbPerfStats
+            .newTimer("sort.interfaces");
+
+    private final String mDeviceName;
+
+    private final int mDeviceId;
+
+    private final int mDeviceClass;
+
+    private final int mDeviceSubclass;
+
+    private final int mDeviceProtocol;
+
+    private final int mVendorId;
+
+    private final int mProductId;
+
+    private final ImmutableList<UsbInterfaceSnapshot> mInterfaces;
+
+    /**
+     * ハブのポートをたどったデバイスの位置 ({@code 1-1.2} など)。 不明な場合は {@code null}。
+     */
+    private final String mPortPath;
+
+    public UsbDeviceSnapshot(String deviceName, int deviceId, int deviceClass,
+            int deviceSubclass, int deviceProtocol, int vendorId, int productId,
+            List<UsbInterfaceSnapshot> interfaces) {
+        this(deviceName, deviceId, deviceClass, deviceSubclass, deviceProtocol, vendorId,
+                productId, interfaces, null);
+    }
+
+    /**
+     * @param portPath sysfs のデバイスディレクトリ名と同じ形式のポートパス
+     * ({@code 1-1.2} や、ルートハブの場合は {@code usb1})。 不明な場合は {@code null}。
+     */
+    public UsbDeviceSnapshot(String deviceName, int deviceId, int deviceClass,
+            int deviceSubclass, int deviceProtocol, int vendorId, int productId,
+            List<UsbInterfaceSnapshot> interfaces, String portPath) {
+        if (deviceName == null) {
+            throw new NullPointerException("deviceName must not be null.");
+        }
+        mDeviceName = deviceName;
+        mDeviceId = deviceId;
+        mDeviceClass = deviceClass;
+        mDeviceSubclass = deviceSubclass;
+        mDeviceProtocol = deviceProtocol;
+        mVendorId = vendorId;
+        mProductId = productId;
+        mPortPath = portPath;
+
+        final UsbInterfaceSnapshot[] sorted = interfaces
+                .toArray(new UsbInterfaceSnapshot[interfaces.size()]);
+        final long start = SORT_TIMER.start();
+        try {
+            Arrays.sort(sorted, UsbInterfaceSnapshot.INTERFACE_COMPARATOR);
+        } finally {
+            SORT_TIMER.stop(start);
+        }
+        mInterfaces = ImmutableList.copyOf(sorted);
+    }
+
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public int getDeviceId() {
+        return mDeviceId;
+    }
+
+    public int getDeviceClass() {
+        return mDeviceClass;
+    }
+
+    public int getDeviceSubclass() {
+        return mDeviceSubclass;
+    }
+
+    public int getDeviceProtocol() {
+        return mDeviceProtocol;
+    }
+
+    public int getVendorId() {
+        return mVendorId;
+    }
+
+    public int getProductId() {
+        return mProductId;
+    }
+
+    /**
+     * @return ポートパス。 不明な場合は {@code null}。
+     */
+    public String getPortPath() {
+        return mPortPath;
+    }
+
+    public int getInterfaceCount() {
+        return mInterfaces.size();
+    }
+
+    public UsbInterfaceSnapshot getInterface(int index) {
+        return mInterfaces.get(index);
+    }
+
+    /**
+     * Id 順にソートされた Interface のリストを返します。
+     *
+     * @return 変更不可能なリスト。
+     */
+    public List<UsbInterfaceSnapshot> getInterfaces() {
+        return mInterfaces;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + mDeviceName.hashCode();
+        result = 31 * result + mDeviceId;
+        result = 31 * result + mDeviceClass;
+        result = 31 * result + mDeviceSubclass;
+        result = 31 * result + mDeviceProtocol;
+        result = 31 * result + mVendorId;
+        result = 31 * result + mProductId;
+        result = 31 * result + mInterfaces.hashCode();
+        result = 31 * result + ((mPortPath == null) ? 0 : mPortPath.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof UsbDeviceSnapshot)) {
+            return false;
+        }
+        final UsbDeviceSnapshot other = (UsbDeviceSnapshot) obj;
+        return mDeviceName.equals(other.mDeviceName) && mDeviceId == other.mDeviceId
+                && mDeviceClass == other.mDeviceClass
+                && mDeviceSubclass == other.mDeviceSubclass
+                && mDeviceProtocol == other.mDeviceProtocol && mVendorId == other.mVendorId
+                && mProductId == other.mProductId && mInterfaces.equals(other.mInterfaces)
+                && Objects.equal(mPortPath, other.mPortPath);
+    }
+
+    @Override
+    public String toString() {
+        return "UsbDeviceSnapshot[" + mDeviceName + "]";
+    }
+}
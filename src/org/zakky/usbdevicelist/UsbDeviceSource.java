@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+/**
+ * 接続されている USB デバイスを列挙し、スナップショットとして返すインタフェースです。
+ * <p>
+ * 実機では {@link UsbManagerDeviceSource} を使います。 {@link UsbSysfsDeviceSource} を
+ * 使うと、 Linux ホスト上で Android に依存せずに同じスナップショットを得られます。
+ * 実装は任意のスレッドから呼ばれることがあります。
+ * </p>
+ */
+public interface UsbDeviceSource {
+
+    /**
+     * デバイスを列挙します。
+     *
+     * @return 列挙結果。 デバイスが無い場合は {@link UsbTopologySnapshot#EMPTY}。
+     */
+    public UsbTopologySnapshot enumerate();
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.List;
+
+/**
+ * Endpoint の一覧を表示する {@link android.widget.ListAdapter} です。
+ * <p>
+ * 各行の文字列は、バインド時に {@link UsbRowCache} から取得します。
+ * </p>
+ */
+public class UsbEndpointListAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+
+    private List<UsbEndpointSnapshot> mEndpoints;
+
+    /**
+     * 文字列化済みの行を保持するキャッシュ。
+     */
+    private final UsbRowCache mRowCache;
+
+    private String mDeviceName;
+
+    private int mInterfaceId;
+
+    /**
+     * @param context コンテキスト。
+     * @param rowCache 文字列化済みの行を保持するキャッシュ。
+     * @param deviceName Endpoint を持つデバイスのデバイス名。
+     * @param iface 表示する Endpoint を持つインタフェース。Endpoint Number 順に表示されます。
+     */
+    public UsbEndpointListAdapter(Context context, UsbRowCache rowCache, String deviceName,
+            UsbInterfaceSnapshot iface) {
+        mInflater = LayoutInflater.from(context);
+        mRowCache = rowCache;
+        mDeviceName = deviceName;
+        mInterfaceId = iface.getId();
+        mEndpoints = iface.getEndpoints();
+    }
+
+    /**
+     * 表示するインタフェースを差し替えます。 アダプタやビューを作り直さずに、
+     * 表示内容だけを更新します。
+     *
+     * @param deviceName Endpoint を持つデバイスのデバイス名。
+     * @param iface 表示する Endpoint を持つインタフェース。
+     */
+    public void setInterface(String deviceName, UsbInterfaceSnapshot iface) {
+        mDeviceName = deviceName;
+        mInterfaceId = iface.getId();
+        mEndpoints = iface.getEndpoints();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mEndpoints.size();
+    }
+
+    @Override
+    public UsbEndpointSnapshot getItem(int position) {
+        return mEndpoints.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final View v;
+        final EndpointViewHolder holder;
+        if (convertView == null) {
+            v = mInflater.inflate(R.layout.device_detail_row, parent, false);
+            holder = new EndpointViewHolder(v);
+            v.setTag(holder);
+        } else {
+            v = convertView;
+            holder = (EndpointViewHolder) v.getTag();
+        }
+        holder.bind(mRowCache.getEndpointRow(mDeviceName, mInterfaceId, getItem(position)));
+        return v;
+    }
+
+    /**
+     * Endpoint 行の {@link TextView} を保持するクラスです。
+     */
+    private static final class EndpointViewHolder {
+        private final TextView mAddress;
+
+        private final TextView mNumber;
+
+        private final TextView mAttrs;
+
+        private final TextView mDir;
+
+        private final TextView mInterval;
+
+        private final TextView mMaxPacketSize;
+
+        private final TextView mType;
+
+        EndpointViewHolder(View v) {
+            mAddress = (TextView) v.findViewById(R.id.ep_address);
+            mNumber = (TextView) v.findViewById(R.id.ep_number);
+            mAttrs = (TextView) v.findViewById(R.id.ep_attrs);
+            mDir = (TextView) v.findViewById(R.id.ep_dir);
+            mInterval = (TextView) v.findViewById(R.id.ep_interval);
+            mMaxPacketSize = (TextView) v.findViewById(R.id.ep_max_packet_size);
+            mType = (TextView) v.findViewById(R.id.ep_type);
+        }
+
+        void bind(UsbRenderedRow row) {
+            mAddress.setText(row.getLine(UsbRowRenderer.ENDPOINT_ADDRESS));
+            mNumber.setText(row.getLine(UsbRowRenderer.ENDPOINT_NUMBER));
+            mAttrs.setText(row.getLine(UsbRowRenderer.ENDPOINT_ATTRS));
+            mDir.setText(row.getLine(UsbRowRenderer.ENDPOINT_DIR));
+            mInterval.setText(row.getLine(UsbRowRenderer.ENDPOINT_INTERVAL));
+            mMaxPacketSize.setText(row.getLine(UsbRowRenderer.ENDPOINT_MAX_PACKET_SIZE));
+            mType.setText(row.getLine(UsbRowRenderer.ENDPOINT_TYPE));
+        }
+    }
+}
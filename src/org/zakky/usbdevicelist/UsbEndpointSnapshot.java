@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.util.Comparator;
+
+/**
+ * ある時点での Endpoint の情報を保持するイミュータブルなクラスです。
+ */
+public final class UsbEndpointSnapshot {
+
+    /**
+     * Endpoint 一覧をソートするための {@link Comparator} です。 Endpoint Number の
+     * 昇順でソートします。
+     */
+    public static final Comparator<UsbEndpointSnapshot> EP_COMPARATOR = new Comparator<UsbEndpointSnapshot>() {
+        @Override
+        public int compare(UsbEndpointSnapshot ep1, UsbEndpointSnapshot ep2) {
+            return Integer.valueOf(ep1.getEndpointNumber()).compareTo(
+                    Integer.valueOf(ep2.getEndpointNumber()));
+        }
+    };
+
+    private final int mAddress;
+
+    private final int mEndpointNumber;
+
+    private final int mDirection;
+
+    private final int mAttributes;
+
+    private final int mType;
+
+    private final int mInterval;
+
+    private final int mMaxPacketSize;
+
+    public UsbEndpointSnapshot(int address, int endpointNumber, int direction, int attributes,
+            int type, int interval, int maxPacketSize) {
+        mAddress = address;
+        mEndpointNumber = endpointNumber;
+        mDirection = direction;
+        mAttributes = attributes;
+        mType = type;
+        mInterval = interval;
+        mMaxPacketSize = maxPacketSize;
+    }
+
+    public int getAddress() {
+        return mAddress;
+    }
+
+    public int getEndpointNumber() {
+        return mEndpointNumber;
+    }
+
+    public int getDirection() {
+        return mDirection;
+    }
+
+    public int getAttributes() {
+        return mAttributes;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getInterval() {
+        return mInterval;
+    }
+
+    public int getMaxPacketSize() {
+        return mMaxPacketSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + mAddress;
+        result = 31 * result + mEndpointNumber;
+        result = 31 * result + mDirection;
+        result = 31 * result + mAttributes;
+        result = 31 * result + mType;
+        result = 31 * result + mInterval;
+        result = 31 * result + mMaxPacketSize;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof UsbEndpointSnapshot)) {
+            return false;
+        }
+        final UsbEndpointSnapshot other = (UsbEndpointSnapshot) obj;
+        return mAddress == other.mAddress && mEndpointNumber == other.mEndpointNumber
+                && mDirection == other.mDirection && mAttributes == other.mAttributes
+                && mType == other.mType && mInterval == other.mInterval
+                && mMaxPacketSize == other.mMaxPacketSize;
+    }
+}
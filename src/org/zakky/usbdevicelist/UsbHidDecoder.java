@@ -0,0 +1,486 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append2Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append4Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendDecimal;
+
+/**
+ * HID クラスのディスクリプタを解釈するデコーダです。
+ * <p>
+ * コンフィギュレーションディスクリプタ中の HID ディスクリプタを {@link UsbClassDecoder}
+ * として整形するほか、 {@link UsbHidReportParser} でたどったレポートディスクリプタを
+ * 1アイテム1行のテキストに整形する {@link #appendReportDescriptor} を提供します。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbHidDecoder implements UsbClassDecoder {
+
+    /**
+     * HID クラスのクラスコード。
+     */
+    public static final int CLASS_HID = 0x03;
+
+    /**
+     * レポートディスクリプタのディスクリプタタイプ。
+     */
+    public static final int TYPE_REPORT = 0x22;
+
+    /**
+     * 物理ディスクリプタのディスクリプタタイプ。
+     */
+    public static final int TYPE_PHYSICAL = 0x23;
+
+    private static final String INDENT = "  ";
+
+    private static final String[] MAIN_FLAG_NAMES = {
+            "Wrap", "Non Linear", "No Preferred", "Null State", "Volatile", "Buffered Bytes",
+    };
+
+    private static final String[] COLLECTION_NAMES = {
+            "Physical", "Application", "Logical", "Report", "Named Array", "Usage Switch",
+            "Usage Modifier",
+    };
+
+    @Override
+    public boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p, int subclass,
+            int protocol) {
+        if (p.getType() != UsbDescriptorParser.TYPE_HID || !p.hasField(0, 6)) {
+            return false;
+        }
+        sb.append("HID: HID ");
+        UsbDescriptorFormatter.appendBcd(sb, p.getU16(2)).append(", Country: ");
+        appendDecimal(sb, p.getU8(4));
+        final int count = p.getU8(5);
+        for (int i = 0; i < count && p.hasField(6 + i * 3, 3); i++) {
+            final int type = p.getU8(6 + i * 3);
+            sb.append(", ");
+            if (type == TYPE_REPORT) {
+                sb.append("Report");
+            } else if (type == TYPE_PHYSICAL) {
+                sb.append("Physical");
+            } else {
+                sb.append("Descriptor ");
+                append2Hex(sb, type);
+            }
+            sb.append(": ");
+            appendDecimal(sb, p.getU16(7 + i * 3)).append(" bytes");
+        }
+        return true;
+    }
+
+    /**
+     * ディスクリプタ列から HID インタフェースの HID ディスクリプタを探し、
+     * レポートディスクリプタの長さを取り出します。
+     *
+     * @param parser パーサ。 先頭にリセットされます。
+     * @param interfaceId インタフェース番号。
+     * @return レポートディスクリプタのバイト数。 HID インタフェースでない場合や、
+     * レポートディスクリプタの記述が無い場合は -1。
+     */
+    public static int findReportDescriptorLength(UsbDescriptorParser parser, int interfaceId) {
+        parser.reset();
+        boolean inTarget = false;
+        while (parser.next()) {
+            final int type = parser.getType();
+            if (type == UsbDescriptorParser.TYPE_INTERFACE) {
+                inTarget = parser.hasField(0, 9) && parser.getU8(2) == interfaceId
+                        && parser.getU8(5) == CLASS_HID;
+            } else if (type == UsbDescriptorParser.TYPE_CONFIGURATION
+                    || type == UsbDescriptorParser.TYPE_OTHER_SPEED_CONFIGURATION
+                    || type == UsbDescriptorParser.TYPE_INTERFACE_ASSOCIATION) {
+                inTarget = false;
+            } else if (inTarget && type == UsbDescriptorParser.TYPE_HID
+                    && parser.hasField(0, 6)) {
+                final int count = parser.getU8(5);
+                for (int i = 0; i < count && parser.hasField(6 + i * 3, 3); i++) {
+                    if (parser.getU8(6 + i * 3) == TYPE_REPORT) {
+                        return parser.getU16(7 + i * 3);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * パーサを先頭から走査し、すべてのアイテムを Collection の深さに応じて字下げして
+     * 追加します。 最後に、 Report ID ごとのレポートのビット数を追加します。
+     * 走査が途中で打ち切られた場合は、その理由も追加します。
+     *
+     * @param sb 出力先。
+     * @param parser パーサ。 先頭にリセットされます。
+     * @return {@code sb}
+     */
+    public static StringBuilder appendReportDescriptor(StringBuilder sb,
+            UsbHidReportParser parser) {
+        parser.reset();
+        while (parser.next()) {
+            int depth = parser.getCollectionDepth();
+            if (parser.getType() == UsbHidReportParser.TYPE_MAIN
+                    && parser.getTag() == UsbHidReportParser.MAIN_COLLECTION) {
+                // Collection 自身は外側の深さで出力する
+                depth--;
+            }
+            for (int i = 0; i < depth; i++) {
+                sb.append(INDENT);
+            }
+            appendItem(sb, parser).append('\n');
+        }
+        switch (parser.getError()) {
+            case UsbHidReportParser.ERROR_TRUNCATED:
+                sb.append("(truncated item at offset ");
+                break;
+            case UsbHidReportParser.ERROR_BAD_STACK:
+                sb.append("(unbalanced push/pop at offset ");
+                break;
+            case UsbHidReportParser.ERROR_BAD_COLLECTION:
+                sb.append("(unbalanced collection at offset ");
+                break;
+            case UsbHidReportParser.ERROR_BAD_REPORT_ID:
+                sb.append("(invalid report id at offset ");
+                break;
+        }
+        if (parser.getError() != UsbHidReportParser.ERROR_NONE) {
+            appendDecimal(sb, parser.getErrorOffset()).append(")\n");
+        } else if (parser.getCollectionDepth() != 0) {
+            sb.append("(");
+            appendDecimal(sb, parser.getCollectionDepth()).append(" unclosed collections)\n");
+        }
+        return appendReportSizes(sb, parser);
+    }
+
+    /**
+     * Report ID ごとのレポートのビット数を1行ずつ追加します。
+     */
+    private static StringBuilder appendReportSizes(StringBuilder sb, UsbHidReportParser parser) {
+        final boolean idUsed = parser.isReportIdUsed();
+        for (int id = 0; id <= 0xff; id++) {
+            final long input = parser.getReportBits(UsbHidReportParser.REPORT_INPUT, id);
+            final long output = parser.getReportBits(UsbHidReportParser.REPORT_OUTPUT, id);
+            final long feature = parser.getReportBits(UsbHidReportParser.REPORT_FEATURE, id);
+            if (input == 0L && output == 0L && feature == 0L) {
+                continue;
+            }
+            if (idUsed) {
+                sb.append("Report ID ");
+                appendDecimal(sb, id).append(": Input ");
+            } else {
+                sb.append("Report: Input ");
+            }
+            sb.append(input).append(" bits, Output ").append(output)
+                    .append(" bits, Feature ").append(feature).append(" bits\n");
+        }
+        return sb;
+    }
+
+    /**
+     * パーサの現在のアイテムを1行分追加します。 改行は含みません。
+     */
+    public static StringBuilder appendItem(StringBuilder sb, UsbHidReportParser p) {
+        if (p.isLongItem()) {
+            sb.append("Long Item ");
+            append2Hex(sb, p.getTag()).append(" (");
+            return appendDecimal(sb, p.getDataSize()).append(" bytes)");
+        }
+        switch (p.getType()) {
+            case UsbHidReportParser.TYPE_MAIN:
+                return appendMainItem(sb, p);
+            case UsbHidReportParser.TYPE_GLOBAL:
+                return appendGlobalItem(sb, p);
+            case UsbHidReportParser.TYPE_LOCAL:
+                return appendLocalItem(sb, p);
+        }
+        sb.append("Reserved ");
+        append2Hex(sb, p.getTag()).append(" (");
+        return sb.append(p.getData()).append(')');
+    }
+
+    private static StringBuilder appendMainItem(StringBuilder sb, UsbHidReportParser p) {
+        final int data = p.getData();
+        switch (p.getTag()) {
+            case UsbHidReportParser.MAIN_INPUT:
+                sb.append("Input");
+                break;
+            case UsbHidReportParser.MAIN_OUTPUT:
+                sb.append("Output");
+                break;
+            case UsbHidReportParser.MAIN_FEATURE:
+                sb.append("Feature");
+                break;
+            case UsbHidReportParser.MAIN_COLLECTION:
+                sb.append("Collection (");
+                if (0 <= data && data < COLLECTION_NAMES.length) {
+                    sb.append(COLLECTION_NAMES[data]);
+                } else if (0x80 <= data && data <= 0xff) {
+                    sb.append("Vendor Defined ");
+                    append2Hex(sb, data);
+                } else {
+                    sb.append(data);
+                }
+                return sb.append(')');
+            case UsbHidReportParser.MAIN_END_COLLECTION:
+                return sb.append("End Collection");
+            default:
+                sb.append("Main ");
+                append2Hex(sb, p.getTag()).append(" (");
+                return sb.append(data).append(')');
+        }
+        sb.append(((data & 0x1) != 0) ? " (Const," : " (Data,");
+        sb.append(((data & 0x2) != 0) ? "Var," : "Array,");
+        sb.append(((data & 0x4) != 0) ? "Rel" : "Abs");
+        for (int i = 0; i < MAIN_FLAG_NAMES.length; i++) {
+            if ((data & (0x8 << i)) != 0) {
+                sb.append(',').append(MAIN_FLAG_NAMES[i]);
+            }
+        }
+        sb.append(") ");
+        appendDecimal(sb, p.getReportCount()).append(" x ");
+        return appendDecimal(sb, p.getReportSize()).append(" bits");
+    }
+
+    private static StringBuilder appendGlobalItem(StringBuilder sb, UsbHidReportParser p) {
+        switch (p.getTag()) {
+            case UsbHidReportParser.GLOBAL_USAGE_PAGE:
+                sb.append("Usage Page (");
+                return appendUsagePage(sb, p.getData()).append(')');
+            case UsbHidReportParser.GLOBAL_LOGICAL_MINIMUM:
+                return sb.append("Logical Minimum (").append(p.getSignedData()).append(')');
+            case UsbHidReportParser.GLOBAL_LOGICAL_MAXIMUM:
+                return sb.append("Logical Maximum (").append(p.getSignedData()).append(')');
+            case UsbHidReportParser.GLOBAL_PHYSICAL_MINIMUM:
+                return sb.append("Physical Minimum (").append(p.getSignedData()).append(')');
+            case UsbHidReportParser.GLOBAL_PHYSICAL_MAXIMUM:
+                return sb.append("Physical Maximum (").append(p.getSignedData()).append(')');
+            case UsbHidReportParser.GLOBAL_UNIT_EXPONENT:
+                return sb.append("Unit Exponent (").append(p.getSignedData()).append(')');
+            case UsbHidReportParser.GLOBAL_UNIT:
+                sb.append("Unit (0x").append(Integer.toHexString(p.getData()));
+                return sb.append(')');
+            case UsbHidReportParser.GLOBAL_REPORT_SIZE:
+                sb.append("Report Size (");
+                return appendUnsigned(sb, p.getData()).append(')');
+            case UsbHidReportParser.GLOBAL_REPORT_ID:
+                sb.append("Report ID (");
+                return appendDecimal(sb, p.getData()).append(')');
+            case UsbHidReportParser.GLOBAL_REPORT_COUNT:
+                sb.append("Report Count (");
+                return appendUnsigned(sb, p.getData()).append(')');
+            case UsbHidReportParser.GLOBAL_PUSH:
+                return sb.append("Push");
+            case UsbHidReportParser.GLOBAL_POP:
+                return sb.append("Pop");
+        }
+        sb.append("Global ");
+        append2Hex(sb, p.getTag()).append(" (");
+        return appendUnsigned(sb, p.getData()).append(')');
+    }
+
+    private static StringBuilder appendLocalItem(StringBuilder sb, UsbHidReportParser p) {
+        switch (p.getTag()) {
+            case UsbHidReportParser.LOCAL_USAGE:
+                sb.append("Usage (");
+                break;
+            case UsbHidReportParser.LOCAL_USAGE_MINIMUM:
+                sb.append("Usage Minimum (");
+                break;
+            case UsbHidReportParser.LOCAL_USAGE_MAXIMUM:
+                sb.append("Usage Maximum (");
+                break;
+            default:
+                sb.append("Local ");
+                append2Hex(sb, p.getTag()).append(" (");
+                return appendUnsigned(sb, p.getData()).append(')');
+        }
+        if (p.getDataSize() == 4) {
+            // 4バイトの Usage は Usage Page を含む
+            appendUsagePage(sb, p.getData() >>> 16).append(": ");
+            return appendUsage(sb, p.getData() >>> 16, p.getData() & 0xffff).append(')');
+        }
+        return appendUsage(sb, p.getUsagePage(), p.getData() & 0xffff).append(')');
+    }
+
+    private static StringBuilder appendUnsigned(StringBuilder sb, int value) {
+        return sb.append(value & 0xffffffffL);
+    }
+
+    /**
+     * Usage Page の名前を追加します。 未知の Usage Page は16進表記で追加します。
+     */
+    public static StringBuilder appendUsagePage(StringBuilder sb, int page) {
+        final String name = getUsagePageName(page);
+        if (name != null) {
+            return sb.append(name);
+        }
+        if (0xff00 <= page && page <= 0xffff) {
+            sb.append("Vendor Defined ");
+        }
+        return append4Hex(sb, page & 0xffff);
+    }
+
+    private static String getUsagePageName(int page) {
+        switch (page) {
+            case 0x01:
+                return "Generic Desktop";
+            case 0x02:
+                return "Simulation Controls";
+            case 0x03:
+                return "VR Controls";
+            case 0x04:
+                return "Sport Controls";
+            case 0x05:
+                return "Game Controls";
+            case 0x06:
+                return "Generic Device Controls";
+            case 0x07:
+                return "Keyboard/Keypad";
+            case 0x08:
+                return "LED";
+            case 0x09:
+                return "Button";
+            case 0x0a:
+                return "Ordinal";
+            case 0x0b:
+                return "Telephony";
+            case 0x0c:
+                return "Consumer";
+            case 0x0d:
+                return "Digitizer";
+            case 0x0f:
+                return "PID";
+            case 0x14:
+                return "Alphanumeric Display";
+            case 0x20:
+                return "Sensor";
+            case 0x40:
+                return "Medical Instrument";
+            case 0x84:
+                return "Power Device";
+            case 0x85:
+                return "Battery System";
+        }
+        return null;
+    }
+
+    /**
+     * Usage の名前を追加します。 未知の Usage は16進表記で追加します。
+     */
+    public static StringBuilder appendUsage(StringBuilder sb, int page, int usage) {
+        if (page == 0x09) {
+            return sb.append("Button ").append(usage);
+        }
+        if (page == 0x0a) {
+            return sb.append("Instance ").append(usage);
+        }
+        final String name = getUsageName(page, usage);
+        if (name != null) {
+            return sb.append(name);
+        }
+        return append4Hex(sb, usage & 0xffff);
+    }
+
+    private static String getUsageName(int page, int usage) {
+        if (page == 0x01) {
+            switch (usage) {
+                case 0x01:
+                    return "Pointer";
+                case 0x02:
+                    return "Mouse";
+                case 0x04:
+                    return "Joystick";
+                case 0x05:
+                    return "Game Pad";
+                case 0x06:
+                    return "Keyboard";
+                case 0x07:
+                    return "Keypad";
+                case 0x08:
+                    return "Multi-axis Controller";
+                case 0x30:
+                    return "X";
+                case 0x31:
+                    return "Y";
+                case 0x32:
+                    return "Z";
+                case 0x33:
+                    return "Rx";
+                case 0x34:
+                    return "Ry";
+                case 0x35:
+                    return "Rz";
+                case 0x36:
+                    return "Slider";
+                case 0x37:
+                    return "Dial";
+                case 0x38:
+                    return "Wheel";
+                case 0x39:
+                    return "Hat Switch";
+                case 0x80:
+                    return "System Control";
+            }
+        } else if (page == 0x08) {
+            switch (usage) {
+                case 0x01:
+                    return "Num Lock";
+                case 0x02:
+                    return "Caps Lock";
+                case 0x03:
+                    return "Scroll Lock";
+                case 0x04:
+                    return "Compose";
+                case 0x05:
+                    return "Kana";
+            }
+        } else if (page == 0x0c) {
+            switch (usage) {
+                case 0x01:
+                    return "Consumer Control";
+                case 0xe2:
+                    return "Mute";
+                case 0xe9:
+                    return "Volume Increment";
+                case 0xea:
+                    return "Volume Decrement";
+                case 0x238:
+                    return "AC Pan";
+            }
+        } else if (page == 0x0d) {
+            switch (usage) {
+                case 0x01:
+                    return "Digitizer";
+                case 0x02:
+                    return "Pen";
+                case 0x04:
+                    return "Touch Screen";
+                case 0x05:
+                    return "Touch Pad";
+                case 0x22:
+                    return "Finger";
+                case 0x42:
+                    return "Tip Switch";
+                case 0x51:
+                    return "Contact Identifier";
+                case 0x54:
+                    return "Contact Count";
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,620 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HID レポートディスクリプタのアイテム列を先頭から1パスでたどるパーサです。
+ * <p>
+ * {@link UsbDescriptorParser} と同じく、このクラス自身が「現在のアイテム」を表す
+ * フライウェイトになっていて、 {@link #next()} で次のアイテムへ進みます。 走査と同時に
+ * グローバルアイテム (Usage Page, Report Size, Report Count, Report ID など) と
+ * ローカルアイテム (Usage など) の状態を更新し、 Input/Output/Feature のメインアイテムごとに
+ * レポート ID 別のビット数を集計します。 状態を保持する配列は生成時に確保するだけで、
+ * 走査中にメモリは確保しません。
+ * </p>
+ * <p>
+ * 入力は信頼できないものとして扱います。 バッファの終端で途切れたアイテムや、
+ * Push/Pop、 Collection/End Collection の対応の誤りを検出した時点で走査を打ち切り、
+ * {@link #getError()} と {@link #getErrorOffset()} でその内容を返します。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbHidReportParser {
+
+    /*
+     * アイテムの種類 (bType)
+     */
+
+    public static final int TYPE_MAIN = 0;
+
+    public static final int TYPE_GLOBAL = 1;
+
+    public static final int TYPE_LOCAL = 2;
+
+    /**
+     * 予約済みの種類です。 ロングアイテムもこの種類として返します。
+     */
+    public static final int TYPE_RESERVED = 3;
+
+    /*
+     * メインアイテムのタグ
+     */
+
+    public static final int MAIN_INPUT = 0x8;
+
+    public static final int MAIN_OUTPUT = 0x9;
+
+    public static final int MAIN_COLLECTION = 0xa;
+
+    public static final int MAIN_FEATURE = 0xb;
+
+    public static final int MAIN_END_COLLECTION = 0xc;
+
+    /*
+     * グローバルアイテムのタグ
+     */
+
+    public static final int GLOBAL_USAGE_PAGE = 0x0;
+
+    public static final int GLOBAL_LOGICAL_MINIMUM = 0x1;
+
+    public static final int GLOBAL_LOGICAL_MAXIMUM = 0x2;
+
+    public static final int GLOBAL_PHYSICAL_MINIMUM = 0x3;
+
+    public static final int GLOBAL_PHYSICAL_MAXIMUM = 0x4;
+
+    public static final int GLOBAL_UNIT_EXPONENT = 0x5;
+
+    public static final int GLOBAL_UNIT = 0x6;
+
+    public static final int GLOBAL_REPORT_SIZE = 0x7;
+
+    public static final int GLOBAL_REPORT_ID = 0x8;
+
+    public static final int GLOBAL_REPORT_COUNT = 0x9;
+
+    public static final int GLOBAL_PUSH = 0xa;
+
+    public static final int GLOBAL_POP = 0xb;
+
+    /*
+     * ローカルアイテムのタグ
+     */
+
+    public static final int LOCAL_USAGE = 0x0;
+
+    public static final int LOCAL_USAGE_MINIMUM = 0x1;
+
+    public static final int LOCAL_USAGE_MAXIMUM = 0x2;
+
+    /*
+     * レポートの種類
+     */
+
+    public static final int REPORT_INPUT = 0;
+
+    public static final int REPORT_OUTPUT = 1;
+
+    public static final int REPORT_FEATURE = 2;
+
+    /*
+     * エラーの種別
+     */
+
+    /**
+     * エラーはありません。
+     */
+    public static final int ERROR_NONE = 0;
+
+    /**
+     * アイテムがバッファの終端で途切れています。
+     */
+    public static final int ERROR_TRUNCATED = 1;
+
+    /**
+     * Push が深すぎるか、対応する Push の無い Pop があります。
+     */
+    public static final int ERROR_BAD_STACK = 2;
+
+    /**
+     * 対応する Collection の無い End Collection があるか、 Collection が深すぎます。
+     */
+    public static final int ERROR_BAD_COLLECTION = 3;
+
+    /**
+     * Report ID に 0 が指定されています。
+     */
+    public static final int ERROR_BAD_REPORT_ID = 4;
+
+    /**
+     * 保持する Usage の数の上限。 これを超えた Usage は数だけを数えます。
+     */
+    public static final int MAX_USAGES = 64;
+
+    /**
+     * Push で保存できるグローバル状態の数の上限。
+     */
+    public static final int MAX_STACK_DEPTH = 8;
+
+    /**
+     * Collection の入れ子の上限。
+     */
+    public static final int MAX_COLLECTION_DEPTH = 64;
+
+    private static final int REPORT_ID_COUNT = 256;
+
+    private static final int LONG_ITEM_PREFIX = 0xfe;
+
+    /**
+     * グローバル状態の要素数。 インデックスはグローバルアイテムのタグと同じです。
+     */
+    private static final int GLOBAL_COUNT = GLOBAL_REPORT_COUNT + 1;
+
+    private final ByteBuffer mBuffer;
+
+    private final int mLimit;
+
+    private final int[] mGlobals = new int[GLOBAL_COUNT];
+
+    private final int[] mStack = new int[GLOBAL_COUNT * MAX_STACK_DEPTH];
+
+    private final int[] mUsages = new int[MAX_USAGES];
+
+    /**
+     * レポートの種類とレポート ID ごとのビット数。 インデックスは
+     * {@code type * REPORT_ID_COUNT + reportId} です。
+     */
+    private final long[] mReportBits = new long[3 * REPORT_ID_COUNT];
+
+    private int mStackDepth;
+
+    private int mUsageCount;
+
+    private int mUsageMinimum;
+
+    private int mUsageMaximum;
+
+    /**
+     * 次のアイテムへ進む際にローカル状態を破棄するかどうか。 メインアイテムの後で
+     * {@code true} になります。
+     */
+    private boolean mClearLocals;
+
+    private int mCollectionDepth;
+
+    private boolean mReportIdUsed;
+
+    private int mOffset;
+
+    private int mType;
+
+    private int mTag;
+
+    private int mDataSize;
+
+    private int mData;
+
+    private int mNextOffset;
+
+    private int mError;
+
+    private int mErrorOffset;
+
+    public UsbHidReportParser(byte[] raw) {
+        this(ByteBuffer.wrap(raw));
+    }
+
+    /**
+     * バッファの position から limit までをレポートディスクリプタとして扱います。
+     * バッファの内容はコピーされず、 position も変更されません。
+     */
+    public UsbHidReportParser(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+        mLimit = mBuffer.limit();
+        reset();
+    }
+
+    /**
+     * 走査を先頭からやり直します。 状態と集計値も初期化されます。
+     */
+    public void reset() {
+        Arrays.fill(mGlobals, 0);
+        Arrays.fill(mReportBits, 0L);
+        mStackDepth = 0;
+        clearLocals();
+        mClearLocals = false;
+        mCollectionDepth = 0;
+        mReportIdUsed = false;
+        mOffset = -1;
+        mNextOffset = 0;
+        mError = ERROR_NONE;
+        mErrorOffset = -1;
+    }
+
+    private void clearLocals() {
+        mUsageCount = 0;
+        mUsageMinimum = -1;
+        mUsageMaximum = -1;
+    }
+
+    /**
+     * 次のアイテムへ進み、状態を更新します。
+     *
+     * @return 次のアイテムがある場合は {@code true}。 終端に達したか、不正な
+     * アイテムを検出した場合は {@code false}。
+     */
+    public boolean next() {
+        mOffset = -1;
+        if (mClearLocals) {
+            clearLocals();
+            mClearLocals = false;
+        }
+        if (mError != ERROR_NONE || mLimit <= mNextOffset) {
+            return false;
+        }
+        final int prefix = mBuffer.get(mNextOffset) & 0xff;
+        if (prefix == LONG_ITEM_PREFIX) {
+            // ロングアイテムは規格上どの用途も定義されていないので、読み飛ばすだけにする
+            if (mLimit - mNextOffset < 3) {
+                return fail(ERROR_TRUNCATED);
+            }
+            final int dataSize = mBuffer.get(mNextOffset + 1) & 0xff;
+            if (mLimit - mNextOffset < 3 + dataSize) {
+                return fail(ERROR_TRUNCATED);
+            }
+            mOffset = mNextOffset;
+            mType = TYPE_RESERVED;
+            mTag = mBuffer.get(mNextOffset + 2) & 0xff;
+            mDataSize = dataSize;
+            mData = 0;
+            mNextOffset += 3 + dataSize;
+            return true;
+        }
+        final int sizeCode = prefix & 0x3;
+        final int dataSize = (sizeCode == 3) ? 4 : sizeCode;
+        if (mLimit - mNextOffset < 1 + dataSize) {
+            return fail(ERROR_TRUNCATED);
+        }
+        int data = 0;
+        for (int i = dataSize; 0 < i; i--) {
+            data = (data << 8) | (mBuffer.get(mNextOffset + i) & 0xff);
+        }
+        mOffset = mNextOffset;
+        mType = (prefix >>> 2) & 0x3;
+        mTag = (prefix >>> 4) & 0xf;
+        mDataSize = dataSize;
+        mData = data;
+        mNextOffset += 1 + dataSize;
+        switch (mType) {
+            case TYPE_MAIN:
+                return applyMain();
+            case TYPE_GLOBAL:
+                return applyGlobal();
+            case TYPE_LOCAL:
+                applyLocal();
+                return true;
+        }
+        return true;
+    }
+
+    private boolean applyMain() {
+        switch (mTag) {
+            case MAIN_INPUT:
+                addReportBits(REPORT_INPUT);
+                break;
+            case MAIN_OUTPUT:
+                addReportBits(REPORT_OUTPUT);
+                break;
+            case MAIN_FEATURE:
+                addReportBits(REPORT_FEATURE);
+                break;
+            case MAIN_COLLECTION:
+                if (MAX_COLLECTION_DEPTH <= mCollectionDepth) {
+                    return fail(ERROR_BAD_COLLECTION);
+                }
+                mCollectionDepth++;
+                break;
+            case MAIN_END_COLLECTION:
+                if (mCollectionDepth == 0) {
+                    return fail(ERROR_BAD_COLLECTION);
+                }
+                mCollectionDepth--;
+                break;
+        }
+        mClearLocals = true;
+        return true;
+    }
+
+    private void addReportBits(int reportType) {
+        // 不正な入力で桁あふれしないよう、符号なしの値を上限で丸めてから足し込む
+        final long size = Math.min(getReportSize() & 0xffffffffL, Integer.MAX_VALUE);
+        final long count = Math.min(getReportCount() & 0xffffffffL, Integer.MAX_VALUE);
+        final int index = reportType * REPORT_ID_COUNT + getReportId();
+        mReportBits[index] = Math.min(mReportBits[index], Long.MAX_VALUE - size * count)
+                + size * count;
+    }
+
+    private boolean applyGlobal() {
+        switch (mTag) {
+            case GLOBAL_LOGICAL_MINIMUM:
+            case GLOBAL_LOGICAL_MAXIMUM:
+            case GLOBAL_PHYSICAL_MINIMUM:
+            case GLOBAL_PHYSICAL_MAXIMUM:
+            case GLOBAL_UNIT_EXPONENT:
+                mGlobals[mTag] = getSignedData();
+                return true;
+            case GLOBAL_USAGE_PAGE:
+            case GLOBAL_UNIT:
+            case GLOBAL_REPORT_SIZE:
+            case GLOBAL_REPORT_COUNT:
+                mGlobals[mTag] = mData;
+                return true;
+            case GLOBAL_REPORT_ID:
+                if (mData <= 0 || REPORT_ID_COUNT <= mData) {
+                    return fail(ERROR_BAD_REPORT_ID);
+                }
+                mGlobals[mTag] = mData;
+                mReportIdUsed = true;
+                return true;
+            case GLOBAL_PUSH:
+                if (MAX_STACK_DEPTH <= mStackDepth) {
+                    return fail(ERROR_BAD_STACK);
+                }
+                System.arraycopy(mGlobals, 0, mStack, mStackDepth * GLOBAL_COUNT, GLOBAL_COUNT);
+                mStackDepth++;
+                return true;
+            case GLOBAL_POP:
+                if (mStackDepth == 0) {
+                    return fail(ERROR_BAD_STACK);
+                }
+                mStackDepth--;
+                System.arraycopy(mStack, mStackDepth * GLOBAL_COUNT, mGlobals, 0, GLOBAL_COUNT);
+                return true;
+        }
+        return true;
+    }
+
+    private void applyLocal() {
+        switch (mTag) {
+            case LOCAL_USAGE:
+                if (mUsageCount < MAX_USAGES) {
+                    mUsages[mUsageCount] = toExtendedUsage(mData);
+                }
+                mUsageCount++;
+                break;
+            case LOCAL_USAGE_MINIMUM:
+                mUsageMinimum = toExtendedUsage(mData);
+                break;
+            case LOCAL_USAGE_MAXIMUM:
+                mUsageMaximum = toExtendedUsage(mData);
+                break;
+        }
+    }
+
+    /**
+     * 4バイトで指定された Usage はそのまま、それ以外はその時点の Usage Page を
+     * 上位16ビットに補った値にします。
+     */
+    private int toExtendedUsage(int data) {
+        if (mDataSize == 4) {
+            return data;
+        }
+        return (getUsagePage() << 16) | (data & 0xffff);
+    }
+
+    private boolean fail(int error) {
+        mError = error;
+        mErrorOffset = (mOffset < 0) ? mNextOffset : mOffset;
+        mOffset = -1;
+        return false;
+    }
+
+    /**
+     * @return 走査を打ち切った理由。 {@code ERROR_XXX} のいずれか。
+     */
+    public int getError() {
+        return mError;
+    }
+
+    /**
+     * @return 不正なアイテムの先頭のオフセット。 エラーが無い場合は -1。
+     */
+    public int getErrorOffset() {
+        return mErrorOffset;
+    }
+
+    /**
+     * @return 入力全体のバイト数。
+     */
+    public int getTotalLength() {
+        return mLimit;
+    }
+
+    /**
+     * @return 現在のアイテムの、入力の先頭からのオフセット。
+     */
+    public int getOffset() {
+        checkCurrent();
+        return mOffset;
+    }
+
+    /**
+     * @return 現在のアイテムの種類。 {@code TYPE_XXX} のいずれか。
+     */
+    public int getType() {
+        checkCurrent();
+        return mType;
+    }
+
+    /**
+     * @return 現在のアイテムのタグ。 ロングアイテムの場合は bLongItemTag。
+     */
+    public int getTag() {
+        checkCurrent();
+        return mTag;
+    }
+
+    /**
+     * @return 現在のアイテムのデータのバイト数。
+     */
+    public int getDataSize() {
+        checkCurrent();
+        return mDataSize;
+    }
+
+    /**
+     * @return 現在のアイテムのデータを符号なしで解釈した値。 4バイトの場合は
+     * int の範囲を超える値が負の値になります。 ロングアイテムの場合は 0。
+     */
+    public int getData() {
+        checkCurrent();
+        return mData;
+    }
+
+    /**
+     * @return 現在のアイテムのデータをデータサイズに応じて符号拡張した値。
+     */
+    public int getSignedData() {
+        checkCurrent();
+        switch (mDataSize) {
+            case 1:
+                return (byte) mData;
+            case 2:
+                return (short) mData;
+        }
+        return mData;
+    }
+
+    /**
+     * ロングアイテムかどうかを返します。
+     */
+    public boolean isLongItem() {
+        checkCurrent();
+        return (mBuffer.get(mOffset) & 0xff) == LONG_ITEM_PREFIX;
+    }
+
+    private void checkCurrent() {
+        if (mOffset < 0) {
+            throw new IllegalStateException("no current item.");
+        }
+    }
+
+    /*
+     * 走査中の状態。 現在のアイテムを反映した後の値を返します。
+     */
+
+    public int getUsagePage() {
+        return mGlobals[GLOBAL_USAGE_PAGE];
+    }
+
+    public int getLogicalMinimum() {
+        return mGlobals[GLOBAL_LOGICAL_MINIMUM];
+    }
+
+    public int getLogicalMaximum() {
+        return mGlobals[GLOBAL_LOGICAL_MAXIMUM];
+    }
+
+    public int getReportSize() {
+        return mGlobals[GLOBAL_REPORT_SIZE];
+    }
+
+    public int getReportCount() {
+        return mGlobals[GLOBAL_REPORT_COUNT];
+    }
+
+    /**
+     * @return 現在の Report ID。 Report ID が指定されていない場合は 0。
+     */
+    public int getReportId() {
+        return mGlobals[GLOBAL_REPORT_ID];
+    }
+
+    /**
+     * @return 現在の Collection の入れ子の深さ。
+     */
+    public int getCollectionDepth() {
+        return mCollectionDepth;
+    }
+
+    /**
+     * @return 現在のメインアイテムまでに指定された Usage の数。 {@link #MAX_USAGES} を
+     * 超えることがあります。
+     */
+    public int getUsageCount() {
+        return mUsageCount;
+    }
+
+    /**
+     * @param index 0 から {@code min(getUsageCount(), MAX_USAGES) - 1} まで。
+     * @return 上位16ビットが Usage Page、下位16ビットが Usage ID の値。
+     */
+    public int getUsage(int index) {
+        if (index < 0 || Math.min(mUsageCount, MAX_USAGES) <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        return mUsages[index];
+    }
+
+    /**
+     * @return Usage Minimum。 指定されていない場合は -1。
+     */
+    public int getUsageMinimum() {
+        return mUsageMinimum;
+    }
+
+    /**
+     * @return Usage Maximum。 指定されていない場合は -1。
+     */
+    public int getUsageMaximum() {
+        return mUsageMaximum;
+    }
+
+    /*
+     * 集計値。 走査済みのアイテムまでの値を返します。
+     */
+
+    /**
+     * Report ID アイテムが現れたかどうかを返します。 現れていない場合、レポートは
+     * すべて Report ID 0 として集計されます。
+     */
+    public boolean isReportIdUsed() {
+        return mReportIdUsed;
+    }
+
+    /**
+     * @param reportType {@code REPORT_XXX} のいずれか。
+     * @param reportId 0 から 255 まで。
+     * @return Report ID のバイトを除いたレポートのビット数。
+     */
+    public long getReportBits(int reportType, int reportId) {
+        if (reportType < REPORT_INPUT || REPORT_FEATURE < reportType) {
+            throw new IllegalArgumentException("invalid report type: " + reportType);
+        }
+        if (reportId < 0 || REPORT_ID_COUNT <= reportId) {
+            throw new IllegalArgumentException("invalid report id: " + reportId);
+        }
+        return mReportBits[reportType * REPORT_ID_COUNT + reportId];
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 列挙、ソート、文字列化、行の組み立てといったホットパスを、
+ * {@link UsbSyntheticDeviceSource} が生成するトポロジで計測するベンチマークです。
+ * <p>
+ * ホスト上で次のように実行し、結果を {@code benchmarks/baseline.txt} と比較します。
+ * <pre>
+ * java -cp bin/classes:libs/guava-r09.jar org.zakky.usbdevicelist.UsbHotPathBenchmark \
+ *     [--millis 1000] [デバイス数 ...]
+ * </pre>
+ * 各ケースはウォームアップの後、指定した時間だけ繰り返し実行し、1回あたりの時間と
+ * デバイス1台あたりの時間を出力します。 HotSpot 上ではスレッドの割り当てバイト数から
+ * 1回あたりのメモリ割り当て量も出力します(取得できない VM では {@code -})。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbHotPathBenchmark {
+
+    private static final int[] DEFAULT_DEVICE_COUNTS = {
+            1, 10, 100, 1000, 10000
+    };
+
+    private static final long DEFAULT_MEASURE_MILLIS = 1000L;
+
+    private static final long SEED = 20111107L;
+
+    /**
+     * 計測結果が最適化で消されないように、各回の戻り値を書き込む先。
+     */
+    private static volatile long sSink;
+
+    /**
+     * 計測する処理です。
+     */
+    private static abstract class Case {
+        final String mName;
+
+        Case(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return 最適化で処理が消されないための任意の値。
+         */
+        abstract long run();
+    }
+
+    private UsbHotPathBenchmark() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    public static void main(String[] args) {
+        long measureMillis = DEFAULT_MEASURE_MILLIS;
+        final List<Integer> counts = new ArrayList<Integer>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--millis".equals(args[i]) && i + 1 < args.length) {
+                measureMillis = Long.parseLong(args[++i]);
+            } else {
+                counts.add(Integer.valueOf(args[i]));
+            }
+        }
+        if (counts.isEmpty()) {
+            for (int count : DEFAULT_DEVICE_COUNTS) {
+                counts.add(Integer.valueOf(count));
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "# %s, %s %s, %s",
+                UsbHotPathBenchmark.class.getSimpleName(), System.getProperty("java.vm.name"),
+                System.getProperty("java.version"), System.getProperty("os.arch")));
+        System.out.println(String.format(Locale.US, "%-16s %8s %14s %12s %14s", "case",
+                "devices", "ns/op", "ns/device", "B/op"));
+        for (Integer count : counts) {
+            for (Case c : newCases(new UsbSyntheticDeviceSource(count.intValue(), SEED))) {
+                measure(c, count.intValue(), measureMillis);
+            }
+        }
+    }
+
+    private static List<Case> newCases(final UsbSyntheticDeviceSource source) {
+        final UsbTopologySnapshot snapshot = source.enumerate();
+        final List<UsbInterfaceSnapshot> interfaces = new ArrayList<UsbInterfaceSnapshot>();
+        final List<UsbEndpointSnapshot> endpoints = new ArrayList<UsbEndpointSnapshot>();
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+                interfaces.add(iface);
+                endpoints.addAll(iface.getEndpoints());
+            }
+        }
+
+        final List<Case> cases = new ArrayList<Case>();
+        cases.add(new Case("enumerate") {
+            @Override
+            long run() {
+                return source.enumerate().size();
+            }
+        });
+        cases.add(newSortCase("sort.devices", shuffled(snapshot.getDevices()),
+                UsbDeviceSnapshot.DEV_COMPARATOR));
+        cases.add(newSortCase("sort.interfaces", shuffled(interfaces),
+                UsbInterfaceSnapshot.INTERFACE_COMPARATOR));
+        cases.add(newSortCase("sort.endpoints", shuffled(endpoints),
+                UsbEndpointSnapshot.EP_COMPARATOR));
+        cases.add(new Case("format") {
+            private final StringBuilder mBuilder = new StringBuilder(64);
+
+            @Override
+            long run() {
+                return format(mBuilder, snapshot);
+            }
+        });
+        cases.add(new Case("rows") {
+            private final UsbRowRenderer mRenderer = new UsbRowRenderer();
+
+            @Override
+            long run() {
+                return render(mRenderer, snapshot);
+            }
+        });
+        return cases;
+    }
+
+    /**
+     * シャッフル済みの配列をコピーしてソートするケースを生成します。
+     */
+    private static <T> Case newSortCase(String name, final T[] shuffled,
+            final Comparator<? super T> comparator) {
+        final T[] work = Arrays.copyOf(shuffled, shuffled.length);
+        return new Case(name) {
+            @Override
+            long run() {
+                System.arraycopy(shuffled, 0, work, 0, shuffled.length);
+                Arrays.sort(work, comparator);
+                return (work.length == 0) ? 0 : work[0].hashCode();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T[] shuffled(List<T> list) {
+        final Object[] result = list.toArray();
+        final Random random = new Random(SEED);
+        for (int i = result.length - 1; 0 < i; i--) {
+            final int j = random.nextInt(i + 1);
+            final Object tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return (T[]) result;
+    }
+
+    /**
+     * デバイス一覧と Endpoint 一覧で表示するすべての値を文字列化します。
+     */
+    private static long format(StringBuilder sb, UsbTopologySnapshot snapshot) {
+        long length = 0;
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            sb.setLength(0);
+            UsbConstantsUtil.appendIdString(sb, dev);
+            UsbConstantsUtil.appendClassString(sb, dev);
+            UsbConstantsUtil.appendVidString(sb, dev);
+            UsbConstantsUtil.appendPidString(sb, dev);
+            length += sb.length();
+            for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+                sb.setLength(0);
+                UsbConstantsUtil.appendIdString(sb, iface);
+                UsbConstantsUtil.appendClassString(sb, iface);
+                UsbConstantsUtil.appendSubclassString(sb, iface);
+                UsbConstantsUtil.appendProtocolString(sb, iface);
+                length += sb.length();
+                for (UsbEndpointSnapshot ep : iface.getEndpoints()) {
+                    sb.setLength(0);
+                    UsbConstantsUtil.appendAddressString(sb, ep);
+                    UsbConstantsUtil.appendNumberString(sb, ep);
+                    UsbConstantsUtil.appendAttributesString(sb, ep);
+                    UsbConstantsUtil.appendDirectionString(sb, ep);
+                    UsbConstantsUtil.appendIntervalString(sb, ep);
+                    UsbConstantsUtil.appendMaxPacketSizeString(sb, ep);
+                    UsbConstantsUtil.appendTypeString(sb, ep);
+                    length += sb.length();
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * キャッシュが空の状態でアダプタが表示する行をすべて組み立てます。
+     */
+    private static long render(UsbRowRenderer renderer, UsbTopologySnapshot snapshot) {
+        long count = 0;
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            count += renderer.renderDevice(dev).getLineCount();
+            for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+                count += renderer.renderInterface(iface).getLineCount();
+                for (UsbEndpointSnapshot ep : iface.getEndpoints()) {
+                    count += renderer.renderEndpoint(ep).getLineCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void measure(Case c, int deviceCount, long measureMillis) {
+        // ウォームアップ
+        runFor(c, measureMillis / 2);
+
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        final long ops = runFor(c, measureMillis);
+        final long elapsed = System.nanoTime() - start;
+        final long allocatedAfter = getAllocatedBytes();
+
+        final double nanosPerOp = (double) elapsed / ops;
+        final String bytesPerOp = (allocatedBefore < 0 || allocatedAfter < 0) ? "-" : String
+                .format(Locale.US, "%.1f", (double) (allocatedAfter - allocatedBefore) / ops);
+        System.out.println(String.format(Locale.US, "%-16s %8d %14.1f %12.1f %14s", c.mName,
+                Integer.valueOf(deviceCount), Double.valueOf(nanosPerOp),
+                Double.valueOf(nanosPerOp / Math.max(deviceCount, 1)), bytesPerOp));
+    }
+
+    /**
+     * 指定した時間が経過するまで繰り返し実行します。 時刻の取得の影響を抑えるため、
+     * 回数を倍々に増やしながらまとめて実行します。
+     *
+     * @return 実行した回数。
+     */
+    private static long runFor(Case c, long millis) {
+        final long deadline = System.nanoTime() + millis * 1000L * 1000L;
+        long ops = 0;
+        long batch = 1;
+        long sink = 0;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sink += c.run();
+            }
+            ops += batch;
+            if (batch < (1 << 20)) {
+                batch <<= 1;
+            }
+        } while (System.nanoTime() < deadline);
+        sSink = sink;
+        return ops;
+    }
+
+    /**
+     * @return 現在のスレッドがこれまでに割り当てたバイト数。 取得できない場合は -1。
+     */
+    static long getAllocatedBytes() {
+        try {
+            final Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            final Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Long.valueOf(Thread.currentThread().getId())))
+                    .longValue();
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一定時間内に発生した接続/切断イベントをまとめたものです。
+ * <p>
+ * 同じデバイス名に対するイベントが複数あった場合は、最後のイベントだけが残ります。
+ * ただし、一度でも切断されたデバイス名は {@link #getDetachedAtLeastOnce()} で得られます。
+ * このクラスはイミュータブルで、Android に依存しません。
+ * </p>
+ */
+public final class UsbHotplugBatch {
+
+    private final ImmutableList<UsbDeviceSnapshot> mAttached;
+
+    private final ImmutableList<String> mDetached;
+
+    private final ImmutableList<String> mDetachedAtLeastOnce;
+
+    private final int mEventCount;
+
+    UsbHotplugBatch(ImmutableList<UsbDeviceSnapshot> attached, ImmutableList<String> detached,
+            ImmutableList<String> detachedAtLeastOnce, int eventCount) {
+        mAttached = attached;
+        mDetached = detached;
+        mDetachedAtLeastOnce = detachedAtLeastOnce;
+        mEventCount = eventCount;
+    }
+
+    /**
+     * 接続されたデバイスを返します。
+     */
+    public List<UsbDeviceSnapshot> getAttached() {
+        return mAttached;
+    }
+
+    /**
+     * 切断されたデバイスのデバイス名を返します。
+     */
+    public List<String> getDetached() {
+        return mDetached;
+    }
+
+    /**
+     * このバッチにまとめられたイベントのうち、一度でも切断されたデバイスのデバイス名を
+     * 返します。 切断の後で再び接続され、 {@link #getAttached()} に含まれるデバイスも
+     * 含みます。 同じデバイス名でも別の接続になっているので、デバイスへの接続などは
+     * これを使って破棄してください。
+     */
+    public List<String> getDetachedAtLeastOnce() {
+        return mDetachedAtLeastOnce;
+    }
+
+    /**
+     * このバッチにまとめられたイベントの数を返します。
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    public boolean isEmpty() {
+        return mAttached.isEmpty() && mDetached.isEmpty();
+    }
+
+    /**
+     * 接続されたデバイスのうちポートパスが不明なものについて、 sysfs からポートパスを
+     * 補ったバッチを返します。 ポートパスが無いと、次の列挙で同じデバイスが変化したと
+     * 判定されてしまうので、適用する前に呼んでください。 sysfs を読むので、
+     * メインスレッドからは呼ばないでください。
+     *
+     * @param sysfsRoot デバイス一覧のディレクトリ。 通常は
+     * {@link UsbSysfsDeviceSource#DEFAULT_ROOT}。
+     * @return ポートパスを補ったバッチ。 補えたデバイスが無い場合はこのバッチ自身。
+     */
+    public UsbHotplugBatch resolvePortPaths(File sysfsRoot) {
+        final ImmutableList.Builder<UsbDeviceSnapshot> attached = ImmutableList.builder();
+        boolean resolved = false;
+        for (UsbDeviceSnapshot dev : mAttached) {
+            final String portPath = (dev.getPortPath() != null) ? null : UsbSysfsDeviceSource
+                    .readPortPath(sysfsRoot, dev.getDeviceName());
+            if (portPath == null) {
+                attached.add(dev);
+                continue;
+            }
+            attached.add(new UsbDeviceSnapshot(dev.getDeviceName(), dev.getDeviceId(),
+                    dev.getDeviceClass(), dev.getDeviceSubclass(), dev.getDeviceProtocol(),
+                    dev.getVendorId(), dev.getProductId(), dev.getInterfaces(), portPath));
+            resolved = true;
+        }
+        if (!resolved) {
+            return this;
+        }
+        return new UsbHotplugBatch(attached.build(), mDetached, mDetachedAtLeastOnce,
+                mEventCount);
+    }
+
+    /**
+     * このバッチをスナップショットに適用した結果を返します。 接続は追加(または置き換え)、
+     * 切断は削除として扱うので、同じバッチを何度適用しても結果は変わりません。
+     *
+     * @param base 適用先のスナップショット。
+     * @return 適用後のスナップショット。
+     */
+    public UsbTopologySnapshot applyTo(UsbTopologySnapshot base) {
+        if (isEmpty()) {
+            return base;
+        }
+        final Map<String, UsbDeviceSnapshot> devices = Maps.newHashMapWithExpectedSize(base
+                .size() + mAttached.size());
+        for (UsbDeviceSnapshot dev : base.getDevices()) {
+            devices.put(dev.getDeviceName(), dev);
+        }
+        for (String name : mDetached) {
+            devices.remove(name);
+        }
+        for (UsbDeviceSnapshot dev : mAttached) {
+            devices.put(dev.getDeviceName(), dev);
+        }
+        return UsbTopologySnapshot.of(devices.values());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * 接続/切断イベントを一定時間まとめて {@link UsbHotplugBatch} として通知するクラスです。
+ * <p>
+ * 最初のイベントを受け取ってから {@code windowMillis} 経過した時点で、それまでに
+ * 受け取ったイベントをひとつのバッチにまとめて通知します。 ウィンドウは最初のイベントから
+ * 固定なので、イベントが途切れなく続いても通知が無限に遅れることはありません。
+ * </p>
+ * <p>
+ * タイマーは {@link Scheduler} 経由で扱うので、Android 以外の環境でも偽のスケジューラを
+ * 与えて動作させることができます。 このクラスはスレッドセーフではありません。 イベントの
+ * 受け取りと {@link Scheduler} によるタスクの実行は同じスレッドで行ってください。
+ * </p>
+ */
+public final class UsbHotplugBatcher {
+
+    /**
+     * 遅延実行を行うためのインタフェースです。
+     */
+    public interface Scheduler {
+        /**
+         * タスクを指定時間後に実行するよう予約します。
+         */
+        public void schedule(Runnable task, long delayMillis);
+
+        /**
+         * 予約済みのタスクを取り消します。
+         */
+        public void cancel(Runnable task);
+    }
+
+    /**
+     * バッチを受け取るためのコールバックです。
+     */
+    public interface Callback {
+        /**
+         * まとめられたイベントを通知します。
+         *
+         * @param batch 空でないバッチ。
+         */
+        public void onHotplugBatch(UsbHotplugBatch batch);
+    }
+
+    private final Scheduler mScheduler;
+
+    private final long mWindowMillis;
+
+    private final Callback mCallback;
+
+    /**
+     * デバイス名から最後のイベントへのマップ。接続の場合はそのデバイス、切断の場合は
+     * {@code null} を値とします。
+     */
+    private final Map<String, UsbDeviceSnapshot> mPending = Maps.newLinkedHashMap();
+
+    /**
+     * 保留中のイベントのうち、一度でも切断されたデバイスのデバイス名。
+     */
+    private final Set<String> mPendingDetached = Sets.newLinkedHashSet();
+
+    private int mPendingEventCount = 0;
+
+    private boolean mScheduled = false;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * @param scheduler 遅延実行に使用するスケジューラ。
+     * @param windowMillis イベントをまとめる時間(ミリ秒)。0 以下の場合はイベントごとに
+     * 通知します。
+     * @param callback バッチを受け取るコールバック。
+     */
+    public UsbHotplugBatcher(Scheduler scheduler, long windowMillis, Callback callback) {
+        mScheduler = scheduler;
+        mWindowMillis = windowMillis;
+        mCallback = callback;
+    }
+
+    /**
+     * デバイスの接続を受け付けます。
+     */
+    public void onAttached(UsbDeviceSnapshot dev) {
+        mPending.put(dev.getDeviceName(), dev);
+        onEvent();
+    }
+
+    /**
+     * デバイスの切断を受け付けます。
+     */
+    public void onDetached(String deviceName) {
+        mPending.put(deviceName, null);
+        mPendingDetached.add(deviceName);
+        onEvent();
+    }
+
+    private void onEvent() {
+        mPendingEventCount++;
+        if (mWindowMillis <= 0L) {
+            flush();
+            return;
+        }
+        if (!mScheduled) {
+            mScheduled = true;
+            mScheduler.schedule(mFlushTask, mWindowMillis);
+        }
+    }
+
+    /**
+     * ウィンドウの終了を待たずに、保留中のイベントをすぐに通知します。 保留中のイベントが
+     * なければ何もしません。
+     */
+    public void flush() {
+        if (mScheduled) {
+            mScheduled = false;
+            mScheduler.cancel(mFlushTask);
+        }
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final ImmutableList.Builder<UsbDeviceSnapshot> attached = ImmutableList.builder();
+        final ImmutableList.Builder<String> detached = ImmutableList.builder();
+        for (Entry<String, UsbDeviceSnapshot> e : mPending.entrySet()) {
+            if (e.getValue() == null) {
+                detached.add(e.getKey());
+            } else {
+                attached.add(e.getValue());
+            }
+        }
+        final UsbHotplugBatch batch = new UsbHotplugBatch(attached.build(), detached.build(),
+                ImmutableList.copyOf(mPendingDetached), mPendingEventCount);
+        mPending.clear();
+        mPendingDetached.clear();
+        mPendingEventCount = 0;
+
+        mCallback.onHotplugBatch(batch);
+    }
+
+    /**
+     * 保留中のイベントを通知せずに破棄します。
+     */
+    public void cancel() {
+        if (mScheduled) {
+            mScheduled = false;
+            mScheduler.cancel(mFlushTask);
+        }
+        mPending.clear();
+        mPendingDetached.clear();
+        mPendingEventCount = 0;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+
+/**
+ * {@link UsbManager#ACTION_USB_DEVICE_ATTACHED} と
+ * {@link UsbManager#ACTION_USB_DEVICE_DETACHED} を受け取り、
+ * {@link UsbHotplugBatcher} でまとめてから通知する {@link BroadcastReceiver} です。
+ * <p>
+ * イベントの受け取りもバッチの通知もメインスレッドで行われます。 メインスレッドでは
+ * sysfs を読まないので、接続されたデバイスのポートパスは不明({@code null})のまま
+ * 通知します。 {@link UsbDeviceEnumerator#resolveHotplugBatch(UsbHotplugBatch)} で
+ * 補ってから適用してください。
+ * </p>
+ */
+public class UsbHotplugReceiver extends BroadcastReceiver {
+
+    /**
+     * イベントをまとめる時間(ミリ秒)のデフォルト値。
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 250L;
+
+    private final UsbHotplugBatcher mBatcher;
+
+    private boolean mRegistered = false;
+
+    /**
+     * @param windowMillis イベントをまとめる時間(ミリ秒)。
+     * @param callback バッチを受け取るコールバック。メインスレッドから呼ばれます。
+     */
+    public UsbHotplugReceiver(long windowMillis, UsbHotplugBatcher.Callback callback) {
+        mBatcher = new UsbHotplugBatcher(new HandlerScheduler(new Handler()), windowMillis,
+                callback);
+    }
+
+    public void register(Context context) {
+        if (mRegistered) {
+            return;
+        }
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        context.registerReceiver(this, filter);
+        mRegistered = true;
+    }
+
+    /**
+     * 登録を解除します。保留中のイベントは破棄されます。
+     */
+    public void unregister(Context context) {
+        if (!mRegistered) {
+            return;
+        }
+        context.unregisterReceiver(this);
+        mBatcher.cancel();
+        mRegistered = false;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final UsbDevice dev = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (dev == null) {
+            return;
+        }
+        final String action = intent.getAction();
+        if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+            mBatcher.onAttached(UsbSnapshotFactory.newDeviceSnapshot(dev));
+        } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+            mBatcher.onDetached(dev.getDeviceName());
+        }
+    }
+
+    /**
+     * {@link Handler} を使った {@link UsbHotplugBatcher.Scheduler} の実装です。
+     */
+    private static final class HandlerScheduler implements UsbHotplugBatcher.Scheduler {
+        private final Handler mHandler;
+
+        HandlerScheduler(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            mHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    }
+}
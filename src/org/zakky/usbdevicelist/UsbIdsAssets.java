@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * assets に同梱された {@link UsbIdsIndex} を読み込むユーティリティです。
+ */
+public final class UsbIdsAssets {
+
+    /**
+     * {@link UsbIdsAssets#loadInBackground(AssetManager, String, Callback)} の結果を
+     * 受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * 読み込みが終わった場合にメインスレッドから呼ばれます。
+         *
+         * @param index インデックス。 asset が無いか壊れている場合は {@link UsbIdsIndex#EMPTY}。
+         */
+        public void onLoaded(UsbIdsIndex index);
+    }
+
+    private static final String TAG = UsbIdsAssets.class.getSimpleName();
+
+    /**
+     * {@link UsbIdsCompiler} の出力を配置する asset 名。
+     */
+    public static final String DEFAULT_ASSET_NAME = "usb_ids.bin";
+
+    private UsbIdsAssets() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * インデックスを読み込みます。
+     * <p>
+     * 無圧縮で格納されている場合は APK をメモリマップし、圧縮されている場合は
+     * ダイレクトバッファへ読み込みます。 いずれの場合も Java ヒープ上にはエントリごとの
+     * オブジェクトを作りません。
+     * </p>
+     *
+     * @return インデックス。 asset が無いか壊れている場合は {@link UsbIdsIndex#EMPTY}。
+     */
+    public static UsbIdsIndex load(AssetManager assets, String name) {
+        try {
+            return UsbIdsIndex.wrap(readBuffer(assets, name));
+        } catch (IOException e) {
+            Log.i(TAG, "usb.ids index is not available: " + name);
+            return UsbIdsIndex.EMPTY;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "broken usb.ids index: " + name, e);
+            return UsbIdsIndex.EMPTY;
+        }
+    }
+
+    /**
+     * バックグラウンドのスレッドでインデックスを読み込み、結果をメインスレッドで通知します。
+     * 圧縮された asset の展開や APK のメモリマップでメインスレッドを止めないよう、
+     * {@code Activity#onCreate} などからはこちらを使ってください。
+     */
+    public static void loadInBackground(final AssetManager assets, final String name,
+            final Callback callback) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final UsbIdsIndex index = load(assets, name);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(index);
+                    }
+                });
+            }
+        }, TAG);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static ByteBuffer readBuffer(AssetManager assets, String name) throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = assets.openFd(name);
+        } catch (IOException e) {
+            // 圧縮されている asset は openFd できないので、ストリームで読む
+        }
+        if (afd != null) {
+            final FileInputStream in = afd.createInputStream();
+            try {
+                final FileChannel channel = in.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(),
+                        afd.getLength());
+            } finally {
+                in.close();
+            }
+        }
+        final InputStream in = assets.open(name, AssetManager.ACCESS_STREAMING);
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        final byte[] chunk = new byte[8192];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(in.available(), chunk.length));
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            if (buffer.remaining() < read) {
+                final ByteBuffer grown = ByteBuffer.allocateDirect(
+                        Math.max(buffer.capacity() * 2, buffer.position() + read));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.put(chunk, 0, read);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
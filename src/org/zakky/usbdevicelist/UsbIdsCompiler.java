@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@code usb.ids} をコンパクトなバイナリインデックスへ変換するビルド時ツールです。
+ * 形式は {@link UsbIdsIndex} を参照してください。
+ * <p>
+ * ビルド前に、ホスト上で次のように実行して {@code assets/usb_ids.bin} を生成します。
+ * <pre>
+ * tools/compile-usb-ids.sh usb.ids
+ * </pre>
+ * スクリプトはこのクラスを {@code bin/tools} にコンパイルし、次のように実行します。
+ * <pre>
+ * java -cp bin/tools org.zakky.usbdevicelist.UsbIdsCompiler usb.ids assets/usb_ids.bin
+ * </pre>
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbIdsCompiler {
+
+    private final TreeMap<Long, String> mVendors = new TreeMap<Long, String>();
+
+    private final TreeMap<Long, String> mProducts = new TreeMap<Long, String>();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: UsbIdsCompiler <usb.ids> <output>");
+            System.exit(2);
+        }
+        final UsbIdsCompiler compiler = new UsbIdsCompiler();
+        final Reader in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        try {
+            compiler.parse(in);
+        } finally {
+            in.close();
+        }
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]));
+        try {
+            compiler.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("vendors: " + compiler.mVendors.size() + ", products: "
+                + compiler.mProducts.size());
+    }
+
+    /**
+     * {@code usb.ids} 形式のテキストを読み込みます。 ベンダ行とそれに続くプロダクト行だけを
+     * 取り込み、インタフェース行やクラス等の他のセクションは読み飛ばします。
+     */
+    public void parse(Reader reader) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        int currentVendor = -1;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            if (line.charAt(0) != '\t') {
+                // ベンダ行以外のトップレベル行 ("C 00  ..." など) でベンダのセクションが終わる
+                currentVendor = parseIdLine(line, 0);
+                if (0 <= currentVendor) {
+                    mVendors.put(Long.valueOf(currentVendor), line.substring(6).trim());
+                }
+                continue;
+            }
+            if (currentVendor < 0 || line.startsWith("\t\t")) {
+                continue;
+            }
+            final int product = parseIdLine(line, 1);
+            if (0 <= product) {
+                final long key = UsbIdsIndex.productKey(currentVendor, product) & 0xffffffffL;
+                mProducts.put(Long.valueOf(key), line.substring(7).trim());
+            }
+        }
+    }
+
+    /**
+     * {@code "xxxx  name"} 形式の行から16進4桁の ID を取り出します。
+     *
+     * @return ID。形式が異なる場合は -1。
+     */
+    private static int parseIdLine(String line, int start) {
+        if (line.length() < start + 6 || line.charAt(start + 4) != ' '
+                || line.charAt(start + 5) != ' ') {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + 4; i++) {
+            final int digit = Character.digit(line.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * インデックスを書き出します。同じ名前は文字列プール上で共有されます。
+     */
+    public void write(OutputStream os) throws IOException {
+        final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        final DataOutputStream pool = new DataOutputStream(poolBytes);
+        final Map<String, Integer> poolOffsets = new HashMap<String, Integer>();
+
+        final int[] vendorOffsets = appendNames(mVendors, pool, poolBytes, poolOffsets);
+        final int[] productOffsets = appendNames(mProducts, pool, poolBytes, poolOffsets);
+        pool.flush();
+
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(UsbIdsIndex.MAGIC);
+        out.writeInt(UsbIdsIndex.VERSION);
+        out.writeInt(mVendors.size());
+        out.writeInt(mProducts.size());
+        for (Long key : mVendors.keySet()) {
+            out.writeInt((int) key.longValue());
+        }
+        for (int offset : vendorOffsets) {
+            out.writeInt(offset);
+        }
+        for (Long key : mProducts.keySet()) {
+            out.writeInt((int) key.longValue());
+        }
+        for (int offset : productOffsets) {
+            out.writeInt(offset);
+        }
+        poolBytes.writeTo(out);
+        out.flush();
+    }
+
+    private static int[] appendNames(TreeMap<Long, String> entries, DataOutputStream pool,
+            ByteArrayOutputStream poolBytes, Map<String, Integer> poolOffsets) throws IOException {
+        final int[] offsets = new int[entries.size()];
+        int i = 0;
+        for (String name : entries.values()) {
+            Integer offset = poolOffsets.get(name);
+            if (offset == null) {
+                pool.flush();
+                offset = Integer.valueOf(poolBytes.size());
+                byte[] bytes = name.getBytes("UTF-8");
+                if (0xffff < bytes.length) {
+                    final byte[] truncated = new byte[0xffff];
+                    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+                    bytes = truncated;
+                }
+                pool.writeShort(bytes.length);
+                pool.write(bytes);
+                poolOffsets.put(name, offset);
+            }
+            offsets[i++] = offset.intValue();
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link UsbIdsCompiler} が生成したバイナリ形式のベンダ/プロダクト名インデックスを読むクラスです。
+ * <p>
+ * ファイル形式(すべてビッグエンディアン):
+ * <pre>
+ * int    magic ('U' 'I' 'D' 'X')
+ * int    version (1)
+ * int    vendorCount
+ * int    productCount
+ * int[]  vendorKeys[vendorCount]          VID の昇順
+ * int[]  vendorNameOffsets[vendorCount]   文字列プール先頭からのオフセット
+ * int[]  productKeys[productCount]        (VID &lt;&lt; 16 | PID) の昇順
+ * int[]  productNameOffsets[productCount]
+ * byte[] 文字列プール                      (u16 バイト長 + UTF-8) の並び
+ * </pre>
+ * </p>
+ * <p>
+ * 検索は {@link ByteBuffer} 上の二分探索で行い、エントリごとのオブジェクトは生成しません。
+ * 文字列が生成されるのは名前が見つかった場合だけです。 {@link ByteBuffer} の絶対位置指定の
+ * 読み出しだけを使用するので、このクラスはスレッドセーフです。 Android には依存しません。
+ * </p>
+ */
+public final class UsbIdsIndex {
+
+    static final int MAGIC = 0x55494458;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * エントリをひとつも持たないインデックス。 データベースが用意されていない場合に使用します。
+     */
+    public static final UsbIdsIndex EMPTY = new UsbIdsIndex(null, 0, 0);
+
+    private final ByteBuffer mBuffer;
+
+    private final int mVendorCount;
+
+    private final int mProductCount;
+
+    private final int mVendorKeysOffset;
+
+    private final int mVendorNamesOffset;
+
+    private final int mProductKeysOffset;
+
+    private final int mProductNamesOffset;
+
+    private final int mPoolOffset;
+
+    /**
+     * バッファをインデックスとして扱います。バッファの内容はコピーされません。
+     *
+     * @param buffer インデックスファイルの内容。position 0 から始まっている必要があります。
+     * @return インデックス。
+     * @throws IllegalArgumentException 形式が不正な場合。
+     */
+    public static UsbIdsIndex wrap(ByteBuffer buffer) {
+        final ByteBuffer b = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (b.limit() < HEADER_SIZE) {
+            throw new IllegalArgumentException("too short: " + b.limit());
+        }
+        if (b.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("bad magic.");
+        }
+        if (b.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("unsupported version: " + b.getInt(4));
+        }
+        final int vendorCount = b.getInt(8);
+        final int productCount = b.getInt(12);
+        if (vendorCount < 0 || productCount < 0) {
+            throw new IllegalArgumentException("bad entry count.");
+        }
+        final long poolOffset = HEADER_SIZE + 8L * vendorCount + 8L * productCount;
+        if (b.limit() < poolOffset) {
+            throw new IllegalArgumentException("truncated index.");
+        }
+        return new UsbIdsIndex(b, vendorCount, productCount);
+    }
+
+    private UsbIdsIndex(ByteBuffer buffer, int vendorCount, int productCount) {
+        mBuffer = buffer;
+        mVendorCount = vendorCount;
+        mProductCount = productCount;
+        mVendorKeysOffset = HEADER_SIZE;
+        mVendorNamesOffset = mVendorKeysOffset + 4 * vendorCount;
+        mProductKeysOffset = mVendorNamesOffset + 4 * vendorCount;
+        mProductNamesOffset = mProductKeysOffset + 4 * productCount;
+        mPoolOffset = mProductNamesOffset + 4 * productCount;
+    }
+
+    public int getVendorCount() {
+        return mVendorCount;
+    }
+
+    public int getProductCount() {
+        return mProductCount;
+    }
+
+    /**
+     * ベンダ名を返します。
+     *
+     * @param vendorId VID。
+     * @return ベンダ名。見つからない場合は {@code null}。
+     */
+    public String getVendorName(int vendorId) {
+        final int index = search(mVendorKeysOffset, mVendorCount, vendorId);
+        if (index < 0) {
+            return null;
+        }
+        return readName(mBuffer.getInt(mVendorNamesOffset + 4 * index));
+    }
+
+    /**
+     * プロダクト名を返します。
+     *
+     * @param vendorId VID。
+     * @param productId PID。
+     * @return プロダクト名。見つからない場合は {@code null}。
+     */
+    public String getProductName(int vendorId, int productId) {
+        final int key = productKey(vendorId, productId);
+        final int index = search(mProductKeysOffset, mProductCount, key);
+        if (index < 0) {
+            return null;
+        }
+        return readName(mBuffer.getInt(mProductNamesOffset + 4 * index));
+    }
+
+    static int productKey(int vendorId, int productId) {
+        return ((vendorId & 0xffff) << 16) | (productId & 0xffff);
+    }
+
+    /**
+     * ソート済みの int 配列領域を二分探索します。 キーは符号なしとして比較します。
+     */
+    private int search(int keysOffset, int count, int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midKey = mBuffer.getInt(keysOffset + 4 * mid);
+            final int c = compareUnsigned(midKey, key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (0 < c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    static int compareUnsigned(int a, int b) {
+        final int x = a + Integer.MIN_VALUE;
+        final int y = b + Integer.MIN_VALUE;
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+
+    private String readName(int poolRelativeOffset) {
+        final int offset = mPoolOffset + poolRelativeOffset;
+        if (poolRelativeOffset < 0 || mBuffer.limit() < offset + 2) {
+            return null;
+        }
+        final int length = mBuffer.getShort(offset) & 0xffff;
+        if (mBuffer.limit() < offset + 2 + length) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + 2 + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * int をキーとし、キーごとに複数の値を持てるマップです。
+ * <p>
+ * キーはボクシングせずに int の配列で保持し、線形探索のオープンアドレス法で引くので、
+ * 検索ではメモリを確保しません。 {@link #get(int)} が返す変更不可能なリストも
+ * キーの追加時に作っておいたものです。 値はキーごとのリストに追加順で保持し、
+ * {@link #remove(int, Object)} では同一のインスタンスを取り除きます。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ *
+ * @param <V> 値の型。
+ */
+public final class UsbIntMultimap<V> {
+
+    /**
+     * テーブルの最小の大きさ。 2のべき乗です。
+     */
+    static final int MIN_CAPACITY = 16;
+
+    private int[] mKeys;
+
+    /**
+     * キーごとの値のリスト。 {@code null} のスロットは空きです。
+     */
+    private List<V>[] mValues;
+
+    /**
+     * {@link #mValues} の各リストの変更不可能なビュー。 {@link #get(int)} が返します。
+     */
+    private List<V>[] mViews;
+
+    private int mKeyCount;
+
+    public UsbIntMultimap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new List[capacity];
+        mViews = new List[capacity];
+        mKeyCount = 0;
+    }
+
+    /**
+     * 値を追加します。
+     */
+    public void put(int key, V value) {
+        int slot = findSlot(key);
+        if (mValues[slot] == null) {
+            if (mKeys.length <= (mKeyCount + 1) * 2) {
+                rehash(mKeys.length * 2);
+                slot = findSlot(key);
+            }
+            final List<V> values = Lists.newArrayListWithCapacity(1);
+            mKeys[slot] = key;
+            mValues[slot] = values;
+            mViews[slot] = Collections.unmodifiableList(values);
+            mKeyCount++;
+        }
+        mValues[slot].add(value);
+    }
+
+    /**
+     * 値を取り除きます。 キーの値が無くなった場合はキーも取り除きます。
+     *
+     * @return 取り除いた場合は {@code true}。
+     */
+    public boolean remove(int key, V value) {
+        final int slot = findSlot(key);
+        final List<V> values = mValues[slot];
+        if (values == null) {
+            return false;
+        }
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) == value) {
+                values.remove(i);
+                if (values.isEmpty()) {
+                    removeSlot(slot);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return キーの値の、追加順の変更不可能なリスト。 値が無い場合は空のリスト。
+     */
+    public List<V> get(int key) {
+        final List<V> view = mViews[findSlot(key)];
+        if (view == null) {
+            return Collections.emptyList();
+        }
+        return view;
+    }
+
+    /**
+     * @return キーの最初の値。 値が無い場合は {@code null}。
+     */
+    public V getFirst(int key) {
+        final List<V> values = mValues[findSlot(key)];
+        return (values == null) ? null : values.get(0);
+    }
+
+    /**
+     * @return 値を持つキーの数。
+     */
+    public int keyCount() {
+        return mKeyCount;
+    }
+
+    /**
+     * すべての値を取り除きます。
+     */
+    public void clear() {
+        Arrays.fill(mKeys, 0);
+        Arrays.fill(mValues, null);
+        Arrays.fill(mViews, null);
+        mKeyCount = 0;
+    }
+
+    /**
+     * @return キーを持つスロットか、キーが無い場合は挿入先の空きスロット。
+     */
+    private int findSlot(int key) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mValues[slot] != null && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * キーのハッシュ値を返します。 テーブルの大きさでマスクした位置から探索を始めます。
+     */
+    static int hash(int key) {
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * スロットを空け、後続のスロットを詰めて探索の連鎖を保ちます。
+     */
+    private void removeSlot(int slot) {
+        final int mask = mKeys.length - 1;
+        mValues[slot] = null;
+        mViews[slot] = null;
+        mKeyCount--;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (mValues[next] != null) {
+            final int home = hash(mKeys[next]) & mask;
+            // home が (hole, next] の範囲に無ければ、 hole へ移しても探索できる
+            final boolean movable = (hole <= next) ? (home <= hole || next < home)
+                    : (home <= hole && next < home);
+            if (movable) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                mViews[hole] = mViews[next];
+                mValues[next] = null;
+                mViews[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        final int[] oldKeys = mKeys;
+        final List<V>[] oldValues = mValues;
+        final List<V>[] oldViews = mViews;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                final int slot = findSlot(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+                mViews[slot] = oldViews[i];
+                mKeyCount++;
+            }
+        }
+    }
+}
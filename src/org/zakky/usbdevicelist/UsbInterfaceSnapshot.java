@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ある時点での Interface の情報を保持するイミュータブルなクラスです。 Endpoint の
+ * リストは Endpoint Number の昇順で保持します。
+ */
+public final class UsbInterfaceSnapshot {
+
+    /**
+     * Interface を Id でソートするためのコンパレータ。
+     */
+    public static final Comparator<UsbInterfaceSnapshot> INTERFACE_COMPARATOR = new Comparator<UsbInterfaceSnapshot>() {
+        @Override
+        public int compare(UsbInterfaceSnapshot iface1, UsbInterfaceSnapshot iface2) {
+            return Integer.valueOf(iface1.getId()).compareTo(Integer.valueOf(iface2.getId()));
+        }
+    };
+
+    private static final UsbPerfStats.Timer SORT_TIMER = UsbPerfStats
+            .newTimer("sort.endpoints");
+
+    private final int mId;
+
+    private final int mInterfaceClass;
+
+    private final int mInterfaceSubclass;
+
+    private final int mInterfaceProtocol;
+
+    private final ImmutableList<UsbEndpointSnapshot> mEndpoints;
+
+    public UsbInterfaceSnapshot(int id, int interfaceClass, int interfaceSubclass,
+            int interfaceProtocol, List<UsbEndpointSnapshot> endpoints) {
+        mId = id;
+        mInterfaceClass = interfaceClass;
+        mInterfaceSubclass = interfaceSubclass;
+        mInterfaceProtocol = interfaceProtocol;
+
+        final UsbEndpointSnapshot[] sorted = endpoints.toArray(new UsbEndpointSnapshot[endpoints
+                .size()]);
+        final long start = SORT_TIMER.start();
+        try {
+            Arrays.sort(sorted, UsbEndpointSnapshot.EP_COMPARATOR);
+        } finally {
+            SORT_TIMER.stop(start);
+        }
+        mEndpoints = ImmutableList.copyOf(sorted);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getInterfaceClass() {
+        return mInterfaceClass;
+    }
+
+    public int getInterfaceSubclass() {
+        return mInterfaceSubclass;
+    }
+
+    public int getInterfaceProtocol() {
+        return mInterfaceProtocol;
+    }
+
+    public int getEndpointCount() {
+        return mEndpoints.size();
+    }
+
+    public UsbEndpointSnapshot getEndpoint(int index) {
+        return mEndpoints.get(index);
+    }
+
+    /**
+     * Endpoint Number 順にソートされた Endpoint のリストを返します。
+     *
+     * @return 変更不可能なリスト。
+     */
+    public List<UsbEndpointSnapshot> getEndpoints() {
+        return mEndpoints;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + mId;
+        result = 31 * result + mInterfaceClass;
+        result = 31 * result + mInterfaceSubclass;
+        result = 31 * result + mInterfaceProtocol;
+        result = 31 * result + mEndpoints.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof UsbInterfaceSnapshot)) {
+            return false;
+        }
+        final UsbInterfaceSnapshot other = (UsbInterfaceSnapshot) obj;
+        return mId == other.mId && mInterfaceClass == other.mInterfaceClass
+                && mInterfaceSubclass == other.mInterfaceSubclass
+                && mInterfaceProtocol == other.mInterfaceProtocol
+                && mEndpoints.equals(other.mEndpoints);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+/**
+ * インタラプト IN Endpoint の到着間隔を {@link UsbLatencyHistogram} に記録し、
+ * ディスクリプタの bInterval から求めたポーリング間隔と比較するクラスです。
+ * <p>
+ * {@link #onCompleted(long, int)} は {@link UsbStreamReader} の読み込みスレッドから、
+ * {@link #copyTo(UsbLatencyHistogram)} は表示側のスレッドから呼ばれることを想定して、
+ * 両者をこのオブジェクトのロックで同期します。 記録時にメモリは確保しません。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbInterruptLatencyRecorder implements UsbStreamReader.CompletionObserver {
+
+    /**
+     * 許容する遅れの割合(%)。 ポーリング間隔のこの割合を超えた到着間隔を遅延とみなします。
+     */
+    public static final int LATE_TOLERANCE_PERCENT = 150;
+
+    /**
+     * 判定に使うパーセンタイル。
+     */
+    public static final double VERDICT_PERCENTILE = 99.0;
+
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+    private final long mExpectedIntervalNanos;
+
+    private final UsbLatencyHistogram mHistogram = new UsbLatencyHistogram();
+
+    private long mLastTimestamp = -1L;
+
+    /**
+     * @param expectedIntervalNanos ディスクリプタで宣言されたポーリング間隔(ナノ秒)。
+     */
+    public UsbInterruptLatencyRecorder(long expectedIntervalNanos) {
+        mExpectedIntervalNanos = expectedIntervalNanos;
+    }
+
+    /**
+     * bInterval をポーリング間隔に変換します。
+     * <p>
+     * フルスピード/ロースピードでは bInterval はそのままミリ秒(フレーム数)、
+     * ハイスピードでは 2^(bInterval-1) マイクロフレーム (125us) です。
+     * </p>
+     *
+     * @param bInterval ディスクリプタの bInterval。
+     * @param highSpeed ハイスピードのデバイスの場合は {@code true}。
+     * @return ポーリング間隔(ナノ秒)。
+     */
+    public static long toIntervalNanos(int bInterval, boolean highSpeed) {
+        if (highSpeed) {
+            final int exponent = Math.min(Math.max(bInterval, 1), 16) - 1;
+            return (125L * NANOS_PER_MICRO) << exponent;
+        }
+        return Math.max(bInterval, 1) * NANOS_PER_MILLI;
+    }
+
+    public long getExpectedIntervalNanos() {
+        return mExpectedIntervalNanos;
+    }
+
+    @Override
+    public synchronized void onCompleted(long timestampNanos, int length) {
+        if (0 <= mLastTimestamp) {
+            mHistogram.record(Math.max(0L, timestampNanos - mLastTimestamp));
+        }
+        mLastTimestamp = timestampNanos;
+    }
+
+    /**
+     * 記録した到着間隔を {@code target} に上書きコピーします。
+     */
+    public synchronized void copyTo(UsbLatencyHistogram target) {
+        mHistogram.copyTo(target);
+    }
+
+    /**
+     * 到着間隔の分布がポーリング間隔を守れていないかどうかを判定します。
+     *
+     * @param histogram 到着間隔の分布。
+     * @param expectedIntervalNanos ポーリング間隔(ナノ秒)。
+     * @return {@link #VERDICT_PERCENTILE} パーセンタイルの到着間隔が、ポーリング間隔の
+     * {@link #LATE_TOLERANCE_PERCENT}% を超えている場合は {@code true}。
+     */
+    public static boolean isMissingInterval(UsbLatencyHistogram histogram,
+            long expectedIntervalNanos) {
+        if (histogram.getTotalCount() == 0) {
+            return false;
+        }
+        return getLateThreshold(expectedIntervalNanos) < histogram
+                .getValueAtPercentile(VERDICT_PERCENTILE);
+    }
+
+    private static long getLateThreshold(long expectedIntervalNanos) {
+        return expectedIntervalNanos * LATE_TOLERANCE_PERCENT / 100;
+    }
+
+    /**
+     * 分布の要約を1行のテキストとして追加します。
+     *
+     * @return {@code sb}
+     */
+    public static StringBuilder appendReport(StringBuilder sb, UsbLatencyHistogram histogram,
+            long expectedIntervalNanos) {
+        final long total = histogram.getTotalCount();
+        sb.append("interval ");
+        appendMillis(sb, expectedIntervalNanos).append(", n=").append(total);
+        if (total == 0) {
+            return sb;
+        }
+        sb.append(", p50 ");
+        appendMillis(sb, histogram.getValueAtPercentile(50.0)).append(", p99 ");
+        appendMillis(sb, histogram.getValueAtPercentile(99.0)).append(", p99.9 ");
+        appendMillis(sb, histogram.getValueAtPercentile(99.9)).append(", max ");
+        appendMillis(sb, histogram.getMax()).append(", late ");
+        final long late = histogram.getCountAbove(getLateThreshold(expectedIntervalNanos));
+        sb.append(late * 1000 / total / 10).append('.').append(late * 1000 / total % 10)
+                .append('%');
+        return sb.append(isMissingInterval(histogram, expectedIntervalNanos) ? " MISSED"
+                : " OK");
+    }
+
+    /**
+     * ナノ秒の値をミリ秒単位で小数点以下3桁まで追加します。
+     */
+    private static StringBuilder appendMillis(StringBuilder sb, long nanos) {
+        final long micros = nanos / NANOS_PER_MICRO;
+        sb.append(micros / 1000L).append('.');
+        final long fraction = micros % 1000L;
+        if (fraction < 100L) {
+            sb.append('0');
+        }
+        if (fraction < 10L) {
+            sb.append('0');
+        }
+        return sb.append(fraction).append(" ms");
+    }
+}
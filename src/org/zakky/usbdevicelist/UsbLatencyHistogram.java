@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.util.Arrays;
+
+/**
+ * 0 以上の long 値(ナノ秒単位のレイテンシなど)の分布を記録する、メモリ量固定の
+ * 対数バケットのヒストグラムです。
+ * <p>
+ * 値は2のべき乗ごとの区間に分けられ、各区間はさらに {@link #SUB_BUCKET_COUNT} 個の
+ * 等幅のバケットに分けられます。 そのため、 {@link #SUB_BUCKET_COUNT} 未満の値は
+ * 正確に、それ以上の値は相対誤差 1/{@link #SUB_BUCKET_COUNT} 以内で記録されます。
+ * バケットは生成時に確保するので、 {@link #record(long)} はメモリを確保しません。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * 2のべき乗の区間ひとつあたりのバケット数。
+     */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * long の正の値をすべて表現するのに必要なバケット数。
+     */
+    private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+
+    private long mTotalCount;
+
+    private long mMin = Long.MAX_VALUE;
+
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * 値を記録します。
+     *
+     * @param value 0 以上の値。
+     * @throws IllegalArgumentException 値が負の場合。
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value: " + value);
+        }
+        mCounts[bucketIndex(value)]++;
+        mTotalCount++;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (mMax < value) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * 記録した値をすべて破棄します。
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0L);
+        mTotalCount = 0L;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    /**
+     * このヒストグラムの内容を {@code target} に上書きコピーします。 メモリは確保しません。
+     */
+    public void copyTo(UsbLatencyHistogram target) {
+        System.arraycopy(mCounts, 0, target.mCounts, 0, BUCKET_COUNT);
+        target.mTotalCount = mTotalCount;
+        target.mMin = mMin;
+        target.mMax = mMax;
+    }
+
+    /**
+     * {@code other} の内容をこのヒストグラムに加えます。
+     */
+    public void add(UsbLatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return 最小値。 値が記録されていない場合は 0。
+     */
+    public long getMin() {
+        return (mTotalCount == 0) ? 0L : mMin;
+    }
+
+    /**
+     * @return 最大値。 値が記録されていない場合は 0。
+     */
+    public long getMax() {
+        return (mTotalCount == 0) ? 0L : mMax;
+    }
+
+    /**
+     * 指定したパーセンタイルの値を返します。 値はその値を含むバケットの上限で、
+     * 記録された最大値を超えることはありません。
+     *
+     * @param percentile 0 から 100 までのパーセンタイル。
+     * @return パーセンタイルの値。 値が記録されていない場合は 0。
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || 100.0 < percentile) {
+            throw new IllegalArgumentException("invalid percentile: " + percentile);
+        }
+        if (mTotalCount == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * mTotalCount));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (rank <= seen) {
+                return Math.min(Math.max(highestValueInBucket(i), mMin), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * 指定した値より大きい値の記録数を返します。 境界のバケットに含まれる値は、
+     * バケットの下限が {@code value} より大きい場合だけ数えます。
+     */
+    public long getCountAbove(long value) {
+        if (value < 0) {
+            return mTotalCount;
+        }
+        long count = 0L;
+        for (int i = bucketIndex(value) + 1; i < BUCKET_COUNT; i++) {
+            count += mCounts[i];
+        }
+        return count;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long lowestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return subBucket << shift;
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        return lowestValueInBucket(index) + (1L << shift) - 1L;
+    }
+}
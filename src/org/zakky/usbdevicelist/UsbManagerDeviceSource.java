@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * {@link UsbManager} からデバイスを列挙する {@link UsbDeviceSource} です。
+ * <p>
+ * {@link UsbManager} からはハブのポートがわからないので、 sysfs が読める場合は
+ * そこからポートパスを補います。 読めない場合はポートパスなしで列挙します。
+ * </p>
+ */
+public final class UsbManagerDeviceSource implements UsbDeviceSource {
+
+    private static final UsbPerfStats.Timer GET_DEVICE_LIST_TIMER = UsbPerfStats
+            .newTimer("UsbManager.getDeviceList");
+
+    private static final UsbPerfStats.Timer PORT_PATHS_TIMER = UsbPerfStats
+            .newTimer("sysfs.readPortPaths");
+
+    private static final UsbPerfStats.Timer SNAPSHOT_TIMER = UsbPerfStats
+            .newTimer("snapshot.build");
+
+    private final UsbManager mUsbManager;
+
+    public UsbManagerDeviceSource(UsbManager usbManager) {
+        mUsbManager = usbManager;
+    }
+
+    @Override
+    public UsbTopologySnapshot enumerate() {
+        final Collection<UsbDevice> devices;
+        long start = GET_DEVICE_LIST_TIMER.start();
+        try {
+            devices = mUsbManager.getDeviceList().values();
+        } finally {
+            GET_DEVICE_LIST_TIMER.stop(start);
+        }
+
+        final Map<String, String> portPaths;
+        start = PORT_PATHS_TIMER.start();
+        try {
+            portPaths = UsbSysfsDeviceSource.readPortPaths(new File(
+                    UsbSysfsDeviceSource.DEFAULT_ROOT));
+        } finally {
+            PORT_PATHS_TIMER.stop(start);
+        }
+
+        start = SNAPSHOT_TIMER.start();
+        try {
+            return UsbSnapshotFactory.newTopologySnapshot(devices, portPaths);
+        } finally {
+            SNAPSHOT_TIMER.stop(start);
+        }
+    }
+}
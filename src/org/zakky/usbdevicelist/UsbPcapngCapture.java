@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link UsbStreamMonitor} で読み込んだデータを {@link UsbPcapngWriter} で書き出す
+ * コンシューマです。
+ * <p>
+ * 書き込みはコンシューマスレッドで行うので、 {@link UsbStreamReader} の読み込みスレッドを
+ * 止めることはありません。 書き込みに失敗した場合は以降のデータを破棄し、
+ * {@link #isFailed()} が {@code true} になります。 統計値は任意のスレッドから取得できます。
+ * </p>
+ * <p>
+ * パケットの時刻には、コンシューマが受け取った時刻ではなく、読み込みスレッドが要求の完了を
+ * 検知した時刻を使います。 そのため {@link UsbStreamReader.CompletionObserver} としても
+ * 同じ読み込みに登録してください。 完了の時刻はデータと同じ順序で届くので、
+ * 固定長のリングで受け渡します。
+ * </p>
+ */
+public final class UsbPcapngCapture implements UsbStreamMonitor.Consumer,
+        UsbStreamReader.CompletionObserver {
+
+    /**
+     * 完了の時刻を受け渡すリングの大きさ。 読み込み済みでコンシューマに渡していない
+     * バッファの数より大きい2のべき乗にします。
+     */
+    private static final int TIMESTAMP_CAPACITY = Integer
+            .highestOneBit(UsbStreamMonitor.DEFAULT_BUFFER_COUNT) << 1;
+
+    private final UsbPcapngWriter mWriter;
+
+    private final int mBusNumber;
+
+    private final int mDeviceNumber;
+
+    private final int mEndpointAddress;
+
+    private final int mTransferType;
+
+    private final int mInterval;
+
+    /*
+     * {@link System#nanoTime()} を壁時計の時刻に変換するための基準値。
+     */
+
+    private final long mBaseEpochNanos;
+
+    private final long mBaseNanoTime;
+
+    /**
+     * 完了の時刻 ({@link System#nanoTime()}) のリング。 読み込みスレッドが追加し、
+     * コンシューマスレッドが取り出します。
+     */
+    private final long[] mTimestamps = new long[TIMESTAMP_CAPACITY];
+
+    /**
+     * 次に取り出す位置。 コンシューマスレッドだけが書き込みます。
+     */
+    private final AtomicLong mTimestampHead = new AtomicLong();
+
+    /**
+     * 次に追加する位置。 読み込みスレッドだけが書き込みます。
+     */
+    private final AtomicLong mTimestampTail = new AtomicLong();
+
+    private volatile long mPacketCount;
+
+    private volatile File mCurrentFile;
+
+    private volatile boolean mFailed = false;
+
+    /**
+     * @param writer 書き込み先。 このオブジェクトが終了時にクローズします。
+     * @param deviceName {@code /dev/bus/usb/BBB/DDD} 形式のデバイス名。
+     * @param endpointAddress 方向ビットを含む Endpoint アドレス。
+     * @param transferType USB 仕様の転送タイプ。
+     * @param interval Endpoint の bInterval。
+     */
+    public UsbPcapngCapture(UsbPcapngWriter writer, String deviceName, int endpointAddress,
+            int transferType, int interval) {
+        mWriter = writer;
+        mBusNumber = Math.max(0, UsbDeviceNames.getBusNumber(deviceName));
+        mDeviceNumber = Math.max(0, UsbDeviceNames.getDeviceNumber(deviceName));
+        mEndpointAddress = endpointAddress;
+        mTransferType = transferType;
+        mInterval = interval;
+        mBaseEpochNanos = System.currentTimeMillis() * 1000L * 1000L;
+        mBaseNanoTime = System.nanoTime();
+    }
+
+    @Override
+    public void onCompleted(long timestampNanos, int length) {
+        final long tail = mTimestampTail.get();
+        if (tail - mTimestampHead.get() == TIMESTAMP_CAPACITY) {
+            // 受け渡し中のバッファの数より大きいので、満杯になることはない
+            return;
+        }
+        mTimestamps[(int) tail & (TIMESTAMP_CAPACITY - 1)] = timestampNanos;
+        mTimestampTail.lazySet(tail + 1);
+    }
+
+    /**
+     * データに対応する完了の時刻を取り出します。 コンシューマスレッドから呼びます。
+     *
+     * @return 完了の時刻。 完了を受け取っていない場合は現在の時刻。
+     */
+    private long pollTimestamp() {
+        final long head = mTimestampHead.get();
+        if (head == mTimestampTail.get()) {
+            return System.nanoTime();
+        }
+        final long timestamp = mTimestamps[(int) head & (TIMESTAMP_CAPACITY - 1)];
+        mTimestampHead.lazySet(head + 1);
+        return timestamp;
+    }
+
+    @Override
+    public void onData(ByteBuffer data) {
+        final long nanoTime = pollTimestamp();
+        if (mFailed) {
+            return;
+        }
+        final long timestamp = mBaseEpochNanos + (nanoTime - mBaseNanoTime);
+        try {
+            mWriter.writeTransfer(timestamp, mBusNumber, mDeviceNumber, mEndpointAddress,
+                    mTransferType, mInterval, data);
+        } catch (IOException e) {
+            fail();
+            return;
+        }
+        mPacketCount = mWriter.getPacketCount();
+        mCurrentFile = mWriter.getCurrentFile();
+    }
+
+    @Override
+    public void onFinished() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            mFailed = true;
+        }
+    }
+
+    private void fail() {
+        mFailed = true;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            // 既に失敗しているので無視する
+        }
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return 書き込み中、または最後に書き込んだファイル。 まだ作成していない場合は {@code null}。
+     */
+    public File getCurrentFile() {
+        return mCurrentFile;
+    }
+
+    /**
+     * @return ファイルの作成や書き込みに失敗した場合は {@code true}。
+     */
+    public boolean isFailed() {
+        return mFailed;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.Locale;
+
+/**
+ * USB の転送を Wireshark で開ける pcapng 形式のファイルへ書き出すクラスです。
+ * <p>
+ * リンクタイプは {@link #LINKTYPE_USB_LINUX_MMAPPED} で、各パケットは Linux usbmon の
+ * 64 バイトのヘッダと転送データからなります。 ファイルは {@link FileChannel} で
+ * {@link #SEGMENT_BYTES} ずつメモリマップし、ブロックはマップした領域へ直接書き込みます。
+ * ディスクへの同期 ({@link MappedByteBuffer#force()}) はセグメントを使い切った時と
+ * {@link #flush()}, {@link #close()} の時にまとめて行うので、パケットごとの
+ * システムコールやメモリ確保はありません。
+ * </p>
+ * <p>
+ * ファイルが {@code maxFileBytes} に達すると次のファイルに切り替え、ファイル数が
+ * {@code maxFileCount} を超えた場合は古いものから削除します。 ファイルは最初の書き込みで
+ * 作成されます。 このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbPcapngWriter implements Closeable {
+
+    /**
+     * Linux usbmon のメモリマップ形式のリンクタイプ。
+     */
+    public static final int LINKTYPE_USB_LINUX_MMAPPED = 220;
+
+    /**
+     * 一度にメモリマップするバイト数。
+     */
+    public static final int SEGMENT_BYTES = 1024 * 1024;
+
+    /**
+     * スナップ長のデフォルト値。
+     */
+    public static final int DEFAULT_SNAP_LENGTH = 65535;
+
+    /**
+     * パケット先頭の usbmon ヘッダのバイト数。
+     */
+    public static final int USBMON_HEADER_LENGTH = 64;
+
+    /**
+     * 作成するファイルの拡張子。
+     */
+    public static final String FILE_SUFFIX = ".pcapng";
+
+    private static final int BLOCK_TYPE_SECTION_HEADER = 0x0A0D0D0A;
+
+    private static final int BLOCK_TYPE_INTERFACE_DESCRIPTION = 0x00000001;
+
+    private static final int BLOCK_TYPE_ENHANCED_PACKET = 0x00000006;
+
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    private static final int SECTION_HEADER_LENGTH = 28;
+
+    private static final int INTERFACE_DESCRIPTION_LENGTH = 32;
+
+    /**
+     * Enhanced Packet Block のうち、パケットデータ以外の部分のバイト数。
+     */
+    private static final int ENHANCED_PACKET_OVERHEAD = 32;
+
+    private static final short OPTION_END_OF_OPT = 0;
+
+    private static final short OPTION_IF_TSRESOL = 9;
+
+    /**
+     * タイムスタンプの分解能 (10^-9 秒)。
+     */
+    private static final byte TSRESOL_NANOS = 9;
+
+    /**
+     * USB 仕様の転送タイプ (bmAttributes の下位2ビット) から usbmon の転送タイプへの変換表。
+     */
+    private static final byte[] USBMON_TRANSFER_TYPES = {
+            2, // コントロール
+            0, // アイソクロナス
+            3, // バルク
+            1, // インタラプト
+    };
+
+    private static final byte USBMON_EVENT_COMPLETE = 'C';
+
+    private static final byte USBMON_NO_SETUP = '-';
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    private final File mDirectory;
+
+    private final String mBaseName;
+
+    private final long mMaxFileBytes;
+
+    private final int mMaxFileCount;
+
+    private final int mSnapLength;
+
+    /**
+     * 作成したファイル。 古いものが先頭です。
+     */
+    private final LinkedList<File> mFiles = new LinkedList<File>();
+
+    private int mFileIndex;
+
+    private RandomAccessFile mFile;
+
+    private FileChannel mChannel;
+
+    /**
+     * 書き込み中のセグメント。 ファイルを開いていない場合は {@code null}。
+     */
+    private MappedByteBuffer mSegment;
+
+    /**
+     * {@link #mSegment} の先頭のファイル上の位置。
+     */
+    private long mSegmentOffset;
+
+    private long mPacketCount;
+
+    private long mSequence;
+
+    private boolean mClosed = false;
+
+    /**
+     * @param directory ファイルを作成するディレクトリ。 存在しない場合は作成します。
+     * @param baseName ファイル名の先頭部分。 連番と {@link #FILE_SUFFIX} が付加されます。
+     * @param maxFileBytes ファイル1つの最大バイト数。
+     * @param maxFileCount 残しておくファイルの最大数。
+     * @param snapLength usbmon ヘッダを含めた、1パケットあたりの最大記録バイト数。
+     */
+    public UsbPcapngWriter(File directory, String baseName, long maxFileBytes, int maxFileCount,
+            int snapLength) {
+        if (snapLength < USBMON_HEADER_LENGTH
+                || SEGMENT_BYTES < getMaxBlockLength(snapLength)) {
+            throw new IllegalArgumentException("invalid snapLength: " + snapLength);
+        }
+        if (maxFileBytes < SECTION_HEADER_LENGTH + INTERFACE_DESCRIPTION_LENGTH
+                + getMaxBlockLength(snapLength)) {
+            throw new IllegalArgumentException("maxFileBytes is too small: " + maxFileBytes);
+        }
+        if (maxFileCount <= 0) {
+            throw new IllegalArgumentException("invalid maxFileCount: " + maxFileCount);
+        }
+        mDirectory = directory;
+        mBaseName = baseName;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileCount = maxFileCount;
+        mSnapLength = snapLength;
+    }
+
+    private static int getMaxBlockLength(int snapLength) {
+        return ENHANCED_PACKET_OVERHEAD + pad4(snapLength);
+    }
+
+    private static int pad4(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * 完了した転送を1パケットとして書き込みます。
+     *
+     * @param timestampNanos 完了時刻 (1970-01-01T00:00:00Z からのナノ秒)。
+     * @param busNumber バス番号。
+     * @param deviceNumber バス上のデバイス番号。
+     * @param endpointAddress 方向ビットを含む Endpoint アドレス。
+     * @param transferType USB 仕様の転送タイプ (0: コントロール, 1: アイソクロナス,
+     * 2: バルク, 3: インタラプト)。
+     * @param interval Endpoint の bInterval。
+     * @param data 転送データ。 position から limit までを書き込みます。
+     * position と limit は変更しません。
+     * @throws IOException ファイルの作成や書き込みに失敗した場合。
+     */
+    public void writeTransfer(long timestampNanos, int busNumber, int deviceNumber,
+            int endpointAddress, int transferType, int interval, ByteBuffer data)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("already closed.");
+        }
+        final int length = data.remaining();
+        final int captured = Math.min(length, mSnapLength - USBMON_HEADER_LENGTH);
+        final int packetLength = USBMON_HEADER_LENGTH + captured;
+        final int blockLength = ENHANCED_PACKET_OVERHEAD + pad4(packetLength);
+        final MappedByteBuffer segment = reserve(blockLength);
+
+        segment.putInt(BLOCK_TYPE_ENHANCED_PACKET);
+        segment.putInt(blockLength);
+        segment.putInt(0); // Interface ID
+        segment.putInt((int) (timestampNanos >>> 32));
+        segment.putInt((int) timestampNanos);
+        segment.putInt(packetLength);
+        segment.putInt(USBMON_HEADER_LENGTH + length);
+
+        // usbmon のヘッダ (struct usbmon_packet)
+        segment.putLong(mSequence++);
+        segment.put(USBMON_EVENT_COMPLETE);
+        segment.put(USBMON_TRANSFER_TYPES[transferType & 0x03]);
+        segment.put((byte) endpointAddress);
+        segment.put((byte) deviceNumber);
+        segment.putShort((short) busNumber);
+        segment.put(USBMON_NO_SETUP);
+        segment.put((byte) 0); // データあり
+        segment.putLong(timestampNanos / NANOS_PER_SECOND);
+        segment.putInt((int) (timestampNanos % NANOS_PER_SECOND / 1000L));
+        segment.putInt(0); // status
+        segment.putInt(length);
+        segment.putInt(captured);
+        segment.putLong(0L); // setup
+        segment.putInt(interval);
+        segment.putInt(0); // start_frame
+        segment.putInt(0); // xfer_flags
+        segment.putInt(0); // ndesc
+
+        final int position = data.position();
+        final int limit = data.limit();
+        data.limit(position + captured);
+        segment.put(data);
+        data.limit(limit).position(position);
+        for (int i = packetLength; i < pad4(packetLength); i++) {
+            segment.put((byte) 0);
+        }
+        segment.putInt(blockLength);
+        mPacketCount++;
+    }
+
+    /**
+     * {@code blockLength} バイトを書き込める位置にセグメントを用意します。
+     * 必要に応じて新しいファイルを開いたり、次のセグメントをマップしたりします。
+     */
+    private MappedByteBuffer reserve(int blockLength) throws IOException {
+        if (mSegment == null) {
+            openNextFile();
+        } else if (mMaxFileBytes < getFilePosition() + blockLength) {
+            closeFile();
+            openNextFile();
+        }
+        if (mSegment.remaining() < blockLength) {
+            mapSegment(getFilePosition());
+        }
+        return mSegment;
+    }
+
+    private long getFilePosition() {
+        return mSegmentOffset + mSegment.position();
+    }
+
+    private void mapSegment(long offset) throws IOException {
+        if (mSegment != null) {
+            mSegment.force();
+        }
+        final long size = Math.min(SEGMENT_BYTES, mMaxFileBytes - offset);
+        mSegment = mChannel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        mSegment.order(ByteOrder.LITTLE_ENDIAN);
+        mSegmentOffset = offset;
+    }
+
+    private void openNextFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("failed to create directory: " + mDirectory);
+        }
+        mFileIndex++;
+        final File file = new File(mDirectory, String.format(Locale.US, "%s-%03d%s",
+                mBaseName, Integer.valueOf(mFileIndex), FILE_SUFFIX));
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0L);
+        mChannel = mFile.getChannel();
+        mFiles.addLast(file);
+        while (mMaxFileCount < mFiles.size()) {
+            final File oldest = mFiles.removeFirst();
+            if (!oldest.delete()) {
+                throw new IOException("failed to delete: " + oldest);
+            }
+        }
+
+        mapSegment(0L);
+        writeSectionHeader(mSegment);
+        writeInterfaceDescription(mSegment);
+    }
+
+    private static void writeSectionHeader(ByteBuffer segment) {
+        segment.putInt(BLOCK_TYPE_SECTION_HEADER);
+        segment.putInt(SECTION_HEADER_LENGTH);
+        segment.putInt(BYTE_ORDER_MAGIC);
+        segment.putShort((short) 1); // Major Version
+        segment.putShort((short) 0); // Minor Version
+        segment.putLong(-1L); // Section Length (不明)
+        segment.putInt(SECTION_HEADER_LENGTH);
+    }
+
+    private void writeInterfaceDescription(ByteBuffer segment) {
+        segment.putInt(BLOCK_TYPE_INTERFACE_DESCRIPTION);
+        segment.putInt(INTERFACE_DESCRIPTION_LENGTH);
+        segment.putShort((short) LINKTYPE_USB_LINUX_MMAPPED);
+        segment.putShort((short) 0); // Reserved
+        segment.putInt(mSnapLength);
+        segment.putShort(OPTION_IF_TSRESOL);
+        segment.putShort((short) 1);
+        segment.put(TSRESOL_NANOS);
+        segment.put((byte) 0).put((byte) 0).put((byte) 0);
+        segment.putShort(OPTION_END_OF_OPT);
+        segment.putShort((short) 0);
+        segment.putInt(INTERFACE_DESCRIPTION_LENGTH);
+    }
+
+    /**
+     * 書き込み中のファイルを閉じ、マップのために確保した未使用の領域を切り詰めます。
+     */
+    private void closeFile() throws IOException {
+        if (mSegment == null) {
+            return;
+        }
+        try {
+            final long length = getFilePosition();
+            mSegment.force();
+            mSegment = null;
+            mChannel.truncate(length);
+        } finally {
+            mChannel = null;
+            final RandomAccessFile file = mFile;
+            mFile = null;
+            file.close();
+        }
+    }
+
+    /**
+     * 書き込んだ内容をディスクに同期します。
+     */
+    public void flush() {
+        if (mSegment != null) {
+            mSegment.force();
+        }
+    }
+
+    /**
+     * 書き込み中のファイルを閉じます。 以降は書き込めません。
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        closeFile();
+    }
+
+    /**
+     * @return 書き込んだパケットの数。
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return 書き込み中、または最後に書き込んだファイル。 まだ作成していない場合は {@code null}。
+     */
+    public File getCurrentFile() {
+        return mFiles.isEmpty() ? null : mFiles.getLast();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 名前付きのタイマとカウンタを保持し、その値をダンプするクラスです。
+ * <p>
+ * タイマとカウンタは計測する側のクラスの static final フィールドとして
+ * {@link #newTimer(String)}, {@link #newCounter(String)} で生成しておき、
+ * 計測時には名前で探さずにそのまま使います。 値はロックを使わない
+ * {@link AtomicLong} に積算するので、任意のスレッドから呼べます。 積算値は
+ * {@link #dump(String, PrintWriter)} で書き出し、 {@link #reset()} で 0 に戻します。
+ * </p>
+ * <p>
+ * {@link #setTracer(Tracer)} でトレーサを設定すると、タイマの区間がトレースの
+ * セクションとしても記録されます。 区間の途中でトレーサを切り替えると、その区間の
+ * セクションの開始と終了が対応しなくなることがあります。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbPerfStats {
+
+    /**
+     * タイマの区間を記録するトレーサです。 開始と終了は同じスレッドから呼ばれます。
+     */
+    public interface Tracer {
+        public void beginSection(String name);
+
+        public void endSection();
+    }
+
+    /**
+     * 区間の回数、合計時間、最大時間を積算するタイマです。
+     */
+    public static final class Timer {
+        private final String mName;
+
+        private final AtomicLong mCount = new AtomicLong();
+
+        private final AtomicLong mTotalNanos = new AtomicLong();
+
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        Timer(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * 区間を開始します。 必ず対応する {@link #stop(long)} を呼んでください。
+         *
+         * @return {@link #stop(long)} に渡す開始時刻。
+         */
+        public long start() {
+            final Tracer tracer = sTracer;
+            if (tracer != null) {
+                tracer.beginSection(mName);
+            }
+            return System.nanoTime();
+        }
+
+        /**
+         * 区間を終了し、経過時間を積算します。
+         *
+         * @param startNanos {@link #start()} の戻り値。
+         */
+        public void stop(long startNanos) {
+            record(System.nanoTime() - startNanos);
+            final Tracer tracer = sTracer;
+            if (tracer != null) {
+                tracer.endSection();
+            }
+        }
+
+        /**
+         * 計測済みの経過時間を積算します。
+         */
+        public void record(long nanos) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (max < nanos && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        void reset() {
+            mCount.set(0L);
+            mTotalNanos.set(0L);
+            mMaxNanos.set(0L);
+        }
+    }
+
+    /**
+     * 値を積算するカウンタです。
+     */
+    public static final class Counter {
+        private final String mName;
+
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0L);
+        }
+    }
+
+    private static final List<Timer> sTimers = new CopyOnWriteArrayList<Timer>();
+
+    private static final List<Counter> sCounters = new CopyOnWriteArrayList<Counter>();
+
+    private static volatile Tracer sTracer;
+
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    private UsbPerfStats() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * タイマを生成して登録します。 クラスの初期化時に一度だけ呼んでください。
+     */
+    public static Timer newTimer(String name) {
+        final Timer timer = new Timer(name);
+        sTimers.add(timer);
+        return timer;
+    }
+
+    /**
+     * カウンタを生成して登録します。 クラスの初期化時に一度だけ呼んでください。
+     */
+    public static Counter newCounter(String name) {
+        final Counter counter = new Counter(name);
+        sCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * タイマの区間を記録するトレーサを設定します。
+     *
+     * @param tracer トレーサ。 {@code null} の場合は記録しません。
+     */
+    public static void setTracer(Tracer tracer) {
+        sTracer = tracer;
+    }
+
+    public static boolean isTracing() {
+        return sTracer != null;
+    }
+
+    /**
+     * すべてのタイマとカウンタを 0 に戻します。
+     */
+    public static void reset() {
+        for (Timer timer : sTimers) {
+            timer.reset();
+        }
+        for (Counter counter : sCounters) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * すべてのタイマとカウンタの値を、名前の順に書き出します。 時間の単位はマイクロ秒です。
+     *
+     * @param prefix 各行の先頭に付ける文字列。
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("UsbPerfStats (us):");
+        final Timer[] timers = sTimers.toArray(new Timer[0]);
+        Arrays.sort(timers, new Comparator<Timer>() {
+            @Override
+            public int compare(Timer t1, Timer t2) {
+                return t1.getName().compareTo(t2.getName());
+            }
+        });
+        final StringBuilder sb = new StringBuilder(128);
+        for (Timer timer : timers) {
+            final long count = timer.getCount();
+            final long total = timer.getTotalNanos();
+            sb.setLength(0);
+            sb.append(prefix).append("  ").append(timer.getName()).append(": n=").append(count);
+            sb.append(" total=").append(total / NANOS_PER_MICRO);
+            sb.append(" avg=").append((count == 0) ? 0L : total / count / NANOS_PER_MICRO);
+            sb.append(" max=").append(timer.getMaxNanos() / NANOS_PER_MICRO);
+            writer.println(sb);
+        }
+        final Counter[] counters = sCounters.toArray(new Counter[0]);
+        Arrays.sort(counters, new Comparator<Counter>() {
+            @Override
+            public int compare(Counter c1, Counter c2) {
+                return c1.getName().compareTo(c2.getName());
+            }
+        });
+        for (Counter counter : counters) {
+            sb.setLength(0);
+            sb.append(prefix).append("  ").append(counter.getName()).append(": ")
+                    .append(counter.get());
+            writer.println(sb);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 完了時にバッファの position を進めないキューイング API の上に
+ * {@link UsbStreamingEndpoint} を実装するための基底クラスです。
+ * <p>
+ * {@code UsbRequest#queue(ByteBuffer, int)} はバッファに内容を書き込みますが、 position は
+ * 変更しません。 {@link UsbStreamingEndpoint#submit(int, ByteBuffer)} の約束を守るため、
+ * このクラスはスロットごとにバッファを覚えておき、 {@link #awaitCompletion()} で完了した
+ * バッファの position を受信したバイト数に設定します。
+ * </p>
+ * <p>
+ * API level 12/13 の {@code UsbRequest} は実際に受信したバイト数を返しません。 そのため
+ * 完了時に position が変わっていなければ、 要求した長さ (キューイング時の
+ * {@code remaining()}) をすべて受信したものとして扱います。 short packet を受信した場合は
+ * 末尾に以前の内容が残ったまま報告されることに注意してください。 実装が position を
+ * 自分で進めた場合は、 その値をそのまま使います。
+ * </p>
+ */
+public abstract class UsbQueuedStreamingEndpoint implements UsbStreamingEndpoint {
+
+    private final ByteBuffer[] mBuffers;
+
+    private final int[] mStartPositions;
+
+    private final int[] mLengths;
+
+    /**
+     * @param slotCount 同時にキューイングする要求の数。
+     */
+    protected UsbQueuedStreamingEndpoint(int slotCount) {
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("slotCount must be positive: " + slotCount);
+        }
+        mBuffers = new ByteBuffer[slotCount];
+        mStartPositions = new int[slotCount];
+        mLengths = new int[slotCount];
+    }
+
+    @Override
+    public final int getSlotCount() {
+        return mBuffers.length;
+    }
+
+    @Override
+    public final boolean submit(int slot, ByteBuffer buffer) {
+        if (mBuffers[slot] != null) {
+            throw new IllegalStateException("slot " + slot + " is busy.");
+        }
+        final int start = buffer.position();
+        final int length = buffer.remaining();
+        if (!queue(slot, buffer, length)) {
+            return false;
+        }
+        mBuffers[slot] = buffer;
+        mStartPositions[slot] = start;
+        mLengths[slot] = length;
+        return true;
+    }
+
+    @Override
+    public final int awaitCompletion() {
+        final int slot = waitForCompletion();
+        if (slot < 0 || mBuffers.length <= slot || mBuffers[slot] == null) {
+            return -1;
+        }
+        final ByteBuffer buffer = mBuffers[slot];
+        mBuffers[slot] = null;
+        if (buffer.position() == mStartPositions[slot]) {
+            // 受信したバイト数がわからないので、要求した長さを受信したものとする
+            buffer.position(mStartPositions[slot] + mLengths[slot]);
+        }
+        return slot;
+    }
+
+    /**
+     * 読み込み要求をキューイングします。 {@code buffer} の position を変更する必要は
+     * ありません。
+     *
+     * @param slot スロット番号。
+     * @param buffer 読み込み先のバッファ。
+     * @param length 要求する長さ。
+     * @return キューイングできた場合は {@code true}。
+     */
+    protected abstract boolean queue(int slot, ByteBuffer buffer, int length);
+
+    /**
+     * いずれかの要求が完了するまで待ちます。
+     *
+     * @return 完了した要求のスロット番号。 失敗した場合は負の値。
+     */
+    protected abstract int waitForCompletion();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.os.Build;
+
+import java.util.Arrays;
+
+/**
+ * デバイスの生のディスクリプタを取得するユーティリティです。
+ */
+public final class UsbRawDescriptors {
+
+    private static final int REQUEST_GET_DESCRIPTOR = 0x06;
+
+    /**
+     * 受信先がインタフェースであることを表す bmRequestType のビット。
+     */
+    private static final int RECIPIENT_INTERFACE = 0x01;
+
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    private UsbRawDescriptors() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * {@link UsbDeviceConnection#getRawDescriptors()} が使用できるかどうかを返します。
+     * このメソッドは Android 3.2 (API 13) で追加されました。
+     */
+    public static boolean isSupported() {
+        return Build.VERSION_CODES.HONEYCOMB_MR2 <= Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * プールから接続を借りて、生のディスクリプタを読み出します。
+     * 呼び出し元でデバイスへのアクセス権限を取得済みである必要があります。
+     * 接続のオープンを待つことがあるので、バックグラウンドスレッドから呼んでください。
+     *
+     * @return ディスクリプタ列。 非対応の環境やオープンに失敗した場合は {@code null}。
+     */
+    public static byte[] read(UsbConnectionPool<UsbDeviceConnection> connections,
+            String deviceName) {
+        if (!isSupported()) {
+            return null;
+        }
+        final UsbConnectionPool.Lease<UsbDeviceConnection> lease = connections.acquire(
+                deviceName, -1);
+        if (lease == null) {
+            return null;
+        }
+        try {
+            return lease.getConnection().getRawDescriptors();
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * プールから接続を借りて、 HID インタフェースのレポートディスクリプタを
+     * コントロール転送で読み出します。 インタフェースは claim しないので、
+     * カーネルの HID ドライバが結び付いているインタフェースでは失敗します。
+     * 呼び出し元でデバイスへのアクセス権限を取得済みである必要があります。
+     * 転送は最大1秒待つので、バックグラウンドスレッドから呼んでください。
+     *
+     * @param interfaceId インタフェース番号。
+     * @param length HID ディスクリプタに記載されたレポートディスクリプタのバイト数。
+     * @return レポートディスクリプタ。 オープンや転送に失敗した場合は {@code null}。
+     */
+    public static byte[] readHidReportDescriptor(
+            UsbConnectionPool<UsbDeviceConnection> connections, String deviceName,
+            int interfaceId, int length) {
+        final UsbConnectionPool.Lease<UsbDeviceConnection> lease = connections.acquire(
+                deviceName, -1);
+        if (lease == null) {
+            return null;
+        }
+        try {
+            final byte[] buffer = new byte[length];
+            final int count = lease.getConnection().controlTransfer(
+                    UsbConstants.USB_DIR_IN | UsbConstants.USB_TYPE_STANDARD
+                            | RECIPIENT_INTERFACE, REQUEST_GET_DESCRIPTOR,
+                    UsbHidDecoder.TYPE_REPORT << 8, interfaceId, buffer, length, TIMEOUT_MILLIS);
+            if (count <= 0) {
+                return null;
+            }
+            return (count == length) ? buffer : Arrays.copyOf(buffer, count);
+        } finally {
+            lease.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+/**
+ * 表示用に文字列化済みの1行分のデータです。
+ * <p>
+ * 各行の文字列の並びは {@link UsbRowRenderer} の定数で示されます。 どのスナップショットから
+ * 生成したかを保持しているので、キャッシュから取り出した際に内容が古くなっていないかを
+ * 確認できます。 このクラスはイミュータブルで、Android に依存しません。
+ * </p>
+ */
+public final class UsbRenderedRow {
+
+    private final Object mSource;
+
+    private final String[] mLines;
+
+    UsbRenderedRow(Object source, String[] lines) {
+        mSource = source;
+        mLines = lines;
+    }
+
+    public int getLineCount() {
+        return mLines.length;
+    }
+
+    public String getLine(int index) {
+        return mLines[index];
+    }
+
+    /**
+     * この行が、指定されたスナップショットと同じ内容から生成されたものかどうかを返します。
+     */
+    public boolean isRenderedFrom(Object source) {
+        return mSource == source || mSource.equals(source);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link UsbRequest} を使う {@link UsbStreamingEndpoint} の実装です。
+ * <p>
+ * スロットごとに {@link UsbRequest} をひとつ割り当て、
+ * {@link UsbDeviceConnection#requestWait()} で完了を待ちます。 インタフェースの claim と
+ * 接続のクローズは呼び出し元で行ってください。 同じ接続で他に {@link UsbRequest} を
+ * 使わないでください。
+ * </p>
+ * <p>
+ * {@link UsbRequest} は完了したバッファの position を進めないので、 受信したバイト数は
+ * {@link UsbQueuedStreamingEndpoint} が補います。 API level 12/13 では実際の長さが
+ * わからないため、 要求した長さを受信したものとして報告します。
+ * </p>
+ */
+public final class UsbRequestStreamingEndpoint extends UsbQueuedStreamingEndpoint {
+
+    private final UsbDeviceConnection mConnection;
+
+    private final UsbRequest[] mRequests;
+
+    /**
+     * @param connection 接続。
+     * @param endpoint IN Endpoint。
+     * @param slotCount 同時にキューイングする要求の数。
+     * @throws IllegalStateException {@link UsbRequest} を初期化できなかった場合。
+     */
+    public UsbRequestStreamingEndpoint(UsbDeviceConnection connection, UsbEndpoint endpoint,
+            int slotCount) {
+        super(slotCount);
+        mConnection = connection;
+        mRequests = new UsbRequest[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            final UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, endpoint)) {
+                for (int j = 0; j < i; j++) {
+                    mRequests[j].close();
+                }
+                throw new IllegalStateException("failed to initialize UsbRequest.");
+            }
+            request.setClientData(Integer.valueOf(i));
+            mRequests[i] = request;
+        }
+    }
+
+    @Override
+    protected boolean queue(int slot, ByteBuffer buffer, int length) {
+        return mRequests[slot].queue(buffer, length);
+    }
+
+    @Override
+    protected int waitForCompletion() {
+        final UsbRequest request = mConnection.requestWait();
+        if (request == null || !(request.getClientData() instanceof Integer)) {
+            return -1;
+        }
+        return ((Integer) request.getClientData()).intValue();
+    }
+
+    @Override
+    public void cancelAll() {
+        for (UsbRequest request : mRequests) {
+            request.cancel();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (UsbRequest request : mRequests) {
+            request.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 文字列化済みの行 ({@link UsbRenderedRow}) をリフレッシュをまたいで保持する LRU キャッシュです。
+ * <p>
+ * キーはデバイス名を軸にした安定した識別子です。 デバイス行はデバイス名と VID/PID/クラスの組、
+ * インタフェース行はデバイス名とインタフェース Id、 Endpoint 行はそれに Endpoint の
+ * アドレスを加えたものをキーとします。 取り出した行が現在のスナップショットと異なる内容から
+ * 生成されていた場合はミスとして扱い、生成し直します。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフです。
+ * </p>
+ */
+public final class UsbRowCache {
+
+    /**
+     * デフォルトの最大行数。
+     */
+    public static final int DEFAULT_MAX_ROWS = 2048;
+
+    /**
+     * キャッシュに無かった行の文字列化にかかった時間。
+     */
+    private static final UsbPerfStats.Timer FORMAT_TIMER = UsbPerfStats.newTimer("rows.format");
+
+    private static final UsbRowCache sDefault = new UsbRowCache(DEFAULT_MAX_ROWS);
+
+    /**
+     * アプリ全体で共有するキャッシュを返します。
+     */
+    public static UsbRowCache getDefault() {
+        return sDefault;
+    }
+
+    private final RowLruCache mCache;
+
+    /**
+     * デバイス名から、そのデバイスに属するキーへのインデックス。 切断時の明示的な破棄に使います。
+     */
+    private final Map<String, Set<RowKey>> mKeysByDevice = Maps.newHashMap();
+
+    private final UsbRowRenderer mRenderer = new UsbRowRenderer();
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mEvictionCount;
+
+    public UsbRowCache(int maxRows) {
+        mCache = new RowLruCache(maxRows);
+    }
+
+    public synchronized UsbRenderedRow getDeviceRow(UsbDeviceSnapshot dev) {
+        final RowKey key = RowKey.forDevice(dev);
+        UsbRenderedRow row = lookup(key, dev);
+        if (row == null) {
+            final long start = FORMAT_TIMER.start();
+            try {
+                row = mRenderer.renderDevice(dev);
+            } finally {
+                FORMAT_TIMER.stop(start);
+            }
+            store(key, row);
+        }
+        return row;
+    }
+
+    public synchronized UsbRenderedRow getInterfaceRow(String deviceName,
+            UsbInterfaceSnapshot iface) {
+        final RowKey key = RowKey.forInterface(deviceName, iface.getId());
+        UsbRenderedRow row = lookup(key, iface);
+        if (row == null) {
+            final long start = FORMAT_TIMER.start();
+            try {
+                row = mRenderer.renderInterface(iface);
+            } finally {
+                FORMAT_TIMER.stop(start);
+            }
+            store(key, row);
+        }
+        return row;
+    }
+
+    public synchronized UsbRenderedRow getEndpointRow(String deviceName, int interfaceId,
+            UsbEndpointSnapshot ep) {
+        final RowKey key = RowKey.forEndpoint(deviceName, interfaceId, ep.getAddress());
+        UsbRenderedRow row = lookup(key, ep);
+        if (row == null) {
+            final long start = FORMAT_TIMER.start();
+            try {
+                row = mRenderer.renderEndpoint(ep);
+            } finally {
+                FORMAT_TIMER.stop(start);
+            }
+            store(key, row);
+        }
+        return row;
+    }
+
+    /**
+     * 指定されたデバイスに属する行をすべて破棄します。 デバイスの切断時に呼んでください。
+     *
+     * @param deviceName デバイス名。
+     */
+    public synchronized void evictDevice(String deviceName) {
+        final Set<RowKey> keys = mKeysByDevice.remove(deviceName);
+        if (keys == null) {
+            return;
+        }
+        for (RowKey key : keys.toArray(new RowKey[keys.size()])) {
+            if (mCache.remove(key) != null) {
+                mEvictionCount++;
+            }
+        }
+    }
+
+    /**
+     * デバイス行に表示するベンダ/プロダクト名のインデックスを設定します。
+     * 表示内容が変わるので、キャッシュ済みの行はすべて破棄されます。
+     *
+     * @param idsIndex インデックス。
+     */
+    public synchronized void setIdsIndex(UsbIdsIndex idsIndex) {
+        mRenderer.setIdsIndex(idsIndex);
+        evictAll();
+    }
+
+    /**
+     * @return デバイス行に表示するベンダ/プロダクト名のインデックス。
+     */
+    public synchronized UsbIdsIndex getIdsIndex() {
+        return mRenderer.getIdsIndex();
+    }
+
+    public synchronized void evictAll() {
+        mCache.evictAll();
+        mKeysByDevice.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UsbRowCache[size=" + mCache.size() + ", maxSize=" + mCache.maxSize() + ", hits="
+                + mHitCount + ", misses=" + mMissCount + ", evictions=" + mEvictionCount + "]";
+    }
+
+    private UsbRenderedRow lookup(RowKey key, Object source) {
+        final UsbRenderedRow row = mCache.get(key);
+        if (row != null && row.isRenderedFrom(source)) {
+            mHitCount++;
+            return row;
+        }
+        mMissCount++;
+        return null;
+    }
+
+    private void store(RowKey key, UsbRenderedRow row) {
+        mCache.put(key, row);
+        Set<RowKey> keys = mKeysByDevice.get(key.mDeviceName);
+        if (keys == null) {
+            keys = Sets.newHashSet();
+            mKeysByDevice.put(key.mDeviceName, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * LRU による追い出しを検知してインデックスを更新するための {@link LruCache} です。
+     * {@link UsbRowCache} のロックを保持した状態でのみ操作されます。
+     */
+    private final class RowLruCache extends LruCache<RowKey, UsbRenderedRow> {
+        RowLruCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, RowKey key, UsbRenderedRow oldValue,
+                UsbRenderedRow newValue) {
+            if (!evicted) {
+                return;
+            }
+            mEvictionCount++;
+            final Set<RowKey> keys = mKeysByDevice.get(key.mDeviceName);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    mKeysByDevice.remove(key.mDeviceName);
+                }
+            }
+        }
+    }
+
+    /**
+     * キャッシュのキーです。
+     */
+    private static final class RowKey {
+        private static final int NONE = -1;
+
+        private final String mDeviceName;
+
+        /**
+         * デバイス行の場合は VID/PID の組、それ以外は {@link #NONE}。
+         */
+        private final int mVidPid;
+
+        /**
+         * デバイス行の場合はクラス/サブクラス/プロトコルの組、それ以外は {@link #NONE}。
+         */
+        private final int mClassTuple;
+
+        private final int mInterfaceId;
+
+        private final int mEndpointAddress;
+
+        static RowKey forDevice(UsbDeviceSnapshot dev) {
+            return new RowKey(dev.getDeviceName(), (dev.getVendorId() << 16)
+                    | dev.getProductId(), (dev.getDeviceClass() << 16)
+                    | (dev.getDeviceSubclass() << 8) | dev.getDeviceProtocol(), NONE, NONE);
+        }
+
+        static RowKey forInterface(String deviceName, int interfaceId) {
+            return new RowKey(deviceName, NONE, NONE, interfaceId, NONE);
+        }
+
+        static RowKey forEndpoint(String deviceName, int interfaceId, int endpointAddress) {
+            return new RowKey(deviceName, NONE, NONE, interfaceId, endpointAddress);
+        }
+
+        private RowKey(String deviceName, int vidPid, int classTuple, int interfaceId,
+                int endpointAddress) {
+            mDeviceName = deviceName;
+            mVidPid = vidPid;
+            mClassTuple = classTuple;
+            mInterfaceId = interfaceId;
+            mEndpointAddress = endpointAddress;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mDeviceName.hashCode();
+            result = 31 * result + mVidPid;
+            result = 31 * result + mClassTuple;
+            result = 31 * result + mInterfaceId;
+            result = 31 * result + mEndpointAddress;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof RowKey)) {
+                return false;
+            }
+            final RowKey other = (RowKey) obj;
+            return mDeviceName.equals(other.mDeviceName) && mVidPid == other.mVidPid
+                    && mClassTuple == other.mClassTuple && mInterfaceId == other.mInterfaceId
+                    && mEndpointAddress == other.mEndpointAddress;
+        }
+    }
+}
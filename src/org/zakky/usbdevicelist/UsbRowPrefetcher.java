@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 選択される可能性の高いインタフェースの Endpoint 行を、優先度の低いバックグラウンド
+ * スレッドで {@link UsbRowCache} に用意しておくクラスです。
+ * <p>
+ * 要求は後勝ちで、新しい要求があると前の要求の残りは実行されません。
+ * {@link UsbRowCache} はスレッドセーフで、ロックは1行を取り出すか生成する間だけ
+ * 保持されます。 行ごとにロックを解放するので、メインスレッドでの行の取得を長く
+ * 待たせることはありません。 {@link UsbRowCache} は {@code android.util.LruCache} を
+ * 使うので、このクラスも Android に依存します。
+ * </p>
+ */
+public final class UsbRowPrefetcher {
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbRowPrefetcher #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    };
+
+    private final UsbRowCache mRowCache;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * 要求の世代番号。 最新の世代の要求だけが実行されます。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public UsbRowPrefetcher(UsbRowCache rowCache) {
+        mRowCache = rowCache;
+    }
+
+    /**
+     * インタフェースの Endpoint 行を用意します。
+     *
+     * @param deviceName インタフェースを持つデバイスのデバイス名。
+     * @param interfaces 対象のインタフェース。 呼び出し後に変更しないでください。
+     */
+    public void prefetchEndpointRows(final String deviceName,
+            final List<UsbInterfaceSnapshot> interfaces) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (UsbInterfaceSnapshot iface : interfaces) {
+                    for (UsbEndpointSnapshot ep : iface.getEndpoints()) {
+                        if (generation != mGeneration.get()) {
+                            return;
+                        }
+                        mRowCache.getEndpointRow(deviceName, iface.getId(), ep);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 未実行の要求を取り消します。
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * 未実行の要求を取り消し、バックグラウンドスレッドを終了します。 以降このオブジェクトは
+     * 使用できません。
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendAddressString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendAttributesString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendClassString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendDirectionString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendIdString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendIntervalString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendMaxPacketSizeString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendNumberString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendPidString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendProtocolString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendSubclassString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendTypeString;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendVidString;
+
+/**
+ * スナップショットを表示用の {@link UsbRenderedRow} に変換するクラスです。
+ * <p>
+ * 作業用の {@link StringBuilder} を保持するので、インスタンスを複数のスレッドで
+ * 共有しないでください。 このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbRowRenderer {
+
+    /*
+     * デバイス行の各行のインデックス
+     */
+
+    public static final int DEVICE_NAME = 0;
+
+    public static final int DEVICE_ID = 1;
+
+    public static final int DEVICE_CLASS = 2;
+
+    public static final int DEVICE_VENDOR_ID = 3;
+
+    public static final int DEVICE_PRODUCT_ID = 4;
+
+    private static final int DEVICE_LINE_COUNT = 5;
+
+    /*
+     * インタフェース行の各行のインデックス
+     */
+
+    public static final int INTERFACE_ID = 0;
+
+    public static final int INTERFACE_CLASS = 1;
+
+    public static final int INTERFACE_SUBCLASS = 2;
+
+    public static final int INTERFACE_PROTOCOL = 3;
+
+    private static final int INTERFACE_LINE_COUNT = 4;
+
+    /*
+     * Endpoint 行の各行のインデックス
+     */
+
+    public static final int ENDPOINT_ADDRESS = 0;
+
+    public static final int ENDPOINT_NUMBER = 1;
+
+    public static final int ENDPOINT_ATTRS = 2;
+
+    public static final int ENDPOINT_DIR = 3;
+
+    public static final int ENDPOINT_INTERVAL = 4;
+
+    public static final int ENDPOINT_MAX_PACKET_SIZE = 5;
+
+    public static final int ENDPOINT_TYPE = 6;
+
+    private static final int ENDPOINT_LINE_COUNT = 7;
+
+    private final StringBuilder mBuilder = new StringBuilder(64);
+
+    private UsbIdsIndex mIdsIndex = UsbIdsIndex.EMPTY;
+
+    /**
+     * VID/PID から名前を引くためのインデックスを設定します。
+     *
+     * @param idsIndex インデックス。 名前を表示しない場合は {@link UsbIdsIndex#EMPTY}。
+     */
+    public void setIdsIndex(UsbIdsIndex idsIndex) {
+        if (idsIndex == null) {
+            throw new NullPointerException("idsIndex must not be null.");
+        }
+        mIdsIndex = idsIndex;
+    }
+
+    public UsbIdsIndex getIdsIndex() {
+        return mIdsIndex;
+    }
+
+    public UsbRenderedRow renderDevice(UsbDeviceSnapshot dev) {
+        final String[] lines = new String[DEVICE_LINE_COUNT];
+        lines[DEVICE_NAME] = dev.getDeviceName();
+        lines[DEVICE_ID] = appendIdString(begin("Id: "), dev).toString();
+        lines[DEVICE_CLASS] = appendClassString(begin("Class: "), dev).toString();
+        lines[DEVICE_VENDOR_ID] = appendName(appendVidString(begin("VendorId: "), dev),
+                mIdsIndex.getVendorName(dev.getVendorId())).toString();
+        lines[DEVICE_PRODUCT_ID] = appendName(appendPidString(begin("ProductId: "), dev),
+                mIdsIndex.getProductName(dev.getVendorId(), dev.getProductId())).toString();
+        return new UsbRenderedRow(dev, lines);
+    }
+
+    public UsbRenderedRow renderInterface(UsbInterfaceSnapshot iface) {
+        final String[] lines = new String[INTERFACE_LINE_COUNT];
+        lines[INTERFACE_ID] = appendIdString(begin("Id: "), iface).toString();
+        lines[INTERFACE_CLASS] = appendClassString(begin("Class: "), iface).toString();
+        lines[INTERFACE_SUBCLASS] = appendSubclassString(begin("Subclass: "), iface).toString();
+        lines[INTERFACE_PROTOCOL] = appendProtocolString(begin("Protocol: "), iface).toString();
+        return new UsbRenderedRow(iface, lines);
+    }
+
+    public UsbRenderedRow renderEndpoint(UsbEndpointSnapshot ep) {
+        final String[] lines = new String[ENDPOINT_LINE_COUNT];
+        lines[ENDPOINT_ADDRESS] = appendAddressString(begin("Address: "), ep).toString();
+        lines[ENDPOINT_NUMBER] = appendNumberString(begin("Endpoint Number: "), ep).toString();
+        lines[ENDPOINT_ATTRS] = appendAttributesString(begin("Attributes: "), ep).toString();
+        lines[ENDPOINT_DIR] = appendDirectionString(begin("Direction: "), ep).toString();
+        lines[ENDPOINT_INTERVAL] = appendIntervalString(begin("Interval: "), ep).toString();
+        lines[ENDPOINT_MAX_PACKET_SIZE] = appendMaxPacketSizeString(begin("MaxPacketSize: "),
+                ep).toString();
+        lines[ENDPOINT_TYPE] = appendTypeString(begin("Type: "), ep).toString();
+        return new UsbRenderedRow(ep, lines);
+    }
+
+    private static StringBuilder appendName(StringBuilder sb, String name) {
+        if (name == null) {
+            return sb;
+        }
+        return sb.append(" (").append(name).append(')');
+    }
+
+    private StringBuilder begin(String label) {
+        mBuilder.setLength(0);
+        return mBuilder.append(label);
+    }
+}
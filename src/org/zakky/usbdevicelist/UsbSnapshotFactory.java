@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code android.hardware.usb} のオブジェクトからスナップショットを生成するためのクラスです。
+ */
+public final class UsbSnapshotFactory {
+
+    private UsbSnapshotFactory() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * デバイス一覧からスナップショットを生成します。
+     *
+     * @param devices デバイス一覧。
+     * @return スナップショット。
+     */
+    public static UsbTopologySnapshot newTopologySnapshot(Collection<UsbDevice> devices) {
+        return newTopologySnapshot(devices, Collections.<String, String> emptyMap());
+    }
+
+    /**
+     * デバイス一覧からスナップショットを生成します。
+     *
+     * @param devices デバイス一覧。
+     * @param portPaths デバイス名からポートパスを引くマップ。
+     * @return スナップショット。
+     */
+    public static UsbTopologySnapshot newTopologySnapshot(Collection<UsbDevice> devices,
+            Map<String, String> portPaths) {
+        final List<UsbDeviceSnapshot> result = Lists.newArrayListWithCapacity(devices.size());
+        for (UsbDevice dev : devices) {
+            result.add(newDeviceSnapshot(dev, portPaths.get(dev.getDeviceName())));
+        }
+        return UsbTopologySnapshot.of(result);
+    }
+
+    public static UsbDeviceSnapshot newDeviceSnapshot(UsbDevice dev) {
+        return newDeviceSnapshot(dev, null);
+    }
+
+    /**
+     * @param portPath ポートパス。 不明な場合は {@code null}。
+     */
+    public static UsbDeviceSnapshot newDeviceSnapshot(UsbDevice dev, String portPath) {
+        final int ifaceCount = dev.getInterfaceCount();
+        final List<UsbInterfaceSnapshot> ifaces = Lists.newArrayListWithCapacity(ifaceCount);
+        for (int i = 0; i < ifaceCount; i++) {
+            ifaces.add(newInterfaceSnapshot(dev.getInterface(i)));
+        }
+        return new UsbDeviceSnapshot(dev.getDeviceName(), dev.getDeviceId(),
+                dev.getDeviceClass(), dev.getDeviceSubclass(), dev.getDeviceProtocol(),
+                dev.getVendorId(), dev.getProductId(), ifaces, portPath);
+    }
+
+    public static UsbInterfaceSnapshot newInterfaceSnapshot(UsbInterface iface) {
+        final int endpointCount = iface.getEndpointCount();
+        final List<UsbEndpointSnapshot> eps = Lists.newArrayListWithCapacity(endpointCount);
+        for (int i = 0; i < endpointCount; i++) {
+            eps.add(newEndpointSnapshot(iface.getEndpoint(i)));
+        }
+        return new UsbInterfaceSnapshot(iface.getId(), iface.getInterfaceClass(),
+                iface.getInterfaceSubclass(), iface.getInterfaceProtocol(), eps);
+    }
+
+    public static UsbEndpointSnapshot newEndpointSnapshot(UsbEndpoint ep) {
+        return new UsbEndpointSnapshot(ep.getAddress(), ep.getEndpointNumber(),
+                ep.getDirection(), ep.getAttributes(), ep.getType(), ep.getInterval(),
+                ep.getMaxPacketSize());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+/**
+ * 列挙結果のスナップショットと選択中のインタフェースを、プロセス内で保持するクラスです。
+ * <p>
+ * 画面の回転などでアクティビティやフラグメントが作り直されても、再列挙せずにこの内容から
+ * 表示し直せるようにします。 スナップショットは不変なので、コピーせずにそのまま共有します。
+ * インタフェースの選択は {@code UsbInterface} ではなく、デバイス名とインタフェース Id の
+ * 組で保持します。
+ * </p>
+ * <p>
+ * 接続/切断イベントはデバイス一覧の表示中にしか受け取らないので、表示していない間に
+ * デバイスが変わっているかもしれません。 そのため、取りこぼしが無いと言える間だけ
+ * {@link #isCurrent()} が {@code true} を返します。
+ * </p>
+ * <p>
+ * メインスレッドからだけ参照してください。 このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbSnapshotHolder {
+
+    private static final UsbSnapshotHolder DEFAULT = new UsbSnapshotHolder();
+
+    /**
+     * 最新のスナップショット。 まだ列挙していない場合は {@code null}。
+     */
+    private UsbTopologySnapshot mSnapshot;
+
+    private boolean mCurrent;
+
+    /**
+     * 選択中のインタフェースを持つデバイスのデバイス名。 未選択の場合は {@code null}。
+     */
+    private String mSelectedDeviceName;
+
+    private int mSelectedInterfaceId = -1;
+
+    /**
+     * プロセスで共有するインスタンスを返します。
+     */
+    public static UsbSnapshotHolder getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return 最新のスナップショット。 まだ列挙していない場合は {@code null}。
+     */
+    public UsbTopologySnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * 最新のスナップショットを保持します。 {@link #isCurrent()} は変わりません。
+     */
+    public void setSnapshot(UsbTopologySnapshot snapshot) {
+        if (snapshot == null) {
+            throw new NullPointerException("snapshot must not be null.");
+        }
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * 保持しているスナップショットが、接続/切断イベントを取りこぼさずに更新されてきたか
+     * どうかを返します。 {@code false} の場合は再列挙が必要です。
+     */
+    public boolean isCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * 列挙が完了し、以降の接続/切断イベントを受け取れる状態になった場合に呼びます。
+     */
+    public void markCurrent() {
+        mCurrent = (mSnapshot != null);
+    }
+
+    /**
+     * 接続/切断イベントの監視を止めた場合に呼びます。 次に表示する際は、保持している
+     * スナップショットで表示した上で再列挙します。
+     */
+    public void invalidate() {
+        mCurrent = false;
+    }
+
+    /**
+     * @return 選択中のインタフェースを持つデバイスのデバイス名。 未選択の場合は {@code null}。
+     */
+    public String getSelectedDeviceName() {
+        return mSelectedDeviceName;
+    }
+
+    /**
+     * @return 選択中のインタフェースの Id。 未選択の場合は -1。
+     */
+    public int getSelectedInterfaceId() {
+        return mSelectedInterfaceId;
+    }
+
+    public void setSelection(String deviceName, int interfaceId) {
+        if (deviceName == null) {
+            throw new NullPointerException("deviceName must not be null.");
+        }
+        mSelectedDeviceName = deviceName;
+        mSelectedInterfaceId = interfaceId;
+    }
+
+    public void clearSelection() {
+        mSelectedDeviceName = null;
+        mSelectedInterfaceId = -1;
+    }
+
+    /**
+     * 保持しているスナップショットから、インタフェースを探します。
+     *
+     * @param deviceName デバイス名。 {@code null} の場合は見つからなかったものとします。
+     * @param interfaceId インタフェース Id。
+     * @return 見つかったインタフェース。 スナップショットが無い場合や、デバイスが
+     * 取り外されているなどで見つからない場合は {@code null}。
+     */
+    public UsbInterfaceSnapshot findInterface(String deviceName, int interfaceId) {
+        if (mSnapshot == null || deviceName == null) {
+            return null;
+        }
+        final UsbDeviceSnapshot dev = mSnapshot.getDevice(deviceName);
+        if (dev == null) {
+            return null;
+        }
+        final int count = dev.getInterfaceCount();
+        for (int i = 0; i < count; i++) {
+            final UsbInterfaceSnapshot iface = dev.getInterface(i);
+            if (iface.getId() == interfaceId) {
+                return iface;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "UsbSnapshotHolder[devices=" + ((mSnapshot == null) ? -1 : mSnapshot.size())
+                + ", current=" + mCurrent + ", selection=" + mSelectedDeviceName + "#"
+                + mSelectedInterfaceId + "]";
+    }
+}
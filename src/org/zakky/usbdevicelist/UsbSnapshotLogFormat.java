@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link UsbSnapshotLogWriter} と {@link UsbSnapshotLogReader} が共有する、
+ * スナップショットの履歴ファイルの形式です。
+ * <p>
+ * 履歴は {@code base-NNN.log} (レコード) と {@code base-NNN.idx} (索引) の組で、
+ * どちらもビッグエンディアンです。
+ * </p>
+ * <pre>
+ * log:    magic "USBL"(4) version(2) reserved(2) record*
+ * record: length(4) type(1) timestampMillis(8) payload
+ *         keyframe: deviceCount(4) device*
+ *         delta:    removedCount(4) deviceName* upsertCount(4) device*
+ * idx:    magic "USBI"(4) version(2) reserved(2) entry*
+ * entry:  timestampMillis(8) offset(4) type(4)
+ * </pre>
+ * <p>
+ * 差分は {@link UsbTopologyDiff} と同じくデバイス単位で、取り外されたデバイスの名前と、
+ * 追加または変化したデバイスの内容を持ちます。 各ファイルはキーフレームから始まるので、
+ * 単独で読めます。 索引のエントリはレコードを書いた後に追加し、タイムスタンプは
+ * 減少しません。
+ * </p>
+ */
+final class UsbSnapshotLogFormat {
+
+    static final int LOG_MAGIC = 0x5553424c;
+
+    static final int INDEX_MAGIC = 0x55534249;
+
+    static final short VERSION = 1;
+
+    static final int FILE_HEADER_LENGTH = 8;
+
+    static final int INDEX_ENTRY_LENGTH = 16;
+
+    /**
+     * レコードのうち、ペイロード以外の部分のバイト数。
+     */
+    static final int RECORD_HEADER_LENGTH = 13;
+
+    static final byte TYPE_KEYFRAME = 0;
+
+    static final byte TYPE_DELTA = 1;
+
+    static final String LOG_SUFFIX = ".log";
+
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private UsbSnapshotLogFormat() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    static File getLogFile(File directory, String baseName, int number) {
+        return new File(directory, String.format(Locale.US, "%s-%03d%s", baseName,
+                Integer.valueOf(number), LOG_SUFFIX));
+    }
+
+    static File getIndexFile(File logFile) {
+        final String name = logFile.getName();
+        return new File(logFile.getParentFile(), name.substring(0, name.length()
+                - LOG_SUFFIX.length())
+                + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return ログファイルの連番。 {@code baseName} のログファイルでない場合は -1。
+     */
+    static int getFileNumber(String fileName, String baseName) {
+        if (!fileName.startsWith(baseName + "-") || !fileName.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+        final String digits = fileName.substring(baseName.length() + 1, fileName.length()
+                - LOG_SUFFIX.length());
+        if (digits.length() == 0 || 9 < digits.length()) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (!Character.isDigit(digits.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(digits);
+    }
+
+    /**
+     * @return ディレクトリにある {@code baseName} のログファイル。 連番の小さいものが先頭です。
+     */
+    static List<File> listLogFiles(File directory, final String baseName) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return Lists.newArrayList();
+        }
+        final List<File> result = Lists.newArrayList();
+        for (File file : files) {
+            if (0 <= getFileNumber(file.getName(), baseName)) {
+                result.add(file);
+            }
+        }
+        final File[] sorted = result.toArray(new File[result.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                final int n1 = getFileNumber(f1.getName(), baseName);
+                final int n2 = getFileNumber(f2.getName(), baseName);
+                return (n1 < n2) ? -1 : ((n1 == n2) ? 0 : 1);
+            }
+        });
+        return Lists.newArrayList(sorted);
+    }
+
+    static void putFileHeader(ByteBuffer buffer, int magic) {
+        buffer.putInt(magic);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+    }
+
+    /**
+     * @return ファイルの先頭が {@code magic} のヘッダであれば {@code true}。
+     */
+    static boolean checkFileHeader(ByteBuffer buffer, int magic) {
+        return FILE_HEADER_LENGTH <= buffer.limit() && buffer.getInt(0) == magic
+                && buffer.getShort(4) == VERSION;
+    }
+
+    /*
+     * レコード
+     */
+
+    static void putKeyframe(ByteBuffer buffer, Collection<UsbDeviceSnapshot> devices) {
+        buffer.putInt(devices.size());
+        for (UsbDeviceSnapshot dev : devices) {
+            putDevice(buffer, dev);
+        }
+    }
+
+    static void putDelta(ByteBuffer buffer, UsbTopologyDiff diff) {
+        buffer.putInt(diff.getRemoved().size());
+        for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+            putString(buffer, dev.getDeviceName());
+        }
+        buffer.putInt(diff.getAdded().size() + diff.getChanged().size());
+        for (UsbDeviceSnapshot dev : diff.getAdded()) {
+            putDevice(buffer, dev);
+        }
+        for (UsbDeviceSnapshot dev : diff.getChanged()) {
+            putDevice(buffer, dev);
+        }
+    }
+
+    /**
+     * @return エンコードしたデバイスのバイト数の上限。
+     */
+    static int getMaxDeviceLength(UsbDeviceSnapshot dev) {
+        int length = 2 + 3 * dev.getDeviceName().length() + 4 + 3 + 4 + 2 + 1;
+        if (dev.getPortPath() != null) {
+            length += 3 * dev.getPortPath().length();
+        }
+        for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+            length += 5 + 1 + iface.getEndpointCount() * 5;
+        }
+        return length;
+    }
+
+    private static void putDevice(ByteBuffer buffer, UsbDeviceSnapshot dev) {
+        putString(buffer, dev.getDeviceName());
+        buffer.putInt(dev.getDeviceId());
+        buffer.put((byte) dev.getDeviceClass());
+        buffer.put((byte) dev.getDeviceSubclass());
+        buffer.put((byte) dev.getDeviceProtocol());
+        buffer.putShort((short) dev.getVendorId());
+        buffer.putShort((short) dev.getProductId());
+        putString(buffer, dev.getPortPath());
+        buffer.put((byte) dev.getInterfaceCount());
+        for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+            buffer.put((byte) iface.getId());
+            buffer.put((byte) iface.getInterfaceClass());
+            buffer.put((byte) iface.getInterfaceSubclass());
+            buffer.put((byte) iface.getInterfaceProtocol());
+            buffer.put((byte) iface.getEndpointCount());
+            for (UsbEndpointSnapshot ep : iface.getEndpoints()) {
+                buffer.put((byte) ep.getAddress());
+                buffer.put((byte) ep.getAttributes());
+                buffer.put((byte) ep.getInterval());
+                buffer.putShort((short) ep.getMaxPacketSize());
+            }
+        }
+    }
+
+    static UsbDeviceSnapshot getDevice(ByteBuffer buffer) {
+        final String name = getString(buffer);
+        final int id = buffer.getInt();
+        final int clazz = buffer.get() & 0xff;
+        final int subclass = buffer.get() & 0xff;
+        final int protocol = buffer.get() & 0xff;
+        final int vendorId = buffer.getShort() & 0xffff;
+        final int productId = buffer.getShort() & 0xffff;
+        final String portPath = getString(buffer);
+        final int interfaceCount = buffer.get() & 0xff;
+        final List<UsbInterfaceSnapshot> interfaces = Lists
+                .newArrayListWithCapacity(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            final int ifaceId = buffer.get() & 0xff;
+            final int ifaceClass = buffer.get() & 0xff;
+            final int ifaceSubclass = buffer.get() & 0xff;
+            final int ifaceProtocol = buffer.get() & 0xff;
+            final int endpointCount = buffer.get() & 0xff;
+            final List<UsbEndpointSnapshot> endpoints = Lists
+                    .newArrayListWithCapacity(endpointCount);
+            for (int j = 0; j < endpointCount; j++) {
+                final int address = buffer.get() & 0xff;
+                final int attributes = buffer.get() & 0xff;
+                final int interval = buffer.get() & 0xff;
+                final int maxPacketSize = buffer.getShort() & 0xffff;
+                endpoints.add(new UsbEndpointSnapshot(address, address & 0x0f, address
+                        & UsbConstantsUtil.USB_DIR_IN, attributes, attributes & 0x03, interval,
+                        maxPacketSize));
+            }
+            interfaces.add(new UsbInterfaceSnapshot(ifaceId, ifaceClass, ifaceSubclass,
+                    ifaceProtocol, endpoints));
+        }
+        return new UsbDeviceSnapshot(name, id, clazz, subclass, protocol, vendorId, productId,
+                interfaces, portPath);
+    }
+
+    /**
+     * 文字列を、長さ(2バイト、 {@code null} は -1)と UTF-8 のバイト列として書き込みます。
+     */
+    private static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        final int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        if (buffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
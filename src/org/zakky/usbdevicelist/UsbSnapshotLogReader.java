@@ -0,0 +1,397 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link UsbSnapshotLogWriter} が書き込んだ履歴ファイルを読み込むクラスです。
+ * <p>
+ * ログファイルと索引ファイルは読み込み専用でメモリにマップし、レコードは必要になった時点で
+ * デコードします。 時刻による検索は索引の二分探索で行い、ある時点のスナップショットは
+ * 直前のキーフレームから差分を適用して復元します。 内容は生成時点のファイルのもので、
+ * 後から追記されたレコードは含みません。 書き込みの途中で終わっているレコードは無視します。
+ * </p>
+ * <p>
+ * ファイルをまたいだ検索は、ファイルの連番の順に時刻が減少しないことを前提にしています。
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbSnapshotLogReader implements Closeable {
+
+    /**
+     * {@link UsbSnapshotLogReader#replay} でデバイスの変化を受け取るインタフェースです。
+     */
+    public interface Listener {
+        public void onAttached(long timestampMillis, UsbDeviceSnapshot device);
+
+        public void onDetached(long timestampMillis, UsbDeviceSnapshot device);
+
+        public void onChanged(long timestampMillis, UsbDeviceSnapshot oldDevice,
+                UsbDeviceSnapshot newDevice);
+    }
+
+    /**
+     * ログファイル1つ分のマップ。
+     */
+    private static final class Segment {
+        final File mFile;
+
+        final ByteBuffer mLog;
+
+        final ByteBuffer mIndex;
+
+        /**
+         * 有効なレコードの数。
+         */
+        final int mRecordCount;
+
+        /**
+         * 先頭のレコードの、全体での番号。
+         */
+        final int mFirstRecord;
+
+        Segment(File file, ByteBuffer log, ByteBuffer index, int recordCount, int firstRecord) {
+            mFile = file;
+            mLog = log;
+            mIndex = index;
+            mRecordCount = recordCount;
+            mFirstRecord = firstRecord;
+        }
+
+        long getTimestamp(int local) {
+            return mIndex.getLong(getEntryOffset(local));
+        }
+
+        int getOffset(int local) {
+            return mIndex.getInt(getEntryOffset(local) + 8);
+        }
+
+        boolean isKeyframe(int local) {
+            return mIndex.getInt(getEntryOffset(local) + 12) == UsbSnapshotLogFormat.TYPE_KEYFRAME;
+        }
+
+        private static int getEntryOffset(int local) {
+            return UsbSnapshotLogFormat.FILE_HEADER_LENGTH + local
+                    * UsbSnapshotLogFormat.INDEX_ENTRY_LENGTH;
+        }
+    }
+
+    private List<Segment> mSegments = Lists.newArrayList();
+
+    private int mRecordCount;
+
+    /**
+     * @param directory 履歴ファイルのディレクトリ。
+     * @param baseName {@link UsbSnapshotLogWriter} に指定したファイル名の先頭部分。
+     * @throws IOException ファイルを読み込めなかった場合。 ヘッダが不正なファイルは
+     * 例外とせずに無視します。
+     */
+    public UsbSnapshotLogReader(File directory, String baseName) throws IOException {
+        for (File logFile : UsbSnapshotLogFormat.listLogFiles(directory, baseName)) {
+            final File indexFile = UsbSnapshotLogFormat.getIndexFile(logFile);
+            if (!indexFile.isFile()) {
+                continue;
+            }
+            final ByteBuffer log = map(logFile);
+            final ByteBuffer index = map(indexFile);
+            if (!UsbSnapshotLogFormat.checkFileHeader(log, UsbSnapshotLogFormat.LOG_MAGIC)
+                    || !UsbSnapshotLogFormat.checkFileHeader(index,
+                            UsbSnapshotLogFormat.INDEX_MAGIC)) {
+                continue;
+            }
+            final Segment segment = new Segment(logFile, log, index, countValidRecords(log,
+                    index), mRecordCount);
+            if (segment.mRecordCount == 0) {
+                continue;
+            }
+            mSegments.add(segment);
+            mRecordCount += segment.mRecordCount;
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            // マップはチャネルを閉じた後も有効
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 索引の先頭から、ログファイル内に収まっているレコードの数を数えます。
+     * 先頭のレコードはキーフレームでなければならず、時刻は減少してはいけません。
+     */
+    private static int countValidRecords(ByteBuffer log, ByteBuffer index) {
+        final int entryCount = (index.limit() - UsbSnapshotLogFormat.FILE_HEADER_LENGTH)
+                / UsbSnapshotLogFormat.INDEX_ENTRY_LENGTH;
+        int expectedOffset = UsbSnapshotLogFormat.FILE_HEADER_LENGTH;
+        long lastTimestamp = Long.MIN_VALUE;
+        for (int i = 0; i < entryCount; i++) {
+            final int entry = UsbSnapshotLogFormat.FILE_HEADER_LENGTH + i
+                    * UsbSnapshotLogFormat.INDEX_ENTRY_LENGTH;
+            final long timestamp = index.getLong(entry);
+            final int offset = index.getInt(entry + 8);
+            final int type = index.getInt(entry + 12);
+            if (offset != expectedOffset || log.limit() - offset < 4) {
+                return i;
+            }
+            final int length = log.getInt(offset);
+            if (length < UsbSnapshotLogFormat.RECORD_HEADER_LENGTH
+                    || log.limit() - offset < length || log.get(offset + 4) != type
+                    || log.getLong(offset + 5) != timestamp || timestamp < lastTimestamp) {
+                return i;
+            }
+            if (i == 0 && type != UsbSnapshotLogFormat.TYPE_KEYFRAME) {
+                return 0;
+            }
+            expectedOffset = offset + length;
+            lastTimestamp = timestamp;
+        }
+        return entryCount;
+    }
+
+    /**
+     * @return 読み込めるレコードの数。
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @param record 0 から {@link #getRecordCount()} - 1 までのレコードの番号。
+     * @return レコードの時刻 (1970-01-01T00:00:00Z からのミリ秒)。
+     */
+    public long getTimestamp(int record) {
+        final Segment segment = getSegment(record);
+        return segment.getTimestamp(record - segment.mFirstRecord);
+    }
+
+    /**
+     * 指定した時刻以前の、最後のレコードを探します。
+     *
+     * @return レコードの番号。 そのようなレコードが無い場合は -1。
+     */
+    public int findRecord(long timestampMillis) {
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mSegments.get(mid).getTimestamp(0) <= timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            return -1;
+        }
+        final Segment segment = mSegments.get(high);
+        low = 0;
+        high = segment.mRecordCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (segment.getTimestamp(mid) <= timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return segment.mFirstRecord + high;
+    }
+
+    /**
+     * 指定した時刻のスナップショットを復元します。
+     *
+     * @return その時刻以前の最後のレコードの時点のスナップショット。 そのようなレコードが
+     * 無い場合は {@link UsbTopologySnapshot#EMPTY}。
+     * @throws IOException レコードが壊れていた場合。
+     */
+    public UsbTopologySnapshot getSnapshotAt(long timestampMillis) throws IOException {
+        final int record = findRecord(timestampMillis);
+        if (record < 0) {
+            return UsbTopologySnapshot.EMPTY;
+        }
+        return getSnapshot(record);
+    }
+
+    /**
+     * 指定したレコードの時点のスナップショットを復元します。
+     *
+     * @throws IOException レコードが壊れていた場合。
+     */
+    public UsbTopologySnapshot getSnapshot(int record) throws IOException {
+        final Map<String, UsbDeviceSnapshot> state = Maps.newHashMap();
+        restore(record, state);
+        return UsbTopologySnapshot.of(state.values());
+    }
+
+    /**
+     * 指定した期間のデバイスの変化を、時刻の順に通知します。
+     * <p>
+     * {@code fromMillis} の時点のスナップショットを起点とし、それより後で {@code toMillis}
+     * 以前のレコードによる変化を通知します。 ファイルの切り替わりなどで間が空いている場合も、
+     * キーフレームとの比較により変化として通知します。
+     * </p>
+     *
+     * @throws IOException レコードが壊れていた場合。
+     */
+    public void replay(long fromMillis, long toMillis, Listener listener) throws IOException {
+        final Map<String, UsbDeviceSnapshot> state = Maps.newHashMap();
+        final int start = findRecord(fromMillis);
+        if (0 <= start) {
+            restore(start, state);
+        }
+        for (int i = start + 1; i < mRecordCount; i++) {
+            final Segment segment = getSegment(i);
+            final int local = i - segment.mFirstRecord;
+            if (toMillis < segment.getTimestamp(local)) {
+                break;
+            }
+            apply(segment, local, state, listener);
+        }
+    }
+
+    /**
+     * 直前のキーフレームから {@code record} までを {@code state} に適用します。
+     */
+    private void restore(int record, Map<String, UsbDeviceSnapshot> state) throws IOException {
+        final Segment segment = getSegment(record);
+        final int local = record - segment.mFirstRecord;
+        int keyframe = local;
+        // 各ファイルの先頭はキーフレームであることを確認済み
+        while (!segment.isKeyframe(keyframe)) {
+            keyframe--;
+        }
+        for (int i = keyframe; i <= local; i++) {
+            apply(segment, i, state, null);
+        }
+    }
+
+    private static void apply(Segment segment, int local, Map<String, UsbDeviceSnapshot> state,
+            Listener listener) throws IOException {
+        final ByteBuffer buffer = segment.mLog.duplicate();
+        final int offset = segment.getOffset(local);
+        buffer.limit(offset + buffer.getInt(offset));
+        buffer.position(offset + 4);
+        try {
+            final byte type = buffer.get();
+            final long timestamp = buffer.getLong();
+            if (type == UsbSnapshotLogFormat.TYPE_KEYFRAME) {
+                applyKeyframe(buffer, timestamp, state, listener);
+            } else {
+                applyDelta(buffer, timestamp, state, listener);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("corrupted record #" + local + " in " + segment.mFile);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("corrupted record #" + local + " in " + segment.mFile);
+        }
+    }
+
+    private static void applyKeyframe(ByteBuffer buffer, long timestamp,
+            Map<String, UsbDeviceSnapshot> state, Listener listener) {
+        final int count = buffer.getInt();
+        final Map<String, UsbDeviceSnapshot> next = Maps.newHashMap();
+        for (int i = 0; i < count; i++) {
+            final UsbDeviceSnapshot dev = UsbSnapshotLogFormat.getDevice(buffer);
+            next.put(dev.getDeviceName(), dev);
+        }
+        if (listener != null) {
+            for (UsbDeviceSnapshot oldDev : state.values()) {
+                if (!next.containsKey(oldDev.getDeviceName())) {
+                    listener.onDetached(timestamp, oldDev);
+                }
+            }
+            for (UsbDeviceSnapshot dev : next.values()) {
+                notifyUpdated(timestamp, state.get(dev.getDeviceName()), dev, listener);
+            }
+        }
+        state.clear();
+        state.putAll(next);
+    }
+
+    private static void applyDelta(ByteBuffer buffer, long timestamp,
+            Map<String, UsbDeviceSnapshot> state, Listener listener) {
+        final int removedCount = buffer.getInt();
+        for (int i = 0; i < removedCount; i++) {
+            final UsbDeviceSnapshot oldDev = state.remove(UsbSnapshotLogFormat
+                    .getString(buffer));
+            if (listener != null && oldDev != null) {
+                listener.onDetached(timestamp, oldDev);
+            }
+        }
+        final int upsertCount = buffer.getInt();
+        for (int i = 0; i < upsertCount; i++) {
+            final UsbDeviceSnapshot dev = UsbSnapshotLogFormat.getDevice(buffer);
+            final UsbDeviceSnapshot oldDev = state.put(dev.getDeviceName(), dev);
+            if (listener != null) {
+                notifyUpdated(timestamp, oldDev, dev, listener);
+            }
+        }
+    }
+
+    private static void notifyUpdated(long timestamp, UsbDeviceSnapshot oldDev,
+            UsbDeviceSnapshot dev, Listener listener) {
+        if (oldDev == null) {
+            listener.onAttached(timestamp, dev);
+        } else if (!oldDev.equals(dev)) {
+            listener.onChanged(timestamp, oldDev, dev);
+        }
+    }
+
+    private Segment getSegment(int record) {
+        if (record < 0 || mRecordCount <= record) {
+            throw new IndexOutOfBoundsException("record: " + record);
+        }
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mSegments.get(mid).mFirstRecord <= record) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return mSegments.get(low);
+    }
+
+    /**
+     * マップへの参照を破棄します。 以降はレコードを読み込めません。
+     */
+    @Override
+    public void close() {
+        mSegments = Lists.newArrayList();
+        mRecordCount = 0;
+    }
+}
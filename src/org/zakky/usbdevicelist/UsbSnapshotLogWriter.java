@@ -0,0 +1,340 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * 列挙したスナップショットを、追記のみの履歴ファイルとして書き込むクラスです。
+ * <p>
+ * ファイルの形式は {@link UsbSnapshotLogFormat} を参照してください。 前回から変化が無い
+ * スナップショットは書き込みません。 通常は前回とのデバイス単位の差分を書き込み、
+ * 各ファイルの先頭と {@code keyframeInterval} レコードごとにはすべてのデバイスを書き込みます。
+ * ファイルが {@code maxFileBytes} を超える場合は次のファイルに切り替え、
+ * {@code maxFileCount} を超えた古いファイルを削除します。
+ * </p>
+ * <p>
+ * 連番はディレクトリに残っているファイルの続きから振るので、プロセスをまたいで
+ * 履歴を残せます。 既存のファイルには追記しません。
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbSnapshotLogWriter implements Closeable {
+
+    /**
+     * キーフレームの間隔のデフォルト値。
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 64;
+
+    private final File mDirectory;
+
+    private final String mBaseName;
+
+    private final long mMaxFileBytes;
+
+    private final int mMaxFileCount;
+
+    private final int mKeyframeInterval;
+
+    /**
+     * 残しているログファイル。 古いものが先頭です。 最初にファイルを開くまでは {@code null}。
+     */
+    private LinkedList<File> mFiles;
+
+    private int mFileIndex;
+
+    private FileChannel mLogChannel;
+
+    private FileChannel mIndexChannel;
+
+    /**
+     * 書き込み中のログファイルのサイズ。
+     */
+    private long mLogPosition;
+
+    private ByteBuffer mRecord = ByteBuffer.allocate(4096);
+
+    private final ByteBuffer mIndexEntry = ByteBuffer
+            .allocate(UsbSnapshotLogFormat.INDEX_ENTRY_LENGTH);
+
+    /**
+     * 最後に書き込んだスナップショット。 まだ書き込んでいない場合は {@code null}。
+     */
+    private UsbTopologySnapshot mLast;
+
+    private long mLastTimestamp = Long.MIN_VALUE;
+
+    private int mRecordsSinceKeyframe;
+
+    private long mRecordCount;
+
+    private boolean mClosed = false;
+
+    /**
+     * @param directory ファイルを作成するディレクトリ。 存在しない場合は作成します。
+     * @param baseName ファイル名の先頭部分。 連番と拡張子が付加されます。
+     * @param maxFileBytes ログファイル1つの最大バイト数。 ただし、1レコードがこれを超える
+     * 場合は、そのレコードだけを持つファイルになります。
+     * @param maxFileCount 残しておくログファイルの最大数。
+     * @param keyframeInterval キーフレームを書き込む間隔(レコード数)。
+     */
+    public UsbSnapshotLogWriter(File directory, String baseName, long maxFileBytes,
+            int maxFileCount, int keyframeInterval) {
+        if (maxFileBytes < UsbSnapshotLogFormat.FILE_HEADER_LENGTH
+                + UsbSnapshotLogFormat.RECORD_HEADER_LENGTH
+                || Integer.MAX_VALUE < maxFileBytes) {
+            throw new IllegalArgumentException("invalid maxFileBytes: " + maxFileBytes);
+        }
+        if (maxFileCount <= 0) {
+            throw new IllegalArgumentException("invalid maxFileCount: " + maxFileCount);
+        }
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("invalid keyframeInterval: " + keyframeInterval);
+        }
+        mDirectory = directory;
+        mBaseName = baseName;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileCount = maxFileCount;
+        mKeyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * スナップショットを書き込みます。
+     *
+     * @param timestampMillis 列挙した時刻 (1970-01-01T00:00:00Z からのミリ秒)。
+     * 前回より前の時刻は前回の時刻として記録します。
+     * @param snapshot スナップショット。
+     * @return 書き込んだ場合は {@code true}。 前回から変化が無い場合は {@code false}。
+     * @throws IOException ファイルの作成や書き込みに失敗した場合。
+     */
+    public boolean append(long timestampMillis, UsbTopologySnapshot snapshot)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("already closed.");
+        }
+        final UsbTopologyDiff diff = (mLast == null) ? null : UsbTopologyDiff.compute(mLast,
+                snapshot);
+        if (diff != null && diff.isEmpty()) {
+            return false;
+        }
+        final long timestamp = Math.max(timestampMillis, mLastTimestamp);
+
+        boolean keyframe = (mLogChannel == null || diff == null
+                || mKeyframeInterval <= mRecordsSinceKeyframe);
+        encode(timestamp, keyframe ? null : diff, snapshot);
+        if (mLogChannel != null && mMaxFileBytes < mLogPosition + mRecord.remaining()) {
+            closeFile();
+        }
+        if (mLogChannel == null) {
+            openNextFile();
+            if (!keyframe) {
+                keyframe = true;
+                encode(timestamp, null, snapshot);
+            }
+        }
+
+        final int offset = (int) mLogPosition;
+        final int length = mRecord.remaining();
+        writeFully(mLogChannel, mRecord);
+        mLogPosition += length;
+        mIndexEntry.clear();
+        mIndexEntry.putLong(timestamp);
+        mIndexEntry.putInt(offset);
+        mIndexEntry.putInt(keyframe ? UsbSnapshotLogFormat.TYPE_KEYFRAME
+                : UsbSnapshotLogFormat.TYPE_DELTA);
+        mIndexEntry.flip();
+        writeFully(mIndexChannel, mIndexEntry);
+
+        mLast = snapshot;
+        mLastTimestamp = timestamp;
+        mRecordsSinceKeyframe = keyframe ? 1 : mRecordsSinceKeyframe + 1;
+        mRecordCount++;
+        return true;
+    }
+
+    /**
+     * レコードを {@link #mRecord} にエンコードします。
+     *
+     * @param diff 差分として書き込む場合は前回との差分。 キーフレームの場合は {@code null}。
+     */
+    private void encode(long timestamp, UsbTopologyDiff diff, UsbTopologySnapshot snapshot) {
+        int maxLength = UsbSnapshotLogFormat.RECORD_HEADER_LENGTH + 4 + 4;
+        if (diff == null) {
+            for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+                maxLength += UsbSnapshotLogFormat.getMaxDeviceLength(dev);
+            }
+        } else {
+            for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+                maxLength += 2 + 3 * dev.getDeviceName().length();
+            }
+            for (UsbDeviceSnapshot dev : diff.getAdded()) {
+                maxLength += UsbSnapshotLogFormat.getMaxDeviceLength(dev);
+            }
+            for (UsbDeviceSnapshot dev : diff.getChanged()) {
+                maxLength += UsbSnapshotLogFormat.getMaxDeviceLength(dev);
+            }
+        }
+        if (mRecord.capacity() < maxLength) {
+            mRecord = ByteBuffer.allocate(Math.max(maxLength, mRecord.capacity() * 2));
+        }
+
+        final ByteBuffer record = mRecord;
+        record.clear();
+        record.putInt(0); // 長さは後で書き込む
+        record.put((diff == null) ? UsbSnapshotLogFormat.TYPE_KEYFRAME
+                : UsbSnapshotLogFormat.TYPE_DELTA);
+        record.putLong(timestamp);
+        if (diff == null) {
+            UsbSnapshotLogFormat.putKeyframe(record, snapshot.getDevices());
+        } else {
+            UsbSnapshotLogFormat.putDelta(record, diff);
+        }
+        record.putInt(0, record.position());
+        record.flip();
+    }
+
+    private void openNextFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("failed to create directory: " + mDirectory);
+        }
+        if (mFiles == null) {
+            mFiles = new LinkedList<File>(UsbSnapshotLogFormat.listLogFiles(mDirectory,
+                    mBaseName));
+            if (!mFiles.isEmpty()) {
+                mFileIndex = UsbSnapshotLogFormat.getFileNumber(mFiles.getLast().getName(),
+                        mBaseName);
+            }
+        }
+        mFileIndex++;
+        final File logFile = UsbSnapshotLogFormat.getLogFile(mDirectory, mBaseName, mFileIndex);
+        final FileChannel logChannel = openChannel(logFile, UsbSnapshotLogFormat.LOG_MAGIC);
+        boolean success = false;
+        try {
+            mIndexChannel = openChannel(UsbSnapshotLogFormat.getIndexFile(logFile),
+                    UsbSnapshotLogFormat.INDEX_MAGIC);
+            success = true;
+        } finally {
+            if (!success) {
+                closeQuietly(logChannel);
+                // 索引の無いログファイルは読まれないので、削除できなくてもかまわない
+                logFile.delete();
+            }
+        }
+        mLogChannel = logChannel;
+        mLogPosition = UsbSnapshotLogFormat.FILE_HEADER_LENGTH;
+        mFiles.addLast(logFile);
+        while (mMaxFileCount < mFiles.size()) {
+            final File oldest = mFiles.removeFirst();
+            final File oldestIndex = UsbSnapshotLogFormat.getIndexFile(oldest);
+            if (!oldest.delete() || (oldestIndex.exists() && !oldestIndex.delete())) {
+                throw new IOException("failed to delete: " + oldest);
+            }
+        }
+    }
+
+    private static FileChannel openChannel(File file, int magic) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean success = false;
+        try {
+            raf.setLength(0L);
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header = ByteBuffer
+                    .allocate(UsbSnapshotLogFormat.FILE_HEADER_LENGTH);
+            UsbSnapshotLogFormat.putFileHeader(header, magic);
+            header.flip();
+            writeFully(channel, header);
+            success = true;
+            return channel;
+        } finally {
+            if (!success) {
+                raf.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 呼び出し元の例外を優先するので無視する
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (mLogChannel == null) {
+            return;
+        }
+        try {
+            mLogChannel.close();
+        } finally {
+            mLogChannel = null;
+            final FileChannel index = mIndexChannel;
+            mIndexChannel = null;
+            index.close();
+        }
+    }
+
+    /**
+     * 書き込んだ内容をディスクに同期します。
+     */
+    public void flush() throws IOException {
+        if (mLogChannel != null) {
+            mLogChannel.force(false);
+            mIndexChannel.force(false);
+        }
+    }
+
+    /**
+     * 書き込み中のファイルを閉じます。 以降は書き込めません。
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        closeFile();
+    }
+
+    /**
+     * @return このオブジェクトで書き込んだレコードの数。
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return 書き込み中、または最後に書き込んだログファイル。 まだ作成していない場合は
+     * {@code null}。
+     */
+    public File getCurrentFile() {
+        return (mFiles == null || mFiles.isEmpty()) ? null : mFiles.getLast();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 列挙したスナップショットを、バックグラウンドスレッドで {@link UsbSnapshotLogWriter} に
+ * 書き込むクラスです。
+ * <p>
+ * 時刻は {@link #record(UsbTopologySnapshot)} を呼んだ時点で決めるので、書き込みが遅れても
+ * 記録される時刻はずれません。 書き込みに一度失敗すると、以降は記録しません。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbSnapshotRecorder {
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbSnapshotRecorder #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final UsbSnapshotLogWriter mWriter;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    private volatile boolean mFailed = false;
+
+    public UsbSnapshotRecorder(UsbSnapshotLogWriter writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * スナップショットを現在時刻で記録します。 前回から変化が無い場合は記録されません。
+     */
+    public void record(final UsbTopologySnapshot snapshot) {
+        final long timestamp = System.currentTimeMillis();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFailed) {
+                    return;
+                }
+                try {
+                    mWriter.append(timestamp, snapshot);
+                } catch (IOException e) {
+                    mFailed = true;
+                    closeQuietly();
+                }
+            }
+        });
+    }
+
+    /**
+     * 書き込みに失敗し、記録を止めているかどうかを返します。
+     */
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    private void closeQuietly() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            // 書き込み済みのレコードは残るので無視する
+        }
+    }
+
+    /**
+     * 記録待ちのスナップショットを書き込んだ後にファイルを閉じ、バックグラウンドスレッドを
+     * 終了します。 以降このオブジェクトは使用できません。
+     */
+    public void shutdown() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly();
+            }
+        });
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 容量固定の、ロックを使わない単一プロデューサ/単一コンシューマのキューです。
+ * <p>
+ * {@link #offer(Object)} を呼ぶスレッドと {@link #poll()} を呼ぶスレッドがそれぞれ
+ * ひとつずつである場合に限りスレッドセーフです。 どちらの操作もブロックせず、
+ * 満杯/空の場合はすぐに失敗を返します。 このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbSpscQueue<E> {
+
+    private final AtomicReferenceArray<E> mSlots;
+
+    private final int mMask;
+
+    /**
+     * 次に取り出す位置。 コンシューマだけが書き込みます。
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * 次に追加する位置。 プロデューサだけが書き込みます。
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity 容量。 2のべき乗に切り上げられます。
+     */
+    public UsbSpscQueue(int capacity) {
+        if (capacity <= 0 || (1 << 30) < capacity) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new AtomicReferenceArray<E>(Math.max(size, 1));
+        mMask = mSlots.length() - 1;
+    }
+
+    public int capacity() {
+        return mSlots.length();
+    }
+
+    /**
+     * 要素を追加します。 プロデューサのスレッドから呼んでください。
+     *
+     * @return 追加できた場合は {@code true}。 満杯の場合は {@code false}。
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException("e must not be null.");
+        }
+        final long tail = mTail.get();
+        if (tail - mHead.get() == mSlots.length()) {
+            return false;
+        }
+        mSlots.lazySet((int) tail & mMask, e);
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * 要素を取り出します。 コンシューマのスレッドから呼んでください。
+     *
+     * @return 取り出した要素。 空の場合は {@code null}。
+     */
+    public E poll() {
+        final long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        final int index = (int) head & mMask;
+        final E e = mSlots.get(index);
+        mSlots.lazySet(index, null);
+        mHead.lazySet(head + 1);
+        return e;
+    }
+
+    /**
+     * おおよその要素数を返します。 他のスレッドが操作している間は正確とは限りません。
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IN Endpoint から {@link UsbStreamReader} で一定時間読み続け、その統計値を通知するクラスです。
+ * <p>
+ * 読み込んだデータはコンシューマスレッドで受け取り、 {@link Consumer} が指定されていれば
+ * そこへ渡してからバッファを返却します。 同時に実行するのはひとつだけで、新しく開始すると
+ * 実行中のものは中止され、その結果は通知されません。 {@link #start}, {@link #cancel()},
+ * {@link #shutdown()} はメインスレッドから呼んでください。 {@link Callback} は
+ * メインスレッドから呼ばれます。
+ * </p>
+ */
+public class UsbStreamMonitor {
+
+    /**
+     * 経過と結果を受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * 一定間隔で、メインスレッドから呼ばれます。
+         *
+         * @param elapsedNanos 開始からの経過時間(ナノ秒)。
+         * @param transferCount 完了した転送の回数。
+         * @param byteCount 読み込んだバイト数。
+         * @param stallCount 空きバッファ不足で要求をキューイングできなくなった回数。
+         */
+        public void onProgress(long elapsedNanos, long transferCount, long byteCount,
+                long stallCount);
+
+        /**
+         * 終了した場合にメインスレッドから呼ばれます。
+         *
+         * @param success デバイスのオープンやインタフェースの claim に成功し、
+         * Endpoint のエラー無く終了した場合は {@code true}。
+         */
+        public void onFinished(boolean success);
+    }
+
+    /**
+     * 読み込んだデータを受け取るインタフェースです。 コンシューマスレッドから呼ばれます。
+     */
+    public interface Consumer {
+        /**
+         * @param data 読み込んだデータ。 position から limit までが有効です。
+         * このメソッドから戻った後は参照しないでください。
+         */
+        public void onData(ByteBuffer data);
+
+        /**
+         * 読み込みが終了した後、 {@link Callback#onFinished(boolean)} より前に
+         * コンシューマスレッドから一度だけ呼ばれます。 開始前に中止された場合や、
+         * デバイスを開けなかった場合も呼ばれます。
+         */
+        public void onFinished();
+    }
+
+    /**
+     * 同時にキューイングする要求の数のデフォルト値。
+     */
+    public static final int DEFAULT_SLOT_COUNT = 4;
+
+    /**
+     * 確保するバッファの数のデフォルト値。
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 16;
+
+    /**
+     * 経過を通知する間隔(ミリ秒)。
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 500L;
+
+    private static final UsbPerfStats.Timer SESSION_TIMER = UsbPerfStats
+            .newTimer("stream.session");
+
+    private static final UsbPerfStats.Counter TRANSFER_COUNTER = UsbPerfStats
+            .newCounter("stream.transfers");
+
+    private static final UsbPerfStats.Counter BYTE_COUNTER = UsbPerfStats
+            .newCounter("stream.bytes");
+
+    private static final UsbPerfStats.Counter STALL_COUNTER = UsbPerfStats
+            .newCounter("stream.stalls");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbStreamMonitor #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final UsbConnectionPool<UsbDeviceConnection> mConnections;
+
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * 実行の世代番号。 最新の世代だけが継続し、その結果だけが通知されます。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * @param connections デバイスへの接続を借りるプール。
+     * @param callback 経過と結果を受け取るコールバック。
+     */
+    public UsbStreamMonitor(UsbConnectionPool<UsbDeviceConnection> connections,
+            Callback callback) {
+        mConnections = connections;
+        mCallback = callback;
+    }
+
+    /**
+     * 読み込みを開始します。 デバイスへのアクセス権限は呼び出し元で取得しておいてください。
+     *
+     * @param device 対象のデバイス。
+     * @param iface Endpoint を持つインタフェース。実行中は claim されます。
+     * @param endpoint IN Endpoint。
+     * @param durationMillis 読み続ける時間(ミリ秒)。
+     * @param consumer 読み込んだデータを受け取るオブジェクト。 {@code null} の場合は破棄します。
+     * @param observer 要求の完了を読み込みスレッドで受け取るオブジェクト。
+     * {@code null} でもかまいません。
+     */
+    public void start(final UsbDevice device, final UsbInterface iface,
+            final UsbEndpoint endpoint, final long durationMillis, final Consumer consumer,
+            final UsbStreamReader.CompletionObserver observer) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean success;
+                try {
+                    if (generation != mGeneration.get()) {
+                        return;
+                    }
+                    success = monitor(generation, device, iface, endpoint, durationMillis,
+                            consumer, observer);
+                } finally {
+                    if (consumer != null) {
+                        consumer.onFinished();
+                    }
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            mCallback.onFinished(success);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean monitor(int generation, UsbDevice device, UsbInterface iface,
+            UsbEndpoint endpoint, long durationMillis, Consumer consumer,
+            UsbStreamReader.CompletionObserver observer) {
+        final UsbConnectionPool.Lease<UsbDeviceConnection> lease = mConnections.acquire(
+                device.getDeviceName(), iface.getId());
+        if (lease == null) {
+            return false;
+        }
+        try {
+            final UsbStreamReader reader = new UsbStreamReader(new UsbRequestStreamingEndpoint(
+                    lease.getConnection(), endpoint, DEFAULT_SLOT_COUNT), DEFAULT_BUFFER_COUNT,
+                    getBufferSize(endpoint));
+            reader.setCompletionObserver(observer);
+            final long start = SESSION_TIMER.start();
+            try {
+                consume(generation, reader, durationMillis, consumer);
+            } finally {
+                SESSION_TIMER.stop(start);
+                TRANSFER_COUNTER.add(reader.getTransferCount());
+                BYTE_COUNTER.add(reader.getByteCount());
+                STALL_COUNTER.add(reader.getStallCount());
+            }
+            return !reader.isFailed();
+        } catch (IllegalStateException e) {
+            return false;
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * 要求1回あたりのバッファサイズを返します。 インタラプト転送では1回の要求が
+     * 1パケットに対応するように MaxPacketSize に合わせ、到着間隔を計れるようにします。
+     */
+    private static int getBufferSize(UsbEndpoint endpoint) {
+        final int maxPacketSize = Math.max(endpoint.getMaxPacketSize(), 1);
+        if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_INT) {
+            return maxPacketSize;
+        }
+        return Math.min(UsbBulkBenchmark.DEFAULT_MAX_TRANSFER_SIZE, maxPacketSize * 32);
+    }
+
+    private void consume(int generation, UsbStreamReader reader, long durationMillis,
+            Consumer consumer) {
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long nextProgress = start;
+        reader.start();
+        try {
+            while (generation == mGeneration.get()) {
+                final long now = System.nanoTime();
+                if (nextProgress <= now) {
+                    postProgress(generation, now - start, reader);
+                    nextProgress = now + TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS);
+                }
+                if (end <= now) {
+                    break;
+                }
+                final ByteBuffer data = reader.take(Math.min(end, nextProgress) - now,
+                        TimeUnit.NANOSECONDS);
+                if (data != null) {
+                    if (consumer != null) {
+                        consumer.onData(data);
+                    }
+                    reader.release(data);
+                } else if (reader.isFinished()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reader.stop();
+            // 読み込みスレッドが終わるまで、残っているバッファを返却し続ける
+            while (!reader.isFinished()) {
+                final ByteBuffer data = reader.poll();
+                if (data != null) {
+                    reader.release(data);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        postProgress(generation, System.nanoTime() - start, reader);
+    }
+
+    private void postProgress(final int generation, final long elapsedNanos,
+            UsbStreamReader reader) {
+        final long transfers = reader.getTransferCount();
+        final long bytes = reader.getByteCount();
+        final long stalls = reader.getStallCount();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    mCallback.onProgress(elapsedNanos, transfers, bytes, stalls);
+                }
+            }
+        });
+    }
+
+    /**
+     * 実行中の読み込みを中止します。 中止した読み込みの結果は通知されません。
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * 実行中の読み込みを中止し、バックグラウンドスレッドを終了します。 以降このオブジェクトは
+     * 使用できません。
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+}
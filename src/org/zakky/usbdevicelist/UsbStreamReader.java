@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * IN Endpoint から連続して読み込み、読み込んだバッファをコンシューマへ渡すクラスです。
+ * <p>
+ * 読み込みスレッドは {@link UsbStreamingEndpoint} のすべてのスロットに要求を
+ * キューイングしたままにし、完了した要求のバッファをロックを使わないキューで
+ * コンシューマへ渡して、空いたスロットにすぐ次の要求をキューイングします。
+ * バッファは生成時に確保した固定数のダイレクトバッファを使い回すので、転送ごとの
+ * メモリ確保はありません。
+ * </p>
+ * <p>
+ * コンシューマの処理が追いつかず、返却された空きバッファが無くなった場合は、
+ * そのスロットには要求をキューイングしません。 キューイング中の要求が減ることで
+ * デバイス側の送信が抑えられます(背圧)。 この状態になった回数は
+ * {@link #getStallCount()} で取得できます。
+ * </p>
+ * <p>
+ * スレッドに関する約束事:
+ * <ul>
+ * <li>{@link #poll()}, {@link #take(long, TimeUnit)}, {@link #release(ByteBuffer)} は
+ * 単一のコンシューマスレッドから呼んでください。</li>
+ * <li>{@link #start()}, {@link #stop()} と統計値の取得は任意のスレッドから呼べます。</li>
+ * </ul>
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbStreamReader {
+
+    /**
+     * 要求の完了を、コンシューマへ渡す前に読み込みスレッドで受け取るインタフェースです。
+     * 到着間隔の計測など、キューでの受け渡しの遅れを含めたくない処理に使います。
+     * 読み込みスレッドを止めないよう、すぐに戻ってください。
+     */
+    public interface CompletionObserver {
+        /**
+         * @param timestampNanos 完了を検知した時刻 ({@link System#nanoTime()})。
+         * @param length 読み込んだバイト数。
+         */
+        public void onCompleted(long timestampNanos, int length);
+    }
+
+    /**
+     * 空きバッファやデータを待つ際に、一度に park する時間(ナノ秒)。
+     */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final UsbStreamingEndpoint mEndpoint;
+
+    private final int mSlotCount;
+
+    /**
+     * コンシューマから返却された空きバッファ。 コンシューマが追加し、読み込みスレッドが取り出します。
+     */
+    private final UsbSpscQueue<ByteBuffer> mFree;
+
+    /**
+     * 読み込み済みのバッファ。 読み込みスレッドが追加し、コンシューマが取り出します。
+     */
+    private final UsbSpscQueue<ByteBuffer> mFilled;
+
+    /**
+     * スロットごとのキューイング中のバッファ。 読み込みスレッドだけが参照します。
+     */
+    private final ByteBuffer[] mInFlight;
+
+    private final Thread mReaderThread;
+
+    private CompletionObserver mObserver;
+
+    private volatile Thread mWaitingConsumer;
+
+    private volatile boolean mStopRequested = false;
+
+    private volatile boolean mFinished = false;
+
+    private volatile boolean mFailed = false;
+
+    /*
+     * 統計値。 読み込みスレッドだけが書き込みます。
+     */
+
+    private volatile long mTransferCount;
+
+    private volatile long mByteCount;
+
+    private volatile long mStallCount;
+
+    /**
+     * @param endpoint 読み込み元の Endpoint。
+     * @param bufferCount 確保するバッファの数。 Endpoint のスロット数より多くしてください。
+     * @param bufferSize バッファ1つのバイト数。 1回の要求で読み込む最大サイズになります。
+     */
+    public UsbStreamReader(UsbStreamingEndpoint endpoint, int bufferCount, int bufferSize) {
+        mEndpoint = endpoint;
+        mSlotCount = endpoint.getSlotCount();
+        if (mSlotCount <= 0) {
+            throw new IllegalArgumentException("no slots.");
+        }
+        if (bufferCount <= mSlotCount) {
+            throw new IllegalArgumentException("bufferCount must be greater than slot count: "
+                    + bufferCount);
+        }
+        mFree = new UsbSpscQueue<ByteBuffer>(bufferCount);
+        mFilled = new UsbSpscQueue<ByteBuffer>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            mFree.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+        mInFlight = new ByteBuffer[mSlotCount];
+        mReaderThread = new Thread(mReaderLoop, "UsbStreamReader");
+        mReaderThread.setDaemon(true);
+    }
+
+    /**
+     * 完了を受け取るオブジェクトを設定します。 {@link #start()} より前に呼んでください。
+     */
+    public void setCompletionObserver(CompletionObserver observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * 読み込みスレッドを開始します。 一度だけ呼べます。
+     */
+    public void start() {
+        mReaderThread.start();
+    }
+
+    /**
+     * 読み込みを停止します。 キューイング中の要求は取り消され、 Endpoint はクローズされます。
+     * 読み込み済みでコンシューマが取り出していないバッファは引き続き取り出せます。
+     */
+    public void stop() {
+        mStopRequested = true;
+        mEndpoint.cancelAll();
+        LockSupport.unpark(mReaderThread);
+    }
+
+    /**
+     * 読み込み済みのバッファを取り出します。 バッファの position は 0、 limit は
+     * 読み込んだバイト数です。 使い終わったら {@link #release(ByteBuffer)} で返却してください。
+     *
+     * @return バッファ。 読み込み済みのバッファが無い場合は {@code null}。
+     */
+    public ByteBuffer poll() {
+        return mFilled.poll();
+    }
+
+    /**
+     * 読み込み済みのバッファを、指定した時間まで待って取り出します。
+     *
+     * @return バッファ。 タイムアウトした場合や、読み込みが終了していてバッファが
+     * 残っていない場合は {@code null}。
+     */
+    public ByteBuffer take(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final ByteBuffer buffer = mFilled.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (mFinished) {
+                // 終了直前に追加されたバッファを取りこぼさないよう、もう一度確認する
+                return mFilled.poll();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            mWaitingConsumer = Thread.currentThread();
+            if (mFilled.isEmpty() && !mFinished) {
+                LockSupport.parkNanos(this, Math.min(remaining, PARK_NANOS));
+            }
+            mWaitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 取り出したバッファを返却します。
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (!mFree.offer(buffer)) {
+            throw new IllegalStateException("released a buffer not owned by this reader.");
+        }
+        LockSupport.unpark(mReaderThread);
+    }
+
+    /**
+     * 読み込みスレッドが終了したかどうかを返します。
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Endpoint のエラーにより読み込みが終了したかどうかを返します。
+     */
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    public long getTransferCount() {
+        return mTransferCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * 空きバッファが無く、スロットに要求をキューイングできない状態になった回数を返します。
+     */
+    public long getStallCount() {
+        return mStallCount;
+    }
+
+    private final Runnable mReaderLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                readLoop();
+            } finally {
+                mEndpoint.close();
+                mFinished = true;
+                final Thread consumer = mWaitingConsumer;
+                if (consumer != null) {
+                    LockSupport.unpark(consumer);
+                }
+            }
+        }
+    };
+
+    private void readLoop() {
+        int inFlight = 0;
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (!submit(slot, mFree.poll())) {
+                mFailed = true;
+                return;
+            }
+            inFlight++;
+        }
+
+        boolean stalled = false;
+        while (!mStopRequested) {
+            if (0 < inFlight) {
+                final int slot = mEndpoint.awaitCompletion();
+                final long timestamp = System.nanoTime();
+                if (mStopRequested) {
+                    return;
+                }
+                if (slot < 0 || mSlotCount <= slot || mInFlight[slot] == null) {
+                    mFailed = true;
+                    return;
+                }
+                inFlight--;
+                deliver(slot, timestamp);
+            }
+
+            // 空いているスロットに要求をキューイングし直す
+            boolean starved = false;
+            for (int slot = 0; slot < mSlotCount; slot++) {
+                if (mInFlight[slot] != null) {
+                    continue;
+                }
+                final ByteBuffer buffer = mFree.poll();
+                if (buffer == null) {
+                    starved = true;
+                    break;
+                }
+                if (!submit(slot, buffer)) {
+                    mFailed = true;
+                    return;
+                }
+                inFlight++;
+            }
+            if (starved && !stalled) {
+                mStallCount++;
+            }
+            stalled = starved;
+            if (inFlight == 0) {
+                // コンシューマがバッファを返却するまで待つ
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    private boolean submit(int slot, ByteBuffer buffer) {
+        if (!mEndpoint.submit(slot, buffer)) {
+            // 読み込みはここで終了するので、バッファは空きキューへ戻さない
+            return false;
+        }
+        mInFlight[slot] = buffer;
+        return true;
+    }
+
+    private void deliver(int slot, long timestamp) {
+        final ByteBuffer buffer = mInFlight[slot];
+        mInFlight[slot] = null;
+        buffer.flip();
+        mTransferCount++;
+        mByteCount += buffer.remaining();
+        if (mObserver != null) {
+            mObserver.onCompleted(timestamp, buffer.remaining());
+        }
+        // バッファの総数はキューの容量以下なので、失敗することはない
+        mFilled.offer(buffer);
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
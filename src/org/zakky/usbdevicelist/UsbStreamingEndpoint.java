@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 非同期に読み込み要求をキューイングできる IN Endpoint を抽象化したインタフェースです。
+ * <p>
+ * 要求は 0 から {@code slotCount - 1} までのスロット番号で識別します。 実機では
+ * スロットごとに {@code UsbRequest} をひとつ割り当てます。 {@link UsbStreamReader} は
+ * このインタフェースだけを通して Endpoint を操作するので、シミュレートした Endpoint を
+ * 使って動かすこともできます。 {@link #cancelAll()} 以外のメソッドは
+ * {@link UsbStreamReader} の読み込みスレッドから呼ばれます。
+ * </p>
+ */
+public interface UsbStreamingEndpoint {
+
+    /**
+     * @return 同時にキューイングできる要求の数。
+     */
+    public int getSlotCount();
+
+    /**
+     * 読み込み要求をキューイングします。 完了すると、読み込んだ内容が {@code buffer} の
+     * 先頭から書き込まれ、 position が読み込んだバイト数に設定されます。
+     *
+     * @param slot スロット番号。 完了するまで同じスロットを再使用してはいけません。
+     * @param buffer 読み込み先のバッファ。 position 0 から limit までを使用します。
+     * @return キューイングできた場合は {@code true}。
+     */
+    public boolean submit(int slot, ByteBuffer buffer);
+
+    /**
+     * いずれかの要求が完了するまで待ちます。
+     *
+     * @return 完了した要求のスロット番号。 エラーやクローズにより待ち合わせが
+     * 失敗した場合は負の値。
+     */
+    public int awaitCompletion();
+
+    /**
+     * キューイング中のすべての要求を取り消します。 任意のスレッドから呼ばれます。
+     * {@link #awaitCompletion()} で待っているスレッドがあれば、取り消された要求の
+     * スロット番号か負の値で戻るようにしてください。
+     */
+    public void cancelAll();
+
+    /**
+     * リソースを解放します。 読み込みが終了した後に一度だけ呼ばれます。
+     */
+    public void close();
+}
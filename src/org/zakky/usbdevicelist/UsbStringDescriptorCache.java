@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ストリングディスクリプタを VID/PID/シリアル番号をキーとして保持し、ファイルに保存する
+ * キャッシュです。
+ * <p>
+ * 一度読み出したデバイスは、次回の起動以降はバスに問い合わせずに名前を表示できます。
+ * シリアル番号が分からない場合は、同じ VID/PID のエントリがひとつだけであれば、
+ * そのシリアル番号を除いた製造者と製品名を使います。
+ * エントリ数が上限を超えた場合は、最も長く参照されていないものから削除します。
+ * </p>
+ * <p>
+ * ファイルは最初に参照した時点で読み込みます。 読み込めないファイルは空のキャッシュとして
+ * 扱い、次の保存で上書きします。 保存は一時ファイルに書いてから置き換えるので、途中で
+ * 中断されても以前の内容が残ります。
+ * このクラスはスレッドセーフです。 Android には依存しません。
+ * </p>
+ */
+public final class UsbStringDescriptorCache {
+
+    /**
+     * エントリ数の上限のデフォルト値。
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final int MAGIC = 0x55535344;
+
+    private static final int VERSION = 1;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mFile;
+
+    private final Map<String, UsbStringDescriptors> mEntries;
+
+    private boolean mLoaded = false;
+
+    private boolean mDirty = false;
+
+    /**
+     * @param file 保存先のファイル。
+     * @param maxEntries エントリ数の上限。
+     */
+    public UsbStringDescriptorCache(File file, final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("invalid maxEntries: " + maxEntries);
+        }
+        mFile = file;
+        mEntries = new LinkedHashMap<String, UsbStringDescriptors>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UsbStringDescriptors> eldest) {
+                return maxEntries < size();
+            }
+        };
+    }
+
+    /**
+     * @param serialNumber シリアル番号。 分からない場合は {@code null}。
+     * @return キャッシュしている文字列。 無い場合は {@code null}。 {@code serialNumber} が
+     * {@code null} の場合、シリアル番号は含みません。
+     */
+    public synchronized UsbStringDescriptors find(int vendorId, int productId,
+            String serialNumber) {
+        ensureLoaded();
+        if (serialNumber != null) {
+            return mEntries.get(getKey(vendorId, productId, serialNumber));
+        }
+        final String prefix = getKeyPrefix(vendorId, productId);
+        UsbStringDescriptors found = null;
+        for (Map.Entry<String, UsbStringDescriptors> e : mEntries.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                if (found != null) {
+                    // 同じ VID/PID のデバイスが複数あり、どれか決められない
+                    return null;
+                }
+                found = e.getValue();
+            }
+        }
+        if (found == null || found.getSerialNumber() == null) {
+            return found;
+        }
+        // 別の個体のシリアル番号を表示しないよう、製造者と製品名だけを返す
+        return new UsbStringDescriptors(found.getManufacturer(), found.getProduct(), null);
+    }
+
+    public synchronized void put(int vendorId, int productId, UsbStringDescriptors strings) {
+        ensureLoaded();
+        final String key = getKey(vendorId, productId, strings.getSerialNumber());
+        if (!strings.equals(mEntries.put(key, strings))) {
+            mDirty = true;
+        }
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mEntries.size();
+    }
+
+    private static String getKeyPrefix(int vendorId, int productId) {
+        return Integer.toHexString(vendorId << 16 | productId) + '/';
+    }
+
+    private static String getKey(int vendorId, int productId, String serialNumber) {
+        final String prefix = getKeyPrefix(vendorId, productId);
+        return (serialNumber == null) ? prefix : prefix + serialNumber;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        try {
+            load();
+        } catch (IOException e) {
+            mEntries.clear();
+            mDirty = true;
+        }
+    }
+
+    private void load() throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown format: " + mFile);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                mEntries.put(key, new UsbStringDescriptors(readString(in), readString(in),
+                        readString(in)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 前回の保存以降に変更があれば、ファイルに保存します。
+     *
+     * @throws IOException ファイルに書き込めなかった場合。
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        final File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("failed to create directory: " + parent);
+        }
+        final File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, UsbStringDescriptors> e : mEntries.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeString(out, e.getValue().getManufacturer());
+                writeString(out, e.getValue().getProduct());
+                writeString(out, e.getValue().getSerialNumber());
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("failed to rename: " + temp);
+        }
+        mDirty = false;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
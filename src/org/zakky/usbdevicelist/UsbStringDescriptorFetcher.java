@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Sets;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 列挙したデバイスのストリングディスクリプタを、上限付きのスレッドプールで並行して
+ * 取得するクラスです。
+ * <p>
+ * デバイスごとに、まず {@link UsbStringDescriptorCache} を sysfs から読んだシリアル番号で
+ * 引き、見つからなければアクセス権限のあるデバイスだけを {@link UsbConnectionPool} から借りて
+ * {@link UsbStringDescriptorReader} で読み出します。 読み出しにはデバイスごとの期限があり、
+ * 応答しないデバイスがあっても、ワーカーをひとつ期限まで占有するだけで他のデバイスの
+ * 取得は進みます。 取得できなかったデバイスは、アクセス権限が無かった場合だけ次の
+ * {@link #update(UsbTopologySnapshot)} で再試行します。 取得が一段落するたびに
+ * キャッシュをファイルに保存します。
+ * </p>
+ * <p>
+ * {@link #update(UsbTopologySnapshot)}, {@link #clear()}, {@link #shutdown()} はメインスレッドから
+ * 呼んでください。 {@link Callback} はメインスレッドから呼ばれます。
+ * </p>
+ */
+public class UsbStringDescriptorFetcher {
+
+    /**
+     * 取得結果を受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * デバイスの文字列を取得した場合にメインスレッドから呼ばれます。
+         */
+        public void onResolved(String deviceName, UsbStringDescriptors strings);
+    }
+
+    /**
+     * ワーカーの数のデフォルト値。
+     */
+    public static final int DEFAULT_THREAD_COUNT = 4;
+
+    /**
+     * デバイスごとの期限(ミリ秒)のデフォルト値。
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000L;
+
+    private static final UsbPerfStats.Timer FETCH_TIMER = UsbPerfStats
+            .newTimer("strings.fetch");
+
+    private static final UsbPerfStats.Counter CACHE_HIT_COUNTER = UsbPerfStats
+            .newCounter("strings.cacheHits");
+
+    private static final UsbPerfStats.Counter FAILURE_COUNTER = UsbPerfStats
+            .newCounter("strings.failures");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbStringDescriptorFetcher #"
+                    + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final UsbManager mUsbManager;
+
+    private final UsbConnectionPool<UsbDeviceConnection> mConnections;
+
+    private final UsbStringDescriptorCache mCache;
+
+    private final File mSysfsRoot;
+
+    private final long mTimeoutMillis;
+
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * 実行の世代番号。 {@link #shutdown()} で進め、それ以前の結果は通知しません。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * 実行中または実行待ちの取得の数。
+     */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    /**
+     * 取得を要求済みのデバイス名。 メインスレッドだけが参照します。
+     */
+    private final Set<String> mRequested = Sets.newHashSet();
+
+    /**
+     * @param usbManager アクセス権限を確認するためのマネージャ。
+     * @param connections デバイスへの接続を借りるプール。
+     * @param cache 取得結果のキャッシュ。
+     * @param sysfsRoot シリアル番号を読む sysfs のデバイス一覧のディレクトリ。
+     * @param threadCount ワーカーの数。
+     * @param timeoutMillis デバイスごとの期限(ミリ秒)。
+     * @param callback 結果を受け取るコールバック。
+     */
+    public UsbStringDescriptorFetcher(UsbManager usbManager,
+            UsbConnectionPool<UsbDeviceConnection> connections, UsbStringDescriptorCache cache,
+            File sysfsRoot, int threadCount, long timeoutMillis, Callback callback) {
+        mUsbManager = usbManager;
+        mConnections = connections;
+        mCache = cache;
+        mSysfsRoot = sysfsRoot;
+        mTimeoutMillis = timeoutMillis;
+        mCallback = callback;
+        mExecutor = Executors.newFixedThreadPool(threadCount, THREAD_FACTORY);
+    }
+
+    /**
+     * スナップショットのうち、まだ要求していないデバイスの文字列の取得を開始します。
+     * 取り外されたデバイスは要求済みの記録から外すので、同じデバイス名で接続された
+     * デバイスは改めて取得します。
+     */
+    public void update(UsbTopologySnapshot snapshot) {
+        final Set<String> names = Sets.newHashSetWithExpectedSize(snapshot.size());
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            names.add(dev.getDeviceName());
+        }
+        mRequested.retainAll(names);
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            if (mRequested.add(dev.getDeviceName())) {
+                submit(dev);
+            }
+        }
+    }
+
+    /**
+     * 要求済みの記録を消去し、次の {@link #update(UsbTopologySnapshot)} ですべてのデバイスを
+     * 改めて要求するようにします。 結果を表示していたビューを作り直す場合に呼んでください。
+     */
+    public void clear() {
+        mRequested.clear();
+    }
+
+    private void submit(final UsbDeviceSnapshot dev) {
+        final int generation = mGeneration.get();
+        mPending.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (generation != mGeneration.get()) {
+                        return;
+                    }
+                    resolve(generation, dev);
+                } finally {
+                    if (mPending.decrementAndGet() == 0) {
+                        saveCache();
+                    }
+                }
+            }
+        });
+    }
+
+    private void resolve(int generation, UsbDeviceSnapshot dev) {
+        final String serialNumber = (dev.getPortPath() == null) ? null : UsbSysfsDeviceSource
+                .readSerialNumber(mSysfsRoot, dev.getPortPath());
+        UsbStringDescriptors strings = mCache.find(dev.getVendorId(), dev.getProductId(),
+                serialNumber);
+        if (strings != null) {
+            CACHE_HIT_COUNTER.increment();
+            post(generation, dev.getDeviceName(), strings);
+            return;
+        }
+
+        final UsbDevice device = mUsbManager.getDeviceList().get(dev.getDeviceName());
+        if (device == null || !mUsbManager.hasPermission(device)) {
+            post(generation, dev.getDeviceName(), null);
+            return;
+        }
+        final long start = FETCH_TIMER.start();
+        try {
+            strings = fetch(dev.getDeviceName());
+        } finally {
+            FETCH_TIMER.stop(start);
+        }
+        if (strings == null) {
+            FAILURE_COUNTER.increment();
+            return;
+        }
+        mCache.put(dev.getVendorId(), dev.getProductId(), strings);
+        post(generation, dev.getDeviceName(), strings);
+    }
+
+    private UsbStringDescriptors fetch(String deviceName) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMillis);
+        final UsbConnectionPool.Lease<UsbDeviceConnection> lease = mConnections.acquire(
+                deviceName, -1);
+        if (lease == null) {
+            return null;
+        }
+        try {
+            return UsbStringDescriptorReader.read(lease.getConnection(), deadline);
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * 結果をメインスレッドへ通知します。
+     *
+     * @param strings 取得した文字列。 アクセス権限が無く取得できなかった場合は {@code null}。
+     */
+    private void post(final int generation, final String deviceName,
+            final UsbStringDescriptors strings) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                if (strings == null) {
+                    mRequested.remove(deviceName);
+                    return;
+                }
+                mCallback.onResolved(deviceName, strings);
+            }
+        });
+    }
+
+    private void saveCache() {
+        try {
+            mCache.save();
+        } catch (IOException e) {
+            // 次に取得が一段落したときに改めて保存する
+        }
+    }
+
+    /**
+     * 実行待ちの取得を中止し、ワーカーを終了します。 以降このオブジェクトは使用できません。
+     */
+    public void shutdown() {
+        mGeneration.incrementAndGet();
+        mExecutor.shutdown();
+    }
+}
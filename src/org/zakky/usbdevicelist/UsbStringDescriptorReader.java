@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * コントロール転送 (GET_DESCRIPTOR) でデバイスのストリングディスクリプタを読み出す
+ * ユーティリティです。
+ */
+public final class UsbStringDescriptorReader {
+
+    private static final int REQUEST_GET_DESCRIPTOR = 0x06;
+
+    private static final int REQUEST_TYPE_STANDARD_DEVICE_IN = UsbConstants.USB_DIR_IN
+            | UsbConstants.USB_TYPE_STANDARD;
+
+    private static final int DEVICE_DESCRIPTOR_LENGTH = 18;
+
+    private static final int OFFSET_I_MANUFACTURER = 14;
+
+    private static final int OFFSET_I_PRODUCT = 15;
+
+    private static final int OFFSET_I_SERIAL_NUMBER = 16;
+
+    /**
+     * デバイスが言語 Id の一覧を返さない場合に使う言語 Id (英語(米国))。
+     */
+    private static final int DEFAULT_LANGUAGE_ID = 0x0409;
+
+    private static final int MAX_DESCRIPTOR_LENGTH = 255;
+
+    private UsbStringDescriptorReader() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * デバイスディスクリプタから文字列のインデックスを読み、製造者、製品名、シリアル番号を
+     * 読み出します。 転送ごとのタイムアウトは期限までの残り時間で、期限を過ぎた時点で
+     * 中止します。 デバイスが STALL などで応答しなかった文字列は {@code null} になります。
+     *
+     * @param conn オープン済みのデバイスへの接続。
+     * @param deadlineNanos 期限 ({@link System#nanoTime()})。
+     * @return 読み出した文字列。 デバイスディスクリプタを読めなかった場合や期限を
+     * 過ぎた場合は {@code null}。
+     */
+    public static UsbStringDescriptors read(UsbDeviceConnection conn, long deadlineNanos) {
+        final byte[] buffer = new byte[MAX_DESCRIPTOR_LENGTH];
+        if (getDescriptor(conn, UsbDescriptorParser.TYPE_DEVICE, 0, 0, buffer,
+                DEVICE_DESCRIPTOR_LENGTH, deadlineNanos) < DEVICE_DESCRIPTOR_LENGTH) {
+            return null;
+        }
+        final int iManufacturer = buffer[OFFSET_I_MANUFACTURER] & 0xff;
+        final int iProduct = buffer[OFFSET_I_PRODUCT] & 0xff;
+        final int iSerialNumber = buffer[OFFSET_I_SERIAL_NUMBER] & 0xff;
+        if (iManufacturer == 0 && iProduct == 0 && iSerialNumber == 0) {
+            return new UsbStringDescriptors(null, null, null);
+        }
+
+        int languageId = DEFAULT_LANGUAGE_ID;
+        final int length = getDescriptor(conn, UsbDescriptorParser.TYPE_STRING, 0, 0, buffer,
+                MAX_DESCRIPTOR_LENGTH, deadlineNanos);
+        if (isExpired(deadlineNanos)) {
+            return null;
+        }
+        if (4 <= length && (buffer[1] & 0xff) == UsbDescriptorParser.TYPE_STRING) {
+            languageId = (buffer[2] & 0xff) | (buffer[3] & 0xff) << 8;
+        }
+
+        final String manufacturer = getString(conn, iManufacturer, languageId, buffer,
+                deadlineNanos);
+        final String product = getString(conn, iProduct, languageId, buffer, deadlineNanos);
+        final String serialNumber = getString(conn, iSerialNumber, languageId, buffer,
+                deadlineNanos);
+        if (isExpired(deadlineNanos)) {
+            return null;
+        }
+        return new UsbStringDescriptors(manufacturer, product, serialNumber);
+    }
+
+    private static String getString(UsbDeviceConnection conn, int index, int languageId,
+            byte[] buffer, long deadlineNanos) {
+        if (index == 0) {
+            return null;
+        }
+        final int length = getDescriptor(conn, UsbDescriptorParser.TYPE_STRING, index,
+                languageId, buffer, MAX_DESCRIPTOR_LENGTH, deadlineNanos);
+        return UsbStringDescriptors.decode(buffer, length);
+    }
+
+    /**
+     * @return 読み込んだバイト数。 失敗した場合や期限を過ぎている場合は負の値。
+     */
+    private static int getDescriptor(UsbDeviceConnection conn, int type, int index,
+            int languageId, byte[] buffer, int length, long deadlineNanos) {
+        final long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos
+                - System.nanoTime());
+        if (timeoutMillis <= 0) {
+            return -1;
+        }
+        return conn.controlTransfer(REQUEST_TYPE_STANDARD_DEVICE_IN, REQUEST_GET_DESCRIPTOR,
+                type << 8 | index, languageId, buffer, length, (int) Math.min(timeoutMillis,
+                        Integer.MAX_VALUE));
+    }
+
+    private static boolean isExpired(long deadlineNanos) {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.base.Objects;
+
+/**
+ * デバイスのストリングディスクリプタ (iManufacturer, iProduct, iSerialNumber) の値を
+ * 保持するイミュータブルなクラスです。 デバイスが持たない文字列は {@code null} です。
+ * <p>
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbStringDescriptors {
+
+    private final String mManufacturer;
+
+    private final String mProduct;
+
+    private final String mSerialNumber;
+
+    public UsbStringDescriptors(String manufacturer, String product, String serialNumber) {
+        mManufacturer = manufacturer;
+        mProduct = product;
+        mSerialNumber = serialNumber;
+    }
+
+    public String getManufacturer() {
+        return mManufacturer;
+    }
+
+    public String getProduct() {
+        return mProduct;
+    }
+
+    public String getSerialNumber() {
+        return mSerialNumber;
+    }
+
+    /**
+     * @return 表示用の1行のテキスト ({@code "製造者 製品名 (S/N シリアル番号)"})。
+     * 文字列をひとつも持たない場合は {@code null}。
+     */
+    public String getLabel() {
+        final StringBuilder sb = new StringBuilder();
+        if (mManufacturer != null) {
+            sb.append(mManufacturer);
+        }
+        if (mProduct != null) {
+            if (sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append(mProduct);
+        }
+        if (mSerialNumber != null) {
+            if (sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append("(S/N ").append(mSerialNumber).append(')');
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    /**
+     * ストリングディスクリプタの内容 (UTF-16LE) を文字列に変換します。
+     *
+     * @param descriptor ストリングディスクリプタ。
+     * @param length 読み込めたバイト数。
+     * @return 文字列。 ストリングディスクリプタでない場合は {@code null}。
+     */
+    public static String decode(byte[] descriptor, int length) {
+        if (length < 2 || (descriptor[1] & 0xff) != UsbDescriptorParser.TYPE_STRING) {
+            return null;
+        }
+        // bLength と実際に読み込めた長さの短い方を使い、奇数バイトは切り捨てる
+        final int end = Math.min(descriptor[0] & 0xff, length) & ~1;
+        final char[] chars = new char[Math.max(end - 2, 0) / 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ((descriptor[2 + i * 2] & 0xff)
+                    | (descriptor[3 + i * 2] & 0xff) << 8);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mManufacturer, mProduct, mSerialNumber);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof UsbStringDescriptors)) {
+            return false;
+        }
+        final UsbStringDescriptors other = (UsbStringDescriptors) obj;
+        return Objects.equal(mManufacturer, other.mManufacturer)
+                && Objects.equal(mProduct, other.mProduct)
+                && Objects.equal(mSerialNumber, other.mSerialNumber);
+    }
+
+    @Override
+    public String toString() {
+        return "UsbStringDescriptors[" + getLabel() + "]";
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ベンチマーク用に、指定した数のデバイスからなるトポロジを生成する {@link UsbDeviceSource}
+ * です。
+ * <p>
+ * デバイスの構成は乱数の種から決まるので、同じ引数からは常に同じトポロジが得られます。
+ * 生の値は生成時に配列として用意しておき、 {@link #enumerate()} のたびにスナップショットを
+ * 組み立てるので、実機での列挙と同じくインタフェースや Endpoint のソートを含みます。
+ * デバイスは名前の順に並ばないように返します。 このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbSyntheticDeviceSource implements UsbDeviceSource {
+
+    /**
+     * バスひとつあたりのデバイス数の上限。
+     */
+    private static final int DEVICES_PER_BUS = 127;
+
+    private static final int MAX_INTERFACES = 4;
+
+    private static final int MAX_ENDPOINTS = 4;
+
+    /*
+     * デバイスごとの値。 インデックスは列挙順です。
+     */
+
+    private final String[] mNames;
+
+    private final int[] mIds;
+
+    private final int[] mClasses;
+
+    private final int[] mVendorIds;
+
+    private final int[] mProductIds;
+
+    /**
+     * デバイスごとの、インタフェースごとの {@code {クラス, サブクラス, プロトコル}}。
+     */
+    private final int[][][] mInterfaces;
+
+    /**
+     * デバイスごとの、インタフェースごとの、 Endpoint ごとの
+     * {@code {アドレス, 属性, インターバル, MaxPacketSize}}。
+     */
+    private final int[][][][] mEndpoints;
+
+    /**
+     * @param deviceCount デバイス数。
+     * @param seed 乱数の種。
+     */
+    public UsbSyntheticDeviceSource(int deviceCount, long seed) {
+        final Random random = new Random(seed);
+        mNames = new String[deviceCount];
+        mIds = new int[deviceCount];
+        mClasses = new int[deviceCount];
+        mVendorIds = new int[deviceCount];
+        mProductIds = new int[deviceCount];
+        mInterfaces = new int[deviceCount][][];
+        mEndpoints = new int[deviceCount][][][];
+
+        final int[] order = shuffledIndexes(deviceCount, random);
+        for (int i = 0; i < deviceCount; i++) {
+            final int bus = 1 + order[i] / DEVICES_PER_BUS;
+            final int address = 1 + order[i] % DEVICES_PER_BUS;
+            mNames[i] = UsbSysfsDeviceSource.getDeviceName(bus, address);
+            mIds[i] = bus * 1000 + address;
+            mClasses[i] = random.nextBoolean() ? 0x00 : random.nextInt(256);
+            mVendorIds[i] = random.nextInt(0x10000);
+            mProductIds[i] = random.nextInt(0x10000);
+
+            final int interfaceCount = 1 + random.nextInt(MAX_INTERFACES);
+            mInterfaces[i] = new int[interfaceCount][];
+            mEndpoints[i] = new int[interfaceCount][][];
+            for (int j = 0; j < interfaceCount; j++) {
+                mInterfaces[i][j] = new int[] {
+                        random.nextInt(256), random.nextInt(256), random.nextInt(256)
+                };
+                final int endpointCount = random.nextInt(MAX_ENDPOINTS + 1);
+                mEndpoints[i][j] = new int[endpointCount][];
+                for (int k = 0; k < endpointCount; k++) {
+                    final int direction = random.nextBoolean() ? UsbConstantsUtil.USB_DIR_IN
+                            : UsbConstantsUtil.USB_DIR_OUT;
+                    mEndpoints[i][j][k] = new int[] {
+                            direction | (1 + random.nextInt(15)), random.nextInt(4),
+                            random.nextInt(16), 8 << random.nextInt(7)
+                    };
+                }
+            }
+        }
+    }
+
+    /**
+     * 0 から {@code count - 1} までを並べ替えた配列を返します。
+     */
+    private static int[] shuffledIndexes(int count, Random random) {
+        final int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = i;
+        }
+        for (int i = count - 1; 0 < i; i--) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+
+    public int getDeviceCount() {
+        return mNames.length;
+    }
+
+    @Override
+    public UsbTopologySnapshot enumerate() {
+        final List<UsbDeviceSnapshot> devices = Lists.newArrayListWithCapacity(mNames.length);
+        for (int i = 0; i < mNames.length; i++) {
+            final int[][] ifaces = mInterfaces[i];
+            final List<UsbInterfaceSnapshot> interfaces = Lists
+                    .newArrayListWithCapacity(ifaces.length);
+            // 実機と同様、インタフェースの並びはソート済みとは限らない
+            for (int j = ifaces.length - 1; 0 <= j; j--) {
+                interfaces.add(new UsbInterfaceSnapshot(j, ifaces[j][0], ifaces[j][1],
+                        ifaces[j][2], newEndpoints(mEndpoints[i][j])));
+            }
+            devices.add(new UsbDeviceSnapshot(mNames[i], mIds[i], mClasses[i], 0, 0,
+                    mVendorIds[i], mProductIds[i], interfaces));
+        }
+        return UsbTopologySnapshot.of(devices);
+    }
+
+    private static List<UsbEndpointSnapshot> newEndpoints(int[][] values) {
+        final List<UsbEndpointSnapshot> result = Lists.newArrayListWithCapacity(values.length);
+        for (int[] v : values) {
+            result.add(new UsbEndpointSnapshot(v[0], v[0] & 0x0f,
+                    v[0] & UsbConstantsUtil.USB_DIR_IN, v[1], v[1] & 0x03, v[2], v[3]));
+        }
+        return result;
+    }
+}
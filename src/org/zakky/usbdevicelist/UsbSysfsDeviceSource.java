@@ -0,0 +1,329 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Linux の sysfs ({@code /sys/bus/usb/devices}) からデバイスを列挙する
+ * {@link UsbDeviceSource} です。
+ * <p>
+ * デバイスのディレクトリ ({@code 1-1.2} や {@code usb1}) の属性ファイルから
+ * {@code android.hardware.usb} と同じ値を読み取ります。 デバイス名は
+ * {@code /dev/bus/usb/BBB/DDD}、 ポートパスはディレクトリ名、デバイス Id は Android と同じく
+ * {@code バス番号 * 1000 + デバイス番号} です。 インタフェースは sysfs に現れている
+ * 現在のコンフィギュレーションのもの ({@code 1-1.2:1.0} など) だけが対象です。
+ * </p>
+ * <p>
+ * 列挙中に取り外されたデバイスや、属性が読めないデバイスは結果に含めません。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbSysfsDeviceSource implements UsbDeviceSource {
+
+    /**
+     * デフォルトの sysfs のデバイス一覧ディレクトリ。
+     */
+    public static final String DEFAULT_ROOT = "/sys/bus/usb/devices";
+
+    private static final String ENDPOINT_PREFIX = "ep_";
+
+    /**
+     * バイナリの属性ファイルから読む最大のバイト数。 カーネルのレポートディスクリプタの
+     * 上限 (HID_MAX_DESCRIPTOR_SIZE) と同じです。
+     */
+    private static final int MAX_BINARY_ATTRIBUTE_LENGTH = 4096;
+
+    private final File mRoot;
+
+    /**
+     * @param root デバイス一覧のディレクトリ。 通常は {@link #DEFAULT_ROOT}。
+     */
+    public UsbSysfsDeviceSource(File root) {
+        mRoot = root;
+    }
+
+    @Override
+    public UsbTopologySnapshot enumerate() {
+        final File[] entries = mRoot.listFiles();
+        if (entries == null) {
+            return UsbTopologySnapshot.EMPTY;
+        }
+        final List<UsbDeviceSnapshot> devices = Lists.newArrayListWithCapacity(entries.length);
+        for (File entry : entries) {
+            if (entry.getName().indexOf(':') < 0) {
+                final UsbDeviceSnapshot dev = readDevice(entry);
+                if (dev != null) {
+                    devices.add(dev);
+                }
+            }
+        }
+        return UsbTopologySnapshot.of(devices);
+    }
+
+    /**
+     * デバイスのディレクトリを読み込みます。
+     *
+     * @return スナップショット。 デバイスのディレクトリでない場合や読み込めない場合は
+     * {@code null}。
+     */
+    private static UsbDeviceSnapshot readDevice(File dir) {
+        try {
+            final int bus = readDecimal(dir, "busnum");
+            final int address = readDecimal(dir, "devnum");
+            final List<UsbInterfaceSnapshot> interfaces = readInterfaces(dir);
+            return new UsbDeviceSnapshot(getDeviceName(bus, address), bus * 1000 + address,
+                    readHex(dir, "bDeviceClass"), readHex(dir, "bDeviceSubClass"),
+                    readHex(dir, "bDeviceProtocol"), readHex(dir, "idVendor"),
+                    readHex(dir, "idProduct"), interfaces, dir.getName());
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * デバイス名からポートパス(デバイスのディレクトリ名)を引くマップを作ります。
+     * {@code android.hardware.usb} からはハブのポートがわからないので、 sysfs が
+     * 読める環境ではこれで補います。
+     *
+     * @param root デバイス一覧のディレクトリ。 通常は {@link #DEFAULT_ROOT}。
+     * @return デバイス名をキーとするマップ。 ディレクトリが読めない場合は空。
+     */
+    public static Map<String, String> readPortPaths(File root) {
+        final Map<String, String> result = Maps.newHashMap();
+        final File[] entries = root.listFiles();
+        if (entries == null) {
+            return result;
+        }
+        for (File entry : entries) {
+            if (entry.getName().indexOf(':') < 0) {
+                try {
+                    result.put(getDeviceName(readDecimal(entry, "busnum"),
+                            readDecimal(entry, "devnum")), entry.getName());
+                } catch (IOException e) {
+                    // 取り外されたか、デバイスのディレクトリではない
+                } catch (NumberFormatException e) {
+                    // 同上
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * デバイスひとつのポートパスを引きます。 {@link #readPortPaths(File)} と同じ結果を
+     * 返しますが、デバイス名のバス番号のディレクトリ ({@code usbB} と {@code B-} で
+     * 始まるもの) の {@code devnum} だけを読みます。 デバイスの接続を通知された時点で
+     * ポートパスを補うために使います。
+     *
+     * @param root デバイス一覧のディレクトリ。 通常は {@link #DEFAULT_ROOT}。
+     * @param deviceName {@code /dev/bus/usb/BBB/DDD} 形式のデバイス名。
+     * @return ポートパス。 見つからない場合は {@code null}。
+     */
+    public static String readPortPath(File root, String deviceName) {
+        final int bus = UsbDeviceNames.getBusNumber(deviceName);
+        final int address = UsbDeviceNames.getDeviceNumber(deviceName);
+        if (bus < 0 || address < 0) {
+            return null;
+        }
+        final String[] names = root.list();
+        if (names == null) {
+            return null;
+        }
+        final String rootHubName = "usb" + bus;
+        final String prefix = bus + "-";
+        for (String name : names) {
+            if (name.indexOf(':') < 0 && (name.equals(rootHubName) || name.startsWith(prefix))) {
+                try {
+                    if (readDecimal(new File(root, name), "devnum") == address) {
+                        return name;
+                    }
+                } catch (IOException e) {
+                    // 取り外されたか、デバイスのディレクトリではない
+                } catch (NumberFormatException e) {
+                    // 同上
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * デバイスの {@code serial} 属性を読みます。 カーネルが列挙時に読み出した値なので、
+     * デバイスへのアクセス権限もバスへの問い合わせも必要ありません。
+     *
+     * @param root デバイス一覧のディレクトリ。 通常は {@link #DEFAULT_ROOT}。
+     * @param portPath デバイスのポートパス。
+     * @return シリアル番号。 デバイスが持たない場合や読めない場合は {@code null}。
+     */
+    public static String readSerialNumber(File root, String portPath) {
+        try {
+            return readAttribute(new File(root, portPath), "serial");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * HID インタフェースのレポートディスクリプタを読みます。 カーネルの HID ドライバが
+     * 列挙時に読み出したものなので、インタフェースからドライバを切り離す必要がありません。
+     *
+     * @param root デバイス一覧のディレクトリ。 通常は {@link #DEFAULT_ROOT}。
+     * @param portPath デバイスのポートパス。
+     * @param interfaceId インタフェース番号。
+     * @return レポートディスクリプタ。 HID ドライバが結び付いていない場合や読めない場合は
+     * {@code null}。
+     */
+    public static byte[] readHidReportDescriptor(File root, String portPath, int interfaceId) {
+        final String prefix = portPath + ':';
+        final String suffix = "." + interfaceId;
+        final File[] entries = root.listFiles();
+        if (entries == null) {
+            return null;
+        }
+        for (File entry : entries) {
+            final String name = entry.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(suffix)
+                    || name.indexOf('.', prefix.length()) != name.length() - suffix.length()) {
+                continue;
+            }
+            // HID ドライバはインタフェースの下に "0003:VVVV:PPPP.NNNN" の子を作る
+            final File[] children = entry.listFiles();
+            if (children == null) {
+                return null;
+            }
+            for (File child : children) {
+                final File file = new File(child, "report_descriptor");
+                if (file.isFile()) {
+                    try {
+                        return readBinaryAttribute(file);
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code /dev/bus/usb/BBB/DDD} 形式のデバイス名。
+     */
+    static String getDeviceName(int bus, int address) {
+        return String.format(Locale.US, "/dev/bus/usb/%03d/%03d", Integer.valueOf(bus),
+                Integer.valueOf(address));
+    }
+
+    private static List<UsbInterfaceSnapshot> readInterfaces(File deviceDir) throws IOException {
+        final File[] entries = deviceDir.listFiles();
+        if (entries == null) {
+            throw new IOException("failed to list: " + deviceDir);
+        }
+        final List<UsbInterfaceSnapshot> result = Lists.newArrayList();
+        for (File entry : entries) {
+            // 子ディレクトリのうち、名前に ':' を含むもの ("1-1.2:1.0" や、ルートハブの
+            // "usb1" の場合は "1-0:1.0") がインタフェース
+            if (0 <= entry.getName().indexOf(':')) {
+                result.add(new UsbInterfaceSnapshot(readHex(entry, "bInterfaceNumber"),
+                        readHex(entry, "bInterfaceClass"), readHex(entry, "bInterfaceSubClass"),
+                        readHex(entry, "bInterfaceProtocol"), readEndpoints(entry)));
+            }
+        }
+        return result;
+    }
+
+    private static List<UsbEndpointSnapshot> readEndpoints(File interfaceDir)
+            throws IOException {
+        final File[] entries = interfaceDir.listFiles();
+        if (entries == null) {
+            throw new IOException("failed to list: " + interfaceDir);
+        }
+        final List<UsbEndpointSnapshot> result = Lists.newArrayList();
+        for (File entry : entries) {
+            if (entry.getName().startsWith(ENDPOINT_PREFIX)) {
+                final int address = readHex(entry, "bEndpointAddress");
+                final int attributes = readHex(entry, "bmAttributes");
+                result.add(new UsbEndpointSnapshot(address, address & 0x0f,
+                        address & UsbConstantsUtil.USB_DIR_IN, attributes, attributes & 0x03,
+                        readHex(entry, "bInterval"), readHex(entry, "wMaxPacketSize")));
+            }
+        }
+        return result;
+    }
+
+    private static int readDecimal(File dir, String name) throws IOException {
+        return Integer.parseInt(readAttribute(dir, name));
+    }
+
+    private static int readHex(File dir, String name) throws IOException {
+        return Integer.parseInt(readAttribute(dir, name), 16);
+    }
+
+    /**
+     * バイナリの属性ファイルを読みます。 sysfs のファイルは長さが 4096 と報告されるので、
+     * 終端まで読んで実際の長さに切り詰めます。
+     */
+    private static byte[] readBinaryAttribute(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[MAX_BINARY_ATTRIBUTE_LENGTH];
+            int length = 0;
+            while (length < buffer.length) {
+                final int count = in.read(buffer, length, buffer.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 属性ファイルの1行目を、前後の空白を除いて返します。
+     */
+    private static String readAttribute(File dir, String name) throws IOException {
+        final BufferedReader in = new BufferedReader(new FileReader(new File(dir, name)), 64);
+        try {
+            final String line = in.readLine();
+            if (line == null) {
+                throw new IOException("empty attribute: " + name);
+            }
+            return line.trim();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * {@code android.os.Trace} (API 18 以降) にタイマの区間を記録する
+ * {@link UsbPerfStats.Tracer} です。
+ * <p>
+ * 最小 API レベルでは {@code android.os.Trace} が無いので、リフレクションで呼び出します。
+ * 記録した区間は {@code systrace} などのシステムトレースに現れます。
+ * </p>
+ */
+public final class UsbSystemTracer implements UsbPerfStats.Tracer {
+
+    /**
+     * セクション名の最大長。
+     */
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private final Method mBeginSection;
+
+    private final Method mEndSection;
+
+    private UsbSystemTracer(Method beginSection, Method endSection) {
+        mBeginSection = beginSection;
+        mEndSection = endSection;
+    }
+
+    /**
+     * トレーサを生成します。
+     *
+     * @return トレーサ。 {@code android.os.Trace} が使えない場合は {@code null}。
+     */
+    public static UsbSystemTracer newInstance() {
+        try {
+            final Class<?> trace = Class.forName("android.os.Trace");
+            return new UsbSystemTracer(trace.getMethod("beginSection", String.class),
+                    trace.getMethod("endSection"));
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void beginSection(String name) {
+        final String sectionName = (name.length() <= MAX_SECTION_NAME_LENGTH) ? name : name
+                .substring(0, MAX_SECTION_NAME_LENGTH);
+        invoke(mBeginSection, sectionName);
+    }
+
+    @Override
+    public void endSection() {
+        invoke(mEndSection);
+    }
+
+    private static void invoke(Method method, Object... args) {
+        try {
+            method.invoke(null, args);
+        } catch (IllegalAccessException e) {
+            // 計測のための呼び出しなので、失敗しても無視する
+            assert true;
+        } catch (InvocationTargetException e) {
+            // 同上
+            assert true;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * 2つの {@link UsbTopologySnapshot} の差分です。
+ * <p>
+ * 両方のスナップショットがデバイス名でソートされていることを利用して、マージ結合で
+ * 差分を求めます。 変化しなかったデバイスについては、{@link #getResult()} で返される
+ * スナップショットにも古いスナップショットのインスタンスがそのまま入るので、
+ * 表示側は同一性の比較だけで再バインドの要否を判断できます。
+ * </p>
+ * <p>
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbTopologyDiff {
+
+    private final UsbTopologySnapshot mResult;
+
+    private final ImmutableList<UsbDeviceSnapshot> mRemoved;
+
+    private final ImmutableList<UsbDeviceSnapshot> mAdded;
+
+    private final ImmutableList<UsbDeviceSnapshot> mChanged;
+
+    /**
+     * 差分を計算します。
+     *
+     * @param oldSnapshot 以前のスナップショット。
+     * @param newSnapshot 新しいスナップショット。
+     * @return 差分。
+     */
+    public static UsbTopologyDiff compute(UsbTopologySnapshot oldSnapshot,
+            UsbTopologySnapshot newSnapshot) {
+        final List<UsbDeviceSnapshot> oldDevices = oldSnapshot.getDevices();
+        final List<UsbDeviceSnapshot> newDevices = newSnapshot.getDevices();
+
+        final ImmutableList.Builder<UsbDeviceSnapshot> result = ImmutableList.builder();
+        final ImmutableList.Builder<UsbDeviceSnapshot> removed = ImmutableList.builder();
+        final ImmutableList.Builder<UsbDeviceSnapshot> added = ImmutableList.builder();
+        final ImmutableList.Builder<UsbDeviceSnapshot> changed = ImmutableList.builder();
+        boolean modified = false;
+
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (oldIndex < oldDevices.size() || newIndex < newDevices.size()) {
+            final int c;
+            if (oldIndex == oldDevices.size()) {
+                c = 1;
+            } else if (newIndex == newDevices.size()) {
+                c = -1;
+            } else {
+                c = UsbDeviceSnapshot.DEV_COMPARATOR.compare(oldDevices.get(oldIndex),
+                        newDevices.get(newIndex));
+            }
+
+            if (c < 0) {
+                removed.add(oldDevices.get(oldIndex++));
+                modified = true;
+            } else if (0 < c) {
+                final UsbDeviceSnapshot dev = newDevices.get(newIndex++);
+                added.add(dev);
+                result.add(dev);
+                modified = true;
+            } else {
+                final UsbDeviceSnapshot oldDev = oldDevices.get(oldIndex++);
+                final UsbDeviceSnapshot newDev = newDevices.get(newIndex++);
+                if (oldDev.equals(newDev)) {
+                    result.add(oldDev);
+                } else {
+                    changed.add(newDev);
+                    result.add(newDev);
+                    modified = true;
+                }
+            }
+        }
+
+        return new UsbTopologyDiff(modified ? new UsbTopologySnapshot(result.build())
+                : oldSnapshot, removed.build(), added.build(), changed.build());
+    }
+
+    private UsbTopologyDiff(UsbTopologySnapshot result, ImmutableList<UsbDeviceSnapshot> removed,
+            ImmutableList<UsbDeviceSnapshot> added, ImmutableList<UsbDeviceSnapshot> changed) {
+        mResult = result;
+        mRemoved = removed;
+        mAdded = added;
+        mChanged = changed;
+    }
+
+    /**
+     * 差分を適用した結果のスナップショットを返します。差分がない場合は以前の
+     * スナップショットそのものを返します。
+     */
+    public UsbTopologySnapshot getResult() {
+        return mResult;
+    }
+
+    /**
+     * 取り外されたデバイス(以前のスナップショットのインスタンス)を返します。
+     */
+    public List<UsbDeviceSnapshot> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * 新たに接続されたデバイスを返します。
+     */
+    public List<UsbDeviceSnapshot> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * デバイス名は同じだが内容が変化したデバイス(新しいスナップショットのインスタンス)を返します。
+     */
+    public List<UsbDeviceSnapshot> getChanged() {
+        return mChanged;
+    }
+
+    public boolean isEmpty() {
+        return mRemoved.isEmpty() && mAdded.isEmpty() && mChanged.isEmpty();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link UsbTopologyExporter} によるファイルへの書き出しをバックグラウンドスレッドで
+ * 行うクラスです。
+ * <p>
+ * 書き出しは一時ファイルに対して行い、完了してから目的のファイル名に変更するので、
+ * 途中で失敗しても前回の出力が壊れることはありません。 要求は後勝ちで、
+ * 最後の要求の結果だけが通知されます。 {@link #start}, {@link #cancel()},
+ * {@link #shutdown()} はメインスレッドから呼んでください。 {@link Callback} は
+ * メインスレッドから呼ばれます。
+ * </p>
+ */
+public class UsbTopologyExportRunner {
+
+    /**
+     * 書き出しの結果を受け取るコールバックです。
+     */
+    public interface Callback {
+        /**
+         * 書き出しが終了した場合にメインスレッドから呼ばれます。
+         *
+         * @param format 書き出した形式。
+         * @param file 書き出したファイル。 失敗した場合は {@code null}。
+         */
+        public void onExported(int format, File file);
+    }
+
+    private static final String TAG = UsbTopologyExportRunner.class.getSimpleName();
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "UsbTopologyExportRunner #" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * 要求の世代番号。最新の世代の結果だけが通知されます。
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public UsbTopologyExportRunner(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * 書き出しを開始します。
+     *
+     * @param snapshot 書き出すスナップショット。
+     * @param ids ベンダ/プロダクト名のインデックス。
+     * @param format {@link UsbTopologyExporter#FORMAT_TEXT} か
+     * {@link UsbTopologyExporter#FORMAT_JSON}。
+     * @param directory 出力先のディレクトリ。 存在しない場合は作成します。
+     */
+    public void start(final UsbTopologySnapshot snapshot, final UsbIdsIndex ids,
+            final int format, final File directory) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                final File file = export(snapshot, ids, format, directory);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            mCallback.onExported(format, file);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static File export(UsbTopologySnapshot snapshot, UsbIdsIndex ids, int format,
+            File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "failed to create directory: " + directory);
+            return null;
+        }
+        final File file = new File(directory, UsbTopologyExporter.getFileName(format));
+        final File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        try {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    temp), "UTF-8"), BUFFER_SIZE);
+            try {
+                UsbTopologyExporter.write(out, format, snapshot, ids);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to export: " + file, e);
+            temp.delete();
+            return null;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "failed to rename: " + temp);
+            temp.delete();
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * 未完了の要求を取り消します。 取り消した要求の結果は通知されません。
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * 未完了の要求を取り消し、バックグラウンドスレッドを終了します。 以降このオブジェクトは
+     * 使用できません。
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * デバイス → インタフェース → Endpoint のツリーを、 {@code lsusb -v} 互換のテキストや
+ * JSON として書き出すユーティリティです。 バスとハブのポートの木を {@code lsusb -t}
+ * に似た形式で書き出すこともできます。
+ * <p>
+ * 出力はデバイスごとに {@link Writer} へ書き出すので、ドキュメント全体をメモリに
+ * 保持することはありません。 順序はスナップショットの順(デバイス名、インタフェース Id、
+ * Endpoint Number の昇順)で、時刻などの可変の情報は含めず、改行は {@code '\n'} に
+ * 固定しているので、同じスナップショットからは常に同じ出力が得られます。
+ * </p>
+ */
+public final class UsbTopologyExporter {
+
+    /**
+     * {@code lsusb -v} 互換のテキスト形式。
+     */
+    public static final int FORMAT_TEXT = 0;
+
+    /**
+     * JSON 形式。
+     */
+    public static final int FORMAT_JSON = 1;
+
+    /**
+     * {@code lsusb -t} に似た、バスとハブのポートの木のテキスト形式。
+     */
+    public static final int FORMAT_TREE = 2;
+
+    /*
+     * lsusb と同じ、ディスクリプタの固定値
+     */
+
+    private static final int DEVICE_DESCRIPTOR_LENGTH = 18;
+
+    private static final int INTERFACE_DESCRIPTOR_LENGTH = 9;
+
+    private static final int ENDPOINT_DESCRIPTOR_LENGTH = 7;
+
+    private static final String[] TRANSFER_TYPE_NAMES = {
+            "Control", "Isochronous", "Bulk", "Interrupt"
+    };
+
+    private static final String[] SYNC_TYPE_NAMES = {
+            "None", "Asynchronous", "Adaptive", "Synchronous"
+    };
+
+    private static final String[] USAGE_TYPE_NAMES = {
+            "Data", "Feedback", "Implicit feedback Data", "(reserved)"
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private UsbTopologyExporter() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * @return 形式に対応する出力ファイル名。
+     */
+    public static String getFileName(int format) {
+        if (format == FORMAT_JSON) {
+            return "usb-topology.json";
+        }
+        return (format == FORMAT_TREE) ? "usb-topology-tree.txt" : "usb-topology.txt";
+    }
+
+    /**
+     * @return 形式に対応する MIME タイプ。
+     */
+    public static String getMimeType(int format) {
+        return (format == FORMAT_JSON) ? "application/json" : "text/plain";
+    }
+
+    /**
+     * 指定した形式で書き出します。
+     *
+     * @param format {@link #FORMAT_TEXT}, {@link #FORMAT_JSON}, {@link #FORMAT_TREE}
+     * のいずれか。
+     * @param ids ベンダ/プロダクト名のインデックス。 名前を出力しない場合は
+     * {@link UsbIdsIndex#EMPTY}。
+     */
+    public static void write(Writer out, int format, UsbTopologySnapshot snapshot,
+            UsbIdsIndex ids) throws IOException {
+        if (format == FORMAT_JSON) {
+            writeJson(out, snapshot, ids);
+        } else if (format == FORMAT_TREE) {
+            writeTree(out, new UsbTopologyTree(snapshot), ids);
+        } else {
+            writeText(out, snapshot, ids);
+        }
+    }
+
+    /*
+     * lsusb -v 互換のテキスト
+     */
+
+    /**
+     * {@code lsusb -v} 互換のテキストを書き出します。 Android の API から得られない
+     * フィールド(bcdUSB や文字列ディスクリプタなど)は出力しません。
+     */
+    public static void writeText(Writer out, UsbTopologySnapshot snapshot, UsbIdsIndex ids)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder(1024);
+        final int count = snapshot.size();
+        for (int i = 0; i < count; i++) {
+            if (0 < i) {
+                sb.append('\n');
+            }
+            appendDeviceText(sb, snapshot.getDevice(i), ids);
+            out.write(sb.toString());
+            sb.setLength(0);
+        }
+        out.flush();
+    }
+
+    private static void appendDeviceText(StringBuilder sb, UsbDeviceSnapshot dev,
+            UsbIdsIndex ids) {
+        final String name = dev.getDeviceName();
+        final String vendorName = ids.getVendorName(dev.getVendorId());
+        final String productName = ids.getProductName(dev.getVendorId(), dev.getProductId());
+
+        sb.append("Bus ");
+        appendZeroPadded(sb, Math.max(0, UsbDeviceNames.getBusNumber(name)), 3);
+        sb.append(" Device ");
+        appendZeroPadded(sb, Math.max(0, UsbDeviceNames.getDeviceNumber(name)), 3);
+        sb.append(": ID ");
+        appendHexDigits(sb, dev.getVendorId(), 4).append(':');
+        appendHexDigits(sb, dev.getProductId(), 4);
+        appendName(sb, vendorName);
+        appendName(sb, productName).append('\n');
+
+        sb.append("Device Descriptor:\n");
+        appendField(sb, 2, "bLength", DEVICE_DESCRIPTOR_LENGTH).append('\n');
+        appendField(sb, 2, "bDescriptorType", UsbDescriptorParser.TYPE_DEVICE).append('\n');
+        appendField(sb, 2, "bDeviceClass", dev.getDeviceClass());
+        appendName(sb, getClassName(dev.getDeviceClass())).append('\n');
+        appendField(sb, 2, "bDeviceSubClass", dev.getDeviceSubclass()).append('\n');
+        appendField(sb, 2, "bDeviceProtocol", dev.getDeviceProtocol()).append('\n');
+        appendHexField(sb, 2, "idVendor", dev.getVendorId());
+        appendName(sb, vendorName).append('\n');
+        appendHexField(sb, 2, "idProduct", dev.getProductId());
+        appendName(sb, productName).append('\n');
+
+        sb.append("  Configuration Descriptor:\n");
+        appendField(sb, 4, "bNumInterfaces", dev.getInterfaceCount()).append('\n');
+        for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+            appendInterfaceText(sb, iface);
+        }
+    }
+
+    private static void appendInterfaceText(StringBuilder sb, UsbInterfaceSnapshot iface) {
+        sb.append("    Interface Descriptor:\n");
+        appendField(sb, 6, "bLength", INTERFACE_DESCRIPTOR_LENGTH).append('\n');
+        appendField(sb, 6, "bDescriptorType", UsbDescriptorParser.TYPE_INTERFACE).append('\n');
+        appendField(sb, 6, "bInterfaceNumber", iface.getId()).append('\n');
+        appendField(sb, 6, "bNumEndpoints", iface.getEndpointCount()).append('\n');
+        appendField(sb, 6, "bInterfaceClass", iface.getInterfaceClass());
+        appendName(sb, getClassName(iface.getInterfaceClass())).append('\n');
+        appendField(sb, 6, "bInterfaceSubClass", iface.getInterfaceSubclass()).append('\n');
+        appendField(sb, 6, "bInterfaceProtocol", iface.getInterfaceProtocol()).append('\n');
+        for (UsbEndpointSnapshot ep : iface.getEndpoints()) {
+            appendEndpointText(sb, ep);
+        }
+    }
+
+    private static void appendEndpointText(StringBuilder sb, UsbEndpointSnapshot ep) {
+        final int attributes = ep.getAttributes();
+        final int maxPacketSize = ep.getMaxPacketSize();
+
+        sb.append("      Endpoint Descriptor:\n");
+        appendField(sb, 8, "bLength", ENDPOINT_DESCRIPTOR_LENGTH).append('\n');
+        appendField(sb, 8, "bDescriptorType", UsbDescriptorParser.TYPE_ENDPOINT).append('\n');
+        appendLabel(sb, 8, "bEndpointAddress").append(' ');
+        appendHex(sb, ep.getAddress(), 2).append("  EP ").append(ep.getEndpointNumber())
+                .append(((ep.getAddress() & 0x80) != 0) ? " IN\n" : " OUT\n");
+        appendField(sb, 8, "bmAttributes", attributes).append('\n');
+        appendLabel(sb, 10, "Transfer Type").append("     ")
+                .append(TRANSFER_TYPE_NAMES[attributes & 0x03]).append('\n');
+        appendLabel(sb, 10, "Synch Type").append("     ")
+                .append(SYNC_TYPE_NAMES[(attributes >>> 2) & 0x03]).append('\n');
+        appendLabel(sb, 10, "Usage Type").append("     ")
+                .append(USAGE_TYPE_NAMES[(attributes >>> 4) & 0x03]).append('\n');
+        appendHexField(sb, 8, "wMaxPacketSize", maxPacketSize).append("  ")
+                .append(((maxPacketSize >>> 11) & 0x03) + 1).append("x ")
+                .append(maxPacketSize & 0x7ff).append(" bytes\n");
+        appendField(sb, 8, "bInterval", ep.getInterval()).append('\n');
+    }
+
+    /**
+     * lsusb と同じく、インデントとフィールド名を20桁に揃えて追加します。
+     */
+    private static StringBuilder appendLabel(StringBuilder sb, int indent, String label) {
+        for (int i = 0; i < indent; i++) {
+            sb.append(' ');
+        }
+        sb.append(label);
+        for (int i = indent + label.length(); i < 20 + indent; i++) {
+            sb.append(' ');
+        }
+        return sb;
+    }
+
+    /**
+     * {@code "%5u"} 形式のフィールドを追加します。
+     */
+    private static StringBuilder appendField(StringBuilder sb, int indent, String label,
+            int value) {
+        appendLabel(sb, indent, label);
+        final String s = Integer.toString(value);
+        for (int i = s.length(); i < 5; i++) {
+            sb.append(' ');
+        }
+        return sb.append(s);
+    }
+
+    /**
+     * {@code "0x%04x"} 形式のフィールドを追加します。
+     */
+    private static StringBuilder appendHexField(StringBuilder sb, int indent, String label,
+            int value) {
+        appendLabel(sb, indent, label).setLength(sb.length() - 1);
+        return appendHex(sb, value, 4);
+    }
+
+    private static StringBuilder appendName(StringBuilder sb, String name) {
+        if (name == null || name.length() == 0) {
+            return sb;
+        }
+        return sb.append(' ').append(name);
+    }
+
+    private static String getClassName(int clazz) {
+        if (clazz == 0) {
+            return "(Defined at Interface level)";
+        }
+        return UsbConstantsUtil.getClassName(clazz);
+    }
+
+    private static StringBuilder appendHex(StringBuilder sb, int value, int digits) {
+        return appendHexDigits(sb.append("0x"), value, digits);
+    }
+
+    private static StringBuilder appendHexDigits(StringBuilder sb, int value, int digits) {
+        for (int shift = (digits - 1) * 4; 0 <= shift; shift -= 4) {
+            sb.append(HEX_DIGITS[(value >>> shift) & 0xf]);
+        }
+        return sb;
+    }
+
+    private static StringBuilder appendZeroPadded(StringBuilder sb, int value, int digits) {
+        final String s = Integer.toString(value);
+        for (int i = s.length(); i < digits; i++) {
+            sb.append('0');
+        }
+        return sb.append(s);
+    }
+
+    /*
+     * lsusb -t に似た木のテキスト
+     */
+
+    /**
+     * バスごとに、ハブのポートの木をインデントで表したテキストを書き出します。
+     * ポートパスがわからないデバイスはバスの直下に並びます。
+     */
+    public static void writeTree(Writer out, UsbTopologyTree tree, UsbIdsIndex ids)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder(256);
+        for (UsbTopologyTree.Node bus : tree.getBuses()) {
+            sb.append("/:  Bus ");
+            appendZeroPadded(sb, bus.getBusNumber(), 3).append('\n');
+            out.write(sb.toString());
+            sb.setLength(0);
+            writeTreeChildren(out, sb, bus, 1, ids);
+        }
+        out.flush();
+    }
+
+    private static void writeTreeChildren(Writer out, StringBuilder sb,
+            UsbTopologyTree.Node parent, int depth, UsbIdsIndex ids) throws IOException {
+        for (UsbTopologyTree.Node node : parent.getChildren()) {
+            appendTreeLine(sb, node.getDevice(), depth, ids);
+            out.write(sb.toString());
+            sb.setLength(0);
+            writeTreeChildren(out, sb, node, depth + 1, ids);
+        }
+    }
+
+    private static void appendTreeLine(StringBuilder sb, UsbDeviceSnapshot dev, int depth,
+            UsbIdsIndex ids) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("    ");
+        }
+        sb.append("|__ ");
+        final String portPath = dev.getPortPath();
+        if (portPath != null) {
+            sb.append(portPath).append(' ');
+        }
+        sb.append("Dev ");
+        appendZeroPadded(sb, Math.max(0, UsbDeviceNames.getDeviceNumber(dev.getDeviceName())),
+                3);
+        sb.append(", ID ");
+        appendHexDigits(sb, dev.getVendorId(), 4).append(':');
+        appendHexDigits(sb, dev.getProductId(), 4);
+        final String productName = ids.getProductName(dev.getVendorId(), dev.getProductId());
+        if (productName != null) {
+            sb.append(' ').append(productName);
+        }
+        sb.append(", Class=").append(UsbConstantsUtil.getClassName(dev.getDeviceClass()));
+        sb.append(", If=").append(dev.getInterfaceCount()).append('\n');
+    }
+
+    /*
+     * JSON
+     */
+
+    /**
+     * JSON を書き出します。 インデントは空白2つで、キーの順序は固定です。
+     */
+    public static void writeJson(Writer out, UsbTopologySnapshot snapshot, UsbIdsIndex ids)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\n  \"devices\": [");
+        final int count = snapshot.size();
+        for (int i = 0; i < count; i++) {
+            sb.append((0 < i) ? ",\n" : "\n");
+            appendDeviceJson(sb, snapshot.getDevice(i), ids);
+            out.write(sb.toString());
+            sb.setLength(0);
+        }
+        sb.append((0 < count) ? "\n  ]\n}\n" : "]\n}\n");
+        out.write(sb.toString());
+        out.flush();
+    }
+
+    private static void appendDeviceJson(StringBuilder sb, UsbDeviceSnapshot dev,
+            UsbIdsIndex ids) {
+        final String name = dev.getDeviceName();
+        sb.append("    {\n");
+        appendJsonString(sb, 6, "name", name).append(",\n");
+        appendJsonNumber(sb, 6, "bus", UsbDeviceNames.getBusNumber(name)).append(",\n");
+        appendJsonNumber(sb, 6, "address", UsbDeviceNames.getDeviceNumber(name))
+                .append(",\n");
+        appendJsonNumber(sb, 6, "id", dev.getDeviceId()).append(",\n");
+        appendJsonNumber(sb, 6, "vendorId", dev.getVendorId()).append(",\n");
+        appendJsonString(sb, 6, "vendorName", ids.getVendorName(dev.getVendorId()))
+                .append(",\n");
+        appendJsonNumber(sb, 6, "productId", dev.getProductId()).append(",\n");
+        appendJsonString(sb, 6, "productName",
+                ids.getProductName(dev.getVendorId(), dev.getProductId())).append(",\n");
+        appendJsonNumber(sb, 6, "class", dev.getDeviceClass()).append(",\n");
+        appendJsonString(sb, 6, "className",
+                UsbConstantsUtil.getClassName(dev.getDeviceClass())).append(",\n");
+        appendJsonNumber(sb, 6, "subclass", dev.getDeviceSubclass()).append(",\n");
+        appendJsonNumber(sb, 6, "protocol", dev.getDeviceProtocol()).append(",\n");
+        appendJsonKey(sb, 6, "interfaces").append('[');
+        final int count = dev.getInterfaceCount();
+        for (int i = 0; i < count; i++) {
+            sb.append((0 < i) ? ",\n" : "\n");
+            appendInterfaceJson(sb, dev.getInterface(i));
+        }
+        sb.append((0 < count) ? "\n      ]\n    }" : "]\n    }");
+    }
+
+    private static void appendInterfaceJson(StringBuilder sb, UsbInterfaceSnapshot iface) {
+        sb.append("        {\n");
+        appendJsonNumber(sb, 10, "id", iface.getId()).append(",\n");
+        appendJsonNumber(sb, 10, "class", iface.getInterfaceClass()).append(",\n");
+        appendJsonString(sb, 10, "className",
+                UsbConstantsUtil.getClassName(iface.getInterfaceClass())).append(",\n");
+        appendJsonNumber(sb, 10, "subclass", iface.getInterfaceSubclass()).append(",\n");
+        appendJsonNumber(sb, 10, "protocol", iface.getInterfaceProtocol()).append(",\n");
+        appendJsonKey(sb, 10, "endpoints").append('[');
+        final int count = iface.getEndpointCount();
+        for (int i = 0; i < count; i++) {
+            sb.append((0 < i) ? ",\n" : "\n");
+            appendEndpointJson(sb, iface.getEndpoint(i));
+        }
+        sb.append((0 < count) ? "\n          ]\n        }" : "]\n        }");
+    }
+
+    private static void appendEndpointJson(StringBuilder sb, UsbEndpointSnapshot ep) {
+        sb.append("            {\n");
+        appendJsonNumber(sb, 14, "address", ep.getAddress()).append(",\n");
+        appendJsonNumber(sb, 14, "number", ep.getEndpointNumber()).append(",\n");
+        appendJsonString(sb, 14, "direction", ((ep.getAddress() & 0x80) != 0) ? "IN" : "OUT")
+                .append(",\n");
+        appendJsonNumber(sb, 14, "attributes", ep.getAttributes()).append(",\n");
+        appendJsonString(sb, 14, "type", TRANSFER_TYPE_NAMES[ep.getAttributes() & 0x03])
+                .append(",\n");
+        appendJsonNumber(sb, 14, "maxPacketSize", ep.getMaxPacketSize()).append(",\n");
+        appendJsonNumber(sb, 14, "interval", ep.getInterval()).append('\n');
+        sb.append("            }");
+    }
+
+    private static StringBuilder appendJsonKey(StringBuilder sb, int indent, String key) {
+        for (int i = 0; i < indent; i++) {
+            sb.append(' ');
+        }
+        return sb.append('"').append(key).append("\": ");
+    }
+
+    private static StringBuilder appendJsonNumber(StringBuilder sb, int indent, String key,
+            int value) {
+        return appendJsonKey(sb, indent, key).append(value);
+    }
+
+    /**
+     * 文字列のフィールドを追加します。 {@code value} が {@code null} の場合は
+     * {@code null} を出力します。
+     */
+    private static StringBuilder appendJsonString(StringBuilder sb, int indent, String key,
+            String value) {
+        appendJsonKey(sb, indent, key);
+        if (value == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(HEX_DIGITS[c >>> 4])
+                                .append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        return sb.append('"');
+    }
+}
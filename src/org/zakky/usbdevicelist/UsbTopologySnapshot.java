@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ある時点で接続されていたデバイス全体のスナップショットです。
+ * <p>
+ * デバイスはデバイス名 ({@link UsbDeviceSnapshot#getDeviceName()}) をキーとして
+ * 保持し、デバイス名の昇順でソートされています。このクラスはイミュータブルです。
+ * </p>
+ */
+public final class UsbTopologySnapshot {
+
+    /**
+     * デバイスがひとつも接続されていない状態を表すスナップショット。
+     */
+    public static final UsbTopologySnapshot EMPTY = new UsbTopologySnapshot(
+            ImmutableList.<UsbDeviceSnapshot> of());
+
+    private static final UsbPerfStats.Timer SORT_TIMER = UsbPerfStats.newTimer("sort.devices");
+
+    private final ImmutableList<UsbDeviceSnapshot> mDevices;
+
+    /**
+     * デバイスのコレクションからスナップショットを生成します。同じデバイス名の
+     * デバイスが複数含まれる場合は後のものが優先されます。
+     *
+     * @param devices デバイスのコレクション。順序は問いません。
+     * @return スナップショット。
+     */
+    public static UsbTopologySnapshot of(Collection<UsbDeviceSnapshot> devices) {
+        final Map<String, UsbDeviceSnapshot> byName = Maps.newHashMap();
+        for (UsbDeviceSnapshot dev : devices) {
+            byName.put(dev.getDeviceName(), dev);
+        }
+        final UsbDeviceSnapshot[] sorted = byName.values().toArray(
+                new UsbDeviceSnapshot[byName.size()]);
+        final long start = SORT_TIMER.start();
+        try {
+            Arrays.sort(sorted, UsbDeviceSnapshot.DEV_COMPARATOR);
+        } finally {
+            SORT_TIMER.stop(start);
+        }
+        return new UsbTopologySnapshot(ImmutableList.copyOf(sorted));
+    }
+
+    /**
+     * @param sortedDevices デバイス名の昇順でソート済みで、デバイス名の重複がないリスト。
+     */
+    UsbTopologySnapshot(ImmutableList<UsbDeviceSnapshot> sortedDevices) {
+        mDevices = sortedDevices;
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    public UsbDeviceSnapshot getDevice(int index) {
+        return mDevices.get(index);
+    }
+
+    /**
+     * デバイス名の昇順にソートされたデバイスのリストを返します。
+     *
+     * @return 変更不可能なリスト。
+     */
+    public List<UsbDeviceSnapshot> getDevices() {
+        return mDevices;
+    }
+
+    /**
+     * 指定されたデバイス名を持つデバイスのインデックスを返します。
+     *
+     * @param deviceName デバイス名。
+     * @return インデックス。見つからない場合は負の値。
+     */
+    public int indexOf(String deviceName) {
+        int low = 0;
+        int high = mDevices.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = mDevices.get(mid).getDeviceName().compareTo(deviceName);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (0 < c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * 指定されたデバイス名を持つデバイスを返します。
+     *
+     * @param deviceName デバイス名。
+     * @return デバイス。見つからない場合は {@code null}。
+     */
+    public UsbDeviceSnapshot getDevice(String deviceName) {
+        final int index = indexOf(deviceName);
+        if (index < 0) {
+            return null;
+        }
+        return mDevices.get(index);
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * デバイスをバスとハブのポートの木構造として保持し、バス番号、デバイス Id、
+ * VID:PID、クラスで引ける索引を持つクラスです。
+ * <p>
+ * 木の根はバスごとのノード (デバイスを持たない) で、デバイスはポートパス
+ * ({@link UsbDeviceSnapshot#getPortPath()}) から求めた親の下に置かれます。 親のハブが
+ * 列挙されていない場合は、存在するもっとも近い祖先(無ければバス)の下に置き、
+ * 親が追加された時点で付け替えます。 ポートパスが不明なデバイスはバスの直下に置きます。
+ * 兄弟はポートの番号順に並びます。
+ * </p>
+ * <p>
+ * {@link #apply(UsbTopologyDiff)} は差分に含まれるデバイスだけを木と索引に反映するので、
+ * 接続や切断のたびに全体を作り直すことはありません。 索引は int をキーとする
+ * {@link UsbIntMultimap} で、検索は全デバイスを走査しません。
+ * </p>
+ * <p>
+ * このクラスはスレッドセーフではありません。 Android には依存しません。
+ * </p>
+ */
+public final class UsbTopologyTree {
+
+    /**
+     * 木のノードです。 バスのノードはデバイスを持ちません。
+     */
+    public static final class Node {
+        private final int mBusNumber;
+
+        private final UsbDeviceSnapshot mDevice;
+
+        private Node mParent;
+
+        private final List<Node> mChildren = Lists.newArrayList();
+
+        Node(int busNumber, UsbDeviceSnapshot device) {
+            mBusNumber = busNumber;
+            mDevice = device;
+        }
+
+        public int getBusNumber() {
+            return mBusNumber;
+        }
+
+        /**
+         * @return デバイス。 バスのノードの場合は {@code null}。
+         */
+        public UsbDeviceSnapshot getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return 親のノード。 バスのノードの場合は {@code null}。
+         */
+        public Node getParent() {
+            return mParent;
+        }
+
+        /**
+         * @return ポート順に並んだ子のノードの、変更不可能なリスト。
+         */
+        public List<Node> getChildren() {
+            return Collections.unmodifiableList(mChildren);
+        }
+
+        /**
+         * @return 木の深さ。 バスのノードが 0、バスの直下のデバイスが 1 です。
+         */
+        public int getDepth() {
+            int depth = 0;
+            for (Node n = mParent; n != null; n = n.mParent) {
+                depth++;
+            }
+            return depth;
+        }
+
+        String getPortPath() {
+            return (mDevice == null) ? null : mDevice.getPortPath();
+        }
+    }
+
+    /**
+     * バス番号順に並んだバスのノード。
+     */
+    private final List<Node> mBuses = Lists.newArrayList();
+
+    private final Map<String, Node> mByName = Maps.newHashMap();
+
+    private final Map<String, Node> mByPortPath = Maps.newHashMap();
+
+    private final UsbIntMultimap<UsbDeviceSnapshot> mByBus =
+            new UsbIntMultimap<UsbDeviceSnapshot>();
+
+    private final UsbIntMultimap<UsbDeviceSnapshot> mByDeviceId =
+            new UsbIntMultimap<UsbDeviceSnapshot>();
+
+    private final UsbIntMultimap<UsbDeviceSnapshot> mByVidPid =
+            new UsbIntMultimap<UsbDeviceSnapshot>();
+
+    private final UsbIntMultimap<UsbDeviceSnapshot> mByClass =
+            new UsbIntMultimap<UsbDeviceSnapshot>();
+
+    /**
+     * 行きがけ順に並べたデバイスのノード。 木が変更されると {@code null} に戻ります。
+     */
+    private List<Node> mPreorder;
+
+    /**
+     * デバイス名から {@link #mPreorder} でのインデックスを引くマップ。
+     */
+    private Map<String, Integer> mPreorderIndexes;
+
+    /**
+     * 空の木を生成します。
+     */
+    public UsbTopologyTree() {
+        // nothing to do
+        assert true;
+    }
+
+    /**
+     * スナップショットから木を生成します。
+     */
+    public UsbTopologyTree(UsbTopologySnapshot snapshot) {
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            add(dev);
+        }
+    }
+
+    /**
+     * 差分を反映します。 差分に含まれないデバイスのノードはそのまま残ります。
+     *
+     * @param diff この木の元になったスナップショットを基準として計算した差分。
+     */
+    public void apply(UsbTopologyDiff diff) {
+        for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+            remove(dev.getDeviceName());
+        }
+        for (UsbDeviceSnapshot dev : diff.getChanged()) {
+            remove(dev.getDeviceName());
+            add(dev);
+        }
+        for (UsbDeviceSnapshot dev : diff.getAdded()) {
+            add(dev);
+        }
+    }
+
+    /**
+     * @return デバイスの数。
+     */
+    public int size() {
+        return mByName.size();
+    }
+
+    /**
+     * @return バス番号順に並んだバスのノードの、変更不可能なリスト。
+     */
+    public List<Node> getBuses() {
+        return Collections.unmodifiableList(mBuses);
+    }
+
+    /**
+     * @return デバイスのノード。 見つからない場合は {@code null}。
+     */
+    public Node getNode(String deviceName) {
+        return mByName.get(deviceName);
+    }
+
+    /**
+     * @return バスに接続されているデバイスの、変更不可能なリスト。
+     */
+    public List<UsbDeviceSnapshot> getDevicesOnBus(int busNumber) {
+        return mByBus.get(busNumber);
+    }
+
+    /**
+     * @param deviceId {@link UsbDeviceSnapshot#getDeviceId()} の値
+     * ({@code バス番号 * 1000 + デバイス番号})。
+     * @return デバイス。 見つからない場合は {@code null}。
+     */
+    public UsbDeviceSnapshot getDeviceById(int deviceId) {
+        return mByDeviceId.getFirst(deviceId);
+    }
+
+    /**
+     * @return ベンダ Id とプロダクト Id が一致するデバイスの、変更不可能なリスト。
+     */
+    public List<UsbDeviceSnapshot> getDevicesByVidPid(int vendorId, int productId) {
+        return mByVidPid.get(toVidPidKey(vendorId, productId));
+    }
+
+    /**
+     * @return デバイスクラスか、いずれかのインタフェースのクラスが一致するデバイスの、
+     * 変更不可能なリスト。
+     */
+    public List<UsbDeviceSnapshot> getDevicesByClass(int clazz) {
+        return mByClass.get(clazz);
+    }
+
+    /**
+     * @return バスの順に、バスごとに行きがけ順で並べたデバイスのノードの、変更不可能なリスト。
+     */
+    public List<Node> getDevicesInTreeOrder() {
+        if (mPreorder == null) {
+            final List<Node> preorder = Lists.newArrayListWithCapacity(mByName.size());
+            for (Node bus : mBuses) {
+                appendPreorder(preorder, bus);
+            }
+            mPreorder = Collections.unmodifiableList(preorder);
+        }
+        return mPreorder;
+    }
+
+    /**
+     * @return {@link #getDevicesInTreeOrder()} でのデバイスのインデックス。
+     * 見つからない場合は -1。
+     */
+    public int getTreeIndex(String deviceName) {
+        if (mPreorderIndexes == null) {
+            final List<Node> preorder = getDevicesInTreeOrder();
+            final Map<String, Integer> indexes = Maps.newHashMapWithExpectedSize(preorder
+                    .size());
+            for (int i = 0; i < preorder.size(); i++) {
+                indexes.put(preorder.get(i).getDevice().getDeviceName(), Integer.valueOf(i));
+            }
+            mPreorderIndexes = indexes;
+        }
+        final Integer index = mPreorderIndexes.get(deviceName);
+        return (index == null) ? -1 : index.intValue();
+    }
+
+    private static void appendPreorder(List<Node> result, Node node) {
+        for (Node child : node.mChildren) {
+            result.add(child);
+            appendPreorder(result, child);
+        }
+    }
+
+    private void add(UsbDeviceSnapshot dev) {
+        final int busNumber = getBusNumber(dev);
+        final Node node = new Node(busNumber, dev);
+        final String portPath = dev.getPortPath();
+        final Node parent = findNearestAncestor(busNumber, portPath);
+
+        if (portPath != null) {
+            // 親が無いため祖先の下に置かれていた子孫を引き取る
+            for (int i = parent.mChildren.size() - 1; 0 <= i; i--) {
+                final Node sibling = parent.mChildren.get(i);
+                final String siblingPath = sibling.getPortPath();
+                if (siblingPath != null && isDescendantPath(siblingPath, portPath)) {
+                    parent.mChildren.remove(i);
+                    insertChild(node, sibling);
+                }
+            }
+            mByPortPath.put(portPath, node);
+        }
+        insertChild(parent, node);
+        mByName.put(dev.getDeviceName(), node);
+
+        mByBus.put(busNumber, dev);
+        mByDeviceId.put(dev.getDeviceId(), dev);
+        mByVidPid.put(toVidPidKey(dev.getVendorId(), dev.getProductId()), dev);
+        for (int clazz : getClasses(dev)) {
+            mByClass.put(clazz, dev);
+        }
+        invalidateOrder();
+    }
+
+    private void remove(String deviceName) {
+        final Node node = mByName.remove(deviceName);
+        if (node == null) {
+            return;
+        }
+        final UsbDeviceSnapshot dev = node.mDevice;
+        final Node parent = node.mParent;
+        parent.mChildren.remove(node);
+        for (Node child : node.mChildren) {
+            insertChild(parent, child);
+        }
+        node.mChildren.clear();
+        node.mParent = null;
+        final String portPath = dev.getPortPath();
+        if (portPath != null && mByPortPath.get(portPath) == node) {
+            mByPortPath.remove(portPath);
+        }
+        if (parent.mParent == null && parent.mChildren.isEmpty()) {
+            mBuses.remove(parent);
+        }
+
+        mByBus.remove(node.mBusNumber, dev);
+        mByDeviceId.remove(dev.getDeviceId(), dev);
+        mByVidPid.remove(toVidPidKey(dev.getVendorId(), dev.getProductId()), dev);
+        for (int clazz : getClasses(dev)) {
+            mByClass.remove(clazz, dev);
+        }
+        invalidateOrder();
+    }
+
+    private void invalidateOrder() {
+        mPreorder = null;
+        mPreorderIndexes = null;
+    }
+
+    /**
+     * ポートパスの祖先のうち、木に存在するもっとも近いものを返します。
+     *
+     * @return 祖先のノード。 存在しない場合はバスのノード。
+     */
+    private Node findNearestAncestor(int busNumber, String portPath) {
+        for (String p = getParentPortPath(portPath); p != null; p = getParentPortPath(p)) {
+            final Node ancestor = mByPortPath.get(p);
+            if (ancestor != null) {
+                return ancestor;
+            }
+        }
+        return getOrCreateBus(busNumber);
+    }
+
+    private Node getOrCreateBus(int busNumber) {
+        int i = 0;
+        while (i < mBuses.size() && mBuses.get(i).mBusNumber < busNumber) {
+            i++;
+        }
+        if (i < mBuses.size() && mBuses.get(i).mBusNumber == busNumber) {
+            return mBuses.get(i);
+        }
+        final Node bus = new Node(busNumber, null);
+        mBuses.add(i, bus);
+        return bus;
+    }
+
+    /**
+     * 兄弟の並びを保ったまま子を追加します。
+     */
+    private static void insertChild(Node parent, Node child) {
+        final List<Node> children = parent.mChildren;
+        int i = children.size();
+        while (0 < i && 0 < compareNodes(children.get(i - 1), child)) {
+            i--;
+        }
+        children.add(i, child);
+        child.mParent = parent;
+    }
+
+    /**
+     * ポートパスがあるものを先にポート番号順、無いものは後にデバイス名順で並べます。
+     */
+    private static int compareNodes(Node n1, Node n2) {
+        final String p1 = n1.getPortPath();
+        final String p2 = n2.getPortPath();
+        if (p1 != null && p2 != null) {
+            final int c = comparePortPaths(p1, p2);
+            if (c != 0) {
+                return c;
+            }
+        } else if (p1 != null) {
+            return -1;
+        } else if (p2 != null) {
+            return 1;
+        }
+        return n1.mDevice.getDeviceName().compareTo(n2.mDevice.getDeviceName());
+    }
+
+    /**
+     * 数字の並びを数値として比較します。 {@code 1-2} は {@code 1-10} より前になります。
+     */
+    static int comparePortPaths(String p1, String p2) {
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < p1.length() && i2 < p2.length()) {
+            final char c1 = p1.charAt(i1);
+            final char c2 = p2.charAt(i2);
+            if (isDigit(c1) && isDigit(c2)) {
+                int end1 = i1;
+                while (end1 < p1.length() && isDigit(p1.charAt(end1))) {
+                    end1++;
+                }
+                int end2 = i2;
+                while (end2 < p2.length() && isDigit(p2.charAt(end2))) {
+                    end2++;
+                }
+                final int n1 = Integer.parseInt(p1.substring(i1, end1));
+                final int n2 = Integer.parseInt(p2.substring(i2, end2));
+                if (n1 != n2) {
+                    return (n1 < n2) ? -1 : 1;
+                }
+                i1 = end1;
+                i2 = end2;
+            } else {
+                if (c1 != c2) {
+                    return (c1 < c2) ? -1 : 1;
+                }
+                i1++;
+                i2++;
+            }
+        }
+        return (p1.length() - i1) - (p2.length() - i2);
+    }
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    /**
+     * 親のハブのポートパスを返します。 {@code 1-1.2} の親は {@code 1-1}、 {@code 1-1} の
+     * 親はルートハブの {@code usb1} です。
+     *
+     * @return 親のポートパス。 ルートハブや、形式が異なる場合は {@code null}。
+     */
+    static String getParentPortPath(String portPath) {
+        if (portPath == null) {
+            return null;
+        }
+        final int dot = portPath.lastIndexOf('.');
+        if (0 <= dot) {
+            return portPath.substring(0, dot);
+        }
+        final int dash = portPath.indexOf('-');
+        if (0 < dash) {
+            return "usb" + portPath.substring(0, dash);
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code path} が {@code ancestor} の子孫のポートパスの場合は {@code true}。
+     */
+    static boolean isDescendantPath(String path, String ancestor) {
+        if (ancestor.startsWith("usb")) {
+            final String bus = ancestor.substring(3);
+            return path.length() > bus.length() && path.startsWith(bus)
+                    && path.charAt(bus.length()) == '-';
+        }
+        return path.length() > ancestor.length() && path.startsWith(ancestor)
+                && path.charAt(ancestor.length()) == '.';
+    }
+
+    private static int getBusNumber(UsbDeviceSnapshot dev) {
+        final int bus = UsbDeviceNames.getBusNumber(dev.getDeviceName());
+        return (0 <= bus) ? bus : dev.getDeviceId() / 1000;
+    }
+
+    private static int toVidPidKey(int vendorId, int productId) {
+        return (vendorId << 16) | (productId & 0xffff);
+    }
+
+    /**
+     * @return デバイスクラスとインタフェースのクラスを、重複を除いて返します。
+     */
+    private static int[] getClasses(UsbDeviceSnapshot dev) {
+        final int[] classes = new int[1 + dev.getInterfaceCount()];
+        int count = 0;
+        classes[count++] = dev.getDeviceClass();
+        for (UsbInterfaceSnapshot iface : dev.getInterfaces()) {
+            final int clazz = iface.getInterfaceClass();
+            boolean seen = false;
+            for (int i = 0; i < count; i++) {
+                if (classes[i] == clazz) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                classes[count++] = clazz;
+            }
+        }
+        final int[] result = new int[count];
+        System.arraycopy(classes, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append2Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append4Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.append8Hex;
+import static org.zakky.usbdevicelist.UsbConstantsUtil.appendDecimal;
+
+/**
+ * UVC (USB Video Class) のクラス固有ディスクリプタを解釈するデコーダです。
+ * <p>
+ * VideoControl インタフェースのヘッダ、ターミナル、ユニットと、 VideoStreaming
+ * インタフェースのヘッダ、フォーマット、フレームの各ディスクリプタの主要なフィールドを
+ * 整形します。 サブタイプの意味はインタフェースのサブクラスによって異なるので、
+ * サブクラスで振り分けます。 このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbUvcDecoder implements UsbClassDecoder {
+
+    /**
+     * ビデオクラスのクラスコード。
+     */
+    public static final int CLASS_VIDEO = 0x0e;
+
+    public static final int SUBCLASS_VIDEO_CONTROL = 0x01;
+
+    public static final int SUBCLASS_VIDEO_STREAMING = 0x02;
+
+    /*
+     * VideoControl インタフェースのサブタイプ
+     */
+
+    public static final int VC_HEADER = 0x01;
+
+    public static final int VC_INPUT_TERMINAL = 0x02;
+
+    public static final int VC_OUTPUT_TERMINAL = 0x03;
+
+    public static final int VC_SELECTOR_UNIT = 0x04;
+
+    public static final int VC_PROCESSING_UNIT = 0x05;
+
+    public static final int VC_EXTENSION_UNIT = 0x06;
+
+    /*
+     * VideoStreaming インタフェースのサブタイプ
+     */
+
+    public static final int VS_INPUT_HEADER = 0x01;
+
+    public static final int VS_OUTPUT_HEADER = 0x02;
+
+    public static final int VS_FORMAT_UNCOMPRESSED = 0x04;
+
+    public static final int VS_FRAME_UNCOMPRESSED = 0x05;
+
+    public static final int VS_FORMAT_MJPEG = 0x06;
+
+    public static final int VS_FRAME_MJPEG = 0x07;
+
+    public static final int VS_COLOR_FORMAT = 0x0d;
+
+    public static final int VS_FORMAT_FRAME_BASED = 0x10;
+
+    public static final int VS_FRAME_FRAME_BASED = 0x11;
+
+    /**
+     * クラス固有 Endpoint ディスクリプタのインタラプト Endpoint のサブタイプ。
+     */
+    public static final int EP_INTERRUPT = 0x03;
+
+    /**
+     * フレーム間隔の単位(100ナノ秒)を1秒に換算した値。
+     */
+    private static final long INTERVALS_PER_SECOND = 10L * 1000L * 1000L;
+
+    @Override
+    public boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p, int subclass,
+            int protocol) {
+        if (!p.hasField(2, 1)) {
+            return false;
+        }
+        if (p.getType() == UsbDescriptorParser.TYPE_CS_ENDPOINT) {
+            if (p.getU8(2) != EP_INTERRUPT || !p.hasField(3, 2)) {
+                return false;
+            }
+            sb.append("UVC Interrupt Endpoint: MaxTransferSize: ");
+            appendDecimal(sb, p.getU16(3));
+            return true;
+        }
+        if (p.getType() != UsbDescriptorParser.TYPE_CS_INTERFACE) {
+            return false;
+        }
+        switch (subclass) {
+            case SUBCLASS_VIDEO_CONTROL:
+                return appendControl(sb, p);
+            case SUBCLASS_VIDEO_STREAMING:
+                return appendStreaming(sb, p);
+        }
+        return false;
+    }
+
+    private static boolean appendControl(StringBuilder sb, UsbDescriptorParser p) {
+        switch (p.getU8(2)) {
+            case VC_HEADER:
+                if (!p.hasField(3, 9)) {
+                    return false;
+                }
+                sb.append("UVC Header: UVC ");
+                UsbDescriptorFormatter.appendBcd(sb, p.getU16(3)).append(", TotalLength: ");
+                appendDecimal(sb, p.getU16(5)).append(", ClockFrequency: ");
+                sb.append(p.getU32(7)).append(" Hz, StreamingInterfaces: ");
+                appendList(sb, p, 12, p.getU8(11));
+                return true;
+            case VC_INPUT_TERMINAL:
+                if (!p.hasField(3, 5)) {
+                    return false;
+                }
+                sb.append("UVC Input Terminal ");
+                appendDecimal(sb, p.getU8(3)).append(": Type: ");
+                appendTerminalType(sb, p.getU16(4));
+                return true;
+            case VC_OUTPUT_TERMINAL:
+                if (!p.hasField(3, 6)) {
+                    return false;
+                }
+                sb.append("UVC Output Terminal ");
+                appendDecimal(sb, p.getU8(3)).append(": Type: ");
+                appendTerminalType(sb, p.getU16(4)).append(", Source: ");
+                appendDecimal(sb, p.getU8(7));
+                return true;
+            case VC_SELECTOR_UNIT:
+                if (!p.hasField(3, 2)) {
+                    return false;
+                }
+                sb.append("UVC Selector Unit ");
+                appendDecimal(sb, p.getU8(3)).append(": Sources: ");
+                appendList(sb, p, 5, p.getU8(4));
+                return true;
+            case VC_PROCESSING_UNIT:
+                if (!p.hasField(3, 5)) {
+                    return false;
+                }
+                sb.append("UVC Processing Unit ");
+                appendDecimal(sb, p.getU8(3)).append(": Source: ");
+                appendDecimal(sb, p.getU8(4)).append(", Controls: ");
+                appendBitmap(sb, p, 8, p.getU8(7));
+                return true;
+            case VC_EXTENSION_UNIT:
+                if (!p.hasField(3, 19)) {
+                    return false;
+                }
+                sb.append("UVC Extension Unit ");
+                appendDecimal(sb, p.getU8(3)).append(": GUID: ");
+                appendGuid(sb, p, 4).append(", Controls: ");
+                appendDecimal(sb, p.getU8(20)).append(", Sources: ");
+                appendList(sb, p, 22, p.getU8(21));
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean appendStreaming(StringBuilder sb, UsbDescriptorParser p) {
+        final int subtype = p.getU8(2);
+        switch (subtype) {
+            case VS_INPUT_HEADER:
+            case VS_OUTPUT_HEADER:
+                if (!p.hasField(3, 4)) {
+                    return false;
+                }
+                sb.append((subtype == VS_INPUT_HEADER) ? "UVC Input Header: Formats: "
+                        : "UVC Output Header: Formats: ");
+                appendDecimal(sb, p.getU8(3)).append(", TotalLength: ");
+                appendDecimal(sb, p.getU16(4)).append(", Endpoint: ");
+                append2Hex(sb, p.getU8(6));
+                return true;
+            case VS_FORMAT_UNCOMPRESSED:
+            case VS_FORMAT_FRAME_BASED:
+                if (!p.hasField(3, 19)) {
+                    return false;
+                }
+                sb.append((subtype == VS_FORMAT_UNCOMPRESSED) ? "UVC Uncompressed Format "
+                        : "UVC Frame-based Format ");
+                appendDecimal(sb, p.getU8(3)).append(": ");
+                appendFourcc(sb, p, 5).append(", BitsPerPixel: ");
+                appendDecimal(sb, p.getU8(21)).append(", Frames: ");
+                appendDecimal(sb, p.getU8(4));
+                return true;
+            case VS_FORMAT_MJPEG:
+                if (!p.hasField(3, 2)) {
+                    return false;
+                }
+                sb.append("UVC MJPEG Format ");
+                appendDecimal(sb, p.getU8(3)).append(": Frames: ");
+                appendDecimal(sb, p.getU8(4));
+                return true;
+            case VS_FRAME_UNCOMPRESSED:
+            case VS_FRAME_MJPEG:
+                // dwMaxVideoFrameBufferSize の後に dwDefaultFrameInterval が続く
+                return appendFrame(sb, p, 21);
+            case VS_FRAME_FRAME_BASED:
+                return appendFrame(sb, p, 17);
+            case VS_COLOR_FORMAT:
+                if (!p.hasField(3, 3)) {
+                    return false;
+                }
+                sb.append("UVC Color Matching: Primaries: ");
+                appendDecimal(sb, p.getU8(3)).append(", Transfer: ");
+                appendDecimal(sb, p.getU8(4)).append(", Matrix: ");
+                appendDecimal(sb, p.getU8(5));
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * フレームディスクリプタを追加します。
+     *
+     * @param intervalOffset dwDefaultFrameInterval のオフセット。 bFrameIntervalType が
+     * その直後に続きます。
+     */
+    private static boolean appendFrame(StringBuilder sb, UsbDescriptorParser p,
+            int intervalOffset) {
+        if (!p.hasField(3, intervalOffset + 2)) {
+            return false;
+        }
+        sb.append("UVC Frame ");
+        appendDecimal(sb, p.getU8(3)).append(": ");
+        appendDecimal(sb, p.getU16(5)).append('x');
+        appendDecimal(sb, p.getU16(7)).append(", Default: ");
+        final long interval = p.getU32(intervalOffset);
+        if (interval == 0L) {
+            sb.append("invalid");
+        } else {
+            // 小数点以下2桁までのフレームレート
+            final long centiFps = INTERVALS_PER_SECOND * 100L / interval;
+            sb.append(centiFps / 100L).append('.');
+            if (centiFps % 100L < 10L) {
+                sb.append('0');
+            }
+            sb.append(centiFps % 100L).append(" fps");
+        }
+        final int intervalType = p.getU8(intervalOffset + 4);
+        sb.append(", Intervals: ");
+        if (intervalType == 0) {
+            sb.append("continuous");
+        } else {
+            appendDecimal(sb, intervalType);
+        }
+        return true;
+    }
+
+    private static StringBuilder appendTerminalType(StringBuilder sb, int type) {
+        switch (type) {
+            case 0x0100:
+                sb.append("Vendor Specific (");
+                break;
+            case 0x0101:
+                sb.append("USB Streaming (");
+                break;
+            case 0x0201:
+                sb.append("Camera (");
+                break;
+            case 0x0202:
+                sb.append("Media Transport Input (");
+                break;
+            case 0x0301:
+                sb.append("Display (");
+                break;
+            case 0x0302:
+                sb.append("Media Transport Output (");
+                break;
+            case 0x0401:
+                sb.append("Composite Connector (");
+                break;
+            case 0x0402:
+                sb.append("S-Video Connector (");
+                break;
+            case 0x0403:
+                sb.append("Component Connector (");
+                break;
+            default:
+                return append4Hex(sb, type);
+        }
+        return append4Hex(sb, type).append(')');
+    }
+
+    /**
+     * {@code offset} から {@code count} 個の1バイトの値をカンマ区切りで追加します。
+     * ディスクリプタに収まらない分は追加しません。
+     */
+    private static StringBuilder appendList(StringBuilder sb, UsbDescriptorParser p, int offset,
+            int count) {
+        for (int i = 0; i < count && p.hasField(offset + i, 1); i++) {
+            if (0 < i) {
+                sb.append(", ");
+            }
+            appendDecimal(sb, p.getU8(offset + i));
+        }
+        return sb;
+    }
+
+    /**
+     * {@code offset} から {@code size} バイトのビットマップを、リトルエンディアンの
+     * 整数として追加します。 4バイトを超える分は省略します。
+     */
+    private static StringBuilder appendBitmap(StringBuilder sb, UsbDescriptorParser p,
+            int offset, int size) {
+        final int length = Math.min(size, 4);
+        long bitmap = 0L;
+        for (int i = 0; i < length && p.hasField(offset + i, 1); i++) {
+            bitmap |= (long) p.getU8(offset + i) << (i * 8);
+        }
+        return append8Hex(sb, bitmap);
+    }
+
+    /**
+     * GUID を {@code "{xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx}"} 形式で追加します。
+     * 先頭の3つのフィールドはリトルエンディアンです。
+     */
+    private static StringBuilder appendGuid(StringBuilder sb, UsbDescriptorParser p,
+            int offset) {
+        sb.append('{');
+        appendHexDigits(sb, p.getU32(offset), 8).append('-');
+        appendHexDigits(sb, p.getU16(offset + 4), 4).append('-');
+        appendHexDigits(sb, p.getU16(offset + 6), 4).append('-');
+        for (int i = 8; i < 16; i++) {
+            if (i == 10) {
+                sb.append('-');
+            }
+            appendHexDigits(sb, p.getU8(offset + i), 2);
+        }
+        return sb.append('}');
+    }
+
+    private static StringBuilder appendHexDigits(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; 0 <= shift; shift -= 4) {
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+        }
+        return sb;
+    }
+
+    /**
+     * フォーマットの GUID を追加します。 先頭4バイトが表示可能な ASCII 文字の場合は
+     * FourCC として追加します。
+     */
+    private static StringBuilder appendFourcc(StringBuilder sb, UsbDescriptorParser p,
+            int offset) {
+        for (int i = 0; i < 4; i++) {
+            final int c = p.getU8(offset + i);
+            if (c < 0x20 || 0x7e < c) {
+                return appendGuid(sb, p, offset);
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            sb.append((char) p.getU8(offset + i));
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,28 @@
+#!/bin/sh
+#
+# tests/src の単体テストをコンパイルし、ホストの JVM で実行します。
+# 先に ant debug でアプリをビルドし、 bin/classes を作っておいてください。
+# 別の場所のクラスを使う場合は環境変数 CLASSES で指定します。
+#
+# 使い方: tests/run-host-tests.sh [テストクラスの完全修飾名]
+#
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+CLASSES=${CLASSES:-bin/classes}
+OUT=bin/host-tests
+CLASSPATH="$CLASSES:libs/guava-r09.jar"
+
+if [ ! -d "$CLASSES" ]; then
+    echo "$CLASSES not found. Run 'ant debug' first." >&2
+    exit 2
+fi
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+find tests/src -name '*.java' > "$OUT/sources.txt"
+javac -encoding UTF-8 -nowarn -cp "$CLASSPATH" -d "$OUT" @"$OUT/sources.txt"
+
+exec java -cp "$OUT:$CLASSPATH" "${1:-org.zakky.usbdevicelist.UsbAllTests}"
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+/**
+ * ホスト上で実行できるすべての単体テストを実行します。 実行方法は {@link UsbTestCase} を
+ * 参照してください。
+ */
+public final class UsbAllTests {
+
+    private UsbAllTests() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    public static void main(String[] args) {
+        UsbTestCase.runAndExit(new UsbAutoExpandPolicyTest(), new UsbBulkBenchmarkTest(),
+                new UsbClassDecodersTest(), new UsbConnectionPoolTest(),
+                new UsbDescriptorParserTest(), new UsbDeviceSearchIndexTest(),
+                new UsbHotplugBatcherTest(), new UsbIdsCompilerTest(), new UsbIntMultimapTest(),
+                new UsbLatencyHistogramTest(), new UsbPcapngCaptureTest(), new UsbPerfStatsTest(),
+                new UsbSnapshotHolderTest(), new UsbSnapshotLogTest(), new UsbSpscQueueTest(),
+                new UsbStreamReaderTest(), new UsbStringDescriptorCacheTest(),
+                new UsbSysfsDeviceSourceTest(), new UsbTopologyDiffTest(),
+                new UsbTopologyExporterTest(), new UsbTopologyTreeTest());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.device;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.snapshot;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * {@link UsbAutoExpandPolicy} のテストです。
+ */
+public class UsbAutoExpandPolicyTest extends UsbTestCase {
+
+    public static void main(String[] args) {
+        runAndExit(new UsbAutoExpandPolicyTest());
+    }
+
+    public void testExpandAllUpToLimit() {
+        final UsbAutoExpandPolicy policy = new UsbAutoExpandPolicy(2);
+        assertTrue("empty", policy.shouldExpandAll(0));
+        assertTrue("below", policy.shouldExpandAll(1));
+        assertTrue("at limit", policy.shouldExpandAll(2));
+        assertFalse("above", policy.shouldExpandAll(3));
+    }
+
+    public void testZeroLimitNeverExpands() {
+        final UsbAutoExpandPolicy policy = new UsbAutoExpandPolicy(0);
+        assertFalse("one group", policy.shouldExpandAll(1));
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(UsbTopologySnapshot.EMPTY,
+                snapshot(device(deviceName(1, 2), 0x046d, 0xc52b, "1-1")));
+        assertTrue("added", policy.getDevicesToExpand(diff).isEmpty());
+    }
+
+    public void testExpandsOnlyAddedDevices() {
+        final UsbDeviceSnapshot hub = device(deviceName(1, 2), 0x05e3, 0x0608, "1-1");
+        final UsbDeviceSnapshot mouse = device(deviceName(1, 3), 0x046d, 0xc52b, "1-1.1");
+        final UsbDeviceSnapshot keyboard = device(deviceName(1, 4), 0x046d, 0xc31c, "1-1.2");
+        final UsbAutoExpandPolicy policy = new UsbAutoExpandPolicy(3);
+
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(snapshot(hub),
+                snapshot(hub, mouse, keyboard));
+        assertEquals("added", ImmutableList.of(mouse, keyboard),
+                policy.getDevicesToExpand(diff));
+    }
+
+    public void testLimitAppliesToResultingDeviceCount() {
+        final UsbDeviceSnapshot hub = device(deviceName(1, 2), 0x05e3, 0x0608, "1-1");
+        final UsbDeviceSnapshot mouse = device(deviceName(1, 3), 0x046d, 0xc52b, "1-1.1");
+        final UsbDeviceSnapshot keyboard = device(deviceName(1, 4), 0x046d, 0xc31c, "1-1.2");
+        final UsbAutoExpandPolicy policy = new UsbAutoExpandPolicy(2);
+
+        // 1台だけの追加でも、適用後に上限を超えるなら展開しない
+        final UsbTopologyDiff grown = UsbTopologyDiff.compute(snapshot(hub, mouse),
+                snapshot(hub, mouse, keyboard));
+        assertTrue("over limit", policy.getDevicesToExpand(grown).isEmpty());
+
+        // 取り外しで上限以下に戻れば、追加されたデバイスは展開する
+        final UsbTopologyDiff swapped = UsbTopologyDiff.compute(snapshot(hub, mouse),
+                snapshot(hub, keyboard));
+        assertEquals("swapped", ImmutableList.of(keyboard),
+                policy.getDevicesToExpand(swapped));
+    }
+
+    public void testRejectsNegativeLimit() {
+        try {
+            new UsbAutoExpandPolicy(-1);
+            fail("accepted negative limit.");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link UsbBulkBenchmark} を {@link UsbLoopbackBulkTransport} で動かし、転送回数、
+ * バイト数、結果の集計を確かめるテストです。
+ */
+public class UsbBulkBenchmarkTest extends UsbTestCase {
+
+    /**
+     * 1ステップの計測時間。 転送回数の上限で終わるよう十分に長くします。
+     */
+    private static final long LONG_STEP_MILLIS = 60L * 1000L;
+
+    private static final int TIMEOUT_MILLIS = 100;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbBulkBenchmarkTest());
+    }
+
+    public void testCountsTransfersAndBytes() {
+        final UsbLoopbackBulkTransport transport = new UsbLoopbackBulkTransport(1024);
+        final UsbBulkBenchmark benchmark = new UsbBulkBenchmark(new int[] {
+                16, 512
+        }, LONG_STEP_MILLIS, TIMEOUT_MILLIS);
+        final List<UsbBulkBenchmarkResult> results = benchmark.run(transport, null);
+
+        final int samples = UsbBulkBenchmark.MAX_SAMPLES_PER_STEP;
+        assertEquals("steps", 2L, results.size());
+        assertResult(results.get(0), 16, samples, 0, 16L * samples);
+        assertResult(results.get(1), 512, samples, 0, 512L * samples);
+        assertEquals("calls", 2L * samples, transport.getCallCount());
+        assertEquals("first request", Integer.valueOf(16), transport.getRequestedLengths()
+                .get(0));
+        assertEquals("last request", Integer.valueOf(512), transport.getRequestedLengths()
+                .get(2 * samples - 1));
+        for (UsbBulkBenchmarkResult result : results) {
+            assertTrue("elapsed", 0 < result.getElapsedNanos());
+            assertTrue("throughput", 0.0 < result.getMegabytesPerSecond());
+            assertTrue("p50 <= p90", result.getLatencyP50Nanos() <= result.getLatencyP90Nanos());
+            assertTrue("p90 <= p99", result.getLatencyP90Nanos() <= result.getLatencyP99Nanos());
+            assertTrue("p99 <= max", result.getLatencyP99Nanos() <= result.getLatencyMaxNanos());
+        }
+    }
+
+    public void testCountsShortTransfers() {
+        final UsbLoopbackBulkTransport transport = new UsbLoopbackBulkTransport(48);
+        final UsbBulkBenchmark benchmark = new UsbBulkBenchmark(new int[] {
+                64
+        }, LONG_STEP_MILLIS, TIMEOUT_MILLIS);
+        final UsbBulkBenchmarkResult result = benchmark.run(transport, null).get(0);
+        final int samples = UsbBulkBenchmark.MAX_SAMPLES_PER_STEP;
+        // 要求したサイズではなく、実際に転送したバイト数を数える
+        assertResult(result, 64, samples, 0, 48L * samples);
+    }
+
+    public void testStepEndsAfterConsecutiveErrors() {
+        final UsbLoopbackBulkTransport transport = new UsbLoopbackBulkTransport(1024);
+        transport.failAt(1);
+        transport.failAt(3);
+        transport.failFrom(10);
+        final UsbBulkBenchmark benchmark = new UsbBulkBenchmark(new int[] {
+                32, 64
+        }, LONG_STEP_MILLIS, TIMEOUT_MILLIS);
+        final List<UsbBulkBenchmarkResult> results = benchmark.run(transport, null);
+
+        assertEquals("steps", 2L, results.size());
+        // 連続しない失敗は数えるだけで続け、 3回続けて失敗した時点でステップを打ち切る
+        assertResult(results.get(0), 32, 8, 5, 32L * 8);
+        // 次のステップも失敗し続けるので、成功した転送は無い
+        final UsbBulkBenchmarkResult failed = results.get(1);
+        assertResult(failed, 64, 0, 3, 0L);
+        assertEquals("p50 without samples", 0L, failed.getLatencyP50Nanos());
+        assertEquals("max without samples", 0L, failed.getLatencyMaxNanos());
+        assertEquals("calls", 13L + 3L, transport.getCallCount());
+    }
+
+    public void testCancelReturnsPartialResults() {
+        final UsbLoopbackBulkTransport transport = new UsbLoopbackBulkTransport(1024);
+        final UsbBulkBenchmark benchmark = new UsbBulkBenchmark(new int[] {
+                16, 32, 64
+        }, LONG_STEP_MILLIS, TIMEOUT_MILLIS);
+        transport.cancelAt(benchmark, 99);
+        final List<UsbBulkBenchmarkResult> notified = Lists.newArrayList();
+        final List<UsbBulkBenchmarkResult> results = benchmark.run(transport,
+                new UsbBulkBenchmark.Listener() {
+                    @Override
+                    public void onStepFinished(UsbBulkBenchmarkResult result) {
+                        notified.add(result);
+                    }
+                });
+
+        assertTrue("cancelled", benchmark.isCancelled());
+        // 中止した回の転送は完了させてからステップを終える
+        assertEquals("steps", 1L, results.size());
+        assertResult(results.get(0), 16, 100, 0, 16L * 100);
+        assertEquals("calls", 100L, transport.getCallCount());
+        assertEquals("notified", results, notified);
+    }
+
+    public void testListenerSeesEachStepInOrder() {
+        final UsbLoopbackBulkTransport transport = new UsbLoopbackBulkTransport(1024);
+        final int[] sizes = UsbBulkBenchmark.doublingSizes(8, 40);
+        final UsbBulkBenchmark benchmark = new UsbBulkBenchmark(sizes, 1L, TIMEOUT_MILLIS);
+        final List<UsbBulkBenchmarkResult> notified = Lists.newArrayList();
+        final List<UsbBulkBenchmarkResult> results = benchmark.run(transport,
+                new UsbBulkBenchmark.Listener() {
+                    @Override
+                    public void onStepFinished(UsbBulkBenchmarkResult result) {
+                        notified.add(result);
+                    }
+                });
+        assertEquals("results", sizes.length, results.size());
+        for (int i = 0; i < sizes.length; i++) {
+            assertSame("notified " + i, results.get(i), notified.get(i));
+            assertEquals("size " + i, sizes[i], results.get(i).getTransferSize());
+            assertEquals("bytes " + i, (long) sizes[i] * results.get(i).getTransferCount(),
+                    results.get(i).getByteCount());
+        }
+    }
+
+    public void testDoublingSizes() {
+        assertTrue("16..64", Arrays.equals(new int[] {
+                16, 32, 64
+        }, UsbBulkBenchmark.doublingSizes(16, 64)));
+        assertTrue("16..100", Arrays.equals(new int[] {
+                16, 32, 64, 100
+        }, UsbBulkBenchmark.doublingSizes(16, 100)));
+        assertTrue("5..5", Arrays.equals(new int[] {
+                5
+        }, UsbBulkBenchmark.doublingSizes(5, 5)));
+        assertEquals("default range", 11L, UsbBulkBenchmark.doublingSizes(16,
+                UsbBulkBenchmark.DEFAULT_MAX_TRANSFER_SIZE).length);
+        try {
+            UsbBulkBenchmark.doublingSizes(64, 16);
+            fail("reversed range accepted.");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testPercentile() {
+        final long[] sorted = {
+                10L, 20L, 30L, 40L, 50L, 60L, 70L, 80L, 90L, 100L
+        };
+        assertEquals("p50", 50L, UsbBulkBenchmark.percentile(sorted, 10, 50));
+        assertEquals("p90", 90L, UsbBulkBenchmark.percentile(sorted, 10, 90));
+        assertEquals("p99", 100L, UsbBulkBenchmark.percentile(sorted, 10, 99));
+        assertEquals("p0", 10L, UsbBulkBenchmark.percentile(sorted, 10, 0));
+        // 先頭の count 個だけを使う
+        assertEquals("p50 of 3", 20L, UsbBulkBenchmark.percentile(sorted, 3, 50));
+        assertEquals("empty", 0L, UsbBulkBenchmark.percentile(sorted, 0, 50));
+    }
+
+    public void testResultAggregation() {
+        final UsbBulkBenchmarkResult result = new UsbBulkBenchmarkResult(64, 1000, 2, 2000000L,
+                500L * 1000L * 1000L, 1500L, 2500L, 9000L, 123456L);
+        assertEquals("MB/s", "4.0", String.valueOf(result.getMegabytesPerSecond()));
+        assertEquals("xfer/s", "2000.0", String.valueOf(result.getTransfersPerSecond()));
+        assertEquals("summary", "64 B: 4.00 MB/s, 2000.00 xfer/s, p50 1 us, p90 2 us,"
+                + " p99 9 us, max 123 us, errors 2", result.toString());
+
+        final UsbBulkBenchmarkResult empty = new UsbBulkBenchmarkResult(16, 0, 0, 0L, 0L, 0L,
+                0L, 0L, 0L);
+        assertEquals("MB/s without time", "0.0", String.valueOf(empty.getMegabytesPerSecond()));
+        assertEquals("summary without errors", "16 B: 0.00 MB/s, 0.00 xfer/s, p50 0 us,"
+                + " p90 0 us, p99 0 us, max 0 us", empty.toString());
+    }
+
+    private static void assertResult(UsbBulkBenchmarkResult result, int size, int count,
+            int errors, long bytes) {
+        assertEquals("size", size, result.getTransferSize());
+        assertEquals("transfers of " + size, count, result.getTransferCount());
+        assertEquals("errors of " + size, errors, result.getErrorCount());
+        assertEquals("bytes of " + size, bytes, result.getByteCount());
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * {@link UsbClassDecoders} と、 HID のレポートディスクリプタを解釈する
+ * {@link UsbHidReportParser}、 {@link UsbHidDecoder} のテストです。
+ * <p>
+ * {@code tests/fixtures/hid/*.hex} のレポートディスクリプタを整形した結果を同名の {@code .txt}
+ * と比べます。 CDC と UVC のクラス固有ディスクリプタを含むディスクリプタ列は
+ * {@code tests/fixtures/descriptors} にあり、 {@link UsbDescriptorParserTest} が整形結果を
+ * 確かめます。
+ * </p>
+ */
+public class UsbClassDecodersTest extends UsbTestCase {
+
+    private static final String HID_DIR = "hid";
+
+    /**
+     * 乱数の種。 失敗を再現できるよう固定します。
+     */
+    private static final long SEED = 20111103L;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbClassDecodersTest());
+    }
+
+    public void testHidReportsMatchExpectedText() throws IOException {
+        for (File hex : listFixtures(HID_DIR, ".hex")) {
+            final String name = hex.getName();
+            final File txt = new File(hex.getParentFile(), name.substring(0,
+                    name.length() - ".hex".length()) + ".txt");
+            final String actual = formatReport(readHex(hex));
+            if (!txt.isFile()) {
+                fail("missing " + txt + ", actual:\n" + actual);
+            }
+            assertEquals(name, readText(txt), actual);
+        }
+    }
+
+    public void testHidParserStateAtMainItems() throws IOException {
+        final UsbHidReportParser p = new UsbHidReportParser(readHex(getFixture(HID_DIR
+                + "/mouse.hex")));
+        int inputs = 0;
+        while (p.next()) {
+            if (p.getType() != UsbHidReportParser.TYPE_MAIN
+                    || p.getTag() != UsbHidReportParser.MAIN_INPUT) {
+                continue;
+            }
+            inputs++;
+            assertEquals("depth", 2L, p.getCollectionDepth());
+            if (inputs == 1) {
+                // Usage Page を上位16ビットに含む
+                assertEquals("usage minimum", 0x00090001L, p.getUsageMinimum());
+                assertEquals("usage maximum", 0x00090003L, p.getUsageMaximum());
+                assertEquals("usage page", 0x09L, p.getUsagePage());
+            } else if (inputs == 3) {
+                assertEquals("usages", 2L, p.getUsageCount());
+                assertEquals("x", 0x00010030L, p.getUsage(0));
+                assertEquals("y", 0x00010031L, p.getUsage(1));
+                assertEquals("logical minimum", -127L, p.getLogicalMinimum());
+                assertEquals("logical maximum", 127L, p.getLogicalMaximum());
+                assertEquals("report size", 8L, p.getReportSize());
+                assertEquals("report count", 2L, p.getReportCount());
+            }
+        }
+        assertEquals("inputs", 3L, inputs);
+        assertEquals("error", UsbHidReportParser.ERROR_NONE, p.getError());
+        assertEquals("depth at end", 0L, p.getCollectionDepth());
+        assertFalse("report id", p.isReportIdUsed());
+        assertEquals("input bits", 24L, p.getReportBits(UsbHidReportParser.REPORT_INPUT, 0));
+    }
+
+    public void testHidReportIdsAndPushPop() throws IOException {
+        final UsbHidReportParser p = new UsbHidReportParser(readHex(getFixture(HID_DIR
+                + "/keyboard_report_ids.hex")));
+        while (p.next()) {
+            if (p.isLongItem()) {
+                assertEquals("long item tag", 0x10L, p.getTag());
+            }
+        }
+        assertEquals("error", UsbHidReportParser.ERROR_NONE, p.getError());
+        assertTrue("report id", p.isReportIdUsed());
+        assertEquals("input 1", 8L, p.getReportBits(UsbHidReportParser.REPORT_INPUT, 1));
+        // Pop で Report Size 1 に戻ってから LED の 5 ビット
+        assertEquals("output 1", 8L, p.getReportBits(UsbHidReportParser.REPORT_OUTPUT, 1));
+        assertEquals("feature 2", 16L, p.getReportBits(UsbHidReportParser.REPORT_FEATURE, 2));
+        assertEquals("input 2", 0L, p.getReportBits(UsbHidReportParser.REPORT_INPUT, 2));
+    }
+
+    public void testHidErrors() {
+        assertHidError(UsbHidReportParser.ERROR_BAD_COLLECTION, 2, 0x05, 0x01, 0xc0);
+        assertHidError(UsbHidReportParser.ERROR_TRUNCATED, 2, 0x05, 0x01, 0x06, 0x01);
+        assertHidError(UsbHidReportParser.ERROR_TRUNCATED, 0, 0xfe, 0x05, 0x10, 0x01);
+        assertHidError(UsbHidReportParser.ERROR_BAD_STACK, 0, 0xb4);
+        assertHidError(UsbHidReportParser.ERROR_BAD_REPORT_ID, 0, 0x85, 0x00);
+        assertHidError(UsbHidReportParser.ERROR_NONE, -1);
+    }
+
+    public void testHidReportBitsSaturate() {
+        // Report Size と Report Count が最大でも負にならない
+        final UsbHidReportParser p = new UsbHidReportParser(bytes(0x77, 0xff, 0xff, 0xff, 0xff,
+                0x97, 0xff, 0xff, 0xff, 0xff, 0x81, 0x00, 0x81, 0x00, 0x81, 0x00, 0x81, 0x00));
+        while (p.next()) {
+            // 最後まで進める
+            assert true;
+        }
+        assertTrue("bits", 0 < p.getReportBits(UsbHidReportParser.REPORT_INPUT, 0));
+    }
+
+    public void testRandomHidReports() {
+        final Random random = new Random(SEED);
+        final StringBuilder sb = new StringBuilder();
+        for (int iteration = 0; iteration < 50000; iteration++) {
+            final byte[] raw = new byte[random.nextInt(64)];
+            random.nextBytes(raw);
+            sb.setLength(0);
+            try {
+                UsbHidDecoder.appendReportDescriptor(sb, new UsbHidReportParser(raw));
+            } catch (RuntimeException e) {
+                throw new AssertionError("random #" + iteration + ": " + e);
+            }
+        }
+    }
+
+    public void testFindReportDescriptorLength() throws IOException {
+        final byte[] keyboard = readHex(getFixture("descriptors/keyboard.hex"));
+        assertEquals("keyboard", 65L, UsbHidDecoder.findReportDescriptorLength(
+                new UsbDescriptorParser(keyboard), 0));
+        assertEquals("no interface", -1L, UsbHidDecoder.findReportDescriptorLength(
+                new UsbDescriptorParser(keyboard), 1));
+        final byte[] cdc = readHex(getFixture("descriptors/cdc_acm.hex"));
+        assertEquals("not HID", -1L, UsbHidDecoder.findReportDescriptorLength(
+                new UsbDescriptorParser(cdc), 0));
+
+        // Physical の記述の後に Report の記述がある HID ディスクリプタ
+        final byte[] physicalFirst = bytes(0x09, 0x04, 0x02, 0x00, 0x01, 0x03, 0x00, 0x00, 0x00,
+                0x0c, 0x21, 0x11, 0x01, 0x00, 0x02, 0x23, 0x10, 0x00, 0x22, 0x34, 0x01);
+        assertEquals("physical first", 0x134L, UsbHidDecoder.findReportDescriptorLength(
+                new UsbDescriptorParser(physicalFirst), 2));
+        // bNumDescriptors が bLength を超えている
+        final byte[] shortHid = bytes(0x09, 0x04, 0x00, 0x00, 0x01, 0x03, 0x00, 0x00, 0x00,
+                0x09, 0x21, 0x11, 0x01, 0x00, 0x05, 0x23, 0x10, 0x00);
+        assertEquals("short", -1L, UsbHidDecoder.findReportDescriptorLength(
+                new UsbDescriptorParser(shortHid), 0));
+    }
+
+    public void testDefaultDecoders() {
+        final UsbClassDecoders decoders = UsbClassDecoders.getDefault();
+        assertTrue("HID", append(decoders, bytes(0x09, 0x21, 0x11, 0x01, 0x00, 0x01, 0x22, 0x41,
+                0x00), UsbHidDecoder.CLASS_HID, 0, 0).startsWith("HID: "));
+        assertTrue("CDC", append(decoders, bytes(0x05, 0x24, 0x00, 0x10, 0x01),
+                UsbCdcDecoder.CLASS_CDC, 2, 1).startsWith("CDC Header"));
+        assertTrue("UVC", append(decoders, bytes(0x09, 0x24, 0x03, 0x03, 0x01, 0x01, 0x00, 0x02,
+                0x00), UsbUvcDecoder.CLASS_VIDEO, UsbUvcDecoder.SUBCLASS_VIDEO_CONTROL, 0)
+                .startsWith("UVC Output Terminal"));
+        assertNull("vendor specific", append(decoders, bytes(0x05, 0x24, 0x00, 0x10, 0x01), 0xff,
+                0, 0));
+        assertNull("short CDC", append(decoders, bytes(0x03, 0x24, 0x06),
+                UsbCdcDecoder.CLASS_CDC, 2, 1));
+    }
+
+    public void testRegistryPrecedence() {
+        final UsbClassDecoders decoders = new UsbClassDecoders()
+                .register(0xff, UsbClassDecoders.ANY, UsbClassDecoders.ANY, new Named("any"))
+                .register(0xff, 1, UsbClassDecoders.ANY, new Named("subclass"))
+                .register(0xff, 1, 2, new Declining())
+                .register(0xff, 1, 2, new Named("exact"))
+                .register(0xff, 1, 2, new Named("exact2"));
+        final byte[] raw = bytes(0x03, 0x24, 0x01);
+        assertEquals("exact", "exact", append(decoders, raw, 0xff, 1, 2));
+        assertEquals("subclass", "subclass", append(decoders, raw, 0xff, 1, 3));
+        assertEquals("any", "any", append(decoders, raw, 0xff, 2, 2));
+        assertNull("other class", append(decoders, raw, 0xfe, 1, 2));
+
+        // Formatter はインタフェースのクラスでデコーダを選ぶ
+        final byte[] descriptors = bytes(0x09, 0x04, 0x00, 0x00, 0x00, 0xff, 0x01, 0x02, 0x00,
+                0x03, 0x24, 0x01, 0x09, 0x04, 0x01, 0x00, 0x00, 0xff, 0x02, 0x00, 0x00, 0x03,
+                0x24, 0x01, 0x03, 0x24, 0x01);
+        final String text = UsbDescriptorFormatter.appendDescriptors(new StringBuilder(),
+                new UsbDescriptorParser(descriptors), decoders).toString();
+        final String[] lines = text.split("\n");
+        assertEquals("lines", 5L, lines.length);
+        assertEquals("first interface", "    exact", lines[1]);
+        assertEquals("second interface", "    any", lines[3]);
+    }
+
+    public void testRegisterRejectsInvalidArguments() {
+        final UsbClassDecoders decoders = new UsbClassDecoders();
+        final UsbClassDecoder decoder = new Named("x");
+        assertRegisterFails(decoders, -1, 0, 0, decoder);
+        assertRegisterFails(decoders, 0x100, 0, 0, decoder);
+        assertRegisterFails(decoders, 0, -2, 0, decoder);
+        assertRegisterFails(decoders, 0, 0x100, 0, decoder);
+        assertRegisterFails(decoders, 0, 0, 0x100, decoder);
+        assertRegisterFails(decoders, 0, UsbClassDecoders.ANY, 3, decoder);
+        try {
+            decoders.register(0, 0, 0, null);
+            fail("null decoder accepted");
+        } catch (NullPointerException expected) {
+            // 期待どおり
+        }
+    }
+
+    private static void assertRegisterFails(UsbClassDecoders decoders, int clazz, int subclass,
+            int protocol, UsbClassDecoder decoder) {
+        try {
+            decoders.register(clazz, subclass, protocol, decoder);
+            fail("accepted " + clazz + ", " + subclass + ", " + protocol);
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+
+    private static void assertHidError(int error, int offset, int... raw) {
+        final UsbHidReportParser p = new UsbHidReportParser(bytes(raw));
+        while (p.next()) {
+            // 最後まで進める
+            assert true;
+        }
+        assertEquals("error", error, p.getError());
+        assertEquals("error offset", offset, p.getErrorOffset());
+    }
+
+    /**
+     * ディスクリプタひとつをデコーダで整形します。
+     *
+     * @return 整形した行。 どのデコーダも解釈しなかった場合は {@code null}。
+     */
+    private static String append(UsbClassDecoders decoders, byte[] raw, int clazz,
+            int subclass, int protocol) {
+        final UsbDescriptorParser p = new UsbDescriptorParser(raw);
+        assertTrue("descriptor", p.next());
+        final StringBuilder sb = new StringBuilder();
+        if (!decoders.appendDescriptor(sb, p, clazz, subclass, protocol)) {
+            assertEquals("appended while declining", 0L, sb.length());
+            return null;
+        }
+        return sb.toString();
+    }
+
+    private static String formatReport(byte[] raw) {
+        return UsbHidDecoder.appendReportDescriptor(new StringBuilder(),
+                new UsbHidReportParser(raw)).toString();
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    /**
+     * 名前だけを出力するデコーダです。
+     */
+    private static final class Named implements UsbClassDecoder {
+        private final String mName;
+
+        Named(String name) {
+            mName = name;
+        }
+
+        @Override
+        public boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p, int subclass,
+                int protocol) {
+            sb.append(mName);
+            return true;
+        }
+    }
+
+    /**
+     * 何も解釈しないデコーダです。
+     */
+    private static final class Declining implements UsbClassDecoder {
+        @Override
+        public boolean appendDescriptor(StringBuilder sb, UsbDescriptorParser p, int subclass,
+                int protocol) {
+            return false;
+        }
+    }
+}
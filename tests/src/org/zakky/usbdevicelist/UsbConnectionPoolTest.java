@@ -0,0 +1,574 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link UsbConnectionPool} を偽物の {@link UsbConnectionPool.ConnectionFactory} で動かす
+ * テストです。
+ * <p>
+ * 偽物のファクトリは、閉じた接続の claim や二重の close など、実機で問題になる呼び出しを
+ * 記録し、各テストの最後にそれが無かったことを確かめます。
+ * </p>
+ */
+public class UsbConnectionPoolTest extends UsbTestCase {
+
+    /**
+     * 状態の変化を待つ時間の上限(ミリ秒)。
+     */
+    private static final long WAIT_MILLIS = 5000L;
+
+    /**
+     * 偽物のファクトリが claim に失敗するインタフェースの Id。
+     */
+    private static final int UNCLAIMABLE_INTERFACE = 7;
+
+    private FakeFactory mFactory;
+
+    private final List<UsbConnectionPool<FakeConnection>> mPools = Lists.newArrayList();
+
+    public static void main(String[] args) {
+        runAndExit(new UsbConnectionPoolTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mFactory = new FakeFactory();
+        for (int i = 0; i < 4; i++) {
+            mFactory.attach("d" + i);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFactory.unblock();
+        for (UsbConnectionPool<FakeConnection> pool : mPools) {
+            pool.shutdown();
+        }
+        mPools.clear();
+        assertNull("factory misuse", mFactory.getError());
+    }
+
+    public void testLeasesShareConnectionAndClaims() {
+        final UsbConnectionPool<FakeConnection> pool = newPool(UsbConnectionPool
+                .DEFAULT_IDLE_TIMEOUT_MILLIS);
+        final UsbConnectionPool.Lease<FakeConnection> first = pool.acquire("d0", 1);
+        final UsbConnectionPool.Lease<FakeConnection> second = pool.acquire("d0", 1);
+        final UsbConnectionPool.Lease<FakeConnection> third = pool.acquire("d0", 2);
+        final UsbConnectionPool.Lease<FakeConnection> noClaim = pool.acquire("d0", -1);
+        assertNotNull("first", first);
+        assertSame("second", first.getConnection(), second.getConnection());
+        assertSame("third", first.getConnection(), third.getConnection());
+        assertSame("no claim", first.getConnection(), noClaim.getConnection());
+        assertEquals("interface", -1L, noClaim.getInterfaceId());
+        assertEquals("opens", 1L, mFactory.getOpenCount());
+        assertEquals("leases", 4L, pool.getLeaseCount());
+        final FakeConnection conn = first.getConnection();
+        assertEquals("claims", 2L, conn.getClaimCount());
+
+        // 同じインタフェースのリースが残っている間は release しない
+        first.close();
+        first.close();
+        assertTrue("still claimed", conn.isClaimed(1));
+        second.close();
+        assertFalse("released", conn.isClaimed(1));
+        assertTrue("other interface", conn.isClaimed(2));
+        third.close();
+        noClaim.close();
+        assertEquals("leases after close", 0L, pool.getLeaseCount());
+        // アイドルの間は閉じずに残しておく
+        assertFalse("closed while idle", conn.isClosed());
+        assertEquals("idle connection", 1L, pool.getConnectionCount());
+        assertSame("reused", conn, acquireAndClose(pool, "d1", "d0"));
+        assertEquals("opens after reuse", 2L, mFactory.getOpenCount());
+    }
+
+    public void testClaimFailure() {
+        final UsbConnectionPool<FakeConnection> pool = newPool(0L);
+        assertNull("unclaimable", pool.acquire("d0", UNCLAIMABLE_INTERFACE));
+        assertEquals("leases", 0L, pool.getLeaseCount());
+        assertEquals("closed", 1L, mFactory.getCloseCount());
+        assertEquals("connections", 0L, pool.getConnectionCount());
+
+        // 他のリースが使っている接続は、 claim に失敗しても閉じない
+        final UsbConnectionPool.Lease<FakeConnection> lease = pool.acquire("d0", 1);
+        assertNull("unclaimable with lease", pool.acquire("d0", UNCLAIMABLE_INTERFACE));
+        assertTrue("valid", lease.isValid());
+        assertFalse("connection kept", lease.getConnection().isClosed());
+        assertEquals("leases with lease", 1L, pool.getLeaseCount());
+        lease.close();
+        assertTrue("closed after return", lease.getConnection().isClosed());
+    }
+
+    public void testOpenFailure() {
+        final UsbConnectionPool<FakeConnection> pool = newPool(0L);
+        assertNull("absent device", pool.acquire("absent", -1));
+        assertEquals("connections", 0L, pool.getConnectionCount());
+        assertEquals("leases", 0L, pool.getLeaseCount());
+    }
+
+    public void testConcurrentAcquireOpensOnce() throws InterruptedException {
+        final UsbConnectionPool<FakeConnection> pool = newPool(0L);
+        mFactory.block();
+        final int threadCount = 8;
+        final AcquireThread[] threads = new AcquireThread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new AcquireThread(pool, "d0", i % 3 - 1);
+            threads[i].start();
+        }
+        mFactory.awaitOpenCount(1);
+        // 他のスレッドがオープンの完了を待つ状態になるまで待つ
+        Thread.sleep(100L);
+        assertEquals("opens while blocked", 1L, mFactory.getOpenCallCount());
+        mFactory.unblock();
+
+        FakeConnection conn = null;
+        for (AcquireThread thread : threads) {
+            final UsbConnectionPool.Lease<FakeConnection> lease = thread.getLease();
+            assertNotNull("lease", lease);
+            if (conn == null) {
+                conn = lease.getConnection();
+            }
+            assertSame("shared", conn, lease.getConnection());
+        }
+        assertEquals("opens", 1L, mFactory.getOpenCallCount());
+        assertEquals("leases", threadCount, pool.getLeaseCount());
+        for (AcquireThread thread : threads) {
+            thread.getLease().close();
+        }
+        assertTrue("closed", conn.isClosed());
+        assertEquals("closes", 1L, mFactory.getCloseCount());
+    }
+
+    public void testConcurrentAcquireOfAbsentDevice() throws InterruptedException {
+        final UsbConnectionPool<FakeConnection> pool = newPool(0L);
+        mFactory.block();
+        final AcquireThread[] threads = new AcquireThread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new AcquireThread(pool, "absent", -1);
+            threads[i].start();
+        }
+        mFactory.awaitOpenCount(1);
+        Thread.sleep(50L);
+        mFactory.unblock();
+        for (AcquireThread thread : threads) {
+            assertNull("lease", thread.getLease());
+        }
+        assertEquals("connections", 0L, pool.getConnectionCount());
+        assertEquals("leases", 0L, pool.getLeaseCount());
+    }
+
+    public void testInvalidateDuringOpen() throws InterruptedException {
+        final UsbConnectionPool<FakeConnection> pool = newPool(UsbConnectionPool
+                .DEFAULT_IDLE_TIMEOUT_MILLIS);
+        mFactory.block();
+        final AcquireThread opener = new AcquireThread(pool, "d0", 1);
+        opener.start();
+        mFactory.awaitOpenCount(1);
+        final AcquireThread waiter = new AcquireThread(pool, "d0", 1);
+        waiter.start();
+        Thread.sleep(50L);
+
+        // 取り外しの通知はオープンの完了を待たない
+        pool.invalidate("d0");
+        assertEquals("connections after invalidate", 0L, pool.getConnectionCount());
+        mFactory.unblock();
+        assertNull("opener", opener.getLease());
+        final List<FakeConnection> opened = mFactory.getOpened();
+        assertTrue("opened connection is closed", opened.get(0).isClosed());
+        assertFalse("opened connection is claimed", opened.get(0).isClaimed(1));
+
+        // 待っていたスレッドは無効にされた後のデバイスを改めてオープンする
+        final UsbConnectionPool.Lease<FakeConnection> lease = waiter.getLease();
+        assertNotNull("waiter", lease);
+        assertTrue("valid", lease.isValid());
+        assertEquals("opens", 2L, mFactory.getOpenCount());
+        assertFalse("fresh connection", lease.getConnection().isClosed());
+        lease.close();
+        assertEquals("leases", 0L, pool.getLeaseCount());
+    }
+
+    public void testInvalidateWithLeases() {
+        final UsbConnectionPool<FakeConnection> pool = newPool(UsbConnectionPool
+                .DEFAULT_IDLE_TIMEOUT_MILLIS);
+        final UsbConnectionPool.Lease<FakeConnection> lease = pool.acquire("d0", 3);
+        final FakeConnection conn = lease.getConnection();
+        pool.invalidate("d0");
+        assertFalse("valid", lease.isValid());
+        assertTrue("closed", conn.isClosed());
+        assertEquals("connections", 0L, pool.getConnectionCount());
+        // 取り外されたデバイスのインタフェースは release しない
+        lease.close();
+        assertTrue("release after invalidate", conn.isClaimed(3));
+        assertEquals("closes", 1L, mFactory.getCloseCount());
+        pool.invalidate("d0");
+        assertEquals("closes after second invalidate", 1L, mFactory.getCloseCount());
+
+        final UsbConnectionPool.Lease<FakeConnection> next = pool.acquire("d0", 3);
+        assertNotNull("next", next);
+        assertTrue("next valid", next.isValid());
+        next.close();
+    }
+
+    public void testIdleEviction() throws InterruptedException {
+        final long timeoutMillis = 50L;
+        final UsbConnectionPool<FakeConnection> pool = newPool(timeoutMillis);
+        final FakeConnection conn = acquireAndClose(pool, "d0");
+        assertFalse("closed immediately", conn.isClosed());
+        // 期限の前に借りれば使い回す
+        assertSame("reused", conn, acquireAndClose(pool, "d0"));
+        assertEquals("opens", 1L, mFactory.getOpenCount());
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (0 < pool.getConnectionCount()) {
+            if (deadline < System.nanoTime()) {
+                fail("idle connection was not evicted: " + pool);
+            }
+            Thread.sleep(5L);
+        }
+        assertTrue("closed", conn.isClosed());
+        assertEquals("closes", 1L, mFactory.getCloseCount());
+        assertFalse("reopened", conn == acquireAndClose(pool, "d0"));
+    }
+
+    public void testEvictionKeepsLeasedConnections() throws InterruptedException {
+        final UsbConnectionPool<FakeConnection> pool = newPool(20L);
+        final UsbConnectionPool.Lease<FakeConnection> lease = pool.acquire("d0", -1);
+        final FakeConnection idle = acquireAndClose(pool, "d1");
+        Thread.sleep(200L);
+        assertTrue("idle closed", idle.isClosed());
+        assertFalse("leased closed", lease.getConnection().isClosed());
+        assertEquals("connections", 1L, pool.getConnectionCount());
+        lease.close();
+    }
+
+    public void testEvictAll() {
+        final UsbConnectionPool<FakeConnection> pool = newPool(UsbConnectionPool
+                .DEFAULT_IDLE_TIMEOUT_MILLIS);
+        final UsbConnectionPool.Lease<FakeConnection> lease = pool.acquire("d0", -1);
+        final FakeConnection idle = acquireAndClose(pool, "d1");
+        pool.evictAll();
+        assertTrue("idle closed", idle.isClosed());
+        assertFalse("leased closed", lease.getConnection().isClosed());
+        lease.close();
+        assertFalse("closed on return", lease.getConnection().isClosed());
+    }
+
+    public void testShutdown() {
+        final UsbConnectionPool<FakeConnection> pool = newPool(UsbConnectionPool
+                .DEFAULT_IDLE_TIMEOUT_MILLIS);
+        final UsbConnectionPool.Lease<FakeConnection> lease = pool.acquire("d0", 1);
+        final FakeConnection idle = acquireAndClose(pool, "d1");
+        pool.shutdown();
+        assertTrue("idle closed", idle.isClosed());
+        assertNull("acquire after shutdown", pool.acquire("d2", -1));
+        assertFalse("leased closed", lease.getConnection().isClosed());
+        lease.close();
+        assertTrue("closed on return", lease.getConnection().isClosed());
+        assertEquals("connections", 0L, pool.getConnectionCount());
+    }
+
+    public void testConcurrentStressLeaksNothing() throws InterruptedException {
+        final UsbConnectionPool<FakeConnection> pool = newPool(2L);
+        final int threadCount = 8;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final long seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < 5000; i++) {
+                            final String deviceName = "d" + random.nextInt(4);
+                            final int action = random.nextInt(200);
+                            if (action == 0) {
+                                // 取り外して付け直す
+                                mFactory.detach(deviceName);
+                                pool.invalidate(deviceName);
+                                mFactory.attach(deviceName);
+                            } else if (action == 1) {
+                                pool.evictAll();
+                            } else {
+                                final UsbConnectionPool.Lease<FakeConnection> lease = pool
+                                        .acquire(deviceName, random.nextInt(4) - 1);
+                                if (lease != null) {
+                                    if (lease.isValid() && lease.getConnection().isClosed()) {
+                                        // invalidate() と競合しうるので、もう一度確かめる
+                                        assertFalse("valid lease on closed connection",
+                                                lease.isValid());
+                                    }
+                                    if (random.nextBoolean()) {
+                                        Thread.yield();
+                                    }
+                                    lease.close();
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "UsbConnectionPoolTest stress " + t).start();
+        }
+        assertTrue("stress did not finish", done.await(60L, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals("leases", 0L, pool.getLeaseCount());
+        pool.evictAll();
+        assertEquals("connections", 0L, pool.getConnectionCount());
+        assertEquals("open connections", 0L, mFactory.getOpenCount() - mFactory.getCloseCount());
+    }
+
+    private UsbConnectionPool<FakeConnection> newPool(long idleTimeoutMillis) {
+        final UsbConnectionPool<FakeConnection> pool = new UsbConnectionPool<FakeConnection>(
+                mFactory, idleTimeoutMillis);
+        mPools.add(pool);
+        return pool;
+    }
+
+    /**
+     * デバイスを順に借りてすぐに返却します。
+     *
+     * @return 最後に借りた接続。
+     */
+    private static FakeConnection acquireAndClose(UsbConnectionPool<FakeConnection> pool,
+            String... deviceNames) {
+        FakeConnection conn = null;
+        for (String deviceName : deviceNames) {
+            final UsbConnectionPool.Lease<FakeConnection> lease = pool.acquire(deviceName, -1);
+            assertNotNull(deviceName, lease);
+            conn = lease.getConnection();
+            lease.close();
+        }
+        return conn;
+    }
+
+    /**
+     * 別のスレッドでリースを借ります。
+     */
+    private static final class AcquireThread extends Thread {
+        private final UsbConnectionPool<FakeConnection> mPool;
+
+        private final String mDeviceName;
+
+        private final int mInterfaceId;
+
+        private volatile UsbConnectionPool.Lease<FakeConnection> mLease;
+
+        AcquireThread(UsbConnectionPool<FakeConnection> pool, String deviceName,
+                int interfaceId) {
+            super("UsbConnectionPoolTest acquire " + deviceName);
+            mPool = pool;
+            mDeviceName = deviceName;
+            mInterfaceId = interfaceId;
+        }
+
+        @Override
+        public void run() {
+            mLease = mPool.acquire(mDeviceName, mInterfaceId);
+        }
+
+        /**
+         * スレッドの終了を待ってリースを返します。
+         */
+        UsbConnectionPool.Lease<FakeConnection> getLease() throws InterruptedException {
+            join(WAIT_MILLIS);
+            assertFalse("acquire did not return", isAlive());
+            return mLease;
+        }
+    }
+
+    /**
+     * 偽物の接続です。 状態はファクトリのロックで保護します。
+     */
+    private static final class FakeConnection {
+        private final FakeFactory mFactory;
+
+        private final Set<Integer> mClaims = Sets.newHashSet();
+
+        private boolean mClosed = false;
+
+        FakeConnection(FakeFactory factory) {
+            mFactory = factory;
+        }
+
+        boolean isClosed() {
+            synchronized (mFactory) {
+                return mClosed;
+            }
+        }
+
+        boolean isClaimed(int interfaceId) {
+            synchronized (mFactory) {
+                return mClaims.contains(Integer.valueOf(interfaceId));
+            }
+        }
+
+        int getClaimCount() {
+            synchronized (mFactory) {
+                return mClaims.size();
+            }
+        }
+    }
+
+    /**
+     * 偽物のファクトリです。 {@link #block()} するとオープンを {@link #unblock()} まで
+     * 止めます。
+     */
+    private static final class FakeFactory implements
+            UsbConnectionPool.ConnectionFactory<FakeConnection> {
+        private final Set<String> mAttached = Sets.newHashSet();
+
+        private final List<FakeConnection> mOpened = Lists.newArrayList();
+
+        private int mOpenCalls;
+
+        private int mCloseCount;
+
+        private boolean mBlocked = false;
+
+        private String mError;
+
+        synchronized void attach(String deviceName) {
+            mAttached.add(deviceName);
+        }
+
+        synchronized void detach(String deviceName) {
+            mAttached.remove(deviceName);
+        }
+
+        synchronized void block() {
+            mBlocked = true;
+        }
+
+        synchronized void unblock() {
+            mBlocked = false;
+            notifyAll();
+        }
+
+        synchronized void awaitOpenCount(int count) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+            while (mOpenCalls < count) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    fail("open was not called");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+
+        /**
+         * @return オープンが呼ばれた回数。
+         */
+        synchronized int getOpenCallCount() {
+            return mOpenCalls;
+        }
+
+        /**
+         * @return オープンに成功した回数。
+         */
+        synchronized int getOpenCount() {
+            return mOpened.size();
+        }
+
+        synchronized int getCloseCount() {
+            return mCloseCount;
+        }
+
+        synchronized List<FakeConnection> getOpened() {
+            return Lists.newArrayList(mOpened);
+        }
+
+        synchronized String getError() {
+            return mError;
+        }
+
+        private void error(String message) {
+            if (mError == null) {
+                mError = message;
+            }
+        }
+
+        @Override
+        public synchronized FakeConnection open(String deviceName) {
+            mOpenCalls++;
+            notifyAll();
+            try {
+                while (mBlocked) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (!mAttached.contains(deviceName)) {
+                return null;
+            }
+            final FakeConnection conn = new FakeConnection(this);
+            mOpened.add(conn);
+            return conn;
+        }
+
+        @Override
+        public synchronized boolean claimInterface(FakeConnection connection, String deviceName,
+                int interfaceId) {
+            if (connection.mClosed) {
+                error("claimed " + interfaceId + " on a closed connection");
+            }
+            if (interfaceId == UNCLAIMABLE_INTERFACE) {
+                return false;
+            }
+            if (!connection.mClaims.add(Integer.valueOf(interfaceId))) {
+                error("claimed " + interfaceId + " twice");
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void releaseInterface(FakeConnection connection, String deviceName,
+                int interfaceId) {
+            if (connection.mClosed) {
+                error("released " + interfaceId + " on a closed connection");
+            }
+            if (!connection.mClaims.remove(Integer.valueOf(interfaceId))) {
+                error("released " + interfaceId + " without claiming");
+            }
+        }
+
+        @Override
+        public synchronized void close(FakeConnection connection) {
+            if (connection.mClosed) {
+                error("closed twice");
+            }
+            connection.mClosed = true;
+            mCloseCount++;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * {@link UsbDescriptorParser} と {@link UsbDescriptorFormatter} のテストです。
+ * <p>
+ * {@code tests/fixtures/descriptors/*.hex} のディスクリプタ列を整形した結果を同名の {@code .txt}
+ * と比べ、さらにそれらを切り詰めたり壊したりした入力で、走査が独立に数えた境界と
+ * 一致することと、整形が例外をスローしないことを確かめます。
+ * </p>
+ */
+public class UsbDescriptorParserTest extends UsbTestCase {
+
+    private static final String DESCRIPTORS_DIR = "descriptors";
+
+    /**
+     * 乱数の種。 失敗を再現できるよう固定します。
+     */
+    private static final long SEED = 20111103L;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbDescriptorParserTest());
+    }
+
+    public void testCorpusMatchesExpectedText() throws IOException {
+        for (File hex : listFixtures(DESCRIPTORS_DIR, ".hex")) {
+            final String name = hex.getName();
+            final File txt = new File(hex.getParentFile(), name.substring(0,
+                    name.length() - ".hex".length()) + ".txt");
+            final String actual = format(readHex(hex));
+            if (!txt.isFile()) {
+                fail("missing " + txt + ", actual:\n" + actual);
+            }
+            assertEquals(name, readText(txt), actual);
+        }
+    }
+
+    public void testCorpusWalk() throws IOException {
+        for (File hex : listFixtures(DESCRIPTORS_DIR, ".hex")) {
+            checkWalk(hex.getName(), readHex(hex));
+        }
+    }
+
+    public void testEveryPrefixOfCorpus() throws IOException {
+        for (File hex : listFixtures(DESCRIPTORS_DIR, ".hex")) {
+            final byte[] raw = readHex(hex);
+            for (int length = 0; length <= raw.length; length++) {
+                final byte[] prefix = Arrays.copyOf(raw, length);
+                checkWalk(hex.getName() + "[0, " + length + ")", prefix);
+                format(prefix);
+            }
+        }
+    }
+
+    public void testRandomMutationsOfCorpus() throws IOException {
+        final File[] files = listFixtures(DESCRIPTORS_DIR, ".hex");
+        final byte[][] corpus = new byte[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            corpus[i] = readHex(files[i]);
+        }
+        final Random random = new Random(SEED);
+        for (int iteration = 0; iteration < 50000; iteration++) {
+            final int index = random.nextInt(corpus.length);
+            final byte[] mutated = mutate(random, corpus[index]);
+            final String label = files[index].getName() + " #" + iteration;
+            checkWalk(label, mutated);
+            try {
+                format(mutated);
+            } catch (RuntimeException e) {
+                throw new AssertionError(label + " " + toHex(mutated) + ": " + e);
+            }
+        }
+    }
+
+    public void testRandomBytes() {
+        final Random random = new Random(SEED);
+        for (int iteration = 0; iteration < 50000; iteration++) {
+            final byte[] raw = new byte[random.nextInt(96)];
+            random.nextBytes(raw);
+            // 小さい bLength の方が多くのディスクリプタをたどれる
+            for (int offset = 0; offset < raw.length; offset += 2 + random.nextInt(18)) {
+                raw[offset] = (byte) (random.nextInt(20));
+            }
+            checkWalk("random #" + iteration, raw);
+            try {
+                format(raw);
+            } catch (RuntimeException e) {
+                throw new AssertionError("random #" + iteration + " " + toHex(raw) + ": " + e);
+            }
+        }
+    }
+
+    public void testErrors() {
+        UsbDescriptorParser p = walk(bytes(0x09, 0x04, 0, 0, 0, 0xff, 0, 0, 0, 0x01, 0x04));
+        assertEquals("bad length", UsbDescriptorParser.ERROR_BAD_LENGTH, p.getError());
+        assertEquals("bad length offset", 9L, p.getErrorOffset());
+
+        p = walk(bytes(0x09, 0x04, 0, 0, 0, 0xff, 0, 0, 0, 0x07, 0x05, 0x81));
+        assertEquals("truncated", UsbDescriptorParser.ERROR_TRUNCATED, p.getError());
+        assertEquals("truncated offset", 9L, p.getErrorOffset());
+
+        p = walk(bytes());
+        assertEquals("empty", UsbDescriptorParser.ERROR_NONE, p.getError());
+        assertEquals("empty offset", -1L, p.getErrorOffset());
+
+        // エラーの後は reset() するまで進まない
+        p = walk(bytes(0x00));
+        assertEquals("single byte", UsbDescriptorParser.ERROR_TRUNCATED, p.getError());
+        assertFalse("next after error", p.next());
+        p.reset();
+        assertEquals("reset", UsbDescriptorParser.ERROR_NONE, p.getError());
+    }
+
+    public void testFieldAccessIsBounded() {
+        final UsbDescriptorParser p = new UsbDescriptorParser(bytes(0x07, 0x05, 0x81, 0x03,
+                0x40, 0x00, 0x0a, 0x06, 0x30, 0x01, 0x02, 0x03, 0x04));
+        try {
+            p.getType();
+            fail("field read before next()");
+        } catch (IllegalStateException expected) {
+            // 期待どおり
+        }
+        assertTrue("first", p.next());
+        assertEquals("max packet size", 0x40L, p.getU16(4));
+        assertFalse("beyond bLength", p.hasField(6, 2));
+        assertFalse("negative offset", p.hasField(-1, 1));
+        assertBoundsChecked(p, 7, 1);
+        assertBoundsChecked(p, 6, 2);
+        assertBoundsChecked(p, 4, 4);
+        assertBoundsChecked(p, -1, 1);
+
+        assertTrue("second", p.next());
+        assertEquals("offset", 7L, p.getOffset());
+        assertEquals("u32", 0x04030201L, p.getU32(2));
+        assertTrue("copy", Arrays.equals(bytes(0x06, 0x30, 0x01, 0x02, 0x03, 0x04),
+                p.copyDescriptor()));
+        assertBoundsChecked(p, 3, 4);
+        assertFalse("end", p.next());
+        try {
+            p.getLength();
+            fail("field read after the end");
+        } catch (IllegalStateException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testBufferWindowIsRespected() {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes(0xee, 0xee, 0x04, 0x24, 0x01, 0x02,
+                0x02, 0x7f, 0xee));
+        buffer.position(2).limit(8);
+        final UsbDescriptorParser p = new UsbDescriptorParser(buffer);
+        assertEquals("total", 6L, p.getTotalLength());
+        assertTrue("first", p.next());
+        assertEquals("first offset", 0L, p.getOffset());
+        assertEquals("first type", UsbDescriptorParser.TYPE_CS_INTERFACE, p.getType());
+        assertTrue("second", p.next());
+        assertEquals("second type", 0x7fL, p.getType());
+        assertFalse("end", p.next());
+        assertEquals("error", UsbDescriptorParser.ERROR_NONE, p.getError());
+        assertEquals("position", 2L, buffer.position());
+        assertEquals("limit", 8L, buffer.limit());
+    }
+
+    /**
+     * パーサの走査結果を、ディスクリプタの境界を独立に数えた結果と比べます。
+     */
+    private static void checkWalk(String label, byte[] raw) {
+        final UsbDescriptorParser p = new UsbDescriptorParser(raw);
+        for (int pass = 0; pass < 2; pass++) {
+            int offset = 0;
+            int expectedError = UsbDescriptorParser.ERROR_NONE;
+            while (offset < raw.length) {
+                final int length = raw[offset] & 0xff;
+                if (raw.length - offset < 2) {
+                    expectedError = UsbDescriptorParser.ERROR_TRUNCATED;
+                    break;
+                }
+                if (length < 2) {
+                    expectedError = UsbDescriptorParser.ERROR_BAD_LENGTH;
+                    break;
+                }
+                if (raw.length - offset < length) {
+                    expectedError = UsbDescriptorParser.ERROR_TRUNCATED;
+                    break;
+                }
+                assertTrue(label + ": descriptor at " + offset, p.next());
+                assertEquals(label + ": offset", offset, p.getOffset());
+                assertEquals(label + ": length at " + offset, length, p.getLength());
+                assertEquals(label + ": type at " + offset, raw[offset + 1] & 0xff, p.getType());
+                offset += length;
+            }
+            assertFalse(label + ": extra descriptor at " + offset, p.next());
+            assertEquals(label + ": error", expectedError, p.getError());
+            assertEquals(label + ": error offset",
+                    (expectedError == UsbDescriptorParser.ERROR_NONE) ? -1 : offset,
+                    p.getErrorOffset());
+            // 2回目は reset() してから同じ結果になることを確かめる
+            p.reset();
+        }
+    }
+
+    private static byte[] mutate(Random random, byte[] original) {
+        byte[] raw = original;
+        final int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            final int position = (raw.length == 0) ? 0 : random.nextInt(raw.length);
+            switch (random.nextInt(6)) {
+                case 0:
+                    // 1 バイトを置き換える
+                    if (0 < raw.length) {
+                        raw = raw.clone();
+                        raw[position] = (byte) random.nextInt(256);
+                    }
+                    break;
+                case 1:
+                    // bLength になりうる位置を境界付近の値にする
+                    if (0 < raw.length) {
+                        raw = raw.clone();
+                        raw[position] = (byte) new int[] {
+                                0, 1, 2, 3, 255
+                        }[random.nextInt(5)];
+                    }
+                    break;
+                case 2:
+                    // 1 バイト削除する
+                    if (0 < raw.length) {
+                        final byte[] shorter = new byte[raw.length - 1];
+                        System.arraycopy(raw, 0, shorter, 0, position);
+                        System.arraycopy(raw, position + 1, shorter, position,
+                                shorter.length - position);
+                        raw = shorter;
+                    }
+                    break;
+                case 3:
+                    // 1 バイト挿入する
+                    final byte[] longer = new byte[raw.length + 1];
+                    System.arraycopy(raw, 0, longer, 0, position);
+                    longer[position] = (byte) random.nextInt(256);
+                    System.arraycopy(raw, position, longer, position + 1, raw.length - position);
+                    raw = longer;
+                    break;
+                case 4:
+                    // 切り詰める
+                    raw = Arrays.copyOf(raw, position);
+                    break;
+                default:
+                    // ディスクリプタタイプを標準やクラス固有のものにする
+                    if (1 < raw.length) {
+                        raw = raw.clone();
+                        raw[Math.min(position | 1, raw.length - 1)] = (byte) new int[] {
+                                0x01, 0x02, 0x04, 0x05, 0x07, 0x0b, 0x21, 0x24, 0x25
+                        }[random.nextInt(9)];
+                    }
+                    break;
+            }
+        }
+        return raw;
+    }
+
+    private static UsbDescriptorParser walk(byte[] raw) {
+        final UsbDescriptorParser p = new UsbDescriptorParser(raw);
+        while (p.next()) {
+            // 最後まで進める
+            assert true;
+        }
+        return p;
+    }
+
+    private static void assertBoundsChecked(UsbDescriptorParser p, int offset, int size) {
+        try {
+            if (size == 1) {
+                p.getU8(offset);
+            } else if (size == 2) {
+                p.getU16(offset);
+            } else {
+                p.getU32(offset);
+            }
+            fail("read " + size + " bytes at " + offset + " of " + p.getLength());
+        } catch (IndexOutOfBoundsException expected) {
+            // 期待どおり
+        }
+    }
+
+    private static String format(byte[] raw) {
+        return UsbDescriptorFormatter.appendDescriptors(new StringBuilder(),
+                new UsbDescriptorParser(raw)).toString();
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static String toHex(byte[] raw) {
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : raw) {
+            UsbConstantsUtil.append2Hex(sb.append(' '), b & 0xff);
+        }
+        return sb.toString();
+    }
+}
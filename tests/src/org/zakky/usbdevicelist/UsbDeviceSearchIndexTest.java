@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.CLASS_HUB;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.device;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.snapshot;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * {@link UsbDeviceSearchIndex} のテストです。 索引で絞り込んだ結果を、全デバイスの
+ * 検索用テキストを直接調べた結果と比べます。
+ */
+public class UsbDeviceSearchIndexTest extends UsbTestCase {
+
+    private static final UsbDeviceSnapshot HUB = device(deviceName(1, 1), CLASS_HUB, 0x1d6b,
+            0x0002, "usb1");
+
+    private static final UsbDeviceSnapshot SERIAL = device(deviceName(1, 2), 0x0403, 0x6001,
+            "1-1");
+
+    private static final UsbDeviceSnapshot MOUSE = device(deviceName(1, 3), 0x046d, 0xc077,
+            "1-2");
+
+    private static final UsbDeviceSnapshot RECEIVER = device(deviceName(2, 4), 0x046d, 0xc52b,
+            "2-1");
+
+    private static final UsbDeviceSnapshot PHONE = device(deviceName(2, 5), 0x05ac, 0x12a8,
+            "2-2");
+
+    private UsbIdsIndex mIds;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbDeviceSearchIndexTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mIds = loadSampleIds();
+    }
+
+    public void testSearch() {
+        final UsbDeviceSearchIndex index = new UsbDeviceSearchIndex(snapshot(HUB, SERIAL, MOUSE,
+                RECEIVER, PHONE), mIds);
+        assertEquals("empty query", names(HUB, SERIAL, MOUSE, RECEIVER, PHONE), names(index
+                .search("  ")));
+        assertEquals("hex vid", names(SERIAL), names(index.search("0403")));
+        assertEquals("decimal vid", names(SERIAL), names(index.search("1027")));
+        assertEquals("vid:pid", names(MOUSE), names(index.search("046d:c077")));
+        assertEquals("vendor name", names(MOUSE, RECEIVER), names(index.search("Logitech")));
+        assertEquals("and", names(MOUSE), names(index.search("LOGITECH   optical")));
+        assertEquals("device name", names(RECEIVER, PHONE), names(index.search("usb/002/")));
+        assertEquals("short term", names(MOUSE), names(index.search("c0")));
+        assertEquals("no match", names(), names(index.search("logitech apple")));
+        assertEquals("unknown gram", names(), names(index.search("zzzz")));
+        // 語の区切りをまたいでは一致しない
+        assertEquals("across terms", names(), names(index.search("0403" + "1027")));
+    }
+
+    public void testNarrowsCandidatesByTrigrams() {
+        final UsbDeviceSearchIndex index = new UsbDeviceSearchIndex(snapshot(HUB, SERIAL, MOUSE,
+                RECEIVER, PHONE), mIds);
+        assertEquals("vendor name", 2L, index.countCandidates("logitech"));
+        assertEquals("hex vid", 1L, index.countCandidates("0403"));
+        assertEquals("unknown gram", 0L, index.countCandidates("zzzz"));
+        // もっとも候補の少ない語で絞る
+        assertEquals("rarest term", 1L, index.countCandidates("logitech c077"));
+        assertEquals("rarest term first", 1L, index.countCandidates("c077 logitech"));
+        // 3文字未満の語では絞れない
+        assertEquals("short term", 5L, index.countCandidates("c0"));
+        assertEquals("empty", 5L, index.countCandidates(""));
+    }
+
+    public void testTypingAfterApply() {
+        final UsbTopologySnapshot before = snapshot(HUB, MOUSE, RECEIVER);
+        final UsbDeviceSearchIndex index = new UsbDeviceSearchIndex(before, mIds);
+        assertEquals("before", names(MOUSE, RECEIVER), names(index.search("logi")));
+
+        // 前回の結果から絞り込む前に、索引の変更を反映しなければならない
+        final UsbDeviceSnapshot newMouse = device(deviceName(1, 6), 0x046d, 0xc077, "1-3");
+        final UsbTopologySnapshot after = snapshot(HUB, RECEIVER, newMouse);
+        index.apply(UsbTopologyDiff.compute(before, after));
+        assertEquals("after", names(RECEIVER, newMouse), names(index.search("logit")));
+
+        // 変化したデバイスは新しいテキストで引く
+        final UsbDeviceSnapshot phoneOnSamePort = device(RECEIVER.getDeviceName(), 0x05ac,
+                0x12a8, "2-1");
+        final UsbTopologySnapshot changed = snapshot(HUB, phoneOnSamePort, newMouse);
+        index.apply(UsbTopologyDiff.compute(after, changed));
+        assertEquals("changed", names(newMouse), names(index.search("logite")));
+        assertEquals("changed to apple", names(phoneOnSamePort), names(index.search("apple")));
+    }
+
+    /**
+     * デバイスの追加、削除、変更と、1文字ずつ入力を延ばしたり消したりする検索を
+     * 無作為に繰り返し、検索用テキストを全件調べた結果と比べます。
+     */
+    public void testMatchesFullScan() {
+        final int[][] ids = {
+                {0x0403, 0x6001}, {0x0403, 0x6010}, {0x046d, 0xc077}, {0x046d, 0xc52b},
+                {0x05ac, 0x12a8}, {0x0e8d, 0x2000}, {0x1d6b, 0x0002}, {0xabcd, 0x0001},
+        };
+        final Random random = new Random(20111201L);
+        UsbTopologySnapshot current = UsbTopologySnapshot.EMPTY;
+        final UsbDeviceSearchIndex index = new UsbDeviceSearchIndex(current, mIds);
+        String query = "";
+        for (int step = 0; step < 3000; step++) {
+            if (random.nextInt(8) == 0) {
+                final List<UsbDeviceSnapshot> devices = Lists.newArrayList();
+                for (int i = 0; i < 24; i++) {
+                    if (random.nextInt(3) != 0) {
+                        final int[] id = ids[random.nextInt(ids.length)];
+                        devices.add(device(deviceName(1 + i / 10, 1 + i), (i % 5 == 0)
+                                ? CLASS_HUB : 0, id[0], id[1], "1-" + (i + 1)));
+                    }
+                }
+                final UsbTopologySnapshot next = UsbTopologySnapshot.of(devices);
+                index.apply(UsbTopologyDiff.compute(current, next));
+                current = next;
+            }
+            final int action = random.nextInt(6);
+            if (action == 0 || query.length() == 0) {
+                query = randomTerm(random, current);
+            } else if (action == 1) {
+                query = query.substring(0, query.length() - 1);
+            } else if (action == 2) {
+                query = query + " " + randomTerm(random, current);
+            } else {
+                query = query + (char) ('0' + random.nextInt(10));
+            }
+            assertEquals("step " + step + " '" + query + "'", fullScan(current, query),
+                    names(index.search(query)));
+        }
+    }
+
+    /**
+     * 登録されているデバイスの検索用テキストから、短い部分文字列を取り出します。
+     */
+    private String randomTerm(Random random, UsbTopologySnapshot snapshot) {
+        if (snapshot.size() == 0) {
+            return "logi";
+        }
+        final UsbDeviceSnapshot dev = snapshot.getDevices().get(random.nextInt(
+                snapshot.size()));
+        final String[] terms = UsbDeviceSearchIndex.buildText(dev, mIds).split("\\s+");
+        final String term = terms[random.nextInt(terms.length)];
+        final int start = random.nextInt(term.length());
+        final int end = Math.min(term.length(), start + 1 + random.nextInt(5));
+        final String s = term.substring(start, end);
+        return random.nextBoolean() ? s.toUpperCase(Locale.US) : s;
+    }
+
+    private Set<String> fullScan(UsbTopologySnapshot snapshot, String query) {
+        final String normalized = query.trim().toLowerCase(Locale.US);
+        final Set<String> result = Sets.newTreeSet();
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            final String text = UsbDeviceSearchIndex.buildText(dev, mIds);
+            boolean matches = true;
+            for (String term : normalized.split("\\s+")) {
+                if (text.indexOf(term) < 0) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                result.add(dev.getDeviceName());
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> names(List<UsbDeviceSnapshot> devices) {
+        final Set<String> result = Sets.newTreeSet();
+        for (UsbDeviceSnapshot dev : devices) {
+            assertTrue("duplicate " + dev, result.add(dev.getDeviceName()));
+        }
+        return result;
+    }
+
+    private static Set<String> names(UsbDeviceSnapshot... devices) {
+        return names(Lists.newArrayList(devices));
+    }
+
+    private static UsbIdsIndex loadSampleIds() throws IOException {
+        final UsbIdsCompiler compiler = new UsbIdsCompiler();
+        final Reader in = new InputStreamReader(new FileInputStream(getFixture(
+                "usb_ids/sample.ids")), "UTF-8");
+        try {
+            compiler.parse(in);
+        } finally {
+            in.close();
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compiler.write(out);
+        return UsbIdsIndex.wrap(ByteBuffer.wrap(out.toByteArray()));
+    }
+}
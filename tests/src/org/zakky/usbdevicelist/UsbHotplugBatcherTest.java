@@ -0,0 +1,312 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.device;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.snapshot;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link UsbHotplugBatcher} を偽の {@link UsbHotplugBatcher.Scheduler} で動かすテストです。
+ */
+public class UsbHotplugBatcherTest extends UsbTestCase {
+
+    private static final long WINDOW_MILLIS = 100L;
+
+    private static final UsbDeviceSnapshot KEYBOARD = device(deviceName(1, 2), 0x046d, 0xc31c,
+            "1-1");
+
+    private static final UsbDeviceSnapshot MOUSE = device(deviceName(1, 3), 0x046d, 0xc077,
+            "1-2");
+
+    private static final UsbDeviceSnapshot STORAGE = device(deviceName(1, 4), 0x0781, 0x5567,
+            "1-3");
+
+    private FakeScheduler mScheduler;
+
+    private final List<UsbHotplugBatch> mBatches = Lists.newArrayList();
+
+    private final UsbHotplugBatcher.Callback mCallback = new UsbHotplugBatcher.Callback() {
+        @Override
+        public void onHotplugBatch(UsbHotplugBatch batch) {
+            mBatches.add(batch);
+        }
+    };
+
+    public static void main(String[] args) {
+        runAndExit(new UsbHotplugBatcherTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mScheduler = new FakeScheduler();
+        mBatches.clear();
+    }
+
+    public void testCoalescesBurst() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        final UsbDeviceSnapshot reconfigured = device(MOUSE.getDeviceName(), 0x046d, 0xc077,
+                "1-4");
+        batcher.onAttached(KEYBOARD);
+        batcher.onAttached(MOUSE);
+        batcher.onDetached(KEYBOARD.getDeviceName());
+        batcher.onAttached(STORAGE);
+        batcher.onAttached(reconfigured);
+        assertEquals("scheduled", 1L, mScheduler.getScheduleCount());
+        assertEquals("batches before window", 0L, mBatches.size());
+
+        final UsbHotplugBatch batch = awaitSingleBatch();
+        // デバイス名ごとに最後のイベントだけが残り、最初のイベントの順に並ぶ
+        assertEquals("attached", ImmutableList.of(reconfigured, STORAGE), batch.getAttached());
+        assertEquals("detached", ImmutableList.of(KEYBOARD.getDeviceName()),
+                batch.getDetached());
+        assertEquals("detached at least once", ImmutableList.of(KEYBOARD.getDeviceName()),
+                batch.getDetachedAtLeastOnce());
+        assertEquals("events", 5L, batch.getEventCount());
+        assertFalse("empty", batch.isEmpty());
+    }
+
+    public void testDetachThenReattach() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        final UsbDeviceSnapshot replugged = device(KEYBOARD.getDeviceName(), 0x046d, 0xc31c,
+                "1-2");
+        batcher.onDetached(KEYBOARD.getDeviceName());
+        batcher.onAttached(replugged);
+        batcher.onDetached(MOUSE.getDeviceName());
+
+        final UsbHotplugBatch batch = awaitSingleBatch();
+        assertEquals("attached", ImmutableList.of(replugged), batch.getAttached());
+        assertEquals("detached", ImmutableList.of(MOUSE.getDeviceName()), batch.getDetached());
+        // 接続し直したデバイスも、一度切断されたものとして報告する
+        assertEquals("detached at least once", ImmutableList.of(KEYBOARD.getDeviceName(),
+                MOUSE.getDeviceName()), batch.getDetachedAtLeastOnce());
+        assertEquals("events", 3L, batch.getEventCount());
+    }
+
+    public void testAttachThenDetach() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        batcher.onAttached(STORAGE);
+        batcher.onDetached(STORAGE.getDeviceName());
+
+        final UsbHotplugBatch batch = awaitSingleBatch();
+        assertEquals("attached", ImmutableList.of(), batch.getAttached());
+        assertEquals("detached", ImmutableList.of(STORAGE.getDeviceName()), batch.getDetached());
+    }
+
+    public void testFlushTiming() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        batcher.onAttached(KEYBOARD);
+        mScheduler.advance(WINDOW_MILLIS - 40L);
+        // ウィンドウは最初のイベントから固定なので、後のイベントで延長されない
+        batcher.onAttached(MOUSE);
+        mScheduler.advance(39L);
+        assertEquals("batches before window", 0L, mBatches.size());
+        mScheduler.advance(1L);
+        assertEquals("batches", 1L, mBatches.size());
+        assertEquals("attached", ImmutableList.of(KEYBOARD, MOUSE), mBatches.get(0)
+                .getAttached());
+        assertEquals("scheduled", 1L, mScheduler.getScheduleCount());
+
+        // 次のイベントから新しいウィンドウが始まる
+        batcher.onAttached(STORAGE);
+        assertEquals("scheduled again", 2L, mScheduler.getScheduleCount());
+        mScheduler.advance(WINDOW_MILLIS - 1L);
+        assertEquals("batches in second window", 1L, mBatches.size());
+        mScheduler.advance(1L);
+        assertEquals("batches after second window", 2L, mBatches.size());
+        assertEquals("second batch", ImmutableList.of(STORAGE), mBatches.get(1).getAttached());
+        assertEquals("second events", 1L, mBatches.get(1).getEventCount());
+    }
+
+    public void testFlushCancelsTimer() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        batcher.onAttached(KEYBOARD);
+        batcher.flush();
+        assertEquals("batches", 1L, mBatches.size());
+        assertEquals("pending tasks", 0L, mScheduler.getPendingCount());
+        mScheduler.advance(WINDOW_MILLIS * 2);
+        assertEquals("batches after window", 1L, mBatches.size());
+
+        // 保留中のイベントがなければ何も通知しない
+        batcher.flush();
+        assertEquals("batches after empty flush", 1L, mBatches.size());
+    }
+
+    public void testZeroWindowDeliversEachEvent() {
+        final UsbHotplugBatcher batcher = newBatcher(0L);
+        batcher.onAttached(KEYBOARD);
+        batcher.onDetached(KEYBOARD.getDeviceName());
+        assertEquals("batches", 2L, mBatches.size());
+        assertEquals("scheduled", 0L, mScheduler.getScheduleCount());
+        assertEquals("first", ImmutableList.of(KEYBOARD), mBatches.get(0).getAttached());
+        assertEquals("second", ImmutableList.of(KEYBOARD.getDeviceName()), mBatches.get(1)
+                .getDetached());
+        assertEquals("first events", 1L, mBatches.get(0).getEventCount());
+    }
+
+    public void testCancelDiscardsPending() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        batcher.onAttached(KEYBOARD);
+        batcher.onDetached(MOUSE.getDeviceName());
+        batcher.cancel();
+        assertEquals("pending tasks", 0L, mScheduler.getPendingCount());
+        mScheduler.advance(WINDOW_MILLIS);
+        assertEquals("batches", 0L, mBatches.size());
+
+        batcher.onAttached(STORAGE);
+        final UsbHotplugBatch batch = awaitSingleBatch();
+        assertEquals("attached", ImmutableList.of(STORAGE), batch.getAttached());
+        assertEquals("detached at least once", ImmutableList.of(),
+                batch.getDetachedAtLeastOnce());
+        assertEquals("events", 1L, batch.getEventCount());
+    }
+
+    public void testApplyTo() {
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        final UsbTopologySnapshot base = snapshot(KEYBOARD, MOUSE);
+        batcher.onDetached(KEYBOARD.getDeviceName());
+        batcher.onAttached(STORAGE);
+        final UsbHotplugBatch batch = awaitSingleBatch();
+
+        final UsbTopologySnapshot applied = batch.applyTo(base);
+        assertEquals("applied", ImmutableList.of(MOUSE, STORAGE), applied.getDevices());
+        // 何度適用しても結果は変わらない
+        assertEquals("applied twice", applied.getDevices(), batch.applyTo(applied)
+                .getDevices());
+
+        batcher.onAttached(KEYBOARD);
+        batcher.onDetached(KEYBOARD.getDeviceName());
+        final UsbHotplugBatch detachOnly = awaitSingleBatch();
+        assertEquals("detach of unknown device", applied.getDevices(), detachOnly.applyTo(
+                applied).getDevices());
+    }
+
+    public void testResolvePortPaths() {
+        final File sysfsRoot = getFixture("sysfs/hub_and_keyboard");
+        final UsbDeviceSnapshot hub = device(deviceName(1, 2), 0x05e3, 0x0608, null);
+        final UsbDeviceSnapshot keyboard = device(deviceName(1, 5), 0x046d, 0xc31c, null);
+        final UsbDeviceSnapshot unknown = device(deviceName(1, 9), 0x0781, 0x5567, null);
+        final UsbHotplugBatcher batcher = newBatcher(WINDOW_MILLIS);
+        batcher.onAttached(hub);
+        batcher.onAttached(keyboard);
+        batcher.onAttached(unknown);
+        batcher.onDetached(MOUSE.getDeviceName());
+        final UsbHotplugBatch batch = awaitSingleBatch();
+
+        final UsbHotplugBatch resolved = batch.resolvePortPaths(sysfsRoot);
+        final List<UsbDeviceSnapshot> attached = resolved.getAttached();
+        assertEquals("attached", 3L, attached.size());
+        assertEquals("hub", "1-1", attached.get(0).getPortPath());
+        assertEquals("keyboard", "1-1.2", attached.get(1).getPortPath());
+        assertEquals("keyboard interfaces", keyboard.getInterfaces(), attached.get(1)
+                .getInterfaces());
+        assertSame("not in sysfs", unknown, attached.get(2));
+        assertEquals("detached", batch.getDetached(), resolved.getDetached());
+        assertEquals("events", batch.getEventCount(), resolved.getEventCount());
+
+        // 補うものが無ければ同じバッチを返す
+        assertSame("already resolved", resolved, resolved.resolvePortPaths(getFixture(
+                "sysfs/missing")));
+        batcher.onAttached(KEYBOARD);
+        final UsbHotplugBatch known = awaitSingleBatch();
+        assertSame("known port path", known, known.resolvePortPaths(sysfsRoot));
+    }
+
+    private UsbHotplugBatcher newBatcher(long windowMillis) {
+        return new UsbHotplugBatcher(mScheduler, windowMillis, mCallback);
+    }
+
+    /**
+     * ウィンドウが終わるまで時間を進め、通知されたひとつのバッチを取り出します。
+     */
+    private UsbHotplugBatch awaitSingleBatch() {
+        mScheduler.advance(WINDOW_MILLIS);
+        assertEquals("batches", 1L, mBatches.size());
+        return mBatches.remove(0);
+    }
+
+    /**
+     * 仮想の時刻でタスクを実行するスケジューラです。 {@link #advance(long)} で時刻を進めると、
+     * その間に期限が来たタスクを期限の順に実行します。
+     */
+    private static final class FakeScheduler implements UsbHotplugBatcher.Scheduler {
+        private final List<Task> mTasks = Lists.newArrayList();
+
+        private long mNow;
+
+        private int mScheduleCount;
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            mScheduleCount++;
+            mTasks.add(new Task(task, mNow + delayMillis));
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            for (Iterator<Task> it = mTasks.iterator(); it.hasNext();) {
+                if (it.next().mRunnable == task) {
+                    it.remove();
+                }
+            }
+        }
+
+        void advance(long millis) {
+            final long deadline = mNow + millis;
+            while (true) {
+                Task next = null;
+                for (Task task : mTasks) {
+                    if (task.mDueMillis <= deadline
+                            && (next == null || task.mDueMillis < next.mDueMillis)) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                mTasks.remove(next);
+                mNow = next.mDueMillis;
+                next.mRunnable.run();
+            }
+            mNow = deadline;
+        }
+
+        int getScheduleCount() {
+            return mScheduleCount;
+        }
+
+        int getPendingCount() {
+            return mTasks.size();
+        }
+
+        private static final class Task {
+            final Runnable mRunnable;
+
+            final long mDueMillis;
+
+            Task(Runnable runnable, long dueMillis) {
+                mRunnable = runnable;
+                mDueMillis = dueMillis;
+            }
+        }
+    }
+}
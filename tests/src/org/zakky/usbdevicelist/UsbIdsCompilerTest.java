@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link UsbIdsCompiler} で固定データの {@code usb.ids} をコンパイルし、
+ * {@link UsbIdsIndex} で引き直すテストです。
+ */
+public class UsbIdsCompilerTest extends UsbTestCase {
+
+    private static final String SAMPLE = "usb_ids/sample.ids";
+
+    public static void main(String[] args) {
+        runAndExit(new UsbIdsCompilerTest());
+    }
+
+    public void testRoundTrip() throws IOException {
+        final UsbIdsIndex index = UsbIdsIndex.wrap(ByteBuffer.wrap(compileSample()));
+        assertEquals("vendors", 7L, index.getVendorCount());
+        assertEquals("products", 11L, index.getProductCount());
+
+        assertEquals("vendor", "Logitech, Inc.", index.getVendorName(0x046d));
+        assertEquals("product", "M105 Optical Mouse", index.getProductName(0x046d, 0xc077));
+        assertEquals("product", "Unifying Receiver", index.getProductName(0x046d, 0xc52b));
+        assertEquals("product", "FT2232C/D/H Dual UART/FIFO IC",
+                index.getProductName(0x0403, 0x6010));
+        assertEquals("utf-8", "MediaTek Inc. — ñandú", index.getVendorName(0x0e8d));
+        // ファイル上の順序ではなく ID の順に並べ直される
+        assertEquals("out of order", "Vendor Out Of Order", index.getVendorName(0xabcd));
+        assertEquals("out of order", "Shared Name", index.getProductName(0xabcd, 0x0001));
+        assertEquals("out of order", "Shared Name", index.getProductName(0xabcd, 0x0002));
+    }
+
+    public void testEdgeIds() throws IOException {
+        final UsbIdsIndex index = UsbIdsIndex.wrap(ByteBuffer.wrap(compileSample()));
+        assertEquals("lowest vendor", "Reserved Vendor", index.getVendorName(0x0000));
+        assertEquals("lowest product", "Reserved Device", index.getProductName(0x0000, 0x0000));
+        // 0xffff で始まるキーは符号付きでは負になるので、符号なしで比較できているか確かめる
+        assertEquals("highest vendor", "Highest Vendor", index.getVendorName(0xffff));
+        assertEquals("highest product", "Highest Product", index.getProductName(0xffff, 0xffff));
+        assertEquals("shared", "Shared Name", index.getProductName(0xffff, 0x0001));
+    }
+
+    public void testUnknownIds() throws IOException {
+        final UsbIdsIndex index = UsbIdsIndex.wrap(ByteBuffer.wrap(compileSample()));
+        assertNull("unknown vendor", index.getVendorName(0x1234));
+        assertNull("unknown product", index.getProductName(0x046d, 0x0001));
+        assertNull("product of other vendor", index.getProductName(0x0403, 0xc077));
+        assertNull("between products", index.getProductName(0x0000, 0x0001));
+        assertNull("below highest", index.getVendorName(0xfffe));
+    }
+
+    public void testSkipsNonProductLines() throws IOException {
+        final UsbIdsIndex index = UsbIdsIndex.wrap(ByteBuffer.wrap(compileSample()));
+        // インタフェース行
+        assertNull("interface", index.getProductName(0x046d, 0x0000));
+        // ID が壊れたベンダ行とそのプロダクト行
+        assertNull("broken vendor product", index.getProductName(0x0bad, 0x0001));
+        // クラスのセクションの行は直前のベンダのセクションを終わらせる
+        assertEquals("class section", "Shared Name", index.getProductName(0xabcd, 0x0001));
+        assertNull("class as vendor", index.getVendorName(0x0c00));
+    }
+
+    public void testSharesNames() throws IOException {
+        final byte[] compiled = compileSample();
+        final byte[] name = "Shared Name".getBytes("UTF-8");
+        int count = 0;
+        for (int i = 0; i + name.length <= compiled.length; i++) {
+            boolean match = true;
+            for (int j = 0; match && j < name.length; j++) {
+                match = compiled[i + j] == name[j];
+            }
+            if (match) {
+                count++;
+            }
+        }
+        assertEquals("copies in the string pool", 1L, count);
+    }
+
+    public void testEmptyInput() throws IOException {
+        final UsbIdsCompiler compiler = new UsbIdsCompiler();
+        compiler.parse(new StringReader("# nothing but a comment\n"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compiler.write(out);
+        final UsbIdsIndex index = UsbIdsIndex.wrap(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals("vendors", 0L, index.getVendorCount());
+        assertEquals("products", 0L, index.getProductCount());
+        assertNull("vendor", index.getVendorName(0x046d));
+    }
+
+    public void testRejectsBrokenIndex() throws IOException {
+        final byte[] compiled = compileSample();
+        final byte[] truncated = new byte[UsbIdsIndex.HEADER_SIZE + 4];
+        System.arraycopy(compiled, 0, truncated, 0, truncated.length);
+        assertRejected("truncated", truncated);
+        final byte[] badMagic = compiled.clone();
+        badMagic[0] ^= 0xff;
+        assertRejected("bad magic", badMagic);
+        assertRejected("too short", new byte[UsbIdsIndex.HEADER_SIZE - 1]);
+    }
+
+    public void testMainWritesIndexFile() throws IOException {
+        final File dir = createTempDirectory("usbids");
+        try {
+            final File output = new File(dir, "usb_ids.bin");
+            UsbIdsCompiler.main(new String[] {
+                    getFixture(SAMPLE).getPath(), output.getPath()
+            });
+            final byte[] written = readBytes(output);
+            final byte[] expected = compileSample();
+            assertEquals("length", expected.length, written.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("byte " + i, expected[i], written[i]);
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static byte[] compileSample() throws IOException {
+        final UsbIdsCompiler compiler = new UsbIdsCompiler();
+        final Reader in = new InputStreamReader(new FileInputStream(getFixture(SAMPLE)),
+                "UTF-8");
+        try {
+            compiler.parse(in);
+        } finally {
+            in.close();
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compiler.write(out);
+        return out.toByteArray();
+    }
+
+    private static void assertRejected(String message, byte[] bytes) {
+        try {
+            UsbIdsIndex.wrap(ByteBuffer.wrap(bytes));
+            fail(message + ": accepted.");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+}
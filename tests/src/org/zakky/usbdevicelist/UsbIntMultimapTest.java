@@ -0,0 +1,197 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * {@link UsbIntMultimap} のテストです。
+ */
+public class UsbIntMultimapTest extends UsbTestCase {
+
+    public static void main(String[] args) {
+        runAndExit(new UsbIntMultimapTest());
+    }
+
+    public void testPutAndGet() {
+        final UsbIntMultimap<String> map = new UsbIntMultimap<String>();
+        assertEquals("empty", Collections.<String> emptyList(), map.get(1));
+        assertNull("empty first", map.getFirst(1));
+
+        map.put(1, "a");
+        map.put(1, "b");
+        map.put(-1, "c");
+        map.put(0, "d");
+        assertEquals("key count", 3L, map.keyCount());
+        assertEquals("values in order", Lists.newArrayList("a", "b"), map.get(1));
+        assertEquals("first", "a", map.getFirst(1));
+        assertEquals("negative key", Lists.newArrayList("c"), map.get(-1));
+        assertEquals("zero key", Lists.newArrayList("d"), map.get(0));
+        assertEquals("unknown key", Collections.<String> emptyList(), map.get(2));
+    }
+
+    public void testGetReturnsStoredView() {
+        final UsbIntMultimap<String> map = new UsbIntMultimap<String>();
+        map.put(7, "a");
+        final List<String> view = map.get(7);
+        assertSame("same view", view, map.get(7));
+        // ビューは後から追加した値も反映する
+        map.put(7, "b");
+        assertEquals("live view", Lists.newArrayList("a", "b"), view);
+        try {
+            view.add("c");
+            fail("view is modifiable.");
+        } catch (UnsupportedOperationException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testRemoveByIdentity() {
+        final UsbIntMultimap<String> map = new UsbIntMultimap<String>();
+        final String value = "value";
+        final String equalValue = new String(value);
+        map.put(3, value);
+        assertFalse("equal but not same", map.remove(3, equalValue));
+        assertFalse("other key", map.remove(4, value));
+        assertTrue("same", map.remove(3, value));
+        assertEquals("key removed", 0L, map.keyCount());
+        assertNull("first", map.getFirst(3));
+        assertFalse("already removed", map.remove(3, value));
+    }
+
+    public void testClear() {
+        final UsbIntMultimap<Integer> map = new UsbIntMultimap<Integer>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, Integer.valueOf(i));
+        }
+        map.clear();
+        assertEquals("key count", 0L, map.keyCount());
+        for (int i = 0; i < 100; i++) {
+            assertNull("key " + i, map.getFirst(i));
+        }
+        map.put(5, Integer.valueOf(5));
+        assertEquals("after clear", Lists.newArrayList(Integer.valueOf(5)), map.get(5));
+    }
+
+    /**
+     * テーブルの末尾から先頭へ折り返した探索の連鎖で、削除後のスロットの詰め方を
+     * 確かめます。 探索の開始位置が末尾の2スロットになるキーを作り、
+     * {@code a} (14), {@code b} (15), {@code c} (15 から折り返して 0) と並べます。
+     */
+    public void testRemoveFromClusterThatWraps() {
+        final int last = UsbIntMultimap.MIN_CAPACITY - 1;
+        final List<Integer> beforeLast = findKeys(last - 1, 1);
+        final List<Integer> atLast = findKeys(last, 2);
+        final int a = beforeLast.get(0).intValue();
+        final int b = atLast.get(0).intValue();
+        final int c = atLast.get(1).intValue();
+
+        UsbIntMultimap<String> map = newMap(a, b, c);
+        assertTrue("remove a", map.remove(a, "a"));
+        // c は開始位置が空いたスロットより後ろなので、詰めてはいけない
+        assertEquals("b after removing a", Lists.newArrayList("b"), map.get(b));
+        assertEquals("c after removing a", Lists.newArrayList("c"), map.get(c));
+
+        map = newMap(a, b, c);
+        assertTrue("remove b", map.remove(b, "b"));
+        // c は折り返す前のスロットへ詰める
+        assertEquals("a after removing b", Lists.newArrayList("a"), map.get(a));
+        assertEquals("c after removing b", Lists.newArrayList("c"), map.get(c));
+        assertTrue("remove c", map.remove(c, "c"));
+        assertEquals("a after removing c", Lists.newArrayList("a"), map.get(a));
+        assertEquals("key count", 1L, map.keyCount());
+    }
+
+    /**
+     * 追加と削除を無作為に繰り返し、そのたびに {@link java.util.HashMap} で作った
+     * 期待値とすべてのキーについて比べます。 キーの種類をテーブルの大きさに近づけて
+     * 探索の連鎖を長くし、削除で後続のスロットを詰める処理を通します。 テーブルの
+     * 拡張をまたぐよう、キーの種類は途中で増やします。
+     */
+    public void testRandomPutAndRemove() {
+        final Random random = new Random(20111201L);
+        final UsbIntMultimap<Integer> map = new UsbIntMultimap<Integer>();
+        final Map<Integer, List<Integer>> expected = Maps.newHashMap();
+        int keyRange = 12;
+        for (int step = 0; step < 20000; step++) {
+            if (step == 10000) {
+                keyRange = 300;
+            }
+            // 連続しないキーも混ぜる
+            final int key = (random.nextInt(keyRange) - keyRange / 2) * 37;
+            final List<Integer> values = expected.get(Integer.valueOf(key));
+            if (values != null && random.nextInt(5) < 3) {
+                final Integer value = values.remove(random.nextInt(values.size()));
+                if (values.isEmpty()) {
+                    expected.remove(Integer.valueOf(key));
+                }
+                assertTrue("remove " + key + " at " + step, map.remove(key, value));
+            } else {
+                final Integer value = Integer.valueOf(step);
+                if (values == null) {
+                    expected.put(Integer.valueOf(key), Lists.newArrayList(value));
+                } else {
+                    values.add(value);
+                }
+                map.put(key, value);
+            }
+            if (step % 7 == 0 || step < 2000) {
+                assertSameContents("step " + step, expected, map, keyRange);
+            }
+        }
+    }
+
+    /**
+     * 最小の大きさのテーブルで、探索がスロット {@code slot} から始まるキーを返します。
+     */
+    private static List<Integer> findKeys(int slot, int count) {
+        final List<Integer> keys = Lists.newArrayList();
+        for (int key = 1; keys.size() < count; key++) {
+            if ((UsbIntMultimap.hash(key) & (UsbIntMultimap.MIN_CAPACITY - 1)) == slot) {
+                keys.add(Integer.valueOf(key));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * キー {@code a}, {@code b}, {@code c} にそれぞれ値 "a", "b", "c" を持つマップを返します。
+     */
+    private static UsbIntMultimap<String> newMap(int a, int b, int c) {
+        final UsbIntMultimap<String> map = new UsbIntMultimap<String>();
+        map.put(a, "a");
+        map.put(b, "b");
+        map.put(c, "c");
+        return map;
+    }
+
+    private static void assertSameContents(String message, Map<Integer, List<Integer>> expected,
+            UsbIntMultimap<Integer> map, int keyRange) {
+        assertEquals(message + ": key count", expected.size(), map.keyCount());
+        for (int i = 0; i < keyRange; i++) {
+            final int key = (i - keyRange / 2) * 37;
+            final List<Integer> values = expected.get(Integer.valueOf(key));
+            assertEquals(message + ": key " + key, (values == null) ? Collections
+                    .<Integer> emptyList() : values, map.get(key));
+        }
+    }
+}
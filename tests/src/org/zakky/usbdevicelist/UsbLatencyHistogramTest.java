@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * {@link UsbLatencyHistogram} のテストです。 パーセンタイルは、同じ値を整列した配列から
+ * 直接求めた値と比べます。
+ */
+public class UsbLatencyHistogramTest extends UsbTestCase {
+
+    private static final long SEED = 20111107L;
+
+    private static final int SAMPLE_COUNT = 100000;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbLatencyHistogramTest());
+    }
+
+    public void testEmpty() {
+        final UsbLatencyHistogram h = new UsbLatencyHistogram();
+        assertEquals("count", 0L, h.getTotalCount());
+        assertEquals("min", 0L, h.getMin());
+        assertEquals("max", 0L, h.getMax());
+        assertEquals("p50", 0L, h.getValueAtPercentile(50.0));
+        assertEquals("above", 0L, h.getCountAbove(0L));
+    }
+
+    public void testSmallValuesAreExact() {
+        final UsbLatencyHistogram h = new UsbLatencyHistogram();
+        for (int i = 0; i < UsbLatencyHistogram.SUB_BUCKET_COUNT; i++) {
+            h.record(i);
+        }
+        for (int i = 0; i < UsbLatencyHistogram.SUB_BUCKET_COUNT; i++) {
+            final double percentile = 100.0 * (i + 1) / UsbLatencyHistogram.SUB_BUCKET_COUNT;
+            assertEquals("p" + percentile, i, h.getValueAtPercentile(percentile));
+            assertEquals("above " + i, UsbLatencyHistogram.SUB_BUCKET_COUNT - 1 - i,
+                    h.getCountAbove(i));
+        }
+        assertEquals("min", 0L, h.getMin());
+        assertEquals("max", UsbLatencyHistogram.SUB_BUCKET_COUNT - 1, h.getMax());
+    }
+
+    public void testBucketsCoverAllValues() {
+        final int last = UsbLatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        assertEquals("first", 0L, UsbLatencyHistogram.lowestValueInBucket(0));
+        assertEquals("last", Long.MAX_VALUE, UsbLatencyHistogram.highestValueInBucket(last));
+        for (int i = 0; i <= last; i++) {
+            final long low = UsbLatencyHistogram.lowestValueInBucket(i);
+            final long high = UsbLatencyHistogram.highestValueInBucket(i);
+            assertEquals("low " + i, i, UsbLatencyHistogram.bucketIndex(low));
+            assertEquals("high " + i, i, UsbLatencyHistogram.bucketIndex(high));
+            // バケットの幅は下限の 1/SUB_BUCKET_COUNT 以下
+            assertTrue("width " + i, high - low <= low / UsbLatencyHistogram.SUB_BUCKET_COUNT);
+            if (i < last) {
+                assertEquals("contiguous " + i, high + 1,
+                        UsbLatencyHistogram.lowestValueInBucket(i + 1));
+            }
+        }
+    }
+
+    public void testUniformPercentilesAgainstSortedData() {
+        final Random random = new Random(SEED);
+        final long[] values = new long[SAMPLE_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (random.nextDouble() * 10L * 1000L * 1000L);
+        }
+        checkPercentiles(values, random);
+    }
+
+    public void testLogUniformPercentilesAgainstSortedData() {
+        final Random random = new Random(SEED + 1);
+        final long[] values = new long[SAMPLE_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            // 1 から 2^62 まで、桁ごとにほぼ同じ数になるように散らす
+            values[i] = (long) Math.pow(2.0, random.nextDouble() * 62.0);
+        }
+        checkPercentiles(values, random);
+    }
+
+    public void testRepeatedValues() {
+        final long[] values = new long[SAMPLE_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i % 10 == 0) ? 8000000L : 1000000L;
+        }
+        checkPercentiles(values, new Random(SEED + 2));
+    }
+
+    /**
+     * 値を記録し、ランダムなパーセンタイルと代表的なパーセンタイルを整列した配列と比べます。
+     * ヒストグラムの値はバケットの上限なので、真の値以上で、相対誤差
+     * 1/{@link UsbLatencyHistogram#SUB_BUCKET_COUNT} 以内であることを確かめます。
+     */
+    private static void checkPercentiles(long[] values, Random random) {
+        final UsbLatencyHistogram h = new UsbLatencyHistogram();
+        for (long value : values) {
+            h.record(value);
+        }
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertEquals("count", sorted.length, h.getTotalCount());
+        assertEquals("min", sorted[0], h.getMin());
+        assertEquals("max", sorted[sorted.length - 1], h.getMax());
+        assertEquals("p100", sorted[sorted.length - 1], h.getValueAtPercentile(100.0));
+
+        final double[] fixed = {
+                0.0, 50.0, 90.0, 99.0, 99.9, 99.99
+        };
+        for (double percentile : fixed) {
+            checkPercentile(h, sorted, percentile);
+        }
+        for (int i = 0; i < 1000; i++) {
+            checkPercentile(h, sorted, random.nextDouble() * 100.0);
+        }
+    }
+
+    private static void checkPercentile(UsbLatencyHistogram h, long[] sorted,
+            double percentile) {
+        final int rank = (int) Math.max(1L, (long) Math.ceil(percentile / 100.0 * sorted.length));
+        final long expected = sorted[rank - 1];
+        final long actual = h.getValueAtPercentile(percentile);
+        assertTrue("p" + percentile + " " + actual + " < " + expected, expected <= actual);
+        assertTrue("p" + percentile + " " + actual + " too far from " + expected,
+                actual - expected <= expected / UsbLatencyHistogram.SUB_BUCKET_COUNT);
+    }
+
+    public void testCountAboveAgainstSortedData() {
+        final Random random = new Random(SEED + 3);
+        final UsbLatencyHistogram h = new UsbLatencyHistogram();
+        final long[] values = new long[SAMPLE_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1000 * 1000);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (int i = 0; i < 1000; i++) {
+            // バケットの上限なら、境界のバケットの扱いによらず正確に数えられる
+            final long threshold = UsbLatencyHistogram.highestValueInBucket(UsbLatencyHistogram
+                    .bucketIndex(random.nextInt(1000 * 1000)));
+            int above = Arrays.binarySearch(values, threshold + 1);
+            if (above < 0) {
+                above = -above - 1;
+            }
+            while (0 < above && threshold < values[above - 1]) {
+                above--;
+            }
+            assertEquals("above " + threshold, values.length - above,
+                    h.getCountAbove(threshold));
+        }
+        assertEquals("negative", values.length, h.getCountAbove(-1L));
+    }
+
+    public void testCopyToAddAndReset() {
+        final Random random = new Random(SEED + 4);
+        final UsbLatencyHistogram a = new UsbLatencyHistogram();
+        final UsbLatencyHistogram b = new UsbLatencyHistogram();
+        final UsbLatencyHistogram all = new UsbLatencyHistogram();
+        for (int i = 0; i < 10000; i++) {
+            final long value = random.nextInt(5000000);
+            ((i % 3 == 0) ? a : b).record(value);
+            all.record(value);
+        }
+        final UsbLatencyHistogram merged = new UsbLatencyHistogram();
+        merged.record(123L);
+        a.copyTo(merged);
+        merged.add(b);
+        assertEquals("count", all.getTotalCount(), merged.getTotalCount());
+        assertEquals("min", all.getMin(), merged.getMin());
+        assertEquals("max", all.getMax(), merged.getMax());
+        for (int p = 0; p <= 100; p++) {
+            assertEquals("p" + p, all.getValueAtPercentile(p), merged.getValueAtPercentile(p));
+        }
+
+        merged.reset();
+        assertEquals("reset count", 0L, merged.getTotalCount());
+        assertEquals("reset max", 0L, merged.getMax());
+        merged.record(7L);
+        assertEquals("min after reset", 7L, merged.getMin());
+    }
+
+    public void testRejectsInvalidArguments() {
+        final UsbLatencyHistogram h = new UsbLatencyHistogram();
+        try {
+            h.record(-1L);
+            fail("negative value accepted");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+        try {
+            h.getValueAtPercentile(100.5);
+            fail("percentile over 100 accepted");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testRecordDoesNotAllocate() {
+        final UsbLatencyHistogram h = new UsbLatencyHistogram();
+        final UsbLatencyHistogram copy = new UsbLatencyHistogram();
+        final int count = 100000;
+        // ウォームアップでコンパイルを済ませる
+        recordMany(h, copy, count);
+        final long before = UsbHotPathBenchmark.getAllocatedBytes();
+        recordMany(h, copy, count);
+        final long after = UsbHotPathBenchmark.getAllocatedBytes();
+        if (before < 0 || after < 0) {
+            // 割り当てバイト数を取得できない VM では確かめられない
+            return;
+        }
+        // 取得自体もリフレクションで割り当てるので、1回あたり 1 バイト未満であることを見る
+        assertTrue("allocated " + (after - before) + " bytes", after - before < count);
+    }
+
+    private static long recordMany(UsbLatencyHistogram h, UsbLatencyHistogram copy, int count) {
+        long sink = 0L;
+        for (int i = 0; i < count; i++) {
+            h.record(i * 7919L);
+            if (i % 1000 == 0) {
+                h.copyTo(copy);
+                sink += copy.getValueAtPercentile(99.0);
+            }
+        }
+        return sink;
+    }
+}
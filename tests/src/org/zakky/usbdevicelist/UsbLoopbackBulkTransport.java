@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * デバイス無しで {@link UsbBulkBenchmark} を動かすための、ループバックの
+ * {@link UsbBulkTransport} です。
+ * <p>
+ * 転送は待たずにすぐ完了し、 1回で転送できるバイト数は {@code maxTransferLength} までです。
+ * OUT として渡されたデータを内部のバッファに写し、 IN としてそのまま書き戻すので、
+ * バッファの内容は変わりません。 {@link #failAt(int)} で指定した回の転送と、
+ * {@link #failFrom(int)} で指定した回以降の転送は失敗します。 転送ごとの要求サイズを
+ * 記録します。 このクラスはスレッドセーフではありません。
+ * </p>
+ */
+public final class UsbLoopbackBulkTransport implements UsbBulkTransport {
+
+    private final int mMaxTransferLength;
+
+    private final byte[] mLoopback;
+
+    private final List<Integer> mRequestedLengths = Lists.newArrayList();
+
+    private final List<Integer> mFailures = Lists.newArrayList();
+
+    private int mFailFrom = Integer.MAX_VALUE;
+
+    private int mCallCount;
+
+    private int mCancelAt = -1;
+
+    private UsbBulkBenchmark mBenchmark;
+
+    /**
+     * @param maxTransferLength 1回の転送で転送できる最大のバイト数。
+     */
+    public UsbLoopbackBulkTransport(int maxTransferLength) {
+        mMaxTransferLength = maxTransferLength;
+        mLoopback = new byte[maxTransferLength];
+    }
+
+    /**
+     * {@code index} 回目 (0 から数えます) の転送を失敗させます。
+     */
+    public void failAt(int index) {
+        mFailures.add(Integer.valueOf(index));
+    }
+
+    /**
+     * {@code index} 回目 (0 から数えます) 以降の転送をすべて失敗させます。
+     */
+    public void failFrom(int index) {
+        mFailFrom = index;
+    }
+
+    /**
+     * {@code index} 回目 (0 から数えます) の転送の中で {@link UsbBulkBenchmark#cancel()}
+     * を呼びます。
+     */
+    public void cancelAt(UsbBulkBenchmark benchmark, int index) {
+        mBenchmark = benchmark;
+        mCancelAt = index;
+    }
+
+    @Override
+    public int transfer(byte[] buffer, int length, int timeoutMillis) {
+        final int index = mCallCount++;
+        mRequestedLengths.add(Integer.valueOf(length));
+        if (index == mCancelAt) {
+            mBenchmark.cancel();
+        }
+        if (mFailFrom <= index || mFailures.contains(Integer.valueOf(index))) {
+            return -1;
+        }
+        final int transferred = Math.min(length, mMaxTransferLength);
+        System.arraycopy(buffer, 0, mLoopback, 0, transferred);
+        System.arraycopy(mLoopback, 0, buffer, 0, transferred);
+        return transferred;
+    }
+
+    /**
+     * @return {@link #transfer(byte[], int, int)} が呼ばれた回数。
+     */
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * @return 転送ごとの要求サイズ。 呼ばれた順です。
+     */
+    public List<Integer> getRequestedLengths() {
+        return mRequestedLengths;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UsbPcapngCapture} と {@link UsbPcapngWriter} のテストです。
+ * <p>
+ * 実機の {@code UsbRequest} と同じく position を進めない
+ * {@link UsbPositionPreservingEndpoint} から {@link UsbStreamReader} で読み込み、
+ * 書き出したファイルの Enhanced Packet Block を読み戻して確かめます。
+ * </p>
+ */
+public class UsbPcapngCaptureTest extends UsbTestCase {
+
+    private static final int SLOT_COUNT = 4;
+
+    private static final int BUFFER_COUNT = 8;
+
+    private static final int BUFFER_SIZE = 64;
+
+    private static final long WAIT_MILLIS = 5000L;
+
+    private static final String DEVICE_NAME = "/dev/bus/usb/001/007";
+
+    private static final int ENDPOINT_ADDRESS = 0x81;
+
+    /**
+     * バルク転送。
+     */
+    private static final int TRANSFER_TYPE = 2;
+
+    /**
+     * Section Header Block と Interface Description Block のバイト数。
+     */
+    private static final int FILE_HEADER_LENGTH = 28 + 32;
+
+    private static final int BLOCK_TYPE_ENHANCED_PACKET = 6;
+
+    private File mDirectory;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbPcapngCaptureTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = createTempDirectory("pcapng");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+    }
+
+    public void testCapturesReceivedLength() throws IOException, InterruptedException {
+        final int packetCount = 100;
+        final UsbPcapngCapture capture = newCapture(UsbPcapngWriter.DEFAULT_SNAP_LENGTH);
+        final UsbPositionPreservingEndpoint endpoint = new UsbPositionPreservingEndpoint(
+                SLOT_COUNT, packetCount);
+        final UsbStreamReader reader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        reader.setCompletionObserver(capture);
+        reader.start();
+        try {
+            for (int i = 0; i < packetCount; i++) {
+                final ByteBuffer data = reader.take(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                assertNotNull("packet " + i, data);
+                capture.onData(data);
+                reader.release(data);
+            }
+        } finally {
+            reader.stop();
+        }
+        capture.onFinished();
+        assertFalse("failed", capture.isFailed());
+        assertEquals("packets", packetCount, capture.getPacketCount());
+
+        final ByteBuffer file = readCapture(capture.getCurrentFile());
+        long previousTimestamp = Long.MIN_VALUE;
+        for (long sequence = 0; sequence < packetCount; sequence++) {
+            final int block = file.position();
+            assertEquals("block type " + sequence, BLOCK_TYPE_ENHANCED_PACKET, file.getInt());
+            final int blockLength = file.getInt();
+            file.getInt(); // Interface ID
+            final long timestamp = ((long) file.getInt() << 32) | (file.getInt() & 0xffffffffL);
+            assertTrue("timestamp of packet " + sequence, previousTimestamp <= timestamp);
+            previousTimestamp = timestamp;
+            assertEquals("captured length", UsbPcapngWriter.USBMON_HEADER_LENGTH + BUFFER_SIZE,
+                    file.getInt());
+            assertEquals("original length", UsbPcapngWriter.USBMON_HEADER_LENGTH + BUFFER_SIZE,
+                    file.getInt());
+
+            final int header = file.position();
+            assertEquals("usbmon id", sequence, file.getLong(header));
+            assertEquals("usbmon endpoint", ENDPOINT_ADDRESS, file.get(header + 10) & 0xff);
+            assertEquals("usbmon device", 7L, file.get(header + 11));
+            assertEquals("usbmon bus", 1L, file.getShort(header + 12));
+            assertEquals("usbmon length", BUFFER_SIZE, file.getInt(header + 32));
+            assertEquals("usbmon captured", BUFFER_SIZE, file.getInt(header + 36));
+
+            final int payload = header + UsbPcapngWriter.USBMON_HEADER_LENGTH;
+            assertEquals("payload of packet " + sequence, sequence,
+                    file.duplicate().order(ByteOrder.BIG_ENDIAN).getLong(payload));
+            assertEquals("trailing length", blockLength, file.getInt(block + blockLength - 4));
+            file.position(block + blockLength);
+        }
+        assertEquals("trailing bytes", 0L, file.remaining());
+    }
+
+    public void testTruncatesToSnapLength() throws IOException {
+        final int snapLength = UsbPcapngWriter.USBMON_HEADER_LENGTH + 10;
+        final UsbPcapngCapture capture = newCapture(snapLength);
+        final ByteBuffer data = ByteBuffer.allocate(BUFFER_SIZE);
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            data.put((byte) i);
+        }
+        data.flip();
+        capture.onData(data);
+        assertEquals("position", 0L, data.position());
+        assertEquals("limit", BUFFER_SIZE, data.limit());
+        capture.onFinished();
+
+        final ByteBuffer file = readCapture(capture.getCurrentFile());
+        assertEquals("block type", BLOCK_TYPE_ENHANCED_PACKET, file.getInt());
+        final int blockLength = file.getInt();
+        assertEquals("block length", 32 + 76, blockLength);
+        file.position(file.position() + 12);
+        assertEquals("captured length", snapLength, file.getInt());
+        assertEquals("original length", UsbPcapngWriter.USBMON_HEADER_LENGTH + BUFFER_SIZE,
+                file.getInt());
+        final int header = file.position();
+        assertEquals("usbmon length", BUFFER_SIZE, file.getInt(header + 32));
+        assertEquals("usbmon captured", 10L, file.getInt(header + 36));
+        final int payload = header + UsbPcapngWriter.USBMON_HEADER_LENGTH;
+        for (int i = 0; i < 10; i++) {
+            assertEquals("payload " + i, i, file.get(payload + i));
+        }
+        // パディングは 0
+        assertEquals("padding", 0L, file.getShort(payload + 10));
+    }
+
+    private UsbPcapngCapture newCapture(int snapLength) {
+        final UsbPcapngWriter writer = new UsbPcapngWriter(mDirectory, "capture",
+                UsbPcapngWriter.SEGMENT_BYTES, 2, snapLength);
+        return new UsbPcapngCapture(writer, DEVICE_NAME, ENDPOINT_ADDRESS, TRANSFER_TYPE, 0);
+    }
+
+    /**
+     * 書き出したファイルを読み、最初の Enhanced Packet Block の位置を指すバッファを返します。
+     */
+    private static ByteBuffer readCapture(File file) throws IOException {
+        assertNotNull("file", file);
+        final ByteBuffer buffer = ByteBuffer.wrap(readBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("section header", 0x0A0D0D0AL, buffer.getInt(0));
+        assertEquals("link type", UsbPcapngWriter.LINKTYPE_USB_LINUX_MMAPPED,
+                buffer.getShort(28 + 8));
+        buffer.position(FILE_HEADER_LENGTH);
+        return buffer;
+    }
+}
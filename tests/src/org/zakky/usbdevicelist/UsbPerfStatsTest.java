@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link UsbPerfStats} のテストです。
+ * <p>
+ * タイマとカウンタはクラス全体で共有されるので、他のクラスと重ならない名前で一度だけ
+ * 生成します。 {@link UsbPerfStats#reset()} は他のクラスのタイマも 0 に戻しますが、
+ * 他のテストはそれらの値を見ていません。
+ * </p>
+ */
+public class UsbPerfStatsTest extends UsbTestCase {
+
+    private static final UsbPerfStats.Timer TIMER = UsbPerfStats.newTimer("test.timer");
+
+    /**
+     * 名前の順に並ぶことを確かめるため、 {@link #TIMER} より後に生成する。
+     */
+    private static final UsbPerfStats.Timer EARLIER_TIMER = UsbPerfStats
+            .newTimer("test.early");
+
+    private static final UsbPerfStats.Counter COUNTER = UsbPerfStats.newCounter("test.counter");
+
+    /**
+     * 呼ばれたメソッドを記録するトレーサ。
+     */
+    private static final class RecordingTracer implements UsbPerfStats.Tracer {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void beginSection(String name) {
+            mEvents.add("begin " + name);
+        }
+
+        @Override
+        public void endSection() {
+            mEvents.add("end");
+        }
+    }
+
+    public static void main(String[] args) {
+        runAndExit(new UsbPerfStatsTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        UsbPerfStats.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        UsbPerfStats.setTracer(null);
+        UsbPerfStats.reset();
+    }
+
+    public void testRecord() {
+        TIMER.record(3000L);
+        TIMER.record(5000L);
+        // 小さい値で最大値は下がらない
+        TIMER.record(1000L);
+        assertEquals("count", 3L, TIMER.getCount());
+        assertEquals("total", 9000L, TIMER.getTotalNanos());
+        assertEquals("max", 5000L, TIMER.getMaxNanos());
+        assertEquals("name", "test.timer", TIMER.getName());
+    }
+
+    public void testStartStop() {
+        final long start = TIMER.start();
+        TIMER.stop(start);
+        assertEquals("count", 1L, TIMER.getCount());
+        assertTrue("total", 0L <= TIMER.getTotalNanos());
+        assertEquals("max", TIMER.getTotalNanos(), TIMER.getMaxNanos());
+    }
+
+    public void testCounter() {
+        COUNTER.increment();
+        COUNTER.add(41L);
+        assertEquals("value", 42L, COUNTER.get());
+        assertEquals("name", "test.counter", COUNTER.getName());
+    }
+
+    public void testReset() {
+        TIMER.record(1000L);
+        COUNTER.increment();
+        UsbPerfStats.reset();
+        assertEquals("count", 0L, TIMER.getCount());
+        assertEquals("total", 0L, TIMER.getTotalNanos());
+        assertEquals("max", 0L, TIMER.getMaxNanos());
+        assertEquals("counter", 0L, COUNTER.get());
+    }
+
+    public void testTracer() {
+        assertFalse("not tracing", UsbPerfStats.isTracing());
+        final RecordingTracer tracer = new RecordingTracer();
+        UsbPerfStats.setTracer(tracer);
+        assertTrue("tracing", UsbPerfStats.isTracing());
+        final long outer = TIMER.start();
+        final long inner = EARLIER_TIMER.start();
+        EARLIER_TIMER.stop(inner);
+        TIMER.stop(outer);
+        assertEquals("events", "[begin test.timer, begin test.early, end, end]",
+                tracer.mEvents.toString());
+
+        // 区間を直接積算する場合はトレースしない
+        TIMER.record(1000L);
+        UsbPerfStats.setTracer(null);
+        TIMER.stop(TIMER.start());
+        assertEquals("after unset", 4, tracer.mEvents.size());
+        assertEquals("count", 3L, TIMER.getCount());
+    }
+
+    public void testConcurrentRecord() throws InterruptedException {
+        final int threadCount = 4;
+        final int perThread = 10000;
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long offset = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 1; j <= perThread; j++) {
+                        TIMER.record(j * threadCount + offset);
+                        COUNTER.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long n = (long) threadCount * perThread;
+        assertEquals("count", n, TIMER.getCount());
+        // threadCount * (1..perThread) + (0..threadCount-1) は threadCount..n+threadCount-1 を
+        // ちょうど一度ずつ取る
+        assertEquals("total", (n + threadCount - 1) * (n + threadCount) / 2
+                - (threadCount - 1) * threadCount / 2, TIMER.getTotalNanos());
+        assertEquals("max", n + threadCount - 1, TIMER.getMaxNanos());
+        assertEquals("counter", n, COUNTER.get());
+    }
+
+    public void testDump() {
+        TIMER.record(3000L);
+        TIMER.record(1200L);
+        COUNTER.add(5L);
+        final StringWriter out = new StringWriter();
+        final PrintWriter writer = new PrintWriter(out);
+        UsbPerfStats.dump("> ", writer);
+        writer.flush();
+        final String dump = out.toString();
+
+        assertTrue("header: " + dump, dump.startsWith("> UsbPerfStats (us):\n"));
+        final int timer = dump.indexOf("\n>   test.timer: n=2 total=4 avg=2 max=3\n");
+        final int early = dump.indexOf("\n>   test.early: n=0 total=0 avg=0 max=0\n");
+        final int counter = dump.indexOf("\n>   test.counter: 5\n");
+        assertTrue("timer: " + dump, 0 <= timer);
+        assertTrue("unused timer: " + dump, 0 <= early);
+        assertTrue("counter: " + dump, 0 <= counter);
+        assertTrue("sorted by name: " + dump, early < timer);
+        assertTrue("counters after timers: " + dump, timer < counter);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * 実機の {@code UsbRequest} と同じく、完了したバッファの position を進めない
+ * シミュレートした IN Endpoint です。
+ * <p>
+ * {@link UsbQueuedStreamingEndpoint} を継承し、キューイングされた要求をキューイングされた順に
+ * すぐ完了させます。 完了した要求には 0 から始まる通し番号が振られ、要求された長さ全体に
+ * 絶対位置で書き込みます。 先頭 8 バイトが通し番号(ビッグエンディアン)、残りが通し番号の
+ * 下位 8 ビットです。 position を設定するのは {@link UsbQueuedStreamingEndpoint} の役割です。
+ * 内容は {@link #verify(ByteBuffer, long)} で確かめられます。 バッファは 8 バイト以上に
+ * してください。
+ * </p>
+ * <p>
+ * {@code packetLimit} 個の要求を完了させた後は {@link #cancelAll()} が呼ばれるまで待ち続けます。
+ * </p>
+ */
+public final class UsbPositionPreservingEndpoint extends UsbQueuedStreamingEndpoint {
+
+    /**
+     * 通し番号を書き込むバイト数。
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    private final long mPacketLimit;
+
+    /**
+     * スロットごとのキューイング中のバッファ。 このオブジェクトのロックで保護します。
+     */
+    private final ByteBuffer[] mQueued;
+
+    /**
+     * スロットごとの要求された長さ。 このオブジェクトのロックで保護します。
+     */
+    private final int[] mLengths;
+
+    /**
+     * キューイングされた順のスロット番号。 このオブジェクトのロックで保護します。
+     */
+    private final Queue<Integer> mOrder = new ArrayDeque<Integer>();
+
+    private long mCompletedCount;
+
+    private boolean mCancelled = false;
+
+    private int mCloseCount;
+
+    /**
+     * @param slotCount 同時にキューイングできる要求の数。
+     * @param packetLimit 完了させる要求の数。 {@link Long#MAX_VALUE} の場合は無制限。
+     */
+    public UsbPositionPreservingEndpoint(int slotCount, long packetLimit) {
+        super(slotCount);
+        mPacketLimit = packetLimit;
+        mQueued = new ByteBuffer[slotCount];
+        mLengths = new int[slotCount];
+    }
+
+    @Override
+    protected synchronized boolean queue(int slot, ByteBuffer buffer, int length) {
+        if (mCancelled) {
+            return false;
+        }
+        if (length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("buffer too small: " + length);
+        }
+        mQueued[slot] = buffer;
+        mLengths[slot] = length;
+        mOrder.add(Integer.valueOf(slot));
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    protected synchronized int waitForCompletion() {
+        try {
+            while (!mCancelled && (mOrder.isEmpty() || mPacketLimit <= mCompletedCount)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        if (mCancelled) {
+            return -1;
+        }
+        final int slot = mOrder.remove().intValue();
+        final ByteBuffer buffer = mQueued[slot];
+        mQueued[slot] = null;
+        fill(buffer, mLengths[slot], mCompletedCount++);
+        return slot;
+    }
+
+    private static void fill(ByteBuffer buffer, int length, long sequence) {
+        final int base = buffer.position();
+        buffer.putLong(base, sequence);
+        for (int i = HEADER_LENGTH; i < length; i++) {
+            buffer.put(base + i, (byte) sequence);
+        }
+    }
+
+    @Override
+    public synchronized void cancelAll() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        mCloseCount++;
+    }
+
+    /**
+     * @return 完了させた要求の数。
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * @return {@link #close()} が呼ばれた回数。
+     */
+    public synchronized int getCloseCount() {
+        return mCloseCount;
+    }
+
+    /**
+     * 読み込んだデータが、指定した通し番号の要求の内容と一致するかどうかを返します。
+     *
+     * @param data position 0、 limit が読み込んだバイト数のバッファ。 position は変更しません。
+     * @param sequence 期待する通し番号。
+     */
+    public boolean verify(ByteBuffer data, long sequence) {
+        final int base = data.position();
+        if (data.remaining() < HEADER_LENGTH || data.getLong(base) != sequence) {
+            return false;
+        }
+        for (int i = base + HEADER_LENGTH; i < data.limit(); i++) {
+            if (data.get(i) != (byte) sequence) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * デバイス無しで {@link UsbStreamReader} を動かすための、シミュレートした IN Endpoint です。
+ * <p>
+ * キューイングされた要求を、キューイングされた順にすぐ完了させます。 完了した要求には
+ * 0 から始まる通し番号が振られ、バッファの先頭 8 バイトに通し番号(ビッグエンディアン)、
+ * 残りに通し番号の下位 8 ビットを書き込みます。 読み込むバイト数は通し番号によって
+ * 8 バイトから {@code packetSize} までの間で変わります(バッファが小さい場合はその大きさまで)。
+ * 内容は {@link #verify(ByteBuffer, long)} で確かめられます。 バッファは 8 バイト以上に
+ * してください。
+ * </p>
+ * <p>
+ * {@code packetLimit} 個の要求を完了させた後は、データが来なくなったデバイスと同じく
+ * {@link #cancelAll()} が呼ばれるまで {@link #awaitCompletion()} で待ち続けます。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public final class UsbSimulatedStreamingEndpoint implements UsbStreamingEndpoint {
+
+    /**
+     * 通し番号を書き込むバイト数。
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    private final int mSlotCount;
+
+    private final int mPacketSize;
+
+    private final long mPacketLimit;
+
+    /**
+     * スロットごとのキューイング中のバッファ。 このオブジェクトのロックで保護します。
+     */
+    private final ByteBuffer[] mQueued;
+
+    /**
+     * キューイングされた順のスロット番号。 このオブジェクトのロックで保護します。
+     */
+    private final Queue<Integer> mOrder = new ArrayDeque<Integer>();
+
+    private long mCompletedCount;
+
+    private boolean mCancelled = false;
+
+    private int mCloseCount;
+
+    /**
+     * @param slotCount 同時にキューイングできる要求の数。
+     * @param packetSize 要求1回で読み込む最大のバイト数。 8 以上。
+     * @param packetLimit 完了させる要求の数。 {@link Long#MAX_VALUE} の場合は無制限。
+     */
+    public UsbSimulatedStreamingEndpoint(int slotCount, int packetSize, long packetLimit) {
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("invalid slotCount: " + slotCount);
+        }
+        if (packetSize < HEADER_LENGTH) {
+            throw new IllegalArgumentException("packetSize too small: " + packetSize);
+        }
+        mSlotCount = slotCount;
+        mPacketSize = packetSize;
+        mPacketLimit = packetLimit;
+        mQueued = new ByteBuffer[slotCount];
+    }
+
+    @Override
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    @Override
+    public synchronized boolean submit(int slot, ByteBuffer buffer) {
+        if (mCancelled) {
+            return false;
+        }
+        if (slot < 0 || mSlotCount <= slot || mQueued[slot] != null) {
+            throw new IllegalStateException("slot " + slot + " is not available.");
+        }
+        mQueued[slot] = buffer;
+        mOrder.add(Integer.valueOf(slot));
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized int awaitCompletion() {
+        try {
+            while (!mCancelled && (mOrder.isEmpty() || mPacketLimit <= mCompletedCount)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        if (mCancelled) {
+            return -1;
+        }
+        final int slot = mOrder.remove().intValue();
+        final ByteBuffer buffer = mQueued[slot];
+        mQueued[slot] = null;
+        fill(buffer, mCompletedCount++);
+        return slot;
+    }
+
+    private void fill(ByteBuffer buffer, long sequence) {
+        final int length = Math.min(buffer.remaining(), getPacketLength(sequence));
+        buffer.putLong(sequence);
+        for (int i = HEADER_LENGTH; i < length; i++) {
+            buffer.put((byte) sequence);
+        }
+    }
+
+    private int getPacketLength(long sequence) {
+        return HEADER_LENGTH + (int) (sequence % (mPacketSize - HEADER_LENGTH + 1));
+    }
+
+    @Override
+    public synchronized void cancelAll() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        mCloseCount++;
+    }
+
+    /**
+     * @return 完了させた要求の数。
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * @return {@link #close()} が呼ばれた回数。
+     */
+    public synchronized int getCloseCount() {
+        return mCloseCount;
+    }
+
+    /**
+     * 読み込んだデータが、指定した通し番号の要求の内容と一致するかどうかを返します。
+     *
+     * @param data position 0、 limit が読み込んだバイト数のバッファ。 position は変更しません。
+     * @param sequence 期待する通し番号。
+     */
+    public boolean verify(ByteBuffer data, long sequence) {
+        final int base = data.position();
+        if (data.remaining() != Math.min(data.capacity(), getPacketLength(sequence))
+                || data.getLong(base) != sequence) {
+            return false;
+        }
+        for (int i = base + HEADER_LENGTH; i < data.limit(); i++) {
+            if (data.get(i) != (byte) sequence) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * テストで使うデバイスやスナップショットを組み立てるユーティリティです。
+ */
+public final class UsbSnapshotFixtures {
+
+    /**
+     * HID クラス。
+     */
+    public static final int CLASS_HID = 3;
+
+    /**
+     * ハブのクラス。
+     */
+    public static final int CLASS_HUB = 9;
+
+    private UsbSnapshotFixtures() {
+        throw new AssertionError("instantiation prohibited.");
+    }
+
+    /**
+     * @return {@code /dev/bus/usb/BBB/DDD} 形式のデバイス名。
+     */
+    public static String deviceName(int bus, int device) {
+        return String.format(Locale.US, "/dev/bus/usb/%03d/%03d", Integer.valueOf(bus),
+                Integer.valueOf(device));
+    }
+
+    /**
+     * デバイスクラスが 0 で、 HID のインタフェースをひとつ持つデバイスを返します。
+     *
+     * @param portPath ポートパス。 不明な場合は {@code null}。
+     */
+    public static UsbDeviceSnapshot device(String deviceName, int vendorId, int productId,
+            String portPath) {
+        return device(deviceName, 0, vendorId, productId, portPath);
+    }
+
+    /**
+     * HID のインタフェースをひとつ持つデバイスを返します。 {@code deviceClass} が
+     * {@link #CLASS_HUB} の場合はインタフェースもハブのものにします。
+     */
+    public static UsbDeviceSnapshot device(String deviceName, int deviceClass, int vendorId,
+            int productId, String portPath) {
+        final int interfaceClass = (deviceClass == CLASS_HUB) ? CLASS_HUB : CLASS_HID;
+        return new UsbDeviceSnapshot(deviceName, deviceName.hashCode(), deviceClass, 0, 0,
+                vendorId, productId, ImmutableList.of(newInterface(0, interfaceClass)),
+                portPath);
+    }
+
+    /**
+     * Interrupt IN の Endpoint をひとつ持つインタフェースを返します。
+     */
+    public static UsbInterfaceSnapshot newInterface(int id, int interfaceClass) {
+        return new UsbInterfaceSnapshot(id, interfaceClass, 0, 0, ImmutableList.of(
+                new UsbEndpointSnapshot(0x81, 1, 0x80, 0x03, 3, 10, 8)));
+    }
+
+    /**
+     * デバイスの内容をそのままに、別のインスタンスを返します。
+     */
+    public static UsbDeviceSnapshot copy(UsbDeviceSnapshot dev) {
+        return new UsbDeviceSnapshot(dev.getDeviceName(), dev.getDeviceId(),
+                dev.getDeviceClass(), dev.getDeviceSubclass(), dev.getDeviceProtocol(),
+                dev.getVendorId(), dev.getProductId(), dev.getInterfaces(), dev.getPortPath());
+    }
+
+    public static UsbTopologySnapshot snapshot(UsbDeviceSnapshot... devices) {
+        return UsbTopologySnapshot.of(Arrays.asList(devices));
+    }
+}
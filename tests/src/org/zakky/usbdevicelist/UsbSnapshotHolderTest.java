@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.CLASS_HID;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.newInterface;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.snapshot;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * {@link UsbSnapshotHolder} のテストです。 共有のインスタンスは使わず、テストごとに
+ * 作ります。
+ */
+public class UsbSnapshotHolderTest extends UsbTestCase {
+
+    private static final UsbInterfaceSnapshot KEYBOARD_BOOT = newInterface(0, CLASS_HID);
+
+    private static final UsbInterfaceSnapshot KEYBOARD_MEDIA = newInterface(1, CLASS_HID);
+
+    private static final UsbDeviceSnapshot KEYBOARD = new UsbDeviceSnapshot(deviceName(1, 5),
+            1005, 0, 0, 0, 0x046d, 0xc31c, ImmutableList.of(KEYBOARD_MEDIA, KEYBOARD_BOOT),
+            "1-1.2");
+
+    private UsbSnapshotHolder mHolder;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbSnapshotHolderTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mHolder = new UsbSnapshotHolder();
+    }
+
+    public void testInitialState() {
+        assertNull("snapshot", mHolder.getSnapshot());
+        assertFalse("current", mHolder.isCurrent());
+        assertNull("selected device", mHolder.getSelectedDeviceName());
+        assertEquals("selected interface", -1L, mHolder.getSelectedInterfaceId());
+        assertNull("find", mHolder.findInterface(KEYBOARD.getDeviceName(), 0));
+    }
+
+    public void testCurrentFlag() {
+        // 列挙していなければ最新とはみなさない
+        mHolder.markCurrent();
+        assertFalse("without snapshot", mHolder.isCurrent());
+
+        final UsbTopologySnapshot snapshot = snapshot(KEYBOARD);
+        mHolder.setSnapshot(snapshot);
+        assertSame("shared, not copied", snapshot, mHolder.getSnapshot());
+        assertFalse("set does not mark current", mHolder.isCurrent());
+        mHolder.markCurrent();
+        assertTrue("marked", mHolder.isCurrent());
+
+        // 接続/切断イベントを反映したスナップショットでは最新のまま
+        mHolder.setSnapshot(UsbTopologySnapshot.EMPTY);
+        assertTrue("still current", mHolder.isCurrent());
+
+        mHolder.invalidate();
+        assertFalse("invalidated", mHolder.isCurrent());
+        assertSame("snapshot kept", UsbTopologySnapshot.EMPTY, mHolder.getSnapshot());
+    }
+
+    public void testSelection() {
+        mHolder.setSelection(KEYBOARD.getDeviceName(), 1);
+        assertEquals("device", KEYBOARD.getDeviceName(), mHolder.getSelectedDeviceName());
+        assertEquals("interface", 1L, mHolder.getSelectedInterfaceId());
+        // 選択はスナップショットと独立に保持する
+        mHolder.invalidate();
+        mHolder.setSnapshot(UsbTopologySnapshot.EMPTY);
+        assertEquals("kept", KEYBOARD.getDeviceName(), mHolder.getSelectedDeviceName());
+
+        mHolder.clearSelection();
+        assertNull("cleared device", mHolder.getSelectedDeviceName());
+        assertEquals("cleared interface", -1L, mHolder.getSelectedInterfaceId());
+    }
+
+    public void testFindInterface() {
+        mHolder.setSnapshot(snapshot(KEYBOARD));
+        assertSame("by id", KEYBOARD_BOOT, mHolder.findInterface(KEYBOARD.getDeviceName(), 0));
+        assertSame("by id", KEYBOARD_MEDIA, mHolder.findInterface(KEYBOARD.getDeviceName(),
+                1));
+        assertNull("unknown id", mHolder.findInterface(KEYBOARD.getDeviceName(), 2));
+        assertNull("unknown device", mHolder.findInterface(deviceName(1, 6), 0));
+        assertNull("no selection", mHolder.findInterface(null, 0));
+
+        // 取り外されたデバイスのインタフェースは見つからない
+        mHolder.setSnapshot(UsbTopologySnapshot.EMPTY);
+        assertNull("detached", mHolder.findInterface(KEYBOARD.getDeviceName(), 0));
+    }
+
+    public void testRejectsNull() {
+        try {
+            mHolder.setSnapshot(null);
+            fail("accepted null snapshot.");
+        } catch (NullPointerException expected) {
+            // 期待どおり
+        }
+        try {
+            mHolder.setSelection(null, 0);
+            fail("accepted null device name.");
+        } catch (NullPointerException expected) {
+            // 期待どおり
+        }
+    }
+}
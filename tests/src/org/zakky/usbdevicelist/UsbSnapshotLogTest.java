@@ -0,0 +1,336 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.device;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link UsbSnapshotLogWriter} で書き込んだ履歴を {@link UsbSnapshotLogReader} で
+ * 読み戻すテストです。
+ */
+public class UsbSnapshotLogTest extends UsbTestCase {
+
+    private static final String BASE_NAME = "history";
+
+    private static final long LARGE_FILE_BYTES = 1024L * 1024L;
+
+    private static final UsbDeviceSnapshot HUB = device(deviceName(1, 1), UsbSnapshotFixtures
+            .CLASS_HUB, 0x1d6b, 0x0002, "usb1");
+
+    private File mDirectory;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbSnapshotLogTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = createTempDirectory("snapshotlog");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+    }
+
+    public void testRoundTrip() throws IOException {
+        final int count = 10;
+        writeSequence(newWriter(LARGE_FILE_BYTES, 4, 64), 0, count);
+
+        final UsbSnapshotLogReader reader = newReader();
+        assertEquals("records", count, reader.getRecordCount());
+        for (int i = 0; i < count; i++) {
+            assertEquals("timestamp " + i, timestampOf(i), reader.getTimestamp(i));
+            assertEquals("snapshot " + i, sequence(i).getDevices(), reader.getSnapshot(i)
+                    .getDevices());
+        }
+    }
+
+    public void testSkipsUnchangedSnapshots() throws IOException {
+        final UsbSnapshotLogWriter writer = newWriter(LARGE_FILE_BYTES, 4, 64);
+        try {
+            assertTrue("first", writer.append(1000L, sequence(0)));
+            assertFalse("same instance", writer.append(2000L, sequence(0)));
+            assertTrue("changed", writer.append(3000L, sequence(1)));
+            assertEquals("records", 2L, writer.getRecordCount());
+        } finally {
+            writer.close();
+        }
+        assertEquals("records read", 2L, newReader().getRecordCount());
+    }
+
+    public void testKeyframesAndDeltas() throws IOException {
+        final int count = 8;
+        writeSequence(newWriter(LARGE_FILE_BYTES, 4, 3), 0, count);
+
+        final ByteBuffer index = ByteBuffer.wrap(readBytes(UsbSnapshotLogFormat.getIndexFile(
+                getLogFiles().get(0))));
+        final StringBuilder types = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final int entry = UsbSnapshotLogFormat.FILE_HEADER_LENGTH + i
+                    * UsbSnapshotLogFormat.INDEX_ENTRY_LENGTH;
+            types.append((index.getInt(entry + 12) == UsbSnapshotLogFormat.TYPE_KEYFRAME) ? 'K'
+                    : 'D');
+        }
+        assertEquals("record types", "KDDKDDKD", types.toString());
+
+        // キーフレームの直後や間にあるレコードも、直前のキーフレームから復元できる
+        final UsbSnapshotLogReader reader = newReader();
+        for (int i = count - 1; 0 <= i; i--) {
+            assertEquals("snapshot " + i, sequence(i).getDevices(), reader.getSnapshot(i)
+                    .getDevices());
+        }
+    }
+
+    public void testSeekByTimestamp() throws IOException {
+        final int count = 6;
+        writeSequence(newWriter(LARGE_FILE_BYTES, 4, 2), 0, count);
+
+        final UsbSnapshotLogReader reader = newReader();
+        assertEquals("before first", -1L, reader.findRecord(timestampOf(0) - 1L));
+        assertSame("before first", UsbTopologySnapshot.EMPTY, reader.getSnapshotAt(
+                timestampOf(0) - 1L));
+        for (int i = 0; i < count; i++) {
+            assertEquals("at " + i, i, reader.findRecord(timestampOf(i)));
+            assertEquals("between " + i, i, reader.findRecord(timestampOf(i) + 1L));
+            assertEquals("snapshot at " + i, sequence(i).getDevices(), reader.getSnapshotAt(
+                    timestampOf(i) + 1L).getDevices());
+        }
+        assertEquals("after last", count - 1, reader.findRecord(Long.MAX_VALUE));
+    }
+
+    public void testClampsTimestampsGoingBackwards() throws IOException {
+        final UsbSnapshotLogWriter writer = newWriter(LARGE_FILE_BYTES, 4, 64);
+        try {
+            writer.append(2000L, sequence(0));
+            // 時計が戻っても時刻は減少させない
+            writer.append(1000L, sequence(1));
+            writer.append(3000L, sequence(2));
+        } finally {
+            writer.close();
+        }
+        final UsbSnapshotLogReader reader = newReader();
+        assertEquals("records", 3L, reader.getRecordCount());
+        assertEquals("clamped", 2000L, reader.getTimestamp(1));
+        // 同じ時刻のレコードが並んだ場合は最後のもの
+        assertEquals("same timestamp", 1L, reader.findRecord(2000L));
+        assertEquals("nothing before", -1L, reader.findRecord(1999L));
+    }
+
+    public void testRotationAndDeletion() throws IOException {
+        final int count = 20;
+        final int maxFileCount = 3;
+        // 1ファイルに数レコードしか入らない大きさ
+        final long maxFileBytes = 400L;
+        writeSequence(newWriter(maxFileBytes, maxFileCount, 64), 0, count);
+
+        final List<File> logFiles = getLogFiles();
+        assertEquals("log files", maxFileCount, logFiles.size());
+        assertEquals("files in directory", 2L * maxFileCount, mDirectory.list().length);
+        for (File logFile : logFiles) {
+            assertTrue("size of " + logFile, logFile.length() <= maxFileBytes);
+            assertTrue("index of " + logFile, UsbSnapshotLogFormat.getIndexFile(logFile)
+                    .isFile());
+        }
+
+        final UsbSnapshotLogReader reader = newReader();
+        final int kept = reader.getRecordCount();
+        assertTrue("kept " + kept, maxFileCount <= kept && kept < count);
+        final int firstKept = count - kept;
+        for (int i = 0; i < kept; i++) {
+            assertEquals("timestamp " + i, timestampOf(firstKept + i), reader.getTimestamp(i));
+            assertEquals("snapshot " + i, sequence(firstKept + i).getDevices(), reader
+                    .getSnapshot(i).getDevices());
+        }
+        // 削除されたファイルの時刻は引けない
+        assertEquals("deleted", -1L, reader.findRecord(timestampOf(firstKept) - 1L));
+
+        // 次のプロセスは残っているファイルの続きから連番を振る
+        final int lastNumber = UsbSnapshotLogFormat.getFileNumber(logFiles.get(
+                maxFileCount - 1).getName(), BASE_NAME);
+        final UsbSnapshotLogWriter next = newWriter(maxFileBytes, maxFileCount, 64);
+        try {
+            next.append(timestampOf(count), sequence(count));
+            assertEquals("next file", UsbSnapshotLogFormat.getLogFile(mDirectory, BASE_NAME,
+                    lastNumber + 1), next.getCurrentFile());
+        } finally {
+            next.close();
+        }
+        assertEquals("log files after restart", maxFileCount, getLogFiles().size());
+        final UsbSnapshotLogReader restarted = newReader();
+        assertEquals("last snapshot", sequence(count).getDevices(), restarted.getSnapshot(
+                restarted.getRecordCount() - 1).getDevices());
+    }
+
+    public void testTornFinalRecord() throws IOException {
+        writeSequence(newWriter(LARGE_FILE_BYTES, 4, 64), 0, 3);
+        final File logFile = getLogFiles().get(0);
+        final File indexFile = UsbSnapshotLogFormat.getIndexFile(logFile);
+
+        // レコードの途中で終わっているログ
+        truncate(logFile, logFile.length() - 1L);
+        UsbSnapshotLogReader reader = newReader();
+        assertEquals("records with torn log", 2L, reader.getRecordCount());
+        assertEquals("last complete", sequence(1).getDevices(), reader.getSnapshot(1)
+                .getDevices());
+        assertEquals("seek past torn", 1L, reader.findRecord(Long.MAX_VALUE));
+
+        // エントリの途中で終わっている索引
+        truncate(indexFile, UsbSnapshotLogFormat.FILE_HEADER_LENGTH
+                + UsbSnapshotLogFormat.INDEX_ENTRY_LENGTH + 5L);
+        reader = newReader();
+        assertEquals("records with torn index", 1L, reader.getRecordCount());
+        assertEquals("first", sequence(0).getDevices(), reader.getSnapshot(0).getDevices());
+
+        // ヘッダしか無いファイルは読み飛ばす
+        truncate(indexFile, UsbSnapshotLogFormat.FILE_HEADER_LENGTH);
+        assertEquals("records with empty index", 0L, newReader().getRecordCount());
+    }
+
+    public void testReplay() throws IOException {
+        writeSequence(newWriter(LARGE_FILE_BYTES, 4, 2), 0, 5);
+        final List<String> events = Lists.newArrayList();
+        newReader().replay(timestampOf(1), timestampOf(3), new UsbSnapshotLogReader.Listener() {
+            @Override
+            public void onAttached(long timestampMillis, UsbDeviceSnapshot device) {
+                events.add(timestampMillis + " attached " + device.getDeviceName());
+            }
+
+            @Override
+            public void onDetached(long timestampMillis, UsbDeviceSnapshot device) {
+                events.add(timestampMillis + " detached " + device.getDeviceName());
+            }
+
+            @Override
+            public void onChanged(long timestampMillis, UsbDeviceSnapshot oldDevice,
+                    UsbDeviceSnapshot newDevice) {
+                events.add(timestampMillis + " changed " + newDevice.getDeviceName());
+            }
+        });
+        final List<String> expected = Lists.newArrayList();
+        for (int i = 2; i <= 3; i++) {
+            final UsbTopologyDiff diff = UsbTopologyDiff.compute(sequence(i - 1), sequence(i));
+            for (UsbDeviceSnapshot dev : diff.getRemoved()) {
+                expected.add(timestampOf(i) + " detached " + dev.getDeviceName());
+            }
+            for (UsbDeviceSnapshot dev : diff.getAdded()) {
+                expected.add(timestampOf(i) + " attached " + dev.getDeviceName());
+            }
+            for (UsbDeviceSnapshot dev : diff.getChanged()) {
+                expected.add(timestampOf(i) + " changed " + dev.getDeviceName());
+            }
+        }
+        // キーフレームの通知はデバイスの順序を保証しないので、時刻ごとに並べて比べる
+        assertEquals("events", sorted(expected), sorted(events));
+    }
+
+    public void testRecoversWhenIndexCannotBeOpened() throws IOException {
+        final File blocker = UsbSnapshotLogFormat.getIndexFile(UsbSnapshotLogFormat.getLogFile(
+                mDirectory, BASE_NAME, 1));
+        assertTrue("blocker", blocker.mkdir());
+        final UsbSnapshotLogWriter writer = newWriter(LARGE_FILE_BYTES, 4, 64);
+        try {
+            try {
+                writer.append(timestampOf(0), sequence(0));
+                fail("index file was opened.");
+            } catch (IOException expected) {
+                // 期待どおり
+            }
+            assertFalse("orphan log file", UsbSnapshotLogFormat.getLogFile(mDirectory,
+                    BASE_NAME, 1).exists());
+            assertTrue("blocker removed", blocker.delete());
+
+            // 失敗したファイルの状態を引きずらず、次のファイルから書き込める
+            assertTrue("retry", writer.append(timestampOf(0), sequence(0)));
+            assertTrue("next", writer.append(timestampOf(1), sequence(1)));
+        } finally {
+            writer.close();
+        }
+        final UsbSnapshotLogReader reader = newReader();
+        assertEquals("records", 2L, reader.getRecordCount());
+        assertEquals("snapshot", sequence(1).getDevices(), reader.getSnapshot(1).getDevices());
+    }
+
+    /**
+     * {@code i} 番目のスナップショットを返します。 隣り合うスナップショットは必ず異なり、
+     * デバイスの追加、削除、ポートパスの変化が混ざります。
+     */
+    private static UsbTopologySnapshot sequence(int i) {
+        final List<UsbDeviceSnapshot> devices = Lists.newArrayList(HUB);
+        final int bits = i + 1;
+        for (int j = 0; j < 4; j++) {
+            if ((bits & (1 << j)) != 0) {
+                devices.add(device(deviceName(1, 2 + j), 0x1000 + j, 0x2000 + i % 3, "1-" + (j
+                        + 1 + i / 8)));
+            }
+        }
+        return UsbTopologySnapshot.of(devices);
+    }
+
+    private static long timestampOf(int i) {
+        return 1000L * (i + 1);
+    }
+
+    private UsbSnapshotLogWriter newWriter(long maxFileBytes, int maxFileCount,
+            int keyframeInterval) {
+        return new UsbSnapshotLogWriter(mDirectory, BASE_NAME, maxFileBytes, maxFileCount,
+                keyframeInterval);
+    }
+
+    private UsbSnapshotLogReader newReader() throws IOException {
+        return new UsbSnapshotLogReader(mDirectory, BASE_NAME);
+    }
+
+    private static void writeSequence(UsbSnapshotLogWriter writer, int from, int to)
+            throws IOException {
+        try {
+            for (int i = from; i < to; i++) {
+                assertTrue("append " + i, writer.append(timestampOf(i), sequence(i)));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private List<File> getLogFiles() {
+        return UsbSnapshotLogFormat.listLogFiles(mDirectory, BASE_NAME);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        final List<String> copy = Lists.newArrayList(list);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link UsbSpscQueue} のテストです。
+ */
+public class UsbSpscQueueTest extends UsbTestCase {
+
+    public static void main(String[] args) {
+        runAndExit(new UsbSpscQueueTest());
+    }
+
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals("1", 1L, new UsbSpscQueue<Object>(1).capacity());
+        assertEquals("5", 8L, new UsbSpscQueue<Object>(5).capacity());
+        assertEquals("16", 16L, new UsbSpscQueue<Object>(16).capacity());
+        try {
+            new UsbSpscQueue<Object>(0);
+            fail("zero capacity accepted");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testFifoAndFull() {
+        final UsbSpscQueue<Integer> queue = new UsbSpscQueue<Integer>(4);
+        assertTrue("empty", queue.isEmpty());
+        assertNull("poll empty", queue.poll());
+        // 一周以上回して、添字の折り返しを確かめる
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue("offer " + i, queue.offer(Integer.valueOf(round * 4 + i)));
+            }
+            assertFalse("offer to full queue", queue.offer(Integer.valueOf(-1)));
+            assertEquals("size", 4L, queue.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals("poll " + i, Integer.valueOf(round * 4 + i), queue.poll());
+            }
+            assertNull("poll drained", queue.poll());
+        }
+        try {
+            queue.offer(null);
+            fail("null accepted");
+        } catch (NullPointerException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testConcurrentTransferKeepsOrder() throws InterruptedException {
+        final int count = 1000000;
+        final UsbSpscQueue<Integer> queue = new UsbSpscQueue<Integer>(64);
+        final Integer[] values = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Integer.valueOf(i);
+        }
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int expected = 0;
+                while (expected < count) {
+                    final Integer value = queue.poll();
+                    if (value == null) {
+                        Thread.yield();
+                    } else if (value != values[expected]) {
+                        error.set("expected " + expected + " but was " + value);
+                        return;
+                    } else {
+                        expected++;
+                    }
+                }
+            }
+        }, "UsbSpscQueueTest consumer");
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(values[i])) {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000L);
+        assertFalse("consumer did not finish", consumer.isAlive());
+        assertNull("order", error.get());
+        assertTrue("drained", queue.isEmpty());
+    }
+}
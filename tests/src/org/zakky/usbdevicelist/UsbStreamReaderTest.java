@@ -0,0 +1,464 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.Sets;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link UsbStreamReader} をシミュレートした Endpoint で動かすテストです。
+ */
+public class UsbStreamReaderTest extends UsbTestCase {
+
+    private static final int SLOT_COUNT = 4;
+
+    private static final int BUFFER_COUNT = 8;
+
+    private static final int BUFFER_SIZE = 64;
+
+    /**
+     * 状態の変化を待つ時間の上限(ミリ秒)。
+     */
+    private static final long WAIT_MILLIS = 5000L;
+
+    private UsbStreamReader mReader;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbStreamReaderTest());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mReader != null) {
+            stopAndDrain(mReader);
+            mReader = null;
+        }
+    }
+
+    public void testDeliversInCompletionOrder() throws InterruptedException {
+        final int packetCount = 20000;
+        final UsbSimulatedStreamingEndpoint endpoint = new UsbSimulatedStreamingEndpoint(
+                SLOT_COUNT, BUFFER_SIZE, packetCount);
+        mReader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        mReader.start();
+        long byteCount = 0L;
+        for (long sequence = 0; sequence < packetCount; sequence++) {
+            final ByteBuffer data = mReader.take(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("packet " + sequence, data);
+            assertEquals("position", 0L, data.position());
+            assertTrue("content of packet " + sequence, endpoint.verify(data, sequence));
+            byteCount += data.remaining();
+            mReader.release(data);
+        }
+        assertEquals("transfers", packetCount, mReader.getTransferCount());
+        assertEquals("bytes", byteCount, mReader.getByteCount());
+
+        stopAndDrain(mReader);
+        assertFalse("failed", mReader.isFailed());
+        assertEquals("close", 1L, endpoint.getCloseCount());
+    }
+
+    public void testRecyclesPooledBuffers() throws InterruptedException {
+        final RecordingEndpoint endpoint = new RecordingEndpoint(
+                new UsbSimulatedStreamingEndpoint(SLOT_COUNT, BUFFER_SIZE, Long.MAX_VALUE));
+        mReader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        mReader.start();
+        for (int i = 0; i < 10000; i++) {
+            final ByteBuffer data = mReader.take(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("packet " + i, data);
+            assertTrue("delivered a buffer that was not submitted", endpoint.isSubmitted(data));
+            mReader.release(data);
+        }
+        assertEquals("distinct buffers", BUFFER_COUNT, endpoint.getDistinctBufferCount());
+        assertTrue("heap buffer submitted", endpoint.isAllDirect());
+    }
+
+    public void testReleaseRejectsForeignBuffer() throws InterruptedException {
+        final UsbSimulatedStreamingEndpoint endpoint = new UsbSimulatedStreamingEndpoint(
+                SLOT_COUNT, BUFFER_SIZE, 0L);
+        // 読み込みスレッドは開始しない
+        final UsbStreamReader reader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        try {
+            // 空きキューは満杯なので、どこから来たバッファでも返却できない
+            reader.release(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            fail("foreign buffer accepted");
+        } catch (IllegalStateException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testStallsWhileConsumerHoldsBuffers() throws InterruptedException {
+        final UsbSimulatedStreamingEndpoint endpoint = new UsbSimulatedStreamingEndpoint(
+                SLOT_COUNT, BUFFER_SIZE, Long.MAX_VALUE);
+        final GatedEndpoint gate = new GatedEndpoint(endpoint);
+        gate.allow(BUFFER_COUNT);
+        mReader = new UsbStreamReader(gate, BUFFER_COUNT, BUFFER_SIZE);
+        mReader.start();
+
+        // 取り出さずにいると、すべてのバッファが埋まった時点で要求のキューイングが止まる
+        waitForStallCount(mReader, 1L);
+        assertEquals("transfers while stalled", BUFFER_COUNT, mReader.getTransferCount());
+        assertEquals("completed while stalled", BUFFER_COUNT, endpoint.getCompletedCount());
+        Thread.sleep(50L);
+        assertEquals("stall is counted once", 1L, mReader.getStallCount());
+        assertEquals("no more transfers", BUFFER_COUNT, mReader.getTransferCount());
+
+        final ByteBuffer[] held = new ByteBuffer[BUFFER_COUNT];
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            held[i] = mReader.poll();
+            assertNotNull("held " + i, held[i]);
+            assertTrue("content of packet " + i, endpoint.verify(held[i], i));
+        }
+        assertNull("extra buffer", mReader.poll());
+
+        // 返却すると再開し、またすべてのバッファが埋まると止まる。 返却の途中で読み込みスレッドが
+        // 要求をキューイングし直しても、完了させるのはすべて返却してからにする
+        for (ByteBuffer buffer : held) {
+            mReader.release(buffer);
+        }
+        gate.allow(BUFFER_COUNT);
+        waitForTransferCount(mReader, 2L * BUFFER_COUNT);
+        waitForStallCount(mReader, 2L);
+        Thread.sleep(50L);
+        assertEquals("transfers while stalled again", 2L * BUFFER_COUNT,
+                mReader.getTransferCount());
+        for (int i = BUFFER_COUNT; i < 2 * BUFFER_COUNT; i++) {
+            final ByteBuffer data = mReader.poll();
+            assertNotNull("packet " + i, data);
+            assertTrue("content of packet " + i, endpoint.verify(data, i));
+            mReader.release(data);
+        }
+    }
+
+    public void testStopWhileTakeIsBlocked() throws InterruptedException {
+        // データが来ないデバイス
+        final UsbSimulatedStreamingEndpoint endpoint = new UsbSimulatedStreamingEndpoint(
+                SLOT_COUNT, BUFFER_SIZE, 0L);
+        mReader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        mReader.start();
+
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final AtomicLong elapsedNanos = new AtomicLong();
+        final UsbStreamReader reader = mReader;
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    final ByteBuffer data = reader.take(60L, TimeUnit.SECONDS);
+                    result.set((data == null) ? "null" : data);
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+                elapsedNanos.set(System.nanoTime() - start);
+            }
+        }, "UsbStreamReaderTest consumer");
+        consumer.start();
+        Thread.sleep(100L);
+        assertTrue("take returned without data", consumer.isAlive());
+
+        mReader.stop();
+        consumer.join(WAIT_MILLIS);
+        assertFalse("take still blocked after stop", consumer.isAlive());
+        assertEquals("take result", "null", result.get());
+        assertTrue("take waited " + elapsedNanos.get() + " ns", elapsedNanos.get() < TimeUnit
+                .MILLISECONDS.toNanos(WAIT_MILLIS));
+        assertTrue("finished", mReader.isFinished());
+        assertFalse("failed", mReader.isFailed());
+        assertEquals("close", 1L, endpoint.getCloseCount());
+    }
+
+    public void testEndpointErrorFinishesReader() throws InterruptedException {
+        final int packetCount = 100;
+        final UsbSimulatedStreamingEndpoint simulated = new UsbSimulatedStreamingEndpoint(
+                SLOT_COUNT, BUFFER_SIZE, Long.MAX_VALUE);
+        final RecordingEndpoint endpoint = new RecordingEndpoint(simulated);
+        endpoint.setFailAfter(packetCount);
+        mReader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        mReader.start();
+        int received = 0;
+        while (true) {
+            final ByteBuffer data = mReader.take(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            if (data == null) {
+                break;
+            }
+            assertTrue("content of packet " + received, simulated.verify(data, received));
+            received++;
+            mReader.release(data);
+        }
+        assertTrue("finished", mReader.isFinished());
+        assertTrue("failed", mReader.isFailed());
+        assertEquals("received", packetCount, received);
+        assertEquals("close", 1L, simulated.getCloseCount());
+    }
+
+    public void testObserverSeesCompletionsBeforeConsumer() throws InterruptedException {
+        final int packetCount = 1000;
+        final UsbSimulatedStreamingEndpoint endpoint = new UsbSimulatedStreamingEndpoint(
+                SLOT_COUNT, BUFFER_SIZE, packetCount);
+        mReader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        final AtomicLong observed = new AtomicLong();
+        final AtomicLong observedBytes = new AtomicLong();
+        mReader.setCompletionObserver(new UsbStreamReader.CompletionObserver() {
+            @Override
+            public void onCompleted(long timestampNanos, int length) {
+                observed.incrementAndGet();
+                observedBytes.addAndGet(length);
+            }
+        });
+        mReader.start();
+        long bytes = 0L;
+        for (int i = 0; i < packetCount; i++) {
+            final ByteBuffer data = mReader.take(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("packet " + i, data);
+            bytes += data.remaining();
+            assertTrue("observed " + observed.get() + " before delivering " + i,
+                    i < observed.get());
+            mReader.release(data);
+        }
+        assertEquals("observed", packetCount, observed.get());
+        assertEquals("observed bytes", bytes, observedBytes.get());
+    }
+
+    public void testEndpointThatKeepsPosition() throws InterruptedException {
+        final int packetCount = 1000;
+        final UsbPositionPreservingEndpoint endpoint = new UsbPositionPreservingEndpoint(
+                SLOT_COUNT, packetCount);
+        mReader = new UsbStreamReader(endpoint, BUFFER_COUNT, BUFFER_SIZE);
+        final AtomicLong observedBytes = new AtomicLong();
+        mReader.setCompletionObserver(new UsbStreamReader.CompletionObserver() {
+            @Override
+            public void onCompleted(long timestampNanos, int length) {
+                observedBytes.addAndGet(length);
+            }
+        });
+        mReader.start();
+        for (long sequence = 0; sequence < packetCount; sequence++) {
+            final ByteBuffer data = mReader.take(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("packet " + sequence, data);
+            assertEquals("position", 0L, data.position());
+            // 実際の長さがわからないので、要求した長さ全体が報告される
+            assertEquals("length of packet " + sequence, BUFFER_SIZE, data.remaining());
+            assertTrue("content of packet " + sequence, endpoint.verify(data, sequence));
+            mReader.release(data);
+        }
+        final long byteCount = (long) packetCount * BUFFER_SIZE;
+        assertEquals("transfers", packetCount, mReader.getTransferCount());
+        assertEquals("bytes", byteCount, mReader.getByteCount());
+        assertEquals("observed bytes", byteCount, observedBytes.get());
+
+        stopAndDrain(mReader);
+        assertEquals("close", 1L, endpoint.getCloseCount());
+    }
+
+    public void testQueuedEndpointRejectsBusySlot() {
+        final UsbPositionPreservingEndpoint endpoint = new UsbPositionPreservingEndpoint(1, 1L);
+        assertTrue("submit", endpoint.submit(0, ByteBuffer.allocateDirect(BUFFER_SIZE)));
+        try {
+            endpoint.submit(0, ByteBuffer.allocateDirect(BUFFER_SIZE));
+            fail("busy slot was accepted.");
+        } catch (IllegalStateException expected) {
+            // 期待どおり
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        assertEquals("completed slot", 0L, endpoint.awaitCompletion());
+        assertTrue("resubmit", endpoint.submit(0, buffer));
+        endpoint.cancelAll();
+        assertEquals("cancelled", -1L, endpoint.awaitCompletion());
+        assertEquals("untouched position", 0L, buffer.position());
+    }
+
+    /**
+     * 読み込みを止め、読み込みスレッドが終わるまで残っているバッファを返却し続けます。
+     */
+    private static void stopAndDrain(UsbStreamReader reader) throws InterruptedException {
+        reader.stop();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (!reader.isFinished()) {
+            final ByteBuffer data = reader.poll();
+            if (data != null) {
+                reader.release(data);
+            } else if (deadline < System.nanoTime()) {
+                fail("reader did not finish.");
+            } else {
+                Thread.sleep(1L);
+            }
+        }
+    }
+
+    private static void waitForStallCount(UsbStreamReader reader, long count)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (reader.getStallCount() < count) {
+            if (deadline < System.nanoTime()) {
+                fail("stall count " + reader.getStallCount() + " < " + count);
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    private static void waitForTransferCount(UsbStreamReader reader, long count)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (reader.getTransferCount() < count) {
+            if (deadline < System.nanoTime()) {
+                fail("transfer count " + reader.getTransferCount() + " < " + count);
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    /**
+     * テストが許可した数だけ要求を完了させる Endpoint です。
+     */
+    private static final class GatedEndpoint implements UsbStreamingEndpoint {
+        private final UsbStreamingEndpoint mDelegate;
+
+        /**
+         * 完了させてよい要求の残り。 ロックで保護します。
+         */
+        private int mPermits;
+
+        private boolean mCancelled;
+
+        GatedEndpoint(UsbStreamingEndpoint delegate) {
+            mDelegate = delegate;
+        }
+
+        synchronized void allow(int count) {
+            mPermits += count;
+            notifyAll();
+        }
+
+        @Override
+        public int getSlotCount() {
+            return mDelegate.getSlotCount();
+        }
+
+        @Override
+        public boolean submit(int slot, ByteBuffer buffer) {
+            return mDelegate.submit(slot, buffer);
+        }
+
+        @Override
+        public int awaitCompletion() {
+            synchronized (this) {
+                try {
+                    while (mPermits == 0 && !mCancelled) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                if (!mCancelled) {
+                    mPermits--;
+                }
+            }
+            return mDelegate.awaitCompletion();
+        }
+
+        @Override
+        public void cancelAll() {
+            synchronized (this) {
+                mCancelled = true;
+                notifyAll();
+            }
+            mDelegate.cancelAll();
+        }
+
+        @Override
+        public void close() {
+            mDelegate.close();
+        }
+    }
+
+    /**
+     * キューイングされたバッファを記録し、指定した数の完了の後でエラーを返す Endpoint です。
+     */
+    private static final class RecordingEndpoint implements UsbStreamingEndpoint {
+        private final UsbStreamingEndpoint mDelegate;
+
+        /**
+         * キューイングされたバッファ。 読み込みスレッドが追加するのでロックで保護します。
+         */
+        private final Set<ByteBuffer> mSubmitted = Sets.newIdentityHashSet();
+
+        private boolean mAllDirect = true;
+
+        private volatile long mFailAfter = Long.MAX_VALUE;
+
+        private long mCompletedCount;
+
+        RecordingEndpoint(UsbStreamingEndpoint delegate) {
+            mDelegate = delegate;
+        }
+
+        void setFailAfter(long count) {
+            mFailAfter = count;
+        }
+
+        synchronized boolean isSubmitted(ByteBuffer buffer) {
+            return mSubmitted.contains(buffer);
+        }
+
+        synchronized int getDistinctBufferCount() {
+            return mSubmitted.size();
+        }
+
+        synchronized boolean isAllDirect() {
+            return mAllDirect;
+        }
+
+        @Override
+        public int getSlotCount() {
+            return mDelegate.getSlotCount();
+        }
+
+        @Override
+        public boolean submit(int slot, ByteBuffer buffer) {
+            synchronized (this) {
+                mSubmitted.add(buffer);
+                mAllDirect &= buffer.isDirect();
+            }
+            return mDelegate.submit(slot, buffer);
+        }
+
+        @Override
+        public int awaitCompletion() {
+            if (mFailAfter <= mCompletedCount) {
+                return -1;
+            }
+            mCompletedCount++;
+            return mDelegate.awaitCompletion();
+        }
+
+        @Override
+        public void cancelAll() {
+            mDelegate.cancelAll();
+        }
+
+        @Override
+        public void close() {
+            mDelegate.close();
+        }
+    }
+}
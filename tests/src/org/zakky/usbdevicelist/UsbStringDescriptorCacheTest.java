@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link UsbStringDescriptorCache} と {@link UsbStringDescriptors} のテストです。
+ */
+public class UsbStringDescriptorCacheTest extends UsbTestCase {
+
+    private static final UsbStringDescriptors FTDI_A = new UsbStringDescriptors("FTDI",
+            "FT232R USB UART", "A1000001");
+
+    private static final UsbStringDescriptors FTDI_B = new UsbStringDescriptors("FTDI",
+            "FT232R USB UART", "A1000002");
+
+    private static final UsbStringDescriptors MOUSE = new UsbStringDescriptors("Logitech",
+            "USB Optical Mouse", null);
+
+    private File mDirectory;
+
+    private File mFile;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbStringDescriptorCacheTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = createTempDirectory("strings");
+        mFile = new File(new File(mDirectory, "cache"), "strings.bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+    }
+
+    public void testFindBySerialNumber() {
+        final UsbStringDescriptorCache cache = newCache(16);
+        cache.put(0x0403, 0x6001, FTDI_A);
+        cache.put(0x0403, 0x6001, FTDI_B);
+        assertEquals("size", 2L, cache.size());
+        assertEquals("a", FTDI_A, cache.find(0x0403, 0x6001, "A1000001"));
+        assertEquals("b", FTDI_B, cache.find(0x0403, 0x6001, "A1000002"));
+        assertNull("unknown serial", cache.find(0x0403, 0x6001, "A1000003"));
+        assertNull("other pid", cache.find(0x0403, 0x6010, "A1000001"));
+    }
+
+    public void testFindWithoutSerialNumber() {
+        final UsbStringDescriptorCache cache = newCache(16);
+        cache.put(0x046d, 0xc077, MOUSE);
+        assertEquals("no serial", MOUSE, cache.find(0x046d, 0xc077, null));
+
+        cache.put(0x0403, 0x6001, FTDI_A);
+        // 別の個体かもしれないので、シリアル番号は返さない
+        assertEquals("single entry", new UsbStringDescriptors("FTDI", "FT232R USB UART", null),
+                cache.find(0x0403, 0x6001, null));
+        cache.put(0x0403, 0x6001, FTDI_B);
+        assertNull("ambiguous", cache.find(0x0403, 0x6001, null));
+
+        // VID/PID の16進表記が前方一致するだけのエントリとは区別する
+        cache.put(0x0000, 0x0403, MOUSE);
+        cache.put(0x0403, 0x0000, MOUSE);
+        assertNull("unknown", cache.find(0x0000, 0x0040, null));
+        assertEquals("short key", MOUSE, cache.find(0x0000, 0x0403, null));
+    }
+
+    public void testHighVendorId() {
+        final UsbStringDescriptorCache cache = newCache(16);
+        cache.put(0xffff, 0xffff, FTDI_A);
+        assertEquals("found", FTDI_A, cache.find(0xffff, 0xffff, "A1000001"));
+        assertEquals("without serial", "FTDI", cache.find(0xffff, 0xffff, null)
+                .getManufacturer());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final UsbStringDescriptorCache cache = newCache(2);
+        cache.put(0x0403, 0x6001, FTDI_A);
+        cache.put(0x0403, 0x6001, FTDI_B);
+        // A を参照したので、次に追い出されるのは B
+        assertNotNull("touch a", cache.find(0x0403, 0x6001, "A1000001"));
+        cache.put(0x046d, 0xc077, MOUSE);
+        assertEquals("size", 2L, cache.size());
+        assertNotNull("a", cache.find(0x0403, 0x6001, "A1000001"));
+        assertNull("b evicted", cache.find(0x0403, 0x6001, "A1000002"));
+        assertNotNull("mouse", cache.find(0x046d, 0xc077, null));
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        final UsbStringDescriptorCache cache = newCache(16);
+        cache.put(0x0403, 0x6001, FTDI_A);
+        cache.put(0x046d, 0xc077, MOUSE);
+        final UsbStringDescriptors unicode = new UsbStringDescriptors("メーカー", "é\u0000",
+                null);
+        cache.put(0x0e8d, 0x2000, unicode);
+        cache.save();
+        assertTrue("saved", mFile.isFile());
+        assertFalse("temp file", new File(mFile.getPath() + ".tmp").exists());
+
+        final UsbStringDescriptorCache loaded = newCache(16);
+        assertEquals("size", 3L, loaded.size());
+        assertEquals("serial", FTDI_A, loaded.find(0x0403, 0x6001, "A1000001"));
+        assertEquals("no serial", MOUSE, loaded.find(0x046d, 0xc077, null));
+        assertEquals("unicode", unicode, loaded.find(0x0e8d, 0x2000, null));
+
+        // 上限を下げて読み込むと古いものから捨てる
+        assertEquals("smaller cache", 1L, newCache(1).size());
+    }
+
+    public void testSaveOnlyWhenChanged() throws IOException {
+        final UsbStringDescriptorCache cache = newCache(16);
+        cache.save();
+        assertFalse("nothing to save", mFile.exists());
+
+        cache.put(0x0403, 0x6001, FTDI_A);
+        cache.save();
+        final long modified = mFile.lastModified();
+        assertTrue("set old time", mFile.setLastModified(modified - 10000L));
+        // 同じ内容を入れ直しても保存しない
+        cache.put(0x0403, 0x6001, new UsbStringDescriptors("FTDI", "FT232R USB UART",
+                "A1000001"));
+        cache.save();
+        assertEquals("not rewritten", modified - 10000L, mFile.lastModified());
+    }
+
+    public void testBrokenFileIsReplaced() throws IOException {
+        assertTrue("mkdirs", mFile.getParentFile().mkdirs());
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        try {
+            out.writeInt(0x55535344);
+            out.writeInt(1);
+            out.writeInt(5);
+            out.writeUTF("403/A1000001");
+            // エントリの途中で終わる
+            out.writeBoolean(true);
+        } finally {
+            out.close();
+        }
+        final UsbStringDescriptorCache cache = newCache(16);
+        assertEquals("broken file", 0L, cache.size());
+        // 変更が無くても、壊れたファイルは次の保存で上書きする
+        cache.save();
+        assertEquals("rewritten", 0L, newCache(16).size());
+        assertEquals("rewritten length", 12L, mFile.length());
+    }
+
+    public void testUnknownFormat() throws IOException {
+        assertTrue("mkdirs", mFile.getParentFile().mkdirs());
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        try {
+            out.writeInt(0x55535344);
+            out.writeInt(2);
+            out.writeInt(0);
+        } finally {
+            out.close();
+        }
+        final UsbStringDescriptorCache cache = newCache(16);
+        cache.put(0x046d, 0xc077, MOUSE);
+        cache.save();
+        assertEquals("replaced", MOUSE, newCache(16).find(0x046d, 0xc077, null));
+    }
+
+    public void testInvalidMaxEntries() {
+        try {
+            newCache(0);
+            fail("accepted 0.");
+        } catch (IllegalArgumentException expected) {
+            // 期待どおり
+        }
+    }
+
+    public void testDecode() {
+        // bLength=8, "Ab©" (UTF-16LE)
+        final byte[] descriptor = {8, 3, 'A', 0, 'b', 0, (byte) 0xa9, 0};
+        assertEquals("full", "Ab©", UsbStringDescriptors.decode(descriptor, 8));
+        assertEquals("short read", "Ab", UsbStringDescriptors.decode(descriptor, 7));
+        final byte[] longer = {6, 3, 'A', 0, 'b', 0, 'c', 0};
+        assertEquals("bLength wins", "Ab", UsbStringDescriptors.decode(longer, 8));
+        assertEquals("empty", "", UsbStringDescriptors.decode(new byte[] {2, 3}, 2));
+        assertNull("not a string", UsbStringDescriptors.decode(new byte[] {4, 1, 0, 0}, 4));
+        assertNull("failed transfer", UsbStringDescriptors.decode(descriptor, -1));
+    }
+
+    public void testLabel() {
+        assertEquals("all", "FTDI FT232R USB UART (S/N A1000001)", FTDI_A.getLabel());
+        assertEquals("no serial", "Logitech USB Optical Mouse", MOUSE.getLabel());
+        assertEquals("serial only", "(S/N 1)", new UsbStringDescriptors(null, null, "1")
+                .getLabel());
+        assertNull("none", new UsbStringDescriptors(null, null, null).getLabel());
+    }
+
+    private UsbStringDescriptorCache newCache(int maxEntries) {
+        return new UsbStringDescriptorCache(mFile, maxEntries);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link UsbSysfsDeviceSource} を {@code tests/fixtures/sysfs} の固定データで動かすテストです。
+ * <p>
+ * {@code hub_and_keyboard} は {@code /sys/bus/usb/devices} を模したディレクトリで、
+ * バス 1 のルートハブ、ハブ、キーボード、バス 2 のルートハブ、 LAN アダプタと、
+ * 列挙中に取り外されて {@code devnum} が消えたデバイス {@code 3-1} を含みます。
+ * 実際の sysfs と同じく、インタフェースのディレクトリはデバイスの下と直下の両方にあります
+ * (実機ではどちらも同じディレクトリへのリンクです)。
+ * </p>
+ */
+public class UsbSysfsDeviceSourceTest extends UsbTestCase {
+
+    private static final String KEYBOARD = "/dev/bus/usb/001/005";
+
+    private File mRoot;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbSysfsDeviceSourceTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = getFixture("sysfs/hub_and_keyboard");
+        assertTrue("missing fixture " + mRoot, mRoot.isDirectory());
+    }
+
+    public void testEnumerate() {
+        final UsbTopologySnapshot snapshot = new UsbSysfsDeviceSource(mRoot).enumerate();
+        final List<UsbDeviceSnapshot> expected = ImmutableList.of(
+                device("/dev/bus/usb/001/001", 1001, 0x09, 0x00, 0x01, 0x1d6b, 0x0002, "usb1",
+                        iface(0, 0x09, 0x00, 0x00, endpoint(0x81, 0x03, 0x0c, 4))),
+                device("/dev/bus/usb/001/002", 1002, 0x09, 0x00, 0x02, 0x05e3, 0x0608, "1-1",
+                        iface(0, 0x09, 0x00, 0x01, endpoint(0x81, 0x03, 0x0c, 1))),
+                device(KEYBOARD, 1005, 0x00, 0x00, 0x00, 0x046d, 0xc31c, "1-1.2",
+                        iface(0, 0x03, 0x01, 0x01, endpoint(0x81, 0x03, 0x0a, 8)),
+                        iface(1, 0x03, 0x00, 0x00, endpoint(0x82, 0x03, 0xff, 4))),
+                device("/dev/bus/usb/002/001", 2001, 0x09, 0x00, 0x03, 0x1d6b, 0x0003, "usb2",
+                        iface(0, 0x09, 0x00, 0x00, endpoint(0x81, 0x03, 0x0c, 2))),
+                device("/dev/bus/usb/002/003", 2003, 0xff, 0xff, 0x00, 0x0bda, 0x8153, "2-1",
+                        iface(0, 0xff, 0xff, 0x00, endpoint(0x81, 0x03, 0x08, 2),
+                                endpoint(0x82, 0x02, 0x00, 0x400),
+                                endpoint(0x03, 0x02, 0x00, 0x400))));
+        assertEquals("size", expected.size(), snapshot.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final UsbDeviceSnapshot dev = snapshot.getDevice(i);
+            assertEquals("device " + i, expected.get(i).getDeviceName(), dev.getDeviceName());
+            assertEquals(dev.getDeviceName(), expected.get(i), dev);
+        }
+        final UsbDeviceSnapshot keyboard = snapshot.getDevice(KEYBOARD);
+        assertEquals("endpoint number", 1L, keyboard.getInterface(0).getEndpoint(0)
+                .getEndpointNumber());
+        assertEquals("direction", UsbConstantsUtil.USB_DIR_IN, keyboard.getInterface(0)
+                .getEndpoint(0).getDirection());
+        assertEquals("type", 0x03L, keyboard.getInterface(0).getEndpoint(0).getType());
+    }
+
+    public void testReadPortPaths() {
+        final Map<String, String> expected = Maps.newHashMap();
+        expected.put("/dev/bus/usb/001/001", "usb1");
+        expected.put("/dev/bus/usb/001/002", "1-1");
+        expected.put(KEYBOARD, "1-1.2");
+        expected.put("/dev/bus/usb/002/001", "usb2");
+        expected.put("/dev/bus/usb/002/003", "2-1");
+        assertEquals("port paths", expected, UsbSysfsDeviceSource.readPortPaths(mRoot));
+    }
+
+    public void testReadPortPath() {
+        // 一覧と同じ結果になる
+        for (Map.Entry<String, String> entry : UsbSysfsDeviceSource.readPortPaths(mRoot)
+                .entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(),
+                    UsbSysfsDeviceSource.readPortPath(mRoot, entry.getKey()));
+        }
+        assertNull("unknown address",
+                UsbSysfsDeviceSource.readPortPath(mRoot, "/dev/bus/usb/001/003"));
+        assertNull("unknown bus", UsbSysfsDeviceSource.readPortPath(mRoot, "/dev/bus/usb/004/001"));
+        assertNull("removed device",
+                UsbSysfsDeviceSource.readPortPath(mRoot, "/dev/bus/usb/003/002"));
+        assertNull("malformed name", UsbSysfsDeviceSource.readPortPath(mRoot, "keyboard"));
+    }
+
+    public void testReadSerialNumber() {
+        assertEquals("keyboard", "ABC123", UsbSysfsDeviceSource.readSerialNumber(mRoot, "1-1.2"));
+        assertEquals("root hub", "0000:00:14.0",
+                UsbSysfsDeviceSource.readSerialNumber(mRoot, "usb1"));
+        assertNull("no serial", UsbSysfsDeviceSource.readSerialNumber(mRoot, "2-1"));
+        assertNull("no device", UsbSysfsDeviceSource.readSerialNumber(mRoot, "1-4"));
+    }
+
+    public void testReadHidReportDescriptor() {
+        final byte[] report = UsbSysfsDeviceSource.readHidReportDescriptor(mRoot, "1-1.2", 0);
+        assertNotNull("report descriptor", report);
+        assertEquals("length", 63L, report.length);
+        final UsbHidReportParser parser = new UsbHidReportParser(report);
+        while (parser.next()) {
+            // 最後まで進める
+            assert true;
+        }
+        assertEquals("error", UsbHidReportParser.ERROR_NONE, parser.getError());
+        // 修飾キー 8 ビット、予約 8 ビット、キーコード 6 バイト
+        assertEquals("input bits", 64L, parser.getReportBits(UsbHidReportParser.REPORT_INPUT, 0));
+
+        assertNull("no HID driver",
+                UsbSysfsDeviceSource.readHidReportDescriptor(mRoot, "1-1.2", 1));
+        assertNull("no interface",
+                UsbSysfsDeviceSource.readHidReportDescriptor(mRoot, "1-1.2", 10));
+        // "1-1:1.0" は "1-1.2" のインタフェースではない
+        assertNull("port path prefix",
+                UsbSysfsDeviceSource.readHidReportDescriptor(mRoot, "1-1", 0));
+        assertNull("no device", UsbSysfsDeviceSource.readHidReportDescriptor(mRoot, "1-4", 0));
+    }
+
+    public void testMissingRoot() {
+        final File root = getFixture("sysfs/missing");
+        assertFalse("exists", root.exists());
+        assertEquals("devices", 0L, new UsbSysfsDeviceSource(root).enumerate().size());
+        assertTrue("port paths", UsbSysfsDeviceSource.readPortPaths(root).isEmpty());
+        assertNull("port path", UsbSysfsDeviceSource.readPortPath(root, KEYBOARD));
+        assertNull("serial", UsbSysfsDeviceSource.readSerialNumber(root, "1-1.2"));
+        assertNull("report", UsbSysfsDeviceSource.readHidReportDescriptor(root, "1-1.2", 0));
+    }
+
+    private static UsbDeviceSnapshot device(String deviceName, int deviceId, int clazz,
+            int subclass, int protocol, int vendorId, int productId, String portPath,
+            UsbInterfaceSnapshot... interfaces) {
+        return new UsbDeviceSnapshot(deviceName, deviceId, clazz, subclass, protocol, vendorId,
+                productId, ImmutableList.copyOf(interfaces), portPath);
+    }
+
+    private static UsbInterfaceSnapshot iface(int id, int clazz, int subclass, int protocol,
+            UsbEndpointSnapshot... endpoints) {
+        return new UsbInterfaceSnapshot(id, clazz, subclass, protocol,
+                ImmutableList.copyOf(endpoints));
+    }
+
+    private static UsbEndpointSnapshot endpoint(int address, int attributes, int interval,
+            int maxPacketSize) {
+        return new UsbEndpointSnapshot(address, address & 0x0f,
+                address & UsbConstantsUtil.USB_DIR_IN, attributes, attributes & 0x03, interval,
+                maxPacketSize);
+    }
+}
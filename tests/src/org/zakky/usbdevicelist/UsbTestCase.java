@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * ホスト上で実行する単体テストの基底クラスです。
+ * <p>
+ * JUnit を持ち込まずに {@code java} コマンドだけで実行できるよう、名前が {@code test} で
+ * 始まる引数なしの public メソッドを名前順にリフレクションで呼び出します。 メソッドごとに
+ * {@link #setUp()} と {@link #tearDown()} を呼び、 {@link AssertionError} を含む例外を
+ * スローしたメソッドを失敗として数えます。 すべてのテストは {@link UsbAllTests} から、
+ * 個別のテストはそれぞれのクラスの {@code main} から実行できます。
+ * </p>
+ * <p>
+ * テストは APK に含めないよう、 {@code src} とは別のソースルート {@code tests/src} に
+ * 置いています。 {@code ant debug} でアプリをビルドした後、リポジトリのルートで
+ * {@code tests/run-host-tests.sh} を実行すると、テストをコンパイルしてすべて実行します。
+ * {@code tests/fixtures} ディレクトリの固定データを読むテストがあります。 別の場所の
+ * 固定データを使う場合はシステムプロパティ {@value #FIXTURES_PROPERTY} で指定します。
+ * このクラスは Android に依存しません。
+ * </p>
+ */
+public abstract class UsbTestCase {
+
+    /**
+     * 固定データのディレクトリを指定するシステムプロパティの名前。
+     */
+    public static final String FIXTURES_PROPERTY = "usbdevicelist.fixtures";
+
+    private static final String DEFAULT_FIXTURES_DIR = "tests/fixtures";
+
+    private static final Comparator<Method> METHOD_COMPARATOR = new Comparator<Method>() {
+        @Override
+        public int compare(Method lhs, Method rhs) {
+            return lhs.getName().compareTo(rhs.getName());
+        }
+    };
+
+    /**
+     * 各テストメソッドの前に呼ばれます。
+     */
+    protected void setUp() throws Exception {
+        // nothing to do
+        assert true;
+    }
+
+    /**
+     * 各テストメソッドの後に、失敗した場合も呼ばれます。
+     */
+    protected void tearDown() throws Exception {
+        // nothing to do
+        assert true;
+    }
+
+    /**
+     * このクラスのテストメソッドをすべて実行し、結果を1メソッド1行で出力します。
+     *
+     * @return 失敗したメソッドの数。
+     */
+    public final int run() {
+        final Method[] methods = getClass().getMethods();
+        Arrays.sort(methods, METHOD_COMPARATOR);
+        final String className = getClass().getSimpleName();
+        int failures = 0;
+        for (Method method : methods) {
+            if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0
+                    || Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            final long start = System.nanoTime();
+            final Throwable failure = runMethod(method);
+            final long elapsedMillis = (System.nanoTime() - start) / (1000L * 1000L);
+            if (failure == null) {
+                System.out.println("ok   " + className + "." + method.getName() + " ("
+                        + elapsedMillis + " ms)");
+            } else {
+                failures++;
+                System.out.println("FAIL " + className + "." + method.getName() + ": " + failure);
+                failure.printStackTrace(System.out);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return 失敗の原因。 成功した場合は {@code null}。
+     */
+    private Throwable runMethod(Method method) {
+        Throwable failure = null;
+        try {
+            setUp();
+            method.invoke(this);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            try {
+                tearDown();
+            } catch (Throwable t) {
+                if (failure == null) {
+                    failure = t;
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * テストを順に実行し、1つでも失敗した場合は終了コード 1 で VM を終了します。
+     * テストクラスの {@code main} から呼んでください。
+     */
+    public static void runAndExit(UsbTestCase... tests) {
+        int failures = 0;
+        for (UsbTestCase test : tests) {
+            failures += test.run();
+        }
+        System.out.println((failures == 0) ? "OK" : "FAILURES: " + failures);
+        System.exit((failures == 0) ? 0 : 1);
+    }
+
+    /**
+     * @return 固定データのディレクトリの下の {@code path}。
+     */
+    protected static File getFixture(String path) {
+        return new File(System.getProperty(FIXTURES_PROPERTY, DEFAULT_FIXTURES_DIR), path);
+    }
+
+    /**
+     * 固定データのディレクトリの下の {@code dir} にある、名前が {@code suffix} で終わる
+     * ファイルを名前順に返します。 1つも無い場合は失敗します。
+     */
+    protected static File[] listFixtures(String dir, final String suffix) {
+        final File[] files = getFixture(dir).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(suffix);
+            }
+        });
+        if (files == null || files.length == 0) {
+            fail("no fixtures: " + getFixture(dir) + File.separator + "*" + suffix);
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * UTF-8 のテキストファイルを読みます。 改行は {@code '\n'} にそろえます。
+     */
+    protected static String readText(File file) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            final StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 16進テキストのファイルを読みます。 2桁の16進数を空白で区切って並べ、 {@code '#'}
+     * から行末まではコメントとして読み飛ばします。
+     */
+    protected static byte[] readHex(File file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String line : readText(file).split("\n")) {
+            final int comment = line.indexOf('#');
+            if (0 <= comment) {
+                line = line.substring(0, comment);
+            }
+            for (String token : line.trim().split("\\s+")) {
+                if (token.length() == 0) {
+                    continue;
+                }
+                final int high = Character.digit(token.charAt(0), 16);
+                final int low = (token.length() == 2) ? Character.digit(token.charAt(1), 16) : -1;
+                if (high < 0 || low < 0) {
+                    throw new IOException("invalid hex byte '" + token + "' in " + file);
+                }
+                out.write((high << 4) | low);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * ファイルの内容をすべて読みます。
+     */
+    protected static byte[] readBytes(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 一時ディレクトリの下に空のディレクトリを作成します。 不要になったら
+     * {@link #deleteRecursively(File)} で削除してください。
+     */
+    protected static File createTempDirectory(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("failed to create directory: " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * ファイルまたはディレクトリを中身ごと削除します。 存在しない場合は何もしません。
+     */
+    protected static void deleteRecursively(File file) throws IOException {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("failed to delete: " + file);
+        }
+    }
+
+    /*
+     * アサーション
+     */
+
+    protected static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    protected static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    protected static void assertFalse(String message, boolean condition) {
+        assertTrue(message, !condition);
+    }
+
+    protected static void assertEquals(String message, long expected, long actual) {
+        if (expected != actual) {
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    protected static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    protected static void assertSame(String message, Object expected, Object actual) {
+        if (expected != actual) {
+            fail(message + ": expected same <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    protected static void assertNull(String message, Object actual) {
+        if (actual != null) {
+            fail(message + ": expected null but was <" + actual + ">");
+        }
+    }
+
+    protected static void assertNotNull(String message, Object actual) {
+        if (actual == null) {
+            fail(message + ": expected non-null");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.copy;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.device;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.snapshot;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * {@link UsbTopologyDiff} のテストです。
+ */
+public class UsbTopologyDiffTest extends UsbTestCase {
+
+    private static final UsbDeviceSnapshot HUB = device(deviceName(1, 1), 0x1d6b, 0x0002,
+            "usb1");
+
+    private static final UsbDeviceSnapshot KEYBOARD = device(deviceName(1, 2), 0x046d, 0xc31c,
+            "1-1");
+
+    private static final UsbDeviceSnapshot MOUSE = device(deviceName(1, 3), 0x046d, 0xc077,
+            "1-2");
+
+    private static final UsbDeviceSnapshot STORAGE = device(deviceName(2, 4), 0x0781, 0x5567,
+            "2-1");
+
+    public static void main(String[] args) {
+        runAndExit(new UsbTopologyDiffTest());
+    }
+
+    public void testAddedRemovedAndChanged() {
+        final UsbDeviceSnapshot movedKeyboard = device(KEYBOARD.getDeviceName(), 0x046d, 0xc31c,
+                "1-3");
+        final UsbTopologySnapshot before = snapshot(HUB, KEYBOARD, MOUSE);
+        final UsbTopologySnapshot after = snapshot(copy(HUB), movedKeyboard, STORAGE);
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(before, after);
+
+        assertFalse("empty", diff.isEmpty());
+        assertDevices("removed", diff.getRemoved(), MOUSE);
+        assertDevices("added", diff.getAdded(), STORAGE);
+        assertDevices("changed", diff.getChanged(), movedKeyboard);
+        assertDevices("result", diff.getResult().getDevices(), HUB, movedKeyboard, STORAGE);
+        // 変化しなかったデバイスは以前のインスタンスのまま
+        assertSame("unchanged instance", HUB, diff.getResult().getDevice(HUB.getDeviceName()));
+        // 取り外されたデバイスは以前のインスタンス、変化したデバイスは新しいインスタンス
+        assertSame("removed instance", MOUSE, diff.getRemoved().get(0));
+        assertSame("changed instance", movedKeyboard, diff.getChanged().get(0));
+    }
+
+    public void testInterleavedNames() {
+        final UsbTopologySnapshot before = snapshot(KEYBOARD, STORAGE);
+        final UsbTopologySnapshot after = snapshot(HUB, MOUSE);
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(before, after);
+
+        assertDevices("removed", diff.getRemoved(), KEYBOARD, STORAGE);
+        assertDevices("added", diff.getAdded(), HUB, MOUSE);
+        assertDevices("changed", diff.getChanged());
+        assertDevices("result", diff.getResult().getDevices(), HUB, MOUSE);
+    }
+
+    public void testBothEmpty() {
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(UsbTopologySnapshot.EMPTY,
+                UsbTopologySnapshot.EMPTY);
+        assertTrue("empty", diff.isEmpty());
+        assertSame("result", UsbTopologySnapshot.EMPTY, diff.getResult());
+    }
+
+    public void testFromEmpty() {
+        final UsbTopologySnapshot after = snapshot(HUB, KEYBOARD);
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(UsbTopologySnapshot.EMPTY, after);
+        assertFalse("empty", diff.isEmpty());
+        assertDevices("added", diff.getAdded(), HUB, KEYBOARD);
+        assertDevices("removed", diff.getRemoved());
+        assertDevices("changed", diff.getChanged());
+        assertDevices("result", diff.getResult().getDevices(), HUB, KEYBOARD);
+    }
+
+    public void testToEmpty() {
+        final UsbTopologySnapshot before = snapshot(HUB, KEYBOARD);
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(before, UsbTopologySnapshot.EMPTY);
+        assertFalse("empty", diff.isEmpty());
+        assertDevices("removed", diff.getRemoved(), HUB, KEYBOARD);
+        assertDevices("added", diff.getAdded());
+        assertEquals("result size", 0L, diff.getResult().size());
+    }
+
+    public void testIdenticalSnapshots() {
+        final UsbTopologySnapshot before = snapshot(HUB, KEYBOARD, MOUSE, STORAGE);
+        final UsbTopologySnapshot after = snapshot(copy(HUB), copy(KEYBOARD), copy(MOUSE),
+                copy(STORAGE));
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(before, after);
+
+        assertTrue("empty", diff.isEmpty());
+        assertDevices("removed", diff.getRemoved());
+        assertDevices("added", diff.getAdded());
+        assertDevices("changed", diff.getChanged());
+        // 差分がなければ以前のスナップショットそのものを返す
+        assertSame("result", before, diff.getResult());
+        assertTrue("same snapshot", UsbTopologyDiff.compute(before, before).isEmpty());
+    }
+
+    public void testNamesAtTheEdges() {
+        // 辞書順で先頭と末尾に来る名前。 数字の桁数が違っても文字列として比較するので、
+        // .../002 は .../01 や .../010 より前に来る
+        final UsbDeviceSnapshot first = device("", 0x0001, 0x0001, null);
+        final UsbDeviceSnapshot shortName = device("/dev/bus/usb/001/01", 0x0002, 0x0002, null);
+        final UsbDeviceSnapshot longName = device("/dev/bus/usb/001/010", 0x0003, 0x0003, null);
+        final UsbDeviceSnapshot last = device("\uffff", 0x0004, 0x0004, null);
+
+        final UsbTopologySnapshot before = snapshot(first, shortName, KEYBOARD);
+        final UsbTopologySnapshot after = snapshot(longName, KEYBOARD, last);
+        final UsbTopologyDiff diff = UsbTopologyDiff.compute(before, after);
+        assertDevices("removed", diff.getRemoved(), first, shortName);
+        assertDevices("added", diff.getAdded(), longName, last);
+        assertDevices("result", diff.getResult().getDevices(), KEYBOARD, longName, last);
+        assertSame("kept", KEYBOARD, diff.getResult().getDevice(KEYBOARD.getDeviceName()));
+
+        final UsbTopologyDiff back = UsbTopologyDiff.compute(after, before);
+        assertDevices("removed back", back.getRemoved(), longName, last);
+        assertDevices("added back", back.getAdded(), first, shortName);
+        assertDevices("result back", back.getResult().getDevices(), first, KEYBOARD,
+                shortName);
+
+        // 結果のスナップショットはソートされたままで、二分探索で引ける
+        for (UsbDeviceSnapshot dev : diff.getResult().getDevices()) {
+            assertSame("lookup " + dev.getDeviceName(), dev, diff.getResult().getDevice(
+                    dev.getDeviceName()));
+        }
+    }
+
+    private static void assertDevices(String message, List<UsbDeviceSnapshot> actual,
+            UsbDeviceSnapshot... expected) {
+        assertEquals(message, ImmutableList.copyOf(expected), ImmutableList.copyOf(actual));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link UsbTopologyExporter} のテストです。
+ * <p>
+ * ルートハブ、その下のハブ、シリアル変換、カメラ、ポートパスのわからないデバイスを持つ
+ * スナップショットを各形式で書き出し、 {@code tests/fixtures/export} の期待値と比べます。
+ * </p>
+ */
+public class UsbTopologyExporterTest extends UsbTestCase {
+
+    private static final String EXPORT_DIR = "export";
+
+    private static final UsbTopologySnapshot SNAPSHOT = UsbTopologySnapshot.of(ImmutableList.of(
+            new UsbDeviceSnapshot("/dev/bus/usb/001/001", 1001, 9, 0, 1, 0x1d6b, 0x0002,
+                    ImmutableList.of(new UsbInterfaceSnapshot(0, 9, 0, 0, ImmutableList.of(
+                            new UsbEndpointSnapshot(0x81, 1, 0x80, 0x03, 3, 12, 4)))),
+                    "usb1"),
+            new UsbDeviceSnapshot("/dev/bus/usb/001/002", 1002, 9, 0, 2, 0x05e3, 0x0608,
+                    ImmutableList.of(new UsbInterfaceSnapshot(0, 9, 0, 1, ImmutableList.of(
+                            new UsbEndpointSnapshot(0x81, 1, 0x80, 0x03, 3, 12, 1)))),
+                    "1-1"),
+            new UsbDeviceSnapshot("/dev/bus/usb/001/005", 1005, 0, 0, 0, 0x0403, 0x6001,
+                    ImmutableList.of(new UsbInterfaceSnapshot(0, 255, 255, 255,
+                            ImmutableList.of(new UsbEndpointSnapshot(0x81, 1, 0x80, 0x02, 2,
+                                    0, 64), new UsbEndpointSnapshot(0x02, 2, 0x00, 0x02, 2,
+                                    0, 64)))), "1-1.2"),
+            new UsbDeviceSnapshot("/dev/bus/usb/001/006", 1006, 239, 2, 1, 0x046d, 0x0825,
+                    ImmutableList.of(new UsbInterfaceSnapshot(0, 14, 1, 0, ImmutableList.of(
+                            new UsbEndpointSnapshot(0x87, 7, 0x80, 0x03, 3, 8, 16))),
+                            new UsbInterfaceSnapshot(1, 14, 2, 0, ImmutableList.of(
+                                    new UsbEndpointSnapshot(0x81, 1, 0x80, 0x05, 1, 1,
+                                            0x1400)))), "1-1.10"),
+            new UsbDeviceSnapshot("/dev/bus/usb/002/003", 2003, 0, 0, 0, 0xabcd, 0x0009,
+                    ImmutableList.<UsbInterfaceSnapshot> of(), null)));
+
+    private static final String NAMES = ""
+            + "046d  Logitech, Inc.\n"
+            + "\t0825  Webcam C270\n"
+            + "0403  Future Technology Devices International, Ltd\n"
+            + "\t6001  FT232 Serial (UART) IC\n"
+            + "05e3  Genesys Logic, Inc.\n"
+            + "\t0608  Hub\n"
+            + "1d6b  Linux Foundation\n"
+            + "\t0002  2.0 root hub\n";
+
+    private UsbIdsIndex mIds;
+
+    public static void main(String[] args) {
+        runAndExit(new UsbTopologyExporterTest());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mIds = compileIds(NAMES);
+    }
+
+    public void testText() throws IOException {
+        assertMatchesFixture("topology.txt", UsbTopologyExporter.FORMAT_TEXT);
+    }
+
+    public void testJson() throws IOException {
+        assertMatchesFixture("topology.json", UsbTopologyExporter.FORMAT_JSON);
+    }
+
+    public void testTree() throws IOException {
+        assertMatchesFixture("topology-tree.txt", UsbTopologyExporter.FORMAT_TREE);
+    }
+
+    public void testEmptySnapshot() throws IOException {
+        assertEquals("text", "", export(UsbTopologyExporter.FORMAT_TEXT,
+                UsbTopologySnapshot.EMPTY, mIds));
+        assertEquals("json", "{\n  \"devices\": []\n}\n", export(
+                UsbTopologyExporter.FORMAT_JSON, UsbTopologySnapshot.EMPTY, mIds));
+        assertEquals("tree", "", export(UsbTopologyExporter.FORMAT_TREE,
+                UsbTopologySnapshot.EMPTY, mIds));
+    }
+
+    public void testWithoutNames() throws IOException {
+        final String text = export(UsbTopologyExporter.FORMAT_TEXT, SNAPSHOT,
+                UsbIdsIndex.EMPTY);
+        assertTrue("text", text.startsWith("Bus 001 Device 001: ID 1d6b:0002\n"));
+        final String json = export(UsbTopologyExporter.FORMAT_JSON, SNAPSHOT,
+                UsbIdsIndex.EMPTY);
+        assertTrue("json", json.contains("      \"vendorName\": null,\n"));
+    }
+
+    public void testJsonEscapesNames() throws IOException {
+        final UsbIdsIndex ids = compileIds("abcd  Quote \" Backslash \\ \u0001 ñ\n");
+        final String json = export(UsbTopologyExporter.FORMAT_JSON, SNAPSHOT, ids);
+        assertTrue(json, json.contains(
+                "      \"vendorName\": \"Quote \\\" Backslash \\\\ \\u0001 ñ\",\n"));
+    }
+
+    public void testWritesDeviceByDevice() throws IOException {
+        // ドキュメント全体をまとめて書き出さず、デバイスごとに書き出す
+        final CountingWriter out = new CountingWriter(new StringWriter());
+        UsbTopologyExporter.writeJson(out, SNAPSHOT, mIds);
+        assertEquals("writes", SNAPSHOT.size() + 1, out.getWriteCount());
+        assertEquals("flushes", 1L, out.getFlushCount());
+    }
+
+    public void testFileNameAndMimeType() {
+        assertEquals("text", "usb-topology.txt", UsbTopologyExporter.getFileName(
+                UsbTopologyExporter.FORMAT_TEXT));
+        assertEquals("json", "usb-topology.json", UsbTopologyExporter.getFileName(
+                UsbTopologyExporter.FORMAT_JSON));
+        assertEquals("tree", "usb-topology-tree.txt", UsbTopologyExporter.getFileName(
+                UsbTopologyExporter.FORMAT_TREE));
+        assertEquals("json mime", "application/json", UsbTopologyExporter.getMimeType(
+                UsbTopologyExporter.FORMAT_JSON));
+        assertEquals("tree mime", "text/plain", UsbTopologyExporter.getMimeType(
+                UsbTopologyExporter.FORMAT_TREE));
+    }
+
+    private void assertMatchesFixture(String name, int format) throws IOException {
+        final File expected = getFixture(EXPORT_DIR + File.separator + name);
+        final String actual = export(format, SNAPSHOT, mIds);
+        if (!expected.isFile()) {
+            fail("missing " + expected + ", actual:\n" + actual);
+        }
+        assertEquals(name, readText(expected), actual);
+        // 同じスナップショットからは常に同じ出力が得られる
+        assertEquals(name + " again", actual, export(format, SNAPSHOT, mIds));
+    }
+
+    private static String export(int format, UsbTopologySnapshot snapshot, UsbIdsIndex ids)
+            throws IOException {
+        final StringWriter out = new StringWriter();
+        UsbTopologyExporter.write(out, format, snapshot, ids);
+        return out.toString();
+    }
+
+    private static UsbIdsIndex compileIds(String ids) throws IOException {
+        final UsbIdsCompiler compiler = new UsbIdsCompiler();
+        compiler.parse(new StringReader(ids));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compiler.write(out);
+        return UsbIdsIndex.wrap(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    /**
+     * 書き込みとフラッシュの回数を数える {@link Writer} です。
+     */
+    private static final class CountingWriter extends FilterWriter {
+        private int mWriteCount;
+
+        private int mFlushCount;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            mWriteCount++;
+            super.write(str, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mFlushCount++;
+            super.flush();
+        }
+
+        int getWriteCount() {
+            return mWriteCount;
+        }
+
+        int getFlushCount() {
+            return mFlushCount;
+        }
+    }
+}
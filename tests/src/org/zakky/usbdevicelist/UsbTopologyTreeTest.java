@@ -0,0 +1,251 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.usbdevicelist;
+
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.CLASS_HID;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.CLASS_HUB;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.device;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.deviceName;
+import static org.zakky.usbdevicelist.UsbSnapshotFixtures.snapshot;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * {@link UsbTopologyTree} のテストです。
+ */
+public class UsbTopologyTreeTest extends UsbTestCase {
+
+    private static final UsbDeviceSnapshot ROOT_HUB = device(deviceName(1, 1), CLASS_HUB,
+            0x1d6b, 0x0002, "usb1");
+
+    private static final UsbDeviceSnapshot HUB = device(deviceName(1, 2), CLASS_HUB, 0x05e3,
+            0x0608, "1-1");
+
+    private static final UsbDeviceSnapshot KEYBOARD = device(deviceName(1, 5), CLASS_HID,
+            0x046d, 0xc31c, "1-1.2");
+
+    private static final UsbDeviceSnapshot MOUSE = device(deviceName(1, 6), CLASS_HID, 0x046d,
+            0xc077, "1-1.10");
+
+    private static final UsbDeviceSnapshot STORAGE = device(deviceName(1, 7), 0, 0x0781,
+            0x5567, "1-2");
+
+    private static final UsbDeviceSnapshot UNKNOWN_PORT = device(deviceName(1, 9), 0, 0x0781,
+            0x5567, null);
+
+    private static final UsbDeviceSnapshot OTHER_BUS = device(deviceName(2, 3), CLASS_HID,
+            0x046d, 0xc31c, "2-1");
+
+    public static void main(String[] args) {
+        runAndExit(new UsbTopologyTreeTest());
+    }
+
+    public void testBuildsTree() {
+        final UsbTopologyTree tree = new UsbTopologyTree(snapshot(MOUSE, UNKNOWN_PORT, KEYBOARD,
+                OTHER_BUS, STORAGE, HUB, ROOT_HUB));
+        assertEquals("size", 7L, tree.size());
+        assertEquals("tree", ""
+                + "bus 1\n"
+                + "  usb1\n"
+                + "    1-1\n"
+                + "      1-1.2\n"
+                + "      1-1.10\n"
+                + "    1-2\n"
+                + "  " + UNKNOWN_PORT.getDeviceName() + "\n"
+                + "bus 2\n"
+                + "  2-1\n", describe(tree));
+        assertEquals("depth", 3L, tree.getNode(KEYBOARD.getDeviceName()).getDepth());
+        assertSame("parent", tree.getNode(HUB.getDeviceName()), tree.getNode(
+                MOUSE.getDeviceName()).getParent());
+        assertNull("unknown device", tree.getNode(deviceName(3, 1)));
+    }
+
+    public void testReparentsWhenHubArrives() {
+        final UsbTopologySnapshot orphans = snapshot(ROOT_HUB, KEYBOARD, MOUSE);
+        final UsbTopologyTree tree = new UsbTopologyTree(orphans);
+        // 親のハブが無いので、もっとも近い祖先の下に置かれる
+        assertSame("orphan parent", tree.getNode(ROOT_HUB.getDeviceName()), tree.getNode(
+                KEYBOARD.getDeviceName()).getParent());
+
+        final UsbTopologySnapshot withHub = snapshot(ROOT_HUB, HUB, KEYBOARD, MOUSE);
+        tree.apply(UsbTopologyDiff.compute(orphans, withHub));
+        assertSame("adopted", tree.getNode(HUB.getDeviceName()), tree.getNode(
+                KEYBOARD.getDeviceName()).getParent());
+        assertEquals("after hub arrives", describe(new UsbTopologyTree(withHub)), describe(tree));
+    }
+
+    public void testChildrenMoveUpWhenHubRemoved() {
+        final UsbTopologySnapshot withHub = snapshot(ROOT_HUB, HUB, KEYBOARD, MOUSE, STORAGE);
+        final UsbTopologyTree tree = new UsbTopologyTree(withHub);
+        final UsbTopologySnapshot withoutHub = snapshot(ROOT_HUB, KEYBOARD, MOUSE, STORAGE);
+        tree.apply(UsbTopologyDiff.compute(withHub, withoutHub));
+        assertSame("moved up", tree.getNode(ROOT_HUB.getDeviceName()), tree.getNode(
+                MOUSE.getDeviceName()).getParent());
+        assertEquals("after hub removed", describe(new UsbTopologyTree(withoutHub)),
+                describe(tree));
+
+        // バスのデバイスが無くなればバスのノードも消える
+        final UsbTopologySnapshot otherBusOnly = snapshot(OTHER_BUS);
+        tree.apply(UsbTopologyDiff.compute(withoutHub, otherBusOnly));
+        assertEquals("buses", 1L, tree.getBuses().size());
+        assertEquals("bus number", 2L, tree.getBuses().get(0).getBusNumber());
+    }
+
+    public void testIndexes() {
+        final UsbTopologyTree tree = new UsbTopologyTree(snapshot(ROOT_HUB, HUB, KEYBOARD,
+                MOUSE, STORAGE, UNKNOWN_PORT, OTHER_BUS));
+        assertEquals("bus 1", names(ROOT_HUB, HUB, KEYBOARD, MOUSE, STORAGE, UNKNOWN_PORT),
+                names(tree.getDevicesOnBus(1)));
+        assertEquals("bus 3", names(), names(tree.getDevicesOnBus(3)));
+        assertSame("by id", MOUSE, tree.getDeviceById(MOUSE.getDeviceId()));
+        assertNull("unknown id", tree.getDeviceById(0));
+        assertEquals("by vid:pid", names(KEYBOARD, OTHER_BUS), names(tree.getDevicesByVidPid(
+                0x046d, 0xc31c)));
+        assertEquals("by hub class", names(ROOT_HUB, HUB), names(tree.getDevicesByClass(
+                CLASS_HUB)));
+        // インタフェースのクラスでも引ける
+        assertEquals("by hid class", names(KEYBOARD, MOUSE, STORAGE, UNKNOWN_PORT, OTHER_BUS),
+                names(tree.getDevicesByClass(CLASS_HID)));
+
+        final List<UsbTopologyTree.Node> order = tree.getDevicesInTreeOrder();
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals("tree index " + i, i, tree.getTreeIndex(order.get(i).getDevice()
+                    .getDeviceName()));
+        }
+        assertEquals("unknown tree index", -1L, tree.getTreeIndex(deviceName(3, 1)));
+    }
+
+    public void testPortPaths() {
+        assertEquals("parent of port", "1-1", UsbTopologyTree.getParentPortPath("1-1.2"));
+        assertEquals("parent of root port", "usb1", UsbTopologyTree.getParentPortPath("1-1"));
+        assertNull("parent of root hub", UsbTopologyTree.getParentPortPath("usb1"));
+        assertTrue("numeric order", UsbTopologyTree.comparePortPaths("1-1.2", "1-1.10") < 0);
+        assertTrue("parent first", UsbTopologyTree.comparePortPaths("1-1", "1-1.1") < 0);
+        assertEquals("same", 0L, UsbTopologyTree.comparePortPaths("2-1.4", "2-1.4"));
+        assertTrue("descendant", UsbTopologyTree.isDescendantPath("1-1.2.3", "1-1"));
+        assertTrue("descendant of root hub", UsbTopologyTree.isDescendantPath("1-1.2", "usb1"));
+        assertFalse("sibling prefix", UsbTopologyTree.isDescendantPath("1-10", "1-1"));
+        assertFalse("other bus", UsbTopologyTree.isDescendantPath("11-1", "usb1"));
+        assertFalse("self", UsbTopologyTree.isDescendantPath("1-1", "1-1"));
+    }
+
+    /**
+     * 無作為に作ったスナップショットの列について、差分を順に適用した木と、
+     * 各スナップショットから作り直した木が同じになることを確かめます。 ハブの接続や切断、
+     * ポートパスやプロダクト Id の変化が混ざるので、親が後から現れる場合や、親が先に
+     * 消える場合の付け替えを通します。
+     */
+    public void testIncrementalMatchesFreshBuild() {
+        final String[][] portPaths = {
+                {"usb1"}, {"1-1", "1-3"}, {"1-1.1"}, {"1-1.2", "1-3.2"}, {"1-1.2.3"},
+                {"1-1.10"}, {"1-2"}, {"1-10", null}, {"usb2"}, {"2-1"}, {"2-1.4", "2-1.5"},
+                {null}, {"3-1.1"},
+        };
+        final Random random = new Random(20111201L);
+        final UsbTopologyTree tree = new UsbTopologyTree();
+        UsbTopologySnapshot previous = UsbTopologySnapshot.EMPTY;
+        for (int step = 0; step < 2000; step++) {
+            final List<UsbDeviceSnapshot> devices = Lists.newArrayList();
+            for (int i = 0; i < portPaths.length; i++) {
+                if (random.nextInt(10) < 4) {
+                    continue;
+                }
+                final String[] candidates = portPaths[i];
+                final String portPath = candidates[random.nextInt(candidates.length)];
+                final int bus = (portPath == null) ? 1 : portPath.startsWith("usb")
+                        ? portPath.charAt(3) - '0' : portPath.charAt(0) - '0';
+                final boolean hub = (portPath != null && (portPath.startsWith("usb")
+                        || i < 5));
+                devices.add(device(deviceName(bus, i + 1), hub ? CLASS_HUB : 0, 0x1000 + i,
+                        random.nextInt(2), portPath));
+            }
+            final UsbTopologySnapshot next = UsbTopologySnapshot.of(devices);
+            tree.apply(UsbTopologyDiff.compute(previous, next));
+
+            final UsbTopologyTree fresh = new UsbTopologyTree(next);
+            final String message = "step " + step;
+            assertEquals(message, describe(fresh), describe(tree));
+            assertEquals(message + ": size", fresh.size(), tree.size());
+            assertSameIndexes(message, next, fresh, tree);
+            previous = next;
+        }
+    }
+
+    private static void assertSameIndexes(String message, UsbTopologySnapshot snapshot,
+            UsbTopologyTree expected, UsbTopologyTree actual) {
+        for (int bus = 1; bus <= 3; bus++) {
+            assertEquals(message + ": bus " + bus, names(expected.getDevicesOnBus(bus)),
+                    names(actual.getDevicesOnBus(bus)));
+        }
+        assertEquals(message + ": hub class", names(expected.getDevicesByClass(CLASS_HUB)),
+                names(actual.getDevicesByClass(CLASS_HUB)));
+        assertEquals(message + ": hid class", names(expected.getDevicesByClass(CLASS_HID)),
+                names(actual.getDevicesByClass(CLASS_HID)));
+        for (UsbDeviceSnapshot dev : snapshot.getDevices()) {
+            final String name = dev.getDeviceName();
+            assertEquals(message + ": id of " + name, dev, actual.getDeviceById(
+                    dev.getDeviceId()));
+            assertEquals(message + ": vid:pid of " + name, names(expected.getDevicesByVidPid(
+                    dev.getVendorId(), dev.getProductId())), names(actual.getDevicesByVidPid(
+                    dev.getVendorId(), dev.getProductId())));
+            assertEquals(message + ": tree index of " + name, expected.getTreeIndex(name),
+                    actual.getTreeIndex(name));
+        }
+    }
+
+    /**
+     * 木をバスごとに、深さに応じて字下げしたポートパス(無い場合はデバイス名)の行で
+     * 表します。 親子のリンクが食い違っている場合は失敗します。
+     */
+    private static String describe(UsbTopologyTree tree) {
+        final StringBuilder sb = new StringBuilder();
+        for (UsbTopologyTree.Node bus : tree.getBuses()) {
+            sb.append("bus ").append(bus.getBusNumber()).append('\n');
+            describe(sb, bus, "  ");
+        }
+        return sb.toString();
+    }
+
+    private static void describe(StringBuilder sb, UsbTopologyTree.Node node, String indent) {
+        for (UsbTopologyTree.Node child : node.getChildren()) {
+            assertSame("parent of " + child.getDevice(), node, child.getParent());
+            final UsbDeviceSnapshot dev = child.getDevice();
+            sb.append(indent).append((dev.getPortPath() == null) ? dev.getDeviceName() : dev
+                    .getPortPath()).append('\n');
+            describe(sb, child, indent + "  ");
+        }
+    }
+
+    /**
+     * 索引の並びは追加の順序で変わるので、デバイス名の集合として比べます。
+     */
+    private static Set<String> names(List<UsbDeviceSnapshot> devices) {
+        final Set<String> result = Sets.newTreeSet();
+        for (UsbDeviceSnapshot dev : devices) {
+            result.add(dev.getDeviceName());
+        }
+        return result;
+    }
+
+    private static Set<String> names(UsbDeviceSnapshot... devices) {
+        return names(Lists.newArrayList(devices));
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+#
+# usb.ids を UsbIdsCompiler でコンパイルし、 assets/usb_ids.bin に配置します。
+# usb.ids は http://www.linux-usb.org/usb.ids から取得してください。
+# ant debug などでアプリをビルドする前に実行します。
+#
+# 使い方: tools/compile-usb-ids.sh <usb.ids> [出力ファイル]
+#
+
+set -e
+
+if [ $# -lt 1 ] || [ 2 -lt $# ]; then
+    echo "usage: $0 <usb.ids> [output]" >&2
+    exit 2
+fi
+
+# 引数の相対パスは呼び出し元のディレクトリからの位置として扱う
+INPUT=$(cd "$(dirname "$1")" && pwd)/$(basename "$1")
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUTPUT=${2:-$ROOT/assets/usb_ids.bin}
+OUT=$ROOT/bin/tools
+
+mkdir -p "$OUT" "$(dirname "$OUTPUT")"
+javac -encoding UTF-8 -nowarn -sourcepath "$ROOT/src" -d "$OUT" \
+    "$ROOT/src/org/zakky/usbdevicelist/UsbIdsCompiler.java"
+java -cp "$OUT" org.zakky.usbdevicelist.UsbIdsCompiler "$INPUT" "$OUTPUT"